@@ -18,55 +18,30 @@
  */
 package iped.app.ui;
 
-import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
-import java.text.Collator;
-import java.text.DecimalFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.Date;
-import java.util.List;
-import java.util.TimeZone;
 
 import javax.swing.SwingUtilities;
 import javax.swing.table.AbstractTableModel;
 import javax.swing.table.TableColumn;
 
-import org.apache.lucene.document.Document;
-import org.apache.lucene.search.highlight.TextFragment;
-import org.apache.lucene.util.BytesRef;
-
 import iped.data.IItemId;
-import iped.engine.datasource.SleuthkitReader;
-import iped.engine.localization.CategoryLocalization;
 import iped.engine.search.TimelineResults.TimeItemId;
 import iped.engine.task.index.IndexItem;
 import iped.engine.util.Util;
 import iped.localization.LocalizedProperties;
 import iped.properties.BasicProps;
 import iped.search.IMultiSearchResult;
-import iped.utils.DateUtil;
 import iped.utils.LocalizedFormat;
-import iped.viewers.ATextViewer;
 
 public class ResultTableModel extends AbstractTableModel implements SearchResultTableModel {
 
     private static final long serialVersionUID = 1L;
 
-    private static final List<String> basicDateFields = Arrays.asList(IndexItem.ACCESSED, IndexItem.MODIFIED,
-            IndexItem.CREATED, IndexItem.CHANGED);
-
     private static final String lengthField = LocalizedProperties.getLocalizedField(IndexItem.LENGTH);
     public static String BOOKMARK_COL = Messages.getString("ResultTableModel.bookmark"); //$NON-NLS-1$
     public static String SCORE_COL = Messages.getString("ResultTableModel.score"); //$NON-NLS-1$
 
-    private SimpleDateFormat df = new SimpleDateFormat(Messages.getString("ResultTableModel.DateFormat")); //$NON-NLS-1$
-    private SimpleDateFormat fatAccessedDf = new SimpleDateFormat(Messages.getString("ResultTableModel.FATDateFormat")); //$NON-NLS-1$
-    private DecimalFormat numberFormat = LocalizedFormat.getDecimalInstance("#,###.############"); //$NON-NLS-1$
-    private Collator collator = Collator.getInstance();
-
     public static String[] fields;
 
     private static int fixedColdWidths[] = { 55, 18 };
@@ -121,9 +96,6 @@ public void updateCols() {
 
     public ResultTableModel() {
         super();
-        df.setTimeZone(TimeZone.getTimeZone("UTC")); //$NON-NLS-1$
-        fatAccessedDf.setTimeZone(TimeZone.getTimeZone("UTC")); //$NON-NLS-1$
-        collator.setStrength(Collator.PRIMARY);
     }
 
     @Override
@@ -204,8 +176,7 @@ public IMultiSearchResult getSearchResult() {
         return App.get().ipedResult;
     }
 
-    private Document doc;
-    private int lastDocRead = -1;
+    private ResultTableValueCache valueCache = new ResultTableValueCache();
 
     @Override
     public Object getValueAt(int row, int col) {
@@ -216,21 +187,9 @@ public Object getValueAt(int row, int col) {
         if (col == 1)
             return app.appCase.getMultiBookmarks().isChecked(app.ipedResult.getItem(row));
 
-        String value = ""; //$NON-NLS-1$
-
         IItemId item = App.get().ipedResult.getItem(row);
         int docId = App.get().appCase.getLuceneId(item);
 
-        if (docId != lastDocRead) {
-            try {
-                doc = app.appCase.getSearcher().doc(docId);
-            } catch (IOException e) {
-                e.printStackTrace();
-                return Messages.getString("ResultTableModel.Error"); //$NON-NLS-1$
-            }
-        }
-        lastDocRead = docId;
-
         try {
             int fCol = col - fixedCols.length;
             String field = fields[fCol];
@@ -253,99 +212,13 @@ public Object getValueAt(int row, int col) {
                 }
             }
 
-            boolean isNumeric = IndexItem.isNumeric(field);
-
-            String[] values = doc.getValues(field);
-            if (values.length > 1) {
-                boolean sorted = false;
-                if (isNumeric) {
-                    try {
-                        Arrays.sort(values, new Comparator<String>() {
-                            @Override
-                            public int compare(String o1, String o2) {
-                                return Double.valueOf(o1).compareTo(Double.valueOf(o2));
-                            }
-                        });
-                        sorted = true;
-                    } catch (NumberFormatException e) {
-                    }
-                }
-                if (!sorted) {
-                    Arrays.sort(values, collator);
-                }
-            }
-            
-            if (values.length == 0) {
-                BytesRef[] bytes = doc.getBinaryValues(field);
-                if (bytes.length > 0) {
-                    values = new String[bytes.length];
-                    for (int i = 0; i < bytes.length; i++) {
-                        values[i] = bytes[i].toString();
-                    }
-                }
-            }
-
-            if (LocalizedProperties.getLocalizedField(BasicProps.CATEGORY).equalsIgnoreCase(getColumnName(col))) {
-                for (int i = 0; i < values.length; i++) {
-                    values[i] = CategoryLocalization.getInstance().getLocalizedCategory(values[i]);
-                }
-            }
-
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < values.length; i++) {
-                if (isNumeric) {
-                    values[i] = numberFormat.format(Double.valueOf(values[i]));
-                }
-                sb.append(values[i]);
-                if (i != values.length - 1) {
-                    if (i == 9) {
-                        sb.append(" ..."); //$NON-NLS-1$
-                        break;
-                    }
-                    sb.append(" | "); //$NON-NLS-1$
-                }
-            }
-
-            value = sb.toString().trim();
-
-            if (value.isEmpty())
-                return value;
-
-            if (basicDateFields.contains(field))
-                try {
-                    Date date = DateUtil.stringToDate(value);
-                    if (field.equals(IndexItem.ACCESSED)) {
-                        if (doc.get(SleuthkitReader.IN_FAT_FS) != null)
-                            return fatAccessedDf.format(date);
-                    }
-                    return df.format(date);
-
-                } catch (Exception e) {
-                    // e.printStackTrace();
-                }
-
-            if (field.equals(IndexItem.NAME)) {
-                TextFragment[] fragments = TextHighlighter.getHighlightedFrags(false, value, field, 0);
-                if (fragments[0].getScore() > 0) {
-                    StringBuilder s = new StringBuilder();
-                    s.append("<html><nobr>"); //$NON-NLS-1$
-                    if (App.get().getFontStartTag() != null)
-                        s.append(App.get().getFontStartTag());
-                    s.append(fragments[0].toString());
-                    if (App.get().getFontStartTag() != null)
-                        s.append(ATextViewer.HIGHLIGHT_END_TAG);
-                    s.append("</html>"); //$NON-NLS-1$
-                    value = s.toString();
-                }
-            }
+            return valueCache.getValue(row, docId, fields, fCol);
 
         } catch (Exception e) {
             e.printStackTrace();
             return Messages.getString("ResultTableModel.Error"); //$NON-NLS-1$
         }
 
-        return value;
-
     }
 
 }
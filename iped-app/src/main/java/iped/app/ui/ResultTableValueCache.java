@@ -0,0 +1,484 @@
+package iped.app.ui;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.text.Collator;
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.JTable;
+import javax.swing.SwingUtilities;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.highlight.TextFragment;
+import org.apache.lucene.util.BytesRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import iped.engine.datasource.SleuthkitReader;
+import iped.engine.localization.CategoryLocalization;
+import iped.engine.task.index.IndexItem;
+import iped.properties.BasicProps;
+import iped.utils.DateUtil;
+import iped.utils.LocalizedFormat;
+import iped.viewers.ATextViewer;
+
+/**
+ * Cache of the formatted values shown in the result table, indexed by lucene
+ * docId. Values are loaded column by column for a batch of docs sorted by
+ * docId: columns with raw DocValues are read from them, the other ones are read
+ * from the stored fields, loading just the needed fields. When a visible row is
+ * not cached, all visible rows are loaded in one batch and the rows around them
+ * are loaded by a background thread, so scrolling usually finds the values
+ * already formatted.
+ *
+ * The cache is cleared when the result, the columns or the highlight query
+ * change.
+ */
+public class ResultTableValueCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResultTableValueCache.class);
+
+    private static final int MAX_CACHED_ROWS = 20000;
+
+    /**
+     * Number of rows loaded in background before and after the visible ones.
+     */
+    private static final int PREFETCH_ROWS = 500;
+
+    private static final int PREFETCH_BATCH_SIZE = 100;
+
+    private static final int MAX_VALUES_SHOWN = 10;
+
+    private static final List<String> basicDateFields = Arrays.asList(IndexItem.ACCESSED, IndexItem.MODIFIED,
+            IndexItem.CREATED, IndexItem.CHANGED);
+
+    /**
+     * Single valued fields whose SortedDocValues keep the stored value, without
+     * normalization.
+     */
+    private static final Set<String> rawSortedFields = new HashSet<>(Arrays.asList(IndexItem.ACCESSED,
+            IndexItem.MODIFIED, IndexItem.CREATED, IndexItem.CHANGED, IndexItem.CONTENTTYPE, IndexItem.HASH,
+            IndexItem.DELETED, IndexItem.HASCHILD, IndexItem.ISDIR, IndexItem.CARVED, IndexItem.SUBITEM));
+
+    private final Map<Integer, String[]> cache = new LinkedHashMap<Integer, String[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) {
+            return size() > MAX_CACHED_ROWS;
+        }
+    };
+
+    // state the cached values depend on
+    private Object result, fields, appCase, query, fontStartTag;
+
+    private final ThreadLocal<ValueFormatter> formatters = ThreadLocal.withInitial(ValueFormatter::new);
+
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "ResultTablePrefetch"); //$NON-NLS-1$
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicInteger generation = new AtomicInteger();
+
+    private int prefetchedFirst = -1, prefetchedLast = -1;
+
+    /**
+     * Returns the formatted value of an item in the result table.
+     *
+     * @param row
+     *            model row of the item
+     * @param docId
+     *            lucene id of the item
+     * @param fields
+     *            current table fields
+     * @param col
+     *            index of the column in fields
+     */
+    public String getValue(int row, int docId, String[] fields, int col) throws IOException {
+        String[] values;
+        synchronized (cache) {
+            checkState(fields);
+            values = cache.get(docId);
+        }
+        if (values == null) {
+            if (SwingUtilities.isEventDispatchThread()) {
+                loadVisibleRows(row, fields);
+                synchronized (cache) {
+                    values = cache.get(docId);
+                }
+            }
+            if (values == null) {
+                values = load(new int[] { docId }, fields, 0, 1)[0];
+                put(new int[] { docId }, new String[][] { values }, 0, fields);
+            }
+        }
+        if (SwingUtilities.isEventDispatchThread()) {
+            prefetchAround(row, fields);
+        }
+        return values[col];
+    }
+
+    /**
+     * Clears the cache if any state the values depend on has changed. Must be
+     * called holding the cache lock.
+     */
+    private void checkState(String[] fields) {
+        App app = App.get();
+        if (result != app.ipedResult || this.fields != fields || appCase != app.appCase || query != app.getQuery()
+                || fontStartTag != app.getFontStartTag()) {
+            result = app.ipedResult;
+            this.fields = fields;
+            appCase = app.appCase;
+            query = app.getQuery();
+            fontStartTag = app.getFontStartTag();
+            clear();
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+            generation.incrementAndGet();
+            prefetchedFirst = prefetchedLast = -1;
+        }
+    }
+
+    private void put(int[] docIds, String[][] values, int gen, String[] fields) {
+        synchronized (cache) {
+            if ((gen != 0 && gen != generation.get()) || this.fields != fields) {
+                return;
+            }
+            for (int i = 0; i < docIds.length; i++) {
+                if (values[i] != null) {
+                    cache.put(docIds[i], values[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads all visible rows not cached yet in a single batch.
+     */
+    private void loadVisibleRows(int row, String[] fields) throws IOException {
+        JTable table = App.get().resultsTable;
+        int viewRow = table.convertRowIndexToView(row);
+        if (viewRow == -1) {
+            return;
+        }
+        Rectangle rect = table.getVisibleRect();
+        int first = table.rowAtPoint(rect.getLocation());
+        int last = table.rowAtPoint(new Point(rect.x, rect.y + rect.height - 1));
+        if (first == -1 || last == -1 || viewRow < first || viewRow > last) {
+            // row not being shown, maybe the table is being scrolled to it
+            first = viewRow;
+            last = Math.min(table.getRowCount() - 1, viewRow + rect.height / table.getRowHeight());
+        }
+        int[] docIds = getUncachedDocIds(table, first, last);
+        String[][] values = load(docIds, fields, 0, docIds.length);
+        put(docIds, values, 0, fields);
+    }
+
+    private int[] getUncachedDocIds(JTable table, int firstViewRow, int lastViewRow) {
+        int[] docIds = new int[lastViewRow - firstViewRow + 1];
+        int n = 0;
+        synchronized (cache) {
+            for (int i = firstViewRow; i <= lastViewRow; i++) {
+                int row = table.convertRowIndexToModel(i);
+                int docId = App.get().appCase.getLuceneId(App.get().ipedResult.getItem(row));
+                // get() would change the LRU order of rows not being shown
+                if (!cache.containsKey(docId)) {
+                    docIds[n++] = docId;
+                }
+            }
+        }
+        // stored fields and DocValues are read faster in docId order
+        Arrays.sort(docIds, 0, n);
+        // timeline results may have many rows per doc
+        int unique = 0;
+        for (int i = 0; i < n; i++) {
+            if (unique == 0 || docIds[unique - 1] != docIds[i]) {
+                docIds[unique++] = docIds[i];
+            }
+        }
+        return Arrays.copyOf(docIds, unique);
+    }
+
+    /**
+     * Schedules the background load of the rows around a visible row, if they were
+     * not scheduled before.
+     */
+    private void prefetchAround(int row, String[] fields) {
+        JTable table = App.get().resultsTable;
+        int viewRow = table.convertRowIndexToView(row);
+        if (viewRow == -1 || (viewRow >= prefetchedFirst + PREFETCH_ROWS / 2
+                && viewRow <= prefetchedLast - PREFETCH_ROWS / 2)) {
+            return;
+        }
+        int first = Math.max(0, viewRow - PREFETCH_ROWS);
+        int last = Math.min(table.getRowCount() - 1, viewRow + PREFETCH_ROWS);
+        prefetchedFirst = first == 0 ? Integer.MIN_VALUE : first;
+        prefetchedLast = last == table.getRowCount() - 1 ? Integer.MAX_VALUE : last;
+
+        int[] docIds = getUncachedDocIds(table, first, last);
+        int gen = generation.incrementAndGet();
+        prefetchExecutor.execute(() -> {
+            try {
+                for (int i = 0; i < docIds.length; i += PREFETCH_BATCH_SIZE) {
+                    if (gen != generation.get()) {
+                        // cache cleared or a newer prefetch was scheduled
+                        return;
+                    }
+                    int end = Math.min(docIds.length, i + PREFETCH_BATCH_SIZE);
+                    String[][] values = load(docIds, fields, i, end);
+                    put(Arrays.copyOfRange(docIds, i, end), values, gen, fields);
+                }
+            } catch (Exception e) {
+                logger.warn("Error loading result table values", e); //$NON-NLS-1$
+            }
+        });
+    }
+
+    /**
+     * Loads and formats the values of docIds[from, to) for all fields. docIds
+     * must be sorted.
+     */
+    private String[][] load(int[] docIds, String[] fields, int from, int to) throws IOException {
+        String[][] values = new String[to - from][fields.length];
+        LeafReader reader = App.get().appCase.getLeafReader();
+        ValueFormatter formatter = formatters.get();
+
+        List<Integer> storedCols = new ArrayList<>();
+        Set<String> fieldsToLoad = new HashSet<>();
+        for (int col = 0; col < fields.length; col++) {
+            String field = fields[col];
+            if (field.equals(ResultTableModel.SCORE_COL) || field.equals(ResultTableModel.BOOKMARK_COL)) {
+                continue;
+            }
+            if (!loadFromDocValues(reader, docIds, from, to, field, col, values, formatter)) {
+                storedCols.add(col);
+                fieldsToLoad.add(field);
+            }
+        }
+        if (fieldsToLoad.isEmpty()) {
+            return values;
+        }
+        fieldsToLoad.add(SleuthkitReader.IN_FAT_FS);
+        for (int i = from; i < to; i++) {
+            Document doc = App.get().appCase.getSearcher().doc(docIds[i], fieldsToLoad);
+            boolean inFatFs = doc.get(SleuthkitReader.IN_FAT_FS) != null;
+            for (int col : storedCols) {
+                String field = fields[col];
+                String[] fieldValues = doc.getValues(field);
+                if (fieldValues.length == 0) {
+                    BytesRef[] bytes = doc.getBinaryValues(field);
+                    if (bytes.length > 0) {
+                        fieldValues = new String[bytes.length];
+                        for (int j = 0; j < bytes.length; j++) {
+                            fieldValues[j] = bytes[j].toString();
+                        }
+                    }
+                }
+                values[i - from][col] = formatter.format(field, fieldValues, inFatFs);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Loads a column from DocValues, if they keep the same value of the stored
+     * field.
+     *
+     * @return false if the column must be loaded from stored fields
+     */
+    private boolean loadFromDocValues(LeafReader reader, int[] docIds, int from, int to, String field, int col,
+            String[][] values, ValueFormatter formatter) throws IOException {
+        FieldInfo info = reader.getFieldInfos().fieldInfo(field);
+        if (info == null) {
+            return false;
+        }
+        if (info.getDocValuesType() == DocValuesType.NUMERIC) {
+            boolean isFloat = IndexItem.isFloat(field);
+            boolean isDouble = IndexItem.isDouble(field);
+            if (!isFloat && !isDouble && !IndexItem.isIntegerNumber(field) && !field.equals(IndexItem.LENGTH)) {
+                return false;
+            }
+            NumericDocValues ndv = reader.getNumericDocValues(field);
+            for (int i = from; i < to; i++) {
+                String value = null;
+                if (ndv.advanceExact(docIds[i])) {
+                    long l = ndv.longValue();
+                    if (isFloat) {
+                        value = Float.toString(Float.intBitsToFloat((int) l));
+                    } else if (isDouble) {
+                        value = Double.toString(Double.longBitsToDouble(l));
+                    } else {
+                        value = Long.toString(l);
+                    }
+                }
+                values[i - from][col] = formatter.format(field, value, false);
+            }
+            return true;
+        }
+        if (info.getDocValuesType() == DocValuesType.SORTED
+                && (rawSortedFields.contains(field) || Date.class.equals(IndexItem.getMetadataTypes().get(field)))) {
+            SortedDocValues fatDv = null;
+            if (field.equals(IndexItem.ACCESSED)) {
+                FieldInfo fatInfo = reader.getFieldInfos().fieldInfo(SleuthkitReader.IN_FAT_FS);
+                if (fatInfo != null) {
+                    if (fatInfo.getDocValuesType() != DocValuesType.SORTED) {
+                        return false;
+                    }
+                    fatDv = reader.getSortedDocValues(SleuthkitReader.IN_FAT_FS);
+                }
+            }
+            SortedDocValues sdv = reader.getSortedDocValues(field);
+            for (int i = from; i < to; i++) {
+                String value = null;
+                if (sdv.advanceExact(docIds[i])) {
+                    value = sdv.lookupOrd(sdv.ordValue()).utf8ToString();
+                }
+                boolean inFatFs = fatDv != null && fatDv.advanceExact(docIds[i]);
+                values[i - from][col] = formatter.format(field, value, inFatFs);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Formats field values as shown in the table. Formats are not thread safe, so
+     * each thread has its own instance.
+     */
+    private static class ValueFormatter {
+
+        private SimpleDateFormat df = new SimpleDateFormat(Messages.getString("ResultTableModel.DateFormat")); //$NON-NLS-1$
+        private SimpleDateFormat fatAccessedDf = new SimpleDateFormat(
+                Messages.getString("ResultTableModel.FATDateFormat")); //$NON-NLS-1$
+        private DecimalFormat numberFormat = LocalizedFormat.getDecimalInstance("#,###.############"); //$NON-NLS-1$
+        private Collator collator = Collator.getInstance();
+
+        private ValueFormatter() {
+            df.setTimeZone(TimeZone.getTimeZone("UTC")); //$NON-NLS-1$
+            fatAccessedDf.setTimeZone(TimeZone.getTimeZone("UTC")); //$NON-NLS-1$
+            collator.setStrength(Collator.PRIMARY);
+        }
+
+        private String format(String field, String value, boolean inFatFs) {
+            return format(field, value == null ? new String[0] : new String[] { value }, inFatFs);
+        }
+
+        private String format(String field, String[] values, boolean inFatFs) {
+            boolean isNumeric = IndexItem.isNumeric(field);
+
+            if (values.length > 1) {
+                boolean sorted = false;
+                if (isNumeric) {
+                    try {
+                        Double[] numbers = new Double[values.length];
+                        for (int i = 0; i < values.length; i++) {
+                            numbers[i] = Double.valueOf(values[i]);
+                        }
+                        Integer[] order = new Integer[values.length];
+                        for (int i = 0; i < order.length; i++) {
+                            order[i] = i;
+                        }
+                        Arrays.sort(order, Comparator.comparing(i -> numbers[i]));
+                        String[] sortedValues = new String[values.length];
+                        for (int i = 0; i < order.length; i++) {
+                            sortedValues[i] = values[order[i]];
+                        }
+                        values = sortedValues;
+                        sorted = true;
+                    } catch (NumberFormatException e) {
+                    }
+                }
+                if (!sorted) {
+                    Arrays.sort(values, collator);
+                }
+            }
+
+            if (BasicProps.CATEGORY.equals(field)) {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = CategoryLocalization.getInstance().getLocalizedCategory(values[i]);
+                }
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < values.length; i++) {
+                if (isNumeric) {
+                    values[i] = numberFormat.format(Double.valueOf(values[i]));
+                }
+                sb.append(values[i]);
+                if (i != values.length - 1) {
+                    if (i == MAX_VALUES_SHOWN - 1) {
+                        sb.append(" ..."); //$NON-NLS-1$
+                        break;
+                    }
+                    sb.append(" | "); //$NON-NLS-1$
+                }
+            }
+
+            String value = sb.toString().trim();
+
+            if (value.isEmpty())
+                return value;
+
+            if (basicDateFields.contains(field))
+                try {
+                    Date date = DateUtil.stringToDate(value);
+                    if (field.equals(IndexItem.ACCESSED) && inFatFs) {
+                        return fatAccessedDf.format(date);
+                    }
+                    return df.format(date);
+
+                } catch (Exception e) {
+                    // e.printStackTrace();
+                }
+
+            if (field.equals(IndexItem.NAME)) {
+                try {
+                    TextFragment[] fragments = TextHighlighter.getHighlightedFrags(false, value, field, 0);
+                    if (fragments.length > 0 && fragments[0].getScore() > 0) {
+                        String fontStartTag = App.get().getFontStartTag();
+                        StringBuilder s = new StringBuilder();
+                        s.append("<html><nobr>"); //$NON-NLS-1$
+                        if (fontStartTag != null)
+                            s.append(fontStartTag);
+                        s.append(fragments[0].toString());
+                        if (fontStartTag != null)
+                            s.append(ATextViewer.HIGHLIGHT_END_TAG);
+                        s.append("</html>"); //$NON-NLS-1$
+                        value = s.toString();
+                    }
+                } catch (Exception e) {
+                    logger.warn("Error highlighting " + value, e); //$NON-NLS-1$
+                }
+            }
+
+            return value;
+        }
+    }
+
+}
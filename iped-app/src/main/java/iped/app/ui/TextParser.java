@@ -23,6 +23,7 @@
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.io.Reader;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.FileChannel;
@@ -39,11 +40,13 @@
 import iped.data.IItem;
 import iped.engine.config.ConfigurationManager;
 import iped.engine.io.ParsingReader;
+import iped.engine.io.TextStore;
 import iped.engine.task.ParsingTask;
 import iped.engine.task.index.IndexItem;
 import iped.engine.task.index.IndexTask;
 import iped.io.IStreamSource;
 import iped.parsers.util.MetadataUtil;
+import iped.utils.IOUtil;
 import iped.utils.LocalizedFormat;
 import iped.viewers.ATextViewer;
 import iped.viewers.api.CancelableWorker;
@@ -219,29 +222,34 @@ private FileChannel getFileChannel(File tmpFile) throws FileNotFoundException {
     }
 
     public void parseText() {
-        ParsingReader textReader = null;
+        ParsingReader parsingReader = null;
+        Reader textReader = null;
         try {
+            // uses text stored while processing, if available
+            textReader = TextStore.getTextReader(App.get().getLastSelectedSource().getModuleDir(), item.getId());
 
-            // this can cause ConcurrentModificationException if another viewer access
-            // metadata at same time
-            // Metadata metadata = item.getMetadata();
-            Metadata metadata = MetadataUtil.clone(item.getMetadata());
+            CountInputStream cis = null;
+            if (textReader == null) {
+                // this can cause ConcurrentModificationException if another viewer access
+                // metadata at same time
+                // Metadata metadata = item.getMetadata();
+                Metadata metadata = MetadataUtil.clone(item.getMetadata());
 
-            ParsingTask.fillMetadata(item, metadata);
+                ParsingTask.fillMetadata(item, metadata);
 
-            ParseContext context = getTikaContext(item);
-            InputStream is = item.getTikaStream();
+                ParseContext context = getTikaContext(item);
+                InputStream is = item.getTikaStream();
 
-            CountInputStream cis = null;
-            if (item.getLength() != null
-                    && !App.get().getAutoParser().hasSpecificParser(metadata)) {
-                progressMonitor.setMaximum(item.getLength());
-                cis = new CountInputStream(is);
-                is = cis;
-            }
+                if (item.getLength() != null && !App.get().getAutoParser().hasSpecificParser(metadata)) {
+                    progressMonitor.setMaximum(item.getLength());
+                    cis = new CountInputStream(is);
+                    is = cis;
+                }
 
-            textReader = new ParsingReader((Parser) App.get().getAutoParser(), is, metadata, context);
-            textReader.startBackgroundParsing();
+                parsingReader = new ParsingReader((Parser) App.get().getAutoParser(), is, metadata, context);
+                parsingReader.startBackgroundParsing();
+                textReader = parsingReader;
+            }
 
             tmp.dispose();
             File tmpFile = tmp.createTemporaryFile();
@@ -392,8 +400,10 @@ public void parseText() {
         } catch (Throwable e) {
             e.printStackTrace();
         }
-        if (this.isCancelled() && textReader != null) {
-            textReader.closeAndInterruptParsingTask(false);
+        if (this.isCancelled() && parsingReader != null) {
+            parsingReader.closeAndInterruptParsingTask(false);
+        } else if (this.isCancelled()) {
+            IOUtil.closeQuietly(textReader);
         }
 
     }
@@ -67,6 +67,7 @@
 public class AhoCorasick {
     public State root;
     private boolean prepared;
+    private CompiledAhoCorasick compiled;
 
     public AhoCorasick() {
         this.root = new State(0);
@@ -94,6 +95,19 @@ public void prepare() {
         this.prepared = true;
     }
 
+    /**
+     * Returns the flattened deterministic automaton of this tree, which is
+     * faster to search. It is created on the first call and reused after that.
+     * This must be called after prepare().
+     */
+    public synchronized CompiledAhoCorasick compile() {
+        if (!this.prepared)
+            throw new IllegalStateException("can't compile until prepare()");
+        if (this.compiled == null)
+            this.compiled = new CompiledAhoCorasick(this.root);
+        return this.compiled;
+    }
+
     /**
      * Starts a new search, and returns an Iterator of SearchResults.
      */
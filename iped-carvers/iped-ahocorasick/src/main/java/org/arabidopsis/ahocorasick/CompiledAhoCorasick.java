@@ -0,0 +1,195 @@
+package org.arabidopsis.ahocorasick;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Flattened deterministic version of a prepared {@link AhoCorasick} tree. All
+ * transitions are stored in a single int array, with fail transitions already
+ * resolved, so each input byte costs exactly one array access. Outputs are
+ * kept in a side array indexed by state.
+ * </p>
+ *
+ * <p>
+ * Example usage: <code><pre>
+ CompiledAhoCorasick automaton = tree.compile();
+ CompiledAhoCorasick.Cursor cursor = automaton.newCursor();
+ cursor.reset(bytes, 0, bytes.length);
+ while (cursor.next()) {
+   Object[] outputs = cursor.getOutputs();
+   System.out.println("Found at index: " + cursor.getLastIndex());
+ }
+ </pre></code>
+ * </p>
+ *
+ * This class is immutable and can be shared by many threads, each one using its
+ * own {@link Cursor}.
+ */
+public final class CompiledAhoCorasick {
+
+    private static final int ALPHABET_BITS = 8;
+    private static final int ALPHABET_SIZE = 1 << ALPHABET_BITS;
+
+    /**
+     * Set in transitions to states with outputs, so the search loop does not need
+     * to look at the outputs array for every byte.
+     */
+    private static final int OUTPUT_FLAG = Integer.MIN_VALUE;
+
+    /**
+     * next state of (state, byte) at [state + byte]. States are stored already
+     * multiplied by the alphabet size, the root state is 0.
+     */
+    private final int[] delta;
+
+    /**
+     * outputs of each state at [state >>> ALPHABET_BITS], null if none.
+     */
+    private final Object[][] outputs;
+
+    CompiledAhoCorasick(State root) {
+        // number states in breadth first order, so fail states are numbered before
+        // the states pointing to them
+        Map<State, Integer> ids = new IdentityHashMap<>();
+        Queue<State> q = new Queue<State>();
+        State[] states = new State[16];
+        int numStates = 0;
+        ids.put(root, 0);
+        states[numStates++] = root;
+        q.add(root);
+        while (!q.isEmpty()) {
+            State state = q.pop();
+            for (byte b : state.keys()) {
+                State s = state.get(b);
+                if (!ids.containsKey(s)) {
+                    if (numStates == states.length) {
+                        if (numStates >= Integer.MAX_VALUE / ALPHABET_SIZE / 2)
+                            throw new IllegalStateException("Too many states: " + numStates);
+                        State[] newStates = new State[states.length * 2];
+                        System.arraycopy(states, 0, newStates, 0, numStates);
+                        states = newStates;
+                    }
+                    ids.put(s, numStates);
+                    states[numStates++] = s;
+                    q.add(s);
+                }
+            }
+        }
+
+        outputs = new Object[numStates][];
+        for (int i = 0; i < numStates; i++) {
+            List<Object> out = states[i].getOutputs();
+            if (out != null && !out.isEmpty()) {
+                outputs[i] = out.toArray();
+            }
+        }
+
+        delta = new int[numStates * ALPHABET_SIZE];
+        for (int i = 0; i < numStates; i++) {
+            State state = states[i];
+            int base = i << ALPHABET_BITS;
+            for (int b = 0; b < ALPHABET_SIZE; b++) {
+                State next = state.get((byte) b);
+                if (next != null) {
+                    int id = ids.get(next);
+                    delta[base + b] = (id << ALPHABET_BITS) | (outputs[id] != null ? OUTPUT_FLAG : 0);
+                } else {
+                    // the fail state was already resolved, its depth is smaller
+                    delta[base + b] = delta[(ids.get(state.getFail()) << ALPHABET_BITS) + b];
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of states of this automaton.
+     */
+    public int size() {
+        return outputs.length;
+    }
+
+    /**
+     * Creates a new cursor to search with this automaton, starting at the root
+     * state.
+     */
+    public Cursor newCursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Reusable search position of a {@link CompiledAhoCorasick}. The automaton
+     * state is kept across {@link #reset(byte[], int, int)} calls, so a stream can
+     * be searched in consecutive buffers and matches crossing buffer boundaries
+     * are found. No objects are allocated while searching.
+     */
+    public final class Cursor {
+
+        private int state;
+        private byte[] bytes;
+        private int index, end;
+        private Object[] lastOutputs;
+
+        private Cursor() {
+        }
+
+        /**
+         * Sets the next buffer to be searched, keeping the current state.
+         */
+        public void reset(byte[] bytes, int off, int len) {
+            this.bytes = bytes;
+            this.index = off;
+            this.end = off + len;
+            this.lastOutputs = null;
+        }
+
+        /**
+         * Goes back to the root state, forgetting the bytes already searched.
+         */
+        public void restart() {
+            this.state = 0;
+        }
+
+        /**
+         * Searches the next match in the current buffer.
+         *
+         * @return true if a match was found, false if the end of the buffer was
+         *         reached.
+         */
+        public boolean next() {
+            final int[] delta = CompiledAhoCorasick.this.delta;
+            final byte[] bytes = this.bytes;
+            int s = state;
+            for (int i = index; i < end; i++) {
+                s = delta[s + (bytes[i] & 0xFF)];
+                if (s < 0) {
+                    s &= ~OUTPUT_FLAG;
+                    state = s;
+                    index = i + 1;
+                    lastOutputs = outputs[s >>> ALPHABET_BITS];
+                    return true;
+                }
+            }
+            state = s;
+            index = end;
+            lastOutputs = null;
+            return false;
+        }
+
+        /**
+         * Returns the outputs of the last match. The array must not be modified.
+         */
+        public Object[] getOutputs() {
+            return lastOutputs;
+        }
+
+        /**
+         * Returns the index where the last match terminates. Note that this is one
+         * byte after the last matching byte.
+         */
+        public int getLastIndex() {
+            return index;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+Copyright (c) 2005, 2008 Danny Yoo
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  * Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+
+  * Redistributions in binary form must reproduce the above
+    copyright notice, this list of conditions and the following disclaimer in
+    the documentation and/or other materials provided with the distribution.
+
+  * Neither the name of the Carnegie Institution of Washington nor
+    the names of its contributors may be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.arabidopsis.ahocorasick;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the object based {@link AhoCorasick} search with the flattened
+ * {@link CompiledAhoCorasick} one scanning synthetic unallocated space, like
+ * CarverTask does. Each operation scans dataSizeMB of data in 1MB buffers, the
+ * buffers are taken from a smaller pool of generated data, so multi-GB scans
+ * do not need multi-GB heaps.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class Benchmark {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final String[] SIGNATURES = { "PK\3\4", "-----BEGIN CERTIFICATE-----", "Received: from",
+            "Message-ID: <", "BEGIN:VCARD", "\u00ff\u00d8\u00ff\u00db", "\u00ff\u00d8\u00ff\u00e0",
+            "\u00ff\u00d8\u00ff\u00e1", "\u0089PNG\r\n\u001a\n", "GIF87a", "GIF89a", "Rar!\u001a\7", "%PDF-",
+            "%%EOF", "<html", "<HTML", "<?xml", "RIFF", "WAVEfmt", "AVI LIST", "BM", "ftypisom", "ftypmp42",
+            "\u00d0\u00cf\u0011\u00e0\u00a1\u00b1\u001a\u00e1", "SQLite format 3\0", "regf", "ElfFile\0" };
+
+    @Param({ "4096" })
+    public int dataSizeMB;
+
+    @Param({ "256" })
+    public int poolSizeMB;
+
+    @Param({ "0", "1000" })
+    public int extraSignatures;
+
+    private byte[][] pool;
+    private AhoCorasick tree;
+    private CompiledAhoCorasick compiled;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        tree = new AhoCorasick();
+        for (String sig : SIGNATURES) {
+            byte[] bytes = sig.getBytes(StandardCharsets.ISO_8859_1);
+            tree.add(bytes, bytes);
+        }
+        for (int i = 0; i < extraSignatures; i++) {
+            byte[] bytes = new byte[4 + random.nextInt(12)];
+            random.nextBytes(bytes);
+            tree.add(bytes, bytes);
+        }
+        tree.prepare();
+        compiled = tree.compile();
+
+        pool = new byte[poolSizeMB][];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = createUnallocatedBlock(random);
+        }
+    }
+
+    /**
+     * Creates a block with a mix of zeroed, random and text like areas, with
+     * signatures spread over it, like unallocated space usually has.
+     */
+    private static byte[] createUnallocatedBlock(Random random) {
+        byte[] block = new byte[BUFFER_SIZE];
+        int pos = 0;
+        while (pos < block.length) {
+            int len = Math.min(block.length - pos, 4096 * (1 + random.nextInt(16)));
+            switch (random.nextInt(4)) {
+                case 0:
+                    // zeroed area, already filled
+                    break;
+                case 1:
+                    for (int i = pos; i < pos + len; i++) {
+                        block[i] = (byte) (' ' + random.nextInt(95));
+                    }
+                    break;
+                default:
+                    byte[] bytes = new byte[len];
+                    random.nextBytes(bytes);
+                    System.arraycopy(bytes, 0, block, pos, len);
+            }
+            if (random.nextBoolean()) {
+                byte[] sig = SIGNATURES[random.nextInt(SIGNATURES.length)].getBytes(StandardCharsets.ISO_8859_1);
+                System.arraycopy(sig, 0, block, pos, Math.min(sig.length, block.length - pos));
+            }
+            pos += len;
+        }
+        return block;
+    }
+
+    @org.openjdk.jmh.annotations.Benchmark
+    public long searchOld() {
+        long hits = 0;
+        SearchResult lastResult = new SearchResult(tree.getRoot(), null, 0);
+        for (int i = 0; i < dataSizeMB; i++) {
+            lastResult = new SearchResult(lastResult.lastMatchedState, pool[i % pool.length], 0);
+            SearchResult result = tree.continueSearch(lastResult);
+            while (result != null) {
+                hits += result.getOutputs().size();
+                lastResult = result;
+                result = tree.continueSearch(result);
+            }
+        }
+        return hits;
+    }
+
+    @org.openjdk.jmh.annotations.Benchmark
+    public long searchCompiled() {
+        long hits = 0;
+        CompiledAhoCorasick.Cursor cursor = compiled.newCursor();
+        for (int i = 0; i < dataSizeMB; i++) {
+            byte[] block = pool[i % pool.length];
+            cursor.reset(block, 0, block.length);
+            while (cursor.next()) {
+                hits += cursor.getOutputs().length;
+            }
+        }
+        return hits;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(Benchmark.class.getName() + ".*")
+                .param("dataSizeMB", args.length > 0 ? args[0] : "4096").build();
+        new Runner(options).run();
+    }
+}
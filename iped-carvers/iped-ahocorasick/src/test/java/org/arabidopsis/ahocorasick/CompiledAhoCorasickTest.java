@@ -0,0 +1,90 @@
+package org.arabidopsis.ahocorasick;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CompiledAhoCorasickTest {
+
+    private static AhoCorasick createTree(String... keywords) {
+        AhoCorasick tree = new AhoCorasick();
+        for (String keyword : keywords) {
+            tree.add(keyword.getBytes(StandardCharsets.ISO_8859_1), keyword);
+        }
+        tree.prepare();
+        return tree;
+    }
+
+    private static List<String> searchOld(AhoCorasick tree, byte[] bytes) {
+        List<String> result = new ArrayList<>();
+        Iterator<SearchResult> it = tree.search(bytes);
+        while (it.hasNext()) {
+            SearchResult r = it.next();
+            result.add(r.getLastIndex() + ":" + r.getOutputs());
+        }
+        return result;
+    }
+
+    private static List<String> searchCompiled(CompiledAhoCorasick automaton, byte[] bytes, int bufferSize) {
+        List<String> result = new ArrayList<>();
+        CompiledAhoCorasick.Cursor cursor = automaton.newCursor();
+        for (int off = 0; off < bytes.length; off += bufferSize) {
+            cursor.reset(bytes, off, Math.min(bufferSize, bytes.length - off));
+            while (cursor.next()) {
+                result.add(cursor.getLastIndex() + ":" + Arrays.asList(cursor.getOutputs()));
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testOutputs() {
+        AhoCorasick tree = createTree("he", "she", "his", "hers");
+        CompiledAhoCorasick automaton = tree.compile();
+        CompiledAhoCorasick.Cursor cursor = automaton.newCursor();
+        byte[] bytes = "ushers".getBytes(StandardCharsets.ISO_8859_1);
+        cursor.reset(bytes, 0, bytes.length);
+
+        cursor.next();
+        assertEquals(4, cursor.getLastIndex());
+        assertArrayEquals(new Object[] { "she", "he" }, cursor.getOutputs());
+        cursor.next();
+        assertEquals(6, cursor.getLastIndex());
+        assertArrayEquals(new Object[] { "hers" }, cursor.getOutputs());
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void testSameResultsAsTree() {
+        AhoCorasick tree = createTree("abc", "bcd", "c", "abcabd", "dd", "\u00ff\u00d8\u00ff");
+        CompiledAhoCorasick automaton = tree.compile();
+        Random random = new Random(0);
+        byte[] bytes = new byte[100000];
+        byte[] alphabet = "abcd\u00ff\u00d8".getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+        List<String> expected = searchOld(tree, bytes);
+        assertEquals(expected, searchCompiled(automaton, bytes, bytes.length));
+        // matches crossing buffer boundaries must be found too
+        assertEquals(expected, searchCompiled(automaton, bytes, 7));
+        assertEquals(expected, searchCompiled(automaton, bytes, 1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCompileBeforePrepare() {
+        AhoCorasick tree = new AhoCorasick();
+        tree.add("abc".getBytes(StandardCharsets.ISO_8859_1), "abc");
+        tree.compile();
+    }
+
+}
@@ -21,8 +21,14 @@ public class HashDBLookupConfig extends AbstractTaskConfig<Pair<Boolean, String>
     public static final String NSRL_CONFIG_FILE = "NSRLConfig.json";
     private static final String ENABLE_PARAM = "enableHashDBLookup";
     private static final String EXCLUDE_KNOWN = "excludeKnown";
+    private static final String LOOKUP_CONNECTIONS = "lookupConnections";
+    private static final String LOOKUP_MMAP_SIZE = "lookupMmapSizeMB";
+    private static final String USE_LOOKUP_FILTER = "useLookupFilter";
 
     private boolean excludeKnown;
+    private int lookupConnections;
+    private long lookupMmapSize = 1024L << 20;
+    private boolean useLookupFilter = true;
     private String nsrlConfig;
 
     public String getNsrlConfig() {
@@ -64,6 +70,18 @@ public void processTaskConfig(Path resource) throws IOException {
             if (value != null) {
                 setExcludeKnown(Boolean.valueOf(value.trim()));
             }
+            value = properties.getProperty(LOOKUP_CONNECTIONS);
+            if (value != null && !value.trim().isEmpty()) {
+                lookupConnections = Integer.parseInt(value.trim());
+            }
+            value = properties.getProperty(LOOKUP_MMAP_SIZE);
+            if (value != null && !value.trim().isEmpty()) {
+                lookupMmapSize = Long.parseLong(value.trim()) << 20;
+            }
+            value = properties.getProperty(USE_LOOKUP_FILTER);
+            if (value != null && !value.trim().isEmpty()) {
+                useLookupFilter = Boolean.valueOf(value.trim());
+            }
         } else if (resource.endsWith(NSRL_CONFIG_FILE)) {
             this.nsrlConfig = new String(Files.readAllBytes(resource), StandardCharsets.UTF_8);
         }
@@ -78,6 +96,30 @@ public void setExcludeKnown(boolean excludeKnown) {
         this.excludeKnown = excludeKnown;
     }
 
+    /**
+     * @return number of concurrent read-only connections used for lookups, 0
+     *         means one per processing thread.
+     */
+    public int getLookupConnections() {
+        return lookupConnections;
+    }
+
+    /**
+     * @return maximum number of bytes of the hashes database memory mapped by
+     *         each lookup connection.
+     */
+    public long getLookupMmapSize() {
+        return lookupMmapSize;
+    }
+
+    /**
+     * @return if an in-memory filter of the hashes database should be used to
+     *         skip lookups of hashes that are not present.
+     */
+    public boolean isUseLookupFilter() {
+        return useLookupFilter;
+    }
+
     @Override
     public Pair<Boolean, String> getConfiguration() {
         return Pair.of(excludeKnown, nsrlConfig);
@@ -26,6 +26,7 @@ public class IndexTaskConfig extends AbstractTaskPropertiesConfig {
     private int maxTokenLength = 255;
     private int[] extraCharsToIndexArray;
     private int commitIntervalSeconds = 1800;
+    private boolean storeExtractedText = false;
 
     @Override
     public String getTaskEnableProperty() {
@@ -95,6 +96,11 @@ public void processProperties(UTF8Properties properties) {
             commitIntervalSeconds = Integer.parseInt(value.trim());
         }
 
+        value = properties.getProperty("storeExtractedText"); //$NON-NLS-1$
+        if (value != null && !value.trim().isEmpty()) {
+            storeExtractedText = Boolean.valueOf(value.trim());
+        }
+
     }
 
     private int[] convertExtraCharsToIndex(String chars) {
@@ -173,4 +179,8 @@ public int getCommitIntervalSeconds() {
         return commitIntervalSeconds;
     }
 
+    public boolean isStoreExtractedText() {
+        return storeExtractedText;
+    }
+
 }
@@ -29,6 +29,10 @@ public class LocalConfig extends AbstractPropertiesConfigurable {
 
     private static final String HASH_DB = "hashesDB";
 
+    private static final String WORK_STEALING = "workStealingScheduler";
+
+    private static final String LARGE_ITEM_LANE_SIZE = "largeItemLaneSize";
+
     private static final String IPED_TEMP = "indexTemp";
 
     private static final String TEMP_ON_SSD = "indexTempOnSSD";
@@ -49,6 +53,8 @@ public boolean accept(Path entry) throws IOException {
     private File ipedTemp, indexTemp;
     private int numThreads;
     private File hashDbFile;
+    private boolean workStealing = false;
+    private long largeItemLaneSize = 1L << 30;
 
     @Override
     public Filter<Path> getResourceLookupFilter() {
@@ -134,6 +140,16 @@ public void processProperties(UTF8Properties properties) {
             setHashDbFile(new File(value.trim()));
         }
 
+        value = properties.getProperty(WORK_STEALING);
+        if (value != null && !value.trim().isEmpty()) {
+            workStealing = Boolean.valueOf(value.trim());
+        }
+
+        value = properties.getProperty(LARGE_ITEM_LANE_SIZE);
+        if (value != null && !value.trim().isEmpty()) {
+            largeItemLaneSize = Long.parseLong(value.trim());
+        }
+
     }
 
     public void setIndexerTemp(File temp) {
@@ -161,6 +177,14 @@ public int getNumThreads() {
         return numThreads;
     }
 
+    public boolean isWorkStealing() {
+        return workStealing;
+    }
+
+    public long getLargeItemLaneSize() {
+        return largeItemLaneSize;
+    }
+
     public File getHashDbFile() {
         return hashDbFile;
     }
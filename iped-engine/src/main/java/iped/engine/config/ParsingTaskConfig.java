@@ -23,6 +23,7 @@ public class ParsingTaskConfig extends AbstractTaskPropertiesConfig {
     private int timeOutPerMB = 2;
     private int minRawStringSize = 4;
     private boolean storeTextCacheOnDisk = true;
+    private long textCacheMaxMemory = 0;
     private boolean sortPDFChars;
     private boolean processImagesInPDFs = false;
     private String phoneParsersToUse;
@@ -93,6 +94,11 @@ public void processProperties(UTF8Properties properties) {
             storeTextCacheOnDisk = Boolean.valueOf(value.trim());
         }
 
+        value = properties.getProperty("textCacheMaxMemoryMB"); //$NON-NLS-1$
+        if (value != null && !value.trim().isEmpty()) {
+            textCacheMaxMemory = Long.valueOf(value.trim()) << 20;
+        }
+
         value = properties.getProperty("sortPDFChars"); //$NON-NLS-1$
         if (value != null) {
             sortPDFChars = Boolean.valueOf(value.trim());
@@ -142,6 +148,13 @@ public boolean isStoreTextCacheOnDisk() {
         return storeTextCacheOnDisk;
     }
 
+    /**
+     * @return max memory in bytes used to cache parsed texts, 0 means auto.
+     */
+    public long getTextCacheMaxMemory() {
+        return textCacheMaxMemory;
+    }
+
     public boolean isSortPDFChars() {
         return sortPDFChars;
     }
@@ -29,7 +29,12 @@
 import java.security.Security;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.Level;
@@ -72,14 +77,17 @@
 import iped.engine.graph.GraphServiceFactoryImpl;
 import iped.engine.graph.GraphTask;
 import iped.engine.io.ParsingReader;
+import iped.engine.io.TextStore;
 import iped.engine.localization.Messages;
 import iped.engine.lucene.ConfiguredFSDirectory;
 import iped.engine.lucene.CustomIndexDeletionPolicy;
 import iped.engine.lucene.analysis.AppAnalyzer;
+import iped.engine.search.FaceIndex;
 import iped.engine.search.IPEDSearcher;
 import iped.engine.search.IndexerSimilarity;
 import iped.engine.search.ItemSearcher;
 import iped.engine.search.LuceneSearchResult;
+import iped.engine.search.SimilarFacesSearch;
 import iped.engine.sleuthkit.SleuthkitClient;
 import iped.engine.sleuthkit.SleuthkitInputStreamFactory;
 import iped.engine.task.ExportCSVTask;
@@ -203,6 +211,9 @@ public Manager(List<File> sources, File output, File palavras) {
 
         this.caseData = new CaseData();
         this.processingQueues = new ProcessingQueues(caseData);
+        if (localConfig.isWorkStealing()) {
+            this.processingQueues.enableWorkStealing(localConfig.getNumThreads(), localConfig.getLargeItemLaneSize());
+        }
 
         for (File source : sources) {
             if (source.getName().toLowerCase().endsWith(Bookmarks.EXT)) {
@@ -308,6 +319,8 @@ public void process() throws Exception {
 
         removeEmptyTreeNodes();
 
+        buildFaceIndex();
+
         ExportFileTask.deleteIgnoredItemData(caseData, output);
 
         new P2PBookmarker(caseData).createBookmarksForSharedFiles(output.getParentFile());
@@ -657,8 +670,9 @@ public void run() {
                     IndexItem.saveMetadataTypes(new File(output, "conf")); //$NON-NLS-1$
                     stats.commit();
 
-                    LOGGER.info("Commiting sqlite storages...");
+                    LOGGER.info("Commiting storages...");
                     ExportFileTask.commitStorage(output);
+                    TextStore.commit(output);
 
                     GraphTask.commit();
 
@@ -766,25 +780,10 @@ private void filterKeywords() {
                     Charset.defaultCharset().name());
 
             if (palavras.size() != 0) {
-                IPEDSource ipedCase = new IPEDSource(output.getParentFile());
-                ArrayList<String> palavrasFinais = new ArrayList<String>();
-                for (String palavra : palavras) {
-                    if (Thread.interrupted()) {
-                        ipedCase.close();
-                        throw new InterruptedException("Processing canceled!"); //$NON-NLS-1$
-                    }
-
-                    try {
-                        IPEDSearcher pesquisa = new IPEDSearcher(ipedCase, palavra);
-                        if (pesquisa.search().getLength() > 0) {
-                            palavrasFinais.add(palavra);
-                        }
-                    } catch (Exception e) {
-                        LOGGER.error("Erro filtering by {} {}", palavra, e.toString());
-                    }
-
+                ArrayList<String> palavrasFinais;
+                try (IPEDSource ipedCase = new IPEDSource(output.getParentFile())) {
+                    palavrasFinais = filterKeywords(ipedCase, palavras);
                 }
-                ipedCase.close();
 
                 Util.saveKeywords(palavrasFinais, output.getAbsolutePath() + "/palavras-chave.txt", "UTF-8"); //$NON-NLS-1$ //$NON-NLS-2$
                 int filtradas = palavras.size() - palavrasFinais.size();
@@ -799,6 +798,59 @@ private void filterKeywords() {
 
     }
 
+    /**
+     * Checks keywords concurrently, sharing the case searcher, keeping the ones
+     * with at least one hit in their original order.
+     */
+    private ArrayList<String> filterKeywords(IPEDSource ipedCase, List<String> palavras) throws InterruptedException {
+        int numThreads = Math.min(palavras.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            boolean[] hasHits = new boolean[palavras.size()];
+            AtomicInteger done = new AtomicInteger();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < palavras.size(); i++) {
+                int idx = i;
+                futures.add(executor.submit(() -> {
+                    String palavra = palavras.get(idx);
+                    try {
+                        hasHits[idx] = new IPEDSearcher(ipedCase, palavra).hasHits();
+                    } catch (Exception e) {
+                        LOGGER.error("Erro filtering by {} {}", palavra, e.toString());
+                    }
+                    done.incrementAndGet();
+                }));
+            }
+            int reported = 0;
+            for (Future<?> future : futures) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("Processing canceled!"); //$NON-NLS-1$
+                }
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    LOGGER.error("Error filtering keywords", e.getCause()); //$NON-NLS-1$
+                }
+                int n = done.get();
+                if (n - reported >= Math.max(1, palavras.size() / 100)) {
+                    reported = n;
+                    UIPropertyListenerProvider.getInstance().firePropertyChange("mensagem", "", //$NON-NLS-1$ //$NON-NLS-2$
+                            Messages.getString("Manager.FilteringKeywords") + " " + n + "/" + palavras.size()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                }
+            }
+            ArrayList<String> palavrasFinais = new ArrayList<>();
+            for (int i = 0; i < hasHits.length; i++) {
+                if (hasHits[i]) {
+                    palavrasFinais.add(palavras.get(i));
+                }
+            }
+            return palavrasFinais;
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     private void removeEmptyTreeNodes() {
 
         if (!caseData.containsReport() || caseData.isIpedReport()) {
@@ -853,6 +905,18 @@ private void removeEmptyTreeNodes() {
 
     }
 
+    private void buildFaceIndex() {
+        try (IPEDSource ipedCase = new IPEDSource(output.getParentFile())) {
+            if (ipedCase.getLeafReader().getFieldInfos().fieldInfo(SimilarFacesSearch.FACE_FEATURES) == null) {
+                return;
+            }
+            FaceIndex.build(ipedCase, new File(output, FaceIndex.FILE_NAME));
+
+        } catch (Exception e) {
+            LOGGER.warn("Error building face index, it will be built on first search", e); //$NON-NLS-1$
+        }
+    }
+
     private void prepareOutputFolder() throws Exception {
         if (output.exists() && !args.isAppendIndex() && !args.isContinue() && !args.isRestart()
                 && args.getEvidenceToRemove() == null) {
@@ -1,36 +1,136 @@
 package iped.engine.core;
 
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import iped.data.IItem;
 import iped.engine.data.CaseData;
 import iped.engine.util.Util;
 
+/**
+ * Processing queues, one per priority configured in
+ * {@link QueuesProcessingOrder}. Items are stored in lock free deques, so
+ * workers and producers do not contend on a single monitor. Producers adding
+ * to the first queue are blocked while it is full and are woken up as soon as
+ * workers consume items from it.
+ * 
+ * Optionally, a work stealing schedule can be enabled: subitems created by a
+ * worker go to its own local deque, items bigger than a threshold go to a lane
+ * polled before the others, so big containers start early, and idle workers
+ * steal items from the local deques of busy ones. Local deques only hold items
+ * of the current queue priority and are accounted in its pending counter, so
+ * queue end markers keep working the same way.
+ */
 public class ProcessingQueues {
 
     private static final int QUEUE_SIZE = 100000;
 
-    private TreeMap<Integer, LinkedList<IItem>> queues;
+    private static final long POLL_WAIT_MILLIS = 100;
+
+    private final NavigableMap<Integer, Queue> queues;
 
     private volatile Integer currentQueuePriority = 0;
-    
+
     private CaseData caseData;
 
     private int maxQueueSize = QUEUE_SIZE;
 
-    private int totalItemsBeingProcessed = 0;
+    private final LongAdder itemsBeingProcessed = new LongAdder();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition notEmpty = lock.newCondition();
+    private final AtomicInteger waitingProducers = new AtomicInteger();
+    private final AtomicInteger waitingConsumers = new AtomicInteger();
+
+    private final LongAdder producersBlockedTime = new LongAdder();
+    private final LongAdder itemsPolled = new LongAdder();
+    private final LongAdder itemsQueueTime = new LongAdder();
+
+    private volatile boolean workStealing = false;
+    private long largeItemSize = Long.MAX_VALUE;
+    private ConcurrentLinkedDeque<Entry>[] localDeques;
+    private LongAdder[] itemsStolen;
+
+    private static class Entry {
+
+        private final IItem item;
+        private final long enqueueTime;
+
+        private Entry(IItem item) {
+            this.item = item;
+            this.enqueueTime = System.nanoTime();
+        }
+    }
+
+    private static class Queue {
+
+        private final ConcurrentLinkedDeque<Entry> deque = new ConcurrentLinkedDeque<>();
+
+        /**
+         * Lane for big items, used just if work stealing is enabled.
+         */
+        private final ConcurrentLinkedDeque<Entry> largeLane = new ConcurrentLinkedDeque<>();
+
+        /**
+         * Number of entries in this queue deques (and in workers local deques if
+         * this is the current queue), including queue end markers.
+         */
+        private final AtomicInteger size = new AtomicInteger();
+
+        /**
+         * Items added to this queue not finished yet, including items being
+         * processed. Queue end markers are not counted. An exact counter is needed
+         * here, LongAdder sums are not atomic and could transiently return zero.
+         */
+        private final AtomicLong pending = new AtomicLong();
+    }
 
     public ProcessingQueues(CaseData caseData) {
         this.caseData = caseData;
-        initQueues();
+        this.queues = initQueues();
     }
 
-    private void initQueues() {
-        queues = new TreeMap<Integer, LinkedList<IItem>>();
-        queues.put(0, new LinkedList<IItem>());
+    private NavigableMap<Integer, Queue> initQueues() {
+        TreeMap<Integer, Queue> queues = new TreeMap<Integer, Queue>();
+        queues.put(0, new Queue());
         for (Integer priority : QueuesProcessingOrder.getProcessingQueues())
-            queues.put(priority, new LinkedList<IItem>());
+            queues.put(priority, new Queue());
+        return Collections.unmodifiableNavigableMap(queues);
+    }
+
+    /**
+     * Enables the work stealing schedule. Must be called before items are added.
+     * 
+     * @param numWorkers
+     *            number of workers, each one will have its own local deque.
+     * @param largeItemSize
+     *            items with length equal or bigger than this go to the large
+     *            items lane.
+     */
+    @SuppressWarnings("unchecked")
+    public void enableWorkStealing(int numWorkers, long largeItemSize) {
+        this.largeItemSize = largeItemSize;
+        localDeques = new ConcurrentLinkedDeque[numWorkers];
+        itemsStolen = new LongAdder[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            localDeques[i] = new ConcurrentLinkedDeque<>();
+            itemsStolen[i] = new LongAdder();
+        }
+        workStealing = true;
+    }
+
+    public boolean isWorkStealing() {
+        return workStealing;
     }
 
     public void addItem(IItem item) throws InterruptedException {
@@ -66,60 +166,212 @@ private void addItemToQueue(IItem item, int queuePriority, boolean addFirst, boo
 
         Util.calctrackIDAndUpdateID(caseData, item);
 
-        LinkedList<IItem> queue = queues.get(queuePriority);
-        boolean sleep = false;
-        while (true) {
-            if (sleep) {
-                sleep = false;
-                Thread.sleep(1000);
+        Queue queue = queues.get(queuePriority);
+
+        if (blockIfFull && queuePriority == 0 && queue.size.get() >= maxQueueSize) {
+            waitNotFull(queue);
+        }
+
+        if (!item.isQueueEnd()) {
+            queue.pending.incrementAndGet();
+        }
+        Entry entry = new Entry(item);
+        ConcurrentLinkedDeque<Entry> deque = queue.deque;
+        if (workStealing && !item.isQueueEnd()) {
+            deque = selectDeque(item, queue, queuePriority, addFirst);
+        }
+        if (addFirst) {
+            deque.addFirst(entry);
+        } else {
+            deque.addLast(entry);
+        }
+        queue.size.incrementAndGet();
+
+        if (waitingConsumers.get() > 0) {
+            lock.lock();
+            try {
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
             }
-            synchronized (this) {
-                if (blockIfFull && queuePriority == 0 && queue.size() >= maxQueueSize) {
-                    sleep = true;
-                    continue;
-                } else {
-                    if (addFirst) {
-                        queue.addFirst(item);
-                    } else {
-                        queue.addLast(item);
-                    }
-                    break;
-                }
+        }
+    }
+
+    private ConcurrentLinkedDeque<Entry> selectDeque(IItem item, Queue queue, int queuePriority, boolean addFirst) {
+        Long len = item.getLength();
+        if (len != null && len >= largeItemSize) {
+            return queue.largeLane;
+        }
+        // subitems created by a worker go to its local deque
+        Thread thread = Thread.currentThread();
+        if (addFirst && thread instanceof Worker && queuePriority == currentQueuePriority) {
+            int id = ((Worker) thread).id;
+            if (id < localDeques.length) {
+                return localDeques[id];
             }
         }
+        return queue.deque;
+    }
 
+    private void waitNotFull(Queue queue) throws InterruptedException {
+        long t = System.nanoTime();
+        lock.lock();
+        try {
+            waitingProducers.incrementAndGet();
+            while (queue.size.get() >= maxQueueSize) {
+                notFull.await();
+            }
+        } finally {
+            waitingProducers.decrementAndGet();
+            lock.unlock();
+            producersBlockedTime.add(System.nanoTime() - t);
+        }
     }
 
-    public synchronized int getItemsBeingProcessed() {
-        return totalItemsBeingProcessed;
+    public int getItemsBeingProcessed() {
+        return itemsBeingProcessed.intValue();
     }
 
-    public synchronized void incItemsBeingProcessed() {
-        totalItemsBeingProcessed++;
+    /**
+     * Marks a new item, not taken from the queues, as being processed.
+     */
+    public void incItemsBeingProcessed() {
+        getItemQueue().pending.incrementAndGet();
+        itemsBeingProcessed.increment();
     }
 
-    public synchronized void decItemsBeingProcessed() {
-        totalItemsBeingProcessed--;
+    public void decItemsBeingProcessed() {
+        itemsBeingProcessed.decrement();
+        getItemQueue().pending.decrementAndGet();
     }
 
-    public synchronized boolean isNoItemInQueueOrBeingProcessed() {
-        return totalItemsBeingProcessed == 0 && getItemQueue().size() == 0;
+    public boolean isNoItemInQueueOrBeingProcessed() {
+        return getItemQueue().pending.get() == 0;
     }
 
-    public synchronized IItem pollFirstFromCurrentQueue() throws InterruptedException {
-        return getItemQueue().pollFirst();
+    /**
+     * Removes the first item from the current queue. If it is not a queue end
+     * marker, it is atomically accounted as being processed, so
+     * {@link #decItemsBeingProcessed()} must be called after it is processed.
+     *
+     * @return the first item or null if the current queue is empty.
+     */
+    public IItem pollFirstFromCurrentQueue() throws InterruptedException {
+        return pollFirstFromCurrentQueue(-1);
     }
 
-    public synchronized void addLastToCurrentQueue(IItem item) throws InterruptedException {
-        getItemQueue().addLast(item);
+    /**
+     * Same as {@link #pollFirstFromCurrentQueue()}, but if work stealing is
+     * enabled, looks for items first in the local deque of the worker, then in
+     * the large items lane, then in the shared queue and finally in the local
+     * deques of other workers, before returning a queue end marker.
+     * 
+     * @param workerId
+     *            id of the calling worker, or -1 if it is not a worker.
+     */
+    public IItem pollFirstFromCurrentQueue(int workerId) throws InterruptedException {
+        Queue queue = getItemQueue();
+        Entry entry;
+        if (!workStealing) {
+            entry = queue.deque.pollFirst();
+        } else {
+            entry = pollWorkStealing(queue, workerId);
+        }
+        if (entry == null) {
+            return null;
+        }
+        int size = queue.size.decrementAndGet();
+        if (!entry.item.isQueueEnd()) {
+            itemsBeingProcessed.increment();
+            itemsPolled.increment();
+            itemsQueueTime.add(System.nanoTime() - entry.enqueueTime);
+        }
+        if (size < maxQueueSize && waitingProducers.get() > 0) {
+            lock.lock();
+            try {
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return entry.item;
     }
 
-    public synchronized IItem peekItemFromCurrentQueue() {
-        return getItemQueue().peek();
+    private Entry pollWorkStealing(Queue queue, int workerId) {
+        Entry entry;
+        if (workerId >= 0 && workerId < localDeques.length) {
+            entry = localDeques[workerId].pollFirst();
+            if (entry != null) {
+                return entry;
+            }
+        }
+        entry = queue.largeLane.pollFirst();
+        if (entry != null) {
+            return entry;
+        }
+        entry = queue.deque.pollFirst();
+        if (entry != null && !entry.item.isQueueEnd()) {
+            return entry;
+        }
+        // try to steal before returning the queue end marker
+        int start = workerId >= 0 ? workerId + 1 : 0;
+        for (int i = 0; i < localDeques.length; i++) {
+            int victim = (start + i) % localDeques.length;
+            if (victim == workerId) {
+                continue;
+            }
+            Entry stolen = localDeques[victim].pollLast();
+            if (stolen != null) {
+                if (entry != null) {
+                    queue.deque.addFirst(entry);
+                }
+                if (workerId >= 0 && workerId < itemsStolen.length) {
+                    itemsStolen[workerId].increment();
+                }
+                return stolen;
+            }
+        }
+        return entry;
     }
 
-    public synchronized int getCurrentQueueSize() {
-        return getItemQueue().size();
+    /**
+     * Same as {@link #pollFirstFromCurrentQueue(int)}, but waits up to a short
+     * timeout for an item if the current queue is empty.
+     */
+    public IItem takeFirstFromCurrentQueue(int workerId) throws InterruptedException {
+        IItem item = pollFirstFromCurrentQueue(workerId);
+        if (item != null) {
+            return item;
+        }
+        lock.lock();
+        try {
+            waitingConsumers.incrementAndGet();
+            if (getItemQueue().size.get() == 0) {
+                notEmpty.await(POLL_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            waitingConsumers.decrementAndGet();
+            lock.unlock();
+        }
+        return pollFirstFromCurrentQueue(workerId);
+    }
+
+    public void addLastToCurrentQueue(IItem item) throws InterruptedException {
+        Queue queue = getItemQueue();
+        if (!item.isQueueEnd()) {
+            queue.pending.incrementAndGet();
+        }
+        queue.deque.addLast(new Entry(item));
+        queue.size.incrementAndGet();
+    }
+
+    public IItem peekItemFromCurrentQueue() {
+        Entry entry = getItemQueue().deque.peekFirst();
+        return entry != null ? entry.item : null;
+    }
+
+    public int getCurrentQueueSize() {
+        return getItemQueue().size.get();
     }
 
     public Integer changeToNextQueue() {
@@ -131,12 +383,52 @@ public Integer getCurrentQueuePriority() {
         return currentQueuePriority;
     }
 
+    /**
+     * @return current number of items (including queue end markers) in each
+     *         queue, by priority.
+     */
+    public Map<Integer, Integer> getQueueSizes() {
+        Map<Integer, Integer> sizes = new TreeMap<Integer, Integer>();
+        for (Map.Entry<Integer, Queue> e : queues.entrySet()) {
+            sizes.put(e.getKey(), e.getValue().size.get());
+        }
+        return sizes;
+    }
+
+    /**
+     * @return number of items stolen by the worker from other workers' local
+     *         deques.
+     */
+    public long getItemsStolen(int workerId) {
+        if (!workStealing || workerId >= itemsStolen.length) {
+            return 0;
+        }
+        return itemsStolen[workerId].sum();
+    }
+
+    /**
+     * @return average time in milliseconds items waited in queues before being
+     *         taken by a worker.
+     */
+    public double getAverageQueueWaitMillis() {
+        long polled = itemsPolled.sum();
+        return polled == 0 ? 0 : itemsQueueTime.sum() / 1e6 / polled;
+    }
+
+    /**
+     * @return total time in milliseconds producers were blocked because the
+     *         first queue was full.
+     */
+    public long getProducersBlockedMillis() {
+        return producersBlockedTime.sum() / 1000000;
+    }
+
     /**
      * Obtém fila de arquivos de evidência do caso.
      *
      * @return fila de arquivos.
      */
-    private LinkedList<IItem> getItemQueue() {
+    private Queue getItemQueue() {
         return queues.get(currentQueuePriority);
     }
 
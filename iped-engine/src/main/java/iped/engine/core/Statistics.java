@@ -308,6 +308,17 @@ public void logStatistics(Manager manager) throws Exception {
         }
 
         LOGGER.info("Partial commits took {} seconds", manager.partialCommitsTime.get());
+        ProcessingQueues queues = manager.getProcessingQueues();
+        LOGGER.info("Average time in processing queues: {} ms", String.format("%.2f", queues.getAverageQueueWaitMillis())); //$NON-NLS-1$
+        LOGGER.info("Producers blocked by full processing queue: {} seconds", queues.getProducersBlockedMillis() / 1000); //$NON-NLS-1$
+        for (Worker worker : workers) {
+            if (queues.isWorkStealing()) {
+                LOGGER.info("{} utilization: {}% items stolen: {}", worker.getName(), //$NON-NLS-1$
+                        Math.round(100 * worker.getUtilization()), queues.getItemsStolen(worker.id));
+            } else {
+                LOGGER.info("{} utilization: {}%", worker.getName(), Math.round(100 * worker.getUtilization())); //$NON-NLS-1$
+            }
+        }
         LOGGER.info("Index internal docs: {}", numDocs); //$NON-NLS-1$
         LOGGER.info("Text Splits: {}", getSplits()); //$NON-NLS-1$
         LOGGER.info("Timeouts: {}", getTimeouts()); //$NON-NLS-1$
@@ -80,6 +80,9 @@ public enum STATE {
 
     private boolean waiting = false;
 
+    private volatile long startTime, finishTime;
+    private volatile long busyTime;
+
     private void incItemsBeingProcessed() {
         itemsBeingProcessed++;
         manager.getProcessingQueues().incItemsBeingProcessed();
@@ -146,6 +149,18 @@ public void finish() throws Exception {
         }
     }
 
+    /**
+     * @return fraction of time since this worker started that it spent
+     *         processing items.
+     */
+    public double getUtilization() {
+        if (startTime == 0) {
+            return 0;
+        }
+        long end = finishTime != 0 ? finishTime : System.nanoTime();
+        return end > startTime ? (double) busyTime / (end - startTime) : 0;
+    }
+
     public synchronized boolean isWaiting() {
         return this.waiting;
     }
@@ -234,35 +249,24 @@ public void processNewItem(IItem evidence, ProcessTime time) {
     public void run() {
 
         LOGGER.info("{} started.", getName()); //$NON-NLS-1$
+        startTime = System.nanoTime();
 
         while (!this.isInterrupted() && exception == null) {
 
             try {
                 evidence = null;
-                boolean sleep = false;
                 while (evidence == null) {
-                    if (sleep) {
-                        // this should be very rare
-                        sleep = false;
-                        Thread.sleep(100);
-                    }
-                    synchronized (manager.getProcessingQueues()) {
-                        evidence = manager.getProcessingQueues().pollFirstFromCurrentQueue();
-                        if (evidence == null) {
-                            sleep = true;
-                            continue;
-                        }
-                        if (!evidence.isQueueEnd()) {
-                            incItemsBeingProcessed();
-                        }
-                    }
+                    // items taken from queue are already accounted as being processed
+                    evidence = manager.getProcessingQueues().takeFirstFromCurrentQueue(id);
                 }
 
-
                 if (!evidence.isQueueEnd()) {
+                    itemsBeingProcessed++;
                     lastItemProcessingTime = System.currentTimeMillis();
 
+                    long t = System.nanoTime();
                     process(evidence);
+                    busyTime += System.nanoTime() - t;
 
                 } else {
                     IItem queueEnd = evidence;
@@ -312,6 +316,8 @@ public void run() {
             }
         }
 
+        finishTime = System.nanoTime();
+
         if (evidence == null) {
             LOGGER.info("{} finished.", getName()); //$NON-NLS-1$
         } else {
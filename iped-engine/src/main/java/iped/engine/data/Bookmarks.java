@@ -21,8 +21,13 @@
 import java.awt.Color;
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -33,6 +38,7 @@
 
 import javax.swing.KeyStroke;
 
+import org.roaringbitmap.RoaringBitmap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,7 +52,7 @@
 public class Bookmarks implements IBookmarks {
 
     /**
-     * 
+     *
      */
     private static final long serialVersionUID = 1L;
 
@@ -57,15 +63,44 @@ public class Bookmarks implements IBookmarks {
 
     static int bookmarkBits = Byte.SIZE;
 
-    private boolean[] selected;
-    private ArrayList<byte[]> bookmarks;
+    /**
+     * Journals are compacted into a new snapshot when they become larger than the
+     * last snapshot and this size.
+     */
+    private static final long MIN_JOURNAL_SIZE_TO_COMPACT = 1 << 20;
+
+    /**
+     * Serialized fields. "selected" and "bookmarks" are the boolean and byte
+     * arrays used by old versions, they are just read to convert old files.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("selected", boolean[].class), //$NON-NLS-1$
+            new ObjectStreamField("bookmarks", ArrayList.class), //$NON-NLS-1$
+            new ObjectStreamField("checked", RoaringBitmap.class), //$NON-NLS-1$
+            new ObjectStreamField("bookmarkBitmaps", ArrayList.class), //$NON-NLS-1$
+            new ObjectStreamField("bookmarkNames", TreeMap.class), //$NON-NLS-1$
+            new ObjectStreamField("bookmarkComments", TreeMap.class), //$NON-NLS-1$
+            new ObjectStreamField("bookmarkKeyStrokes", TreeMap.class), //$NON-NLS-1$
+            new ObjectStreamField("bookmarkColors", TreeMap.class), //$NON-NLS-1$
+            new ObjectStreamField("reportBookmarks", Set.class), //$NON-NLS-1$
+            new ObjectStreamField("totalItems", int.class), //$NON-NLS-1$
+            new ObjectStreamField("lastId", int.class), //$NON-NLS-1$
+            new ObjectStreamField("typedWords", LinkedHashSet.class), //$NON-NLS-1$
+            new ObjectStreamField("indexDir", File.class), //$NON-NLS-1$
+            new ObjectStreamField("stateFile", File.class), //$NON-NLS-1$
+            new ObjectStreamField("cookie", File.class), //$NON-NLS-1$
+            new ObjectStreamField("extendedBookmarks", Map.class), //$NON-NLS-1$
+            new ObjectStreamField("journalGeneration", long.class) }; //$NON-NLS-1$
+
+    private RoaringBitmap checked;
+    private ArrayList<RoaringBitmap> bookmarkBitmaps;
     private TreeMap<Integer, String> bookmarkNames = new TreeMap<Integer, String>();
     private TreeMap<Integer, String> bookmarkComments = new TreeMap<Integer, String>();
     private TreeMap<Integer, KeyStroke> bookmarkKeyStrokes = new TreeMap<Integer, KeyStroke>();
     private TreeMap<Integer, Color> bookmarkColors = new TreeMap<Integer, Color>();
     private Set<Integer> reportBookmarks = new TreeSet<Integer>();
 
-    private int selectedItens = 0, totalItems, lastId;
+    private int totalItems, lastId;
 
     private LinkedHashSet<String> typedWords = new LinkedHashSet<String>();
     private File indexDir;
@@ -76,6 +111,30 @@ public class Bookmarks implements IBookmarks {
 
     private transient IPEDSource ipedCase;
 
+    /**
+     * Generation of the journal receiving changes. Snapshots store the
+     * generation of the first journal not contained in them.
+     */
+    private long journalGeneration;
+
+    // changes not written to the journal yet
+    private transient boolean pendingClearChecked;
+    private transient RoaringBitmap pendingChecked = new RoaringBitmap();
+    private transient RoaringBitmap pendingUnchecked = new RoaringBitmap();
+    private transient TreeMap<Integer, RoaringBitmap> pendingAdded = new TreeMap<>();
+    private transient TreeMap<Integer, RoaringBitmap> pendingRemoved = new TreeMap<>();
+
+    /**
+     * Set by changes not stored in the journal, like bookmark names, comments or
+     * typed words, so the next save writes a full snapshot.
+     */
+    private transient boolean snapshotRequired;
+    // deserialized from the format of old versions
+    private transient boolean convertedFormat;
+    private transient long journalSize, snapshotSize;
+    // generation of the last temp snapshot written for each target file
+    private transient Map<File, Long> tmpSnapshotGenerations = new HashMap<>();
+
     public Bookmarks(IPEDSource ipedCase, File modulePath) {
         this(ipedCase.getTotalItems(), ipedCase.getLastId(), modulePath);
         this.ipedCase = ipedCase;
@@ -84,8 +143,8 @@ public Bookmarks(IPEDSource ipedCase, File modulePath) {
     public Bookmarks(int totalItens, int lastId, final File modulePath) {
         this.totalItems = totalItens;
         this.lastId = lastId;
-        selected = new boolean[lastId + 1];
-        bookmarks = new ArrayList<byte[]>();
+        checked = new RoaringBitmap();
+        bookmarkBitmaps = new ArrayList<RoaringBitmap>();
         indexDir = new File(modulePath, "index"); //$NON-NLS-1$
         stateFile = new File(modulePath, STATEFILENAME);
         updateCookie();
@@ -95,6 +154,119 @@ public Bookmarks(int totalItens, int lastId, final File modulePath) {
         }
     }
 
+    /**
+     * Copies the current state, to be serialized without holding the lock.
+     */
+    private Bookmarks(Bookmarks other) {
+        this.totalItems = other.totalItems;
+        this.lastId = other.lastId;
+        this.checked = other.checked.clone();
+        this.bookmarkBitmaps = new ArrayList<>(other.bookmarkBitmaps.size());
+        for (RoaringBitmap bitmap : other.bookmarkBitmaps) {
+            this.bookmarkBitmaps.add(bitmap != null ? bitmap.clone() : null);
+        }
+        this.bookmarkNames = new TreeMap<>(other.bookmarkNames);
+        this.bookmarkComments = new TreeMap<>(other.bookmarkComments);
+        this.bookmarkKeyStrokes = new TreeMap<>(other.bookmarkKeyStrokes);
+        this.bookmarkColors = other.bookmarkColors != null ? new TreeMap<>(other.bookmarkColors) : null;
+        this.reportBookmarks = new TreeSet<>(other.reportBookmarks);
+        this.typedWords = new LinkedHashSet<>(other.typedWords);
+        this.indexDir = other.indexDir;
+        this.stateFile = other.stateFile;
+        this.cookie = other.cookie;
+        this.extendedBookmarks = other.extendedBookmarks;
+        this.journalGeneration = other.journalGeneration;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("checked", checked); //$NON-NLS-1$
+        fields.put("bookmarkBitmaps", bookmarkBitmaps); //$NON-NLS-1$
+        fields.put("bookmarkNames", bookmarkNames); //$NON-NLS-1$
+        fields.put("bookmarkComments", bookmarkComments); //$NON-NLS-1$
+        fields.put("bookmarkKeyStrokes", bookmarkKeyStrokes); //$NON-NLS-1$
+        fields.put("bookmarkColors", bookmarkColors); //$NON-NLS-1$
+        fields.put("reportBookmarks", reportBookmarks); //$NON-NLS-1$
+        fields.put("totalItems", totalItems); //$NON-NLS-1$
+        fields.put("lastId", lastId); //$NON-NLS-1$
+        fields.put("typedWords", typedWords); //$NON-NLS-1$
+        fields.put("indexDir", indexDir); //$NON-NLS-1$
+        fields.put("stateFile", stateFile); //$NON-NLS-1$
+        fields.put("cookie", cookie); //$NON-NLS-1$
+        fields.put("extendedBookmarks", extendedBookmarks); //$NON-NLS-1$
+        fields.put("journalGeneration", journalGeneration); //$NON-NLS-1$
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        checked = (RoaringBitmap) fields.get("checked", null); //$NON-NLS-1$
+        bookmarkBitmaps = (ArrayList<RoaringBitmap>) fields.get("bookmarkBitmaps", null); //$NON-NLS-1$
+        bookmarkNames = (TreeMap<Integer, String>) fields.get("bookmarkNames", null); //$NON-NLS-1$
+        bookmarkComments = (TreeMap<Integer, String>) fields.get("bookmarkComments", null); //$NON-NLS-1$
+        bookmarkKeyStrokes = (TreeMap<Integer, KeyStroke>) fields.get("bookmarkKeyStrokes", null); //$NON-NLS-1$
+        bookmarkColors = (TreeMap<Integer, Color>) fields.get("bookmarkColors", null); //$NON-NLS-1$
+        reportBookmarks = (Set<Integer>) fields.get("reportBookmarks", null); //$NON-NLS-1$
+        totalItems = fields.get("totalItems", 0); //$NON-NLS-1$
+        lastId = fields.get("lastId", 0); //$NON-NLS-1$
+        typedWords = (LinkedHashSet<String>) fields.get("typedWords", null); //$NON-NLS-1$
+        indexDir = (File) fields.get("indexDir", null); //$NON-NLS-1$
+        stateFile = (File) fields.get("stateFile", null); //$NON-NLS-1$
+        cookie = (File) fields.get("cookie", null); //$NON-NLS-1$
+        extendedBookmarks = (Map<String, Serializable>) fields.get("extendedBookmarks", null); //$NON-NLS-1$
+        journalGeneration = fields.get("journalGeneration", 0L); //$NON-NLS-1$
+
+        // converts files saved by old versions
+        boolean[] selected = (boolean[]) fields.get("selected", null); //$NON-NLS-1$
+        if (selected != null) {
+            checked = new RoaringBitmap();
+            for (int id = 0; id < selected.length; id++) {
+                if (selected[id]) {
+                    checked.add(id);
+                }
+            }
+            convertedFormat = true;
+        }
+        ArrayList<byte[]> bookmarks = (ArrayList<byte[]>) fields.get("bookmarks", null); //$NON-NLS-1$
+        if (bookmarks != null) {
+            bookmarkBitmaps = new ArrayList<>();
+            for (int order = 0; order < bookmarks.size(); order++) {
+                byte[] bookmarkBytes = bookmarks.get(order);
+                RoaringBitmap[] bitmaps = new RoaringBitmap[bookmarkBits];
+                for (int i = 0; i < bitmaps.length; i++) {
+                    bitmaps[i] = new RoaringBitmap();
+                }
+                for (int id = 0; id < bookmarkBytes.length; id++) {
+                    int b = bookmarkBytes[id] & 0xFF;
+                    while (b != 0) {
+                        int bit = Integer.numberOfTrailingZeros(b);
+                        bitmaps[bit].add(id);
+                        b &= b - 1;
+                    }
+                }
+                for (RoaringBitmap bitmap : bitmaps) {
+                    bookmarkBitmaps.add(bitmap);
+                }
+            }
+            convertedFormat = true;
+        }
+        // may be imported into a case whose state file and journals are not the ones
+        // this instance was saved with, so it must be snapshotted before journaling
+        snapshotRequired = true;
+        pendingChecked = new RoaringBitmap();
+        pendingUnchecked = new RoaringBitmap();
+        pendingAdded = new TreeMap<>();
+        pendingRemoved = new TreeMap<>();
+        tmpSnapshotGenerations = new HashMap<>();
+        if (checked == null) {
+            checked = new RoaringBitmap();
+        }
+        if (bookmarkBitmaps == null) {
+            bookmarkBitmaps = new ArrayList<>();
+        }
+    }
+
     public synchronized void updateCookie() {
         long date = indexDir.lastModified();
         String tempdir = System.getProperty("java.io.basetmpdir"); //$NON-NLS-1$
@@ -123,26 +295,28 @@ public LinkedHashSet<String> getTypedWords() {
         return typedWords;
     }
 
-    public int getTotalChecked() {
-        return selectedItens;
+    public synchronized int getTotalChecked() {
+        return checked.getCardinality();
     }
 
-    public boolean isChecked(int id) {
-        return selected[id];
+    public synchronized boolean isChecked(int id) {
+        return checked.contains(id);
     }
 
     public synchronized void clearSelected() {
-        selectedItens = 0;
-        for (int i = 0; i < selected.length; i++) {
-            selected[i] = false;
-        }
+        checked.clear();
+        pendingClearChecked = true;
+        pendingChecked.clear();
+        pendingUnchecked.clear();
     }
 
     public synchronized void checkAll() {
-        selectedItens = totalItems;
+        RoaringBitmap all = new RoaringBitmap();
         ipedCase.getLuceneIdStream().forEach(i -> {
-            selected[ipedCase.getId(i)] = true;
+            all.add(ipedCase.getId(i));
         });
+        checked = all;
+        snapshotRequired = true;
     }
 
     public List<String> getBookmarkList(int itemId) {
@@ -167,86 +341,92 @@ public ArrayList<Integer> getBookmarkIds(int id) {
         return bookmarkIds;
     }
 
-    public synchronized void addBookmark(int[] ids, int bookmark) {
-        List<Integer> list = new ArrayList<>();
-        for (int id : ids) {
-            list.add(id);
+    private RoaringBitmap getBitmap(int bookmark) {
+        while (bookmarkBitmaps.size() <= bookmark) {
+            bookmarkBitmaps.add(null);
+        }
+        RoaringBitmap bitmap = bookmarkBitmaps.get(bookmark);
+        if (bitmap == null) {
+            bitmap = new RoaringBitmap();
+            bookmarkBitmaps.set(bookmark, bitmap);
         }
-        this.addBookmark(list, bookmark);
+        return bitmap;
+    }
+
+    private static RoaringBitmap getPending(TreeMap<Integer, RoaringBitmap> pending, int bookmark) {
+        return pending.computeIfAbsent(bookmark, b -> new RoaringBitmap());
+    }
+
+    public synchronized void addBookmark(int[] ids, int bookmark) {
+        addBookmark(RoaringBitmap.bitmapOf(ids), bookmark);
     }
 
     public synchronized void addBookmark(List<Integer> ids, int bookmark) {
-        int bookmarkOrder = bookmark / bookmarkBits;
-        int bookmarkMod = bookmark % bookmarkBits;
-        int bookmarkMask = 1 << bookmarkMod;
-        byte[] bookmarkBytes = bookmarks.get(bookmarkOrder);
+        RoaringBitmap added = new RoaringBitmap();
         for (int i = 0; i < ids.size(); i++) {
-            int id = ids.get(i);
-            bookmarkBytes[id] |= bookmarkMask;
+            added.add(ids.get(i));
         }
+        addBookmark(added, bookmark);
+    }
 
+    private void addBookmark(RoaringBitmap added, int bookmark) {
+        getBitmap(bookmark).or(added);
+        getPending(pendingAdded, bookmark).or(added);
+        getPending(pendingRemoved, bookmark).andNot(added);
     }
 
-    public int getBookmarkCount(int bookmark) {
-        if (bookmarks.isEmpty()) {
+    public synchronized int getBookmarkCount(int bookmark) {
+        if (bookmark < 0 || bookmark >= bookmarkBitmaps.size() || bookmarkBitmaps.get(bookmark) == null) {
             return 0;
         }
-        int bookmarkOrder = bookmark / bookmarkBits;
-        int bookmarkMask = 1 << (bookmark % bookmarkBits);
-        byte[] bookmarkBytes = bookmarks.get(bookmarkOrder);
-        int ret = 0;
-        for (byte b : bookmarkBytes) {
-            if ((b & bookmarkMask) != 0) {
-                ret++;
-            }
-        }
-        return ret;
+        return bookmarkBitmaps.get(bookmark).getCardinality();
     }
 
-    public final boolean hasBookmark(int id) {
-        boolean hasBookmark = false;
-        for (byte[] b : bookmarks) {
-            hasBookmark = b[id] != 0;
-            if (hasBookmark)
+    public synchronized final boolean hasBookmark(int id) {
+        for (RoaringBitmap bitmap : bookmarkBitmaps) {
+            if (bitmap != null && bitmap.contains(id))
                 return true;
         }
-        return hasBookmark;
+        return false;
     }
 
-    public final byte[] getBookmarkBits(int[] bookmarkids) {
-        byte[] bits = new byte[bookmarks.size()];
+    public synchronized final byte[] getBookmarkBits(int[] bookmarkids) {
+        byte[] bits = new byte[(bookmarkBitmaps.size() + bookmarkBits - 1) / bookmarkBits];
         for (int bookmark : bookmarkids)
-            bits[bookmark / bookmarkBits] |= 1 << (bookmark % bookmarkBits);
+            if (bookmark >= 0 && bookmark < bookmarkBitmaps.size())
+                bits[bookmark / bookmarkBits] |= 1 << (bookmark % bookmarkBits);
 
         return bits;
     }
 
-    public final boolean hasBookmark(int id, byte[] bookmarkbits) {
-        boolean hasBookmark = false;
+    public synchronized final boolean hasBookmark(int id, byte[] bookmarkbits) {
         for (int i = 0; i < bookmarkbits.length; i++) {
-            hasBookmark = (bookmarks.get(i)[id] & bookmarkbits[i]) != 0;
-            if (hasBookmark)
-                return true;
+            int b = bookmarkbits[i] & 0xFF;
+            while (b != 0) {
+                int bookmark = i * bookmarkBits + Integer.numberOfTrailingZeros(b);
+                if (hasBookmark(id, bookmark))
+                    return true;
+                b &= b - 1;
+            }
         }
-        return hasBookmark;
+        return false;
     }
 
-    public final boolean hasBookmark(int id, int bookmark) {
-        int p = 1 << (bookmark % bookmarkBits);
-        int bit = bookmarks.get(bookmark / bookmarkBits)[id] & p;
-        return bit != 0;
-
+    public synchronized final boolean hasBookmark(int id, int bookmark) {
+        if (bookmark < 0 || bookmark >= bookmarkBitmaps.size())
+            return false;
+        RoaringBitmap bitmap = bookmarkBitmaps.get(bookmark);
+        return bitmap != null && bitmap.contains(id);
     }
 
     public synchronized void removeBookmark(List<Integer> ids, int bookmark) {
-        int bookmarkOrder = bookmark / bookmarkBits;
-        int bookmarkMod = bookmark % bookmarkBits;
-        int bookmarkMask = ~(1 << bookmarkMod);
-        byte[] bookmarkBytes = bookmarks.get(bookmarkOrder);
+        RoaringBitmap removed = new RoaringBitmap();
         for (int i = 0; i < ids.size(); i++) {
-            bookmarkBytes[ids.get(i)] &= bookmarkMask;
+            removed.add(ids.get(i));
         }
-
+        getBitmap(bookmark).andNot(removed);
+        getPending(pendingRemoved, bookmark).or(removed);
+        getPending(pendingAdded, bookmark).andNot(removed);
     }
 
     public synchronized int newBookmark(String bookmarkName) {
@@ -262,19 +442,17 @@ public synchronized int newBookmark(String bookmarkName) {
                     break;
                 }
 
-        if (bookmarkId == -1 && bookmarkNames.size() % bookmarkBits == 0) {
-            byte[] newBookmarks = new byte[selected.length];
-            bookmarks.add(newBookmarks);
-        }
         if (bookmarkId == -1)
             bookmarkId = bookmarkNames.size();
 
+        getBitmap(bookmarkId).clear();
         bookmarkNames.put(bookmarkId, bookmarkName);
         bookmarkComments.put(bookmarkId, null);
         bookmarkKeyStrokes.put(bookmarkId, null);
         if (bookmarkColors == null)
             bookmarkColors = new TreeMap<Integer, Color>();
         bookmarkColors.put(bookmarkId, null);
+        snapshotRequired = true;
 
         return bookmarkId;
     }
@@ -290,18 +468,19 @@ public synchronized void delBookmark(int bookmark) {
         bookmarkColors.remove(bookmark);
         reportBookmarks.remove(bookmark);
 
-        int bookmarkOrder = bookmark / bookmarkBits;
-        int bookmarkMod = bookmark % bookmarkBits;
-        int bookmarkMask = ~(1 << bookmarkMod);
-        byte[] bookmarkBytes = bookmarks.get(bookmarkOrder);
-        for (int i = 0; i < bookmarkBytes.length; i++) {
-            bookmarkBytes[i] &= bookmarkMask;
+        if (bookmark < bookmarkBitmaps.size()) {
+            bookmarkBitmaps.set(bookmark, null);
         }
+        pendingAdded.remove(bookmark);
+        pendingRemoved.remove(bookmark);
+        snapshotRequired = true;
     }
 
     public synchronized void renameBookmark(int bookmarkId, String newBookmark) {
-        if (bookmarkId != -1)
+        if (bookmarkId != -1) {
             bookmarkNames.put(bookmarkId, newBookmark);
+            snapshotRequired = true;
+        }
     }
 
     public int getBookmarkId(String bookmarkName) {
@@ -318,6 +497,7 @@ public String getBookmarkName(int bookmarkId) {
 
     public synchronized void setBookmarkComment(int bookmarkId, String comment) {
         bookmarkComments.put(bookmarkId, comment);
+        snapshotRequired = true;
     }
 
     public String getBookmarkComment(int bookmarkId) {
@@ -328,6 +508,7 @@ public synchronized void setBookmarkColor(int bookmarkId, Color color) {
         if (bookmarkColors == null)
             bookmarkColors = new TreeMap<Integer, Color>();
         bookmarkColors.put(bookmarkId, color);
+        snapshotRequired = true;
     }
 
     public Color getBookmarkColor(int bookmarkId) {
@@ -340,6 +521,7 @@ public Set<Color> getUsedColors() {
 
     public synchronized void setBookmarkKeyStroke(int bookmarkId, KeyStroke key) {
         bookmarkKeyStrokes.put(bookmarkId, key);
+        snapshotRequired = true;
     }
 
     public KeyStroke getBookmarkKeyStroke(int bookmarkId) {
@@ -351,81 +533,64 @@ public synchronized void setInReport(int bookmarkId, boolean inReport) {
             reportBookmarks.add(bookmarkId);
         else
             reportBookmarks.remove(bookmarkId);
+        snapshotRequired = true;
     }
 
     public boolean isInReport(int bookmarkId) {
         return reportBookmarks.contains(bookmarkId);
     }
 
-    public SearchResult filterBookmarks(SearchResult result, Set<String> bookmarkNames) {
-        int[] bookmarkIds = new int[bookmarkNames.size()];
-        int i = 0;
-        for (String bookmarkName : bookmarkNames)
-            bookmarkIds[i++] = getBookmarkId(bookmarkName);
-        byte[] bookmarkBits = getBookmarkBits(bookmarkIds);
-
-        for (i = 0; i < result.getLength(); i++) {
-            if (!hasBookmark(result.getId(i), bookmarkBits)) {
-                result.getIds()[i] = -1;
+    /**
+     * @return items with any of the given bookmarks.
+     */
+    private RoaringBitmap getBookmarksUnion(Collection<Integer> bookmarkIds) {
+        RoaringBitmap union = new RoaringBitmap();
+        for (int bookmark : bookmarkIds) {
+            if (bookmark >= 0 && bookmark < bookmarkBitmaps.size() && bookmarkBitmaps.get(bookmark) != null) {
+                union.or(bookmarkBitmaps.get(bookmark));
             }
         }
-        result.compactResults();
-        return result;
+        return union;
     }
 
-    public SearchResult filterBookmarksOrNoBookmarks(SearchResult result, Set<String> bookmarkNames) {
-        int[] bookmarkIds = new int[bookmarkNames.size()];
-        int i = 0;
+    private RoaringBitmap getBookmarksUnion(Set<String> bookmarkNames) {
+        List<Integer> bookmarkIds = new ArrayList<>();
         for (String bookmarkName : bookmarkNames)
-            bookmarkIds[i++] = getBookmarkId(bookmarkName);
-        byte[] bookmarkBits = getBookmarkBits(bookmarkIds);
-
-        for (i = 0; i < result.getLength(); i++) {
-            if (hasBookmark(result.getId(i)) && !hasBookmark(result.getId(i), bookmarkBits)) {
-                result.getIds()[i] = -1;
-            }
-        }
-        result.compactResults();
-        return result;
+            bookmarkIds.add(getBookmarkId(bookmarkName));
+        return getBookmarksUnion(bookmarkIds);
     }
 
-    public SearchResult filterNoBookmarks(SearchResult result) {
+    private static SearchResult filter(SearchResult result, RoaringBitmap bitmap, boolean keepContained) {
+        int[] ids = result.getIds();
         for (int i = 0; i < result.getLength(); i++) {
-            if (hasBookmark(result.getId(i))) {
-                result.getIds()[i] = -1;
+            if (bitmap.contains(ids[i]) != keepContained) {
+                ids[i] = -1;
             }
         }
         result.compactResults();
         return result;
     }
 
-    public SearchResult filterChecked(SearchResult result) {
-        for (int i = 0; i < result.getLength(); i++) {
-            if (!selected[result.getId(i)]) {
-                result.getIds()[i] = -1;
-            }
-        }
-        result.compactResults();
-        return result;
+    public synchronized SearchResult filterBookmarks(SearchResult result, Set<String> bookmarkNames) {
+        return filter(result, getBookmarksUnion(bookmarkNames), true);
     }
 
-    public SearchResult filterInReport(SearchResult result) {
-        result = result.clone();
-        for (int i = 0; i < result.getLength(); i++) {
-            int itemId = result.getId(i);
-            List<Integer> bookmarks = getBookmarkIds(itemId);
-            boolean inReport = false;
-            for (int bookmark : bookmarks)
-                if (isInReport(bookmark)) {
-                    inReport = true;
-                    break;
-                }
-            if (!inReport) {
-                result.getIds()[i] = -1;
-            }
-        }
-        result.compactResults();
-        return result;
+    public synchronized SearchResult filterBookmarksOrNoBookmarks(SearchResult result, Set<String> bookmarkNames) {
+        RoaringBitmap others = getBookmarksUnion(this.bookmarkNames.keySet());
+        others.andNot(getBookmarksUnion(bookmarkNames));
+        return filter(result, others, false);
+    }
+
+    public synchronized SearchResult filterNoBookmarks(SearchResult result) {
+        return filter(result, getBookmarksUnion(bookmarkNames.keySet()), false);
+    }
+
+    public synchronized SearchResult filterChecked(SearchResult result) {
+        return filter(result, checked, true);
+    }
+
+    public synchronized SearchResult filterInReport(SearchResult result) {
+        return filter(result.clone(), getBookmarksUnion(reportBookmarks), true);
     }
 
     @Override
@@ -451,29 +616,185 @@ public void saveState(File file) throws IOException {
         saveState(file, false);
     }
 
+    /**
+     * Saves changes of checked and bookmarked items to the journal of the state
+     * file, if possible. Other changes, saves to other files and large journals
+     * result in a full snapshot, serialized from a copy of the state, so the lock
+     * is held just while copying.
+     */
     @Override
     public void saveState(File file, boolean synchronous) throws IOException {
-        LOGGER.info("Saving state sync={} to file {}", synchronous, file.getAbsolutePath()); //$NON-NLS-1$
-        if (synchronous) {
+        if (isStateFile(file) && file.exists()) {
             synchronized (this) {
-                Util.writeObject(this, file.getAbsolutePath());
+                if (!snapshotRequired) {
+                    appendJournal(file);
+                    if (journalSize <= Math.max(MIN_JOURNAL_SIZE_TO_COMPACT, snapshotSize)) {
+                        return;
+                    }
+                    // compacts the journal in background
+                    synchronous = false;
+                }
             }
+        }
+        LOGGER.info("Saving state sync={} to file {}", synchronous, file.getAbsolutePath()); //$NON-NLS-1$
+        if (synchronous) {
+            writeSnapshot(file);
         } else {
             SaveStateThread.getInstance().saveState(this, file);
         }
     }
 
+    private boolean isStateFile(File file) {
+        file = file.getAbsoluteFile();
+        return file.equals(stateFile.getAbsoluteFile()) || file.equals(cookie.getAbsoluteFile());
+    }
+
+    private void writeSnapshot(File file) throws IOException {
+        // SaveStateThread writes to a temp file then renames it to the state file
+        File target = file;
+        if (file.getName().endsWith(".tmp")) { //$NON-NLS-1$
+            target = new File(file.getAbsolutePath().substring(0, file.getAbsolutePath().length() - 4));
+        }
+        boolean isStateSnapshot = isStateFile(target);
+        Bookmarks copy;
+        synchronized (this) {
+            if (isStateSnapshot) {
+                // keeps the changes if this snapshot is not written
+                appendJournal(target);
+                // journals of other states (e.g. before an import) must not be replayed on it
+                TreeMap<Long, File> journals = BookmarksJournal.list(target);
+                if (!journals.isEmpty()) {
+                    journalGeneration = Math.max(journalGeneration, journals.lastKey());
+                }
+                journalGeneration++;
+                journalSize = 0;
+                snapshotRequired = false;
+                if (!target.equals(file)) {
+                    tmpSnapshotGenerations.put(target.getAbsoluteFile(), journalGeneration);
+                }
+            }
+            copy = new Bookmarks(this);
+        }
+        Util.writeObject(copy, file.getAbsolutePath());
+        if (isStateSnapshot) {
+            snapshotSize = file.length();
+            if (target.equals(file)) {
+                synchronized (this) {
+                    // a pending temp snapshot could still replace this one
+                    if (tmpSnapshotGenerations.containsKey(target.getAbsoluteFile())) {
+                        return;
+                    }
+                }
+                BookmarksJournal.deleteOlder(target, copy.journalGeneration);
+            }
+        }
+    }
+
+    /**
+     * Called by SaveStateThread after the temp snapshot was renamed to the state
+     * file, so the journals contained in it can be deleted.
+     */
+    public void stateSaved(File file) {
+        Long generation;
+        synchronized (this) {
+            generation = tmpSnapshotGenerations.remove(file.getAbsoluteFile());
+        }
+        if (generation != null) {
+            BookmarksJournal.deleteOlder(file, generation);
+        }
+    }
+
+    /**
+     * Writes pending changes to the current journal. Must be called holding the
+     * lock.
+     */
+    private void appendJournal(File file) throws IOException {
+        List<BookmarksJournal.Record> records = new ArrayList<>();
+        if (pendingClearChecked) {
+            records.add(new BookmarksJournal.Record(BookmarksJournal.CLEAR_CHECKED, -1, new RoaringBitmap()));
+        }
+        if (!pendingChecked.isEmpty()) {
+            records.add(new BookmarksJournal.Record(BookmarksJournal.CHECK, -1, pendingChecked));
+        }
+        if (!pendingUnchecked.isEmpty()) {
+            records.add(new BookmarksJournal.Record(BookmarksJournal.UNCHECK, -1, pendingUnchecked));
+        }
+        for (Map.Entry<Integer, RoaringBitmap> entry : pendingAdded.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                records.add(new BookmarksJournal.Record(BookmarksJournal.ADD_BOOKMARK, entry.getKey(),
+                        entry.getValue()));
+            }
+        }
+        for (Map.Entry<Integer, RoaringBitmap> entry : pendingRemoved.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                records.add(new BookmarksJournal.Record(BookmarksJournal.REMOVE_BOOKMARK, entry.getKey(),
+                        entry.getValue()));
+            }
+        }
+        if (!records.isEmpty()) {
+            journalSize = BookmarksJournal.append(file, journalGeneration, records);
+        }
+        pendingClearChecked = false;
+        pendingChecked = new RoaringBitmap();
+        pendingUnchecked = new RoaringBitmap();
+        pendingAdded.clear();
+        pendingRemoved.clear();
+    }
+
+    private void replayJournals(File file) throws IOException {
+        TreeMap<Long, File> journals = BookmarksJournal.list(file);
+        long snapshotGeneration = journalGeneration;
+        for (Map.Entry<Long, File> entry : journals.tailMap(journalGeneration).entrySet()) {
+            BookmarksJournal.replay(entry.getValue(), record -> {
+                switch (record.op) {
+                    case BookmarksJournal.CHECK:
+                        checked.or(record.ids);
+                        break;
+                    case BookmarksJournal.UNCHECK:
+                        checked.andNot(record.ids);
+                        break;
+                    case BookmarksJournal.CLEAR_CHECKED:
+                        checked.clear();
+                        break;
+                    case BookmarksJournal.ADD_BOOKMARK:
+                        if (bookmarkNames.containsKey(record.bookmark))
+                            getBitmap(record.bookmark).or(record.ids);
+                        break;
+                    case BookmarksJournal.REMOVE_BOOKMARK:
+                        if (bookmarkNames.containsKey(record.bookmark))
+                            getBitmap(record.bookmark).andNot(record.ids);
+                        break;
+                }
+            });
+        }
+        if (!journals.isEmpty() && journals.lastKey() >= journalGeneration) {
+            // a new journal, the last one could end with a partially written record
+            journalGeneration = journals.lastKey() + 1;
+        }
+        journalSize = 0;
+        BookmarksJournal.deleteOlder(file, snapshotGeneration);
+    }
+
     public synchronized void addToTypedWords(String texto) {
 
         if (!texto.trim().isEmpty() && !typedWords.contains(texto)) {
             typedWords.add(texto);
+            snapshotRequired = true;
             saveState();
         }
     }
 
+    private static long lastModified(File file) {
+        long lastModified = file.lastModified();
+        for (File journal : BookmarksJournal.list(file).values()) {
+            lastModified = Math.max(lastModified, journal.lastModified());
+        }
+        return lastModified;
+    }
+
     public void loadState() {
         try {
-            if (cookie.exists() && (!stateFile.exists() || cookie.lastModified() > stateFile.lastModified()))
+            if (cookie.exists() && (!stateFile.exists() || lastModified(cookie) > lastModified(stateFile)))
                 loadState(cookie);
 
             else if (stateFile.exists())
@@ -487,26 +808,38 @@ else if (stateFile.exists())
     public synchronized void loadState(File file) throws IOException, ClassNotFoundException {
         Bookmarks state = load(file);
 
-        if (state.selected != null /* && state.read != null */) {
-            int len = Math.min(state.selected.length, this.selected.length);
-            System.arraycopy(state.selected, 0, this.selected, 0, len);
-        }
-
-        this.bookmarks.clear();
-        for (byte[] array : state.bookmarks) {
-            byte[] newArray = new byte[lastId + 1];
-            int len = Math.min(newArray.length, array.length);
-            System.arraycopy(array, 0, newArray, 0, len);
-            this.bookmarks.add(newArray);
+        this.checked = state.checked;
+        this.bookmarkBitmaps = state.bookmarkBitmaps;
+        // ignores items not in this case anymore
+        long maxId = (long) lastId + 1;
+        this.checked.remove(maxId, 0x100000000L);
+        for (RoaringBitmap bitmap : this.bookmarkBitmaps) {
+            if (bitmap != null) {
+                bitmap.remove(maxId, 0x100000000L);
+            }
         }
 
         this.typedWords = state.typedWords;
-        this.selectedItens = state.selectedItens;
         this.bookmarkNames = state.bookmarkNames;
         this.bookmarkComments = state.bookmarkComments;
         this.bookmarkKeyStrokes = state.bookmarkKeyStrokes;
         this.reportBookmarks = state.reportBookmarks;
         this.bookmarkColors = state.bookmarkColors;
+
+        this.pendingClearChecked = false;
+        this.pendingChecked.clear();
+        this.pendingUnchecked.clear();
+        this.pendingAdded.clear();
+        this.pendingRemoved.clear();
+        this.snapshotSize = file.length();
+        this.journalGeneration = state.journalGeneration;
+        if (isStateFile(file)) {
+            // journals continue the snapshot, unless it must be converted
+            this.snapshotRequired = state.convertedFormat;
+            replayJournals(file);
+        } else {
+            this.snapshotRequired = true;
+        }
     }
 
     public static Bookmarks load(File file) throws ClassNotFoundException, IOException {
@@ -515,14 +848,15 @@ public static Bookmarks load(File file) throws ClassNotFoundException, IOExcepti
     }
 
     public synchronized void setChecked(boolean value, int id) {
-        if (value != selected[id]) {
-            if (value)
-                selectedItens++;
-            else
-                selectedItens--;
+        if (value) {
+            if (checked.checkedAdd(id)) {
+                pendingChecked.add(id);
+                pendingUnchecked.remove(id);
+            }
+        } else if (checked.checkedRemove(id)) {
+            pendingUnchecked.add(id);
+            pendingChecked.remove(id);
         }
-        // seta valor na versão de visualização ou vice-versa
-        selected[id] = value;
     }
 
 }
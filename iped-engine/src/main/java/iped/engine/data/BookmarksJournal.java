@@ -0,0 +1,172 @@
+package iped.engine.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.roaringbitmap.RoaringBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of the changes made to the checked items and bookmarked items
+ * since the last bookmarks snapshot. Journals are numbered by generation: a
+ * snapshot with generation G contains all changes of journals with generation
+ * lower than G, so loading means reading the snapshot and replaying journals
+ * with generation greater or equal to G, in order.
+ *
+ * Each record is written as [length][op][bookmark][ids bitmap][crc32], so a
+ * record partially written by a crash is detected and ignored.
+ */
+class BookmarksJournal {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(BookmarksJournal.class);
+
+    static final byte CHECK = 1;
+    static final byte UNCHECK = 2;
+    static final byte CLEAR_CHECKED = 3;
+    static final byte ADD_BOOKMARK = 4;
+    static final byte REMOVE_BOOKMARK = 5;
+
+    private static final int MAGIC = 0x49424A31; // IBJ1
+    private static final String SUFFIX = ".journal"; //$NON-NLS-1$
+
+    static class Record {
+
+        final byte op;
+        final int bookmark;
+        final RoaringBitmap ids;
+
+        Record(byte op, int bookmark, RoaringBitmap ids) {
+            this.op = op;
+            this.bookmark = bookmark;
+            this.ids = ids;
+        }
+    }
+
+    interface RecordConsumer {
+        void accept(Record record);
+    }
+
+    static File getFile(File stateFile, long generation) {
+        return new File(stateFile.getAbsoluteFile().getParentFile(),
+                stateFile.getName() + "." + generation + SUFFIX); //$NON-NLS-1$
+    }
+
+    /**
+     * @return journals of the state file sorted by generation.
+     */
+    static TreeMap<Long, File> list(File stateFile) {
+        TreeMap<Long, File> journals = new TreeMap<>();
+        String prefix = stateFile.getName() + "."; //$NON-NLS-1$
+        File[] files = stateFile.getAbsoluteFile().getParentFile().listFiles();
+        if (files == null) {
+            return journals;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(prefix) && name.endsWith(SUFFIX)) {
+                try {
+                    long generation = Long.parseLong(name.substring(prefix.length(), name.length() - SUFFIX.length()));
+                    journals.put(generation, file);
+                } catch (NumberFormatException e) {
+                    // not a journal
+                }
+            }
+        }
+        return journals;
+    }
+
+    /**
+     * Appends records to the journal of the given generation.
+     *
+     * @return the journal length after appending.
+     */
+    static long append(File stateFile, long generation, List<Record> records) throws IOException {
+        File file = getFile(stateFile, generation);
+        boolean newFile = !file.exists() || file.length() == 0;
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file, true)))) {
+            if (newFile) {
+                out.writeInt(MAGIC);
+                out.writeLong(generation);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream recordOut = new DataOutputStream(bytes);
+            CRC32 crc = new CRC32();
+            for (Record record : records) {
+                bytes.reset();
+                recordOut.writeByte(record.op);
+                recordOut.writeInt(record.bookmark);
+                record.ids.serialize(recordOut);
+                recordOut.flush();
+                byte[] payload = bytes.toByteArray();
+                crc.reset();
+                crc.update(payload);
+                out.writeInt(payload.length);
+                out.write(payload);
+                out.writeInt((int) crc.getValue());
+            }
+        }
+        return file.length();
+    }
+
+    /**
+     * Reads all valid records of a journal, stopping at the first truncated or
+     * corrupted one.
+     */
+    static void replay(File file, RecordConsumer consumer) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                LOGGER.warn("Ignoring invalid bookmarks journal {}", file.getAbsolutePath()); //$NON-NLS-1$
+                return;
+            }
+            in.readLong();
+            CRC32 crc = new CRC32();
+            while (true) {
+                int len = in.readInt();
+                if (len <= 0 || len > file.length()) {
+                    throw new EOFException();
+                }
+                byte[] payload = new byte[len];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if (in.readInt() != (int) crc.getValue()) {
+                    throw new EOFException();
+                }
+                DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(payload));
+                byte op = recordIn.readByte();
+                int bookmark = recordIn.readInt();
+                RoaringBitmap ids = new RoaringBitmap();
+                ids.deserialize(recordIn);
+                consumer.accept(new Record(op, bookmark, ids));
+            }
+        } catch (EOFException e) {
+            // end of journal or record partially written
+        }
+    }
+
+    /**
+     * Deletes journals already contained in the snapshot of the given generation.
+     */
+    static void deleteOlder(File stateFile, long generation) {
+        for (File file : list(stateFile).headMap(generation).values()) {
+            if (!file.delete()) {
+                LOGGER.warn("Could not delete old bookmarks journal {}", file.getAbsolutePath()); //$NON-NLS-1$
+            }
+        }
+    }
+
+}
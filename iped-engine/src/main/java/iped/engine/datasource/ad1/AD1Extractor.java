@@ -10,9 +10,17 @@
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
@@ -27,12 +35,39 @@ public class AD1Extractor implements Closeable {
     private static final long SIGNATURE_SIZE = 512; // 0x200
     private static final String charset = "UTF-8";
 
+    private static final int CHUNK_SIZE = 65536; // 0x10000
+
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+    // chunks inflated ahead of sequential readers
+    private static final int READ_AHEAD_CHUNKS = Math.min(16, 2 * POOL_SIZE);
+
+    // 16MB of decompressed chunks
+    private static final int MAX_CACHED_CHUNKS = 256;
+
+    private static volatile ExecutorService executor;
+
     private static Object lock = new Object();
 
     private File file;
     private Map<Integer, List<ByteBuffer>> fcMap = new HashMap<>();
     private List<FileChannel> channels = new ArrayList<>();
 
+    // decompressed chunks shared by all streams of this image, keyed by chunk
+    // offset, in access order to evict the least recently used ones
+    private Map<Long, FutureTask<byte[]>> chunkCache = new LinkedHashMap<Long, FutureTask<byte[]>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, FutureTask<byte[]>> eldest) {
+            return size() > MAX_CACHED_CHUNKS;
+        }
+    };
+
+    private Queue<ChunkInflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean closed = false;
+
     long file_block_size = 0L;
     long file_number = 0L;
     long file_count = 0L;
@@ -389,6 +424,99 @@ private int readBytesFromRelativeFilePos(byte[] cbuf, long off, long len) throws
 
     }
 
+    private static ExecutorService getExecutor() {
+        if (executor == null) {
+            synchronized (AD1Extractor.class) {
+                if (executor == null) {
+                    executor = Executors.newFixedThreadPool(POOL_SIZE, r -> {
+                        Thread t = new Thread(r, "AD1ChunkInflater"); //$NON-NLS-1$
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Returns the decompressed chunk from the cache, inflating it in the caller
+     * thread if it is not cached nor being inflated yet. A chunk queued to be
+     * inflated ahead, but not started, is also inflated in the caller thread.
+     */
+    private byte[] getChunk(Chunk chunk) throws IOException {
+        FutureTask<byte[]> task;
+        synchronized (chunkCache) {
+            task = chunkCache.get(chunk.object_PC_ini);
+            if (task == null) {
+                task = new FutureTask<>(() -> inflateChunk(chunk));
+                chunkCache.put(chunk.object_PC_ini, task);
+            }
+        }
+        // does nothing if already running or done
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            synchronized (chunkCache) {
+                chunkCache.remove(chunk.object_PC_ini, task);
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Submits chunks [from, to) not cached yet to be inflated by the pool.
+     */
+    private void readAhead(List<Chunk> chunks, int from, int to) {
+        for (int i = from; i < to; i++) {
+            Chunk chunk = chunks.get(i);
+            FutureTask<byte[]> task = null;
+            synchronized (chunkCache) {
+                if (!chunkCache.containsKey(chunk.object_PC_ini)) {
+                    task = new FutureTask<>(() -> inflateChunk(chunk));
+                    chunkCache.put(chunk.object_PC_ini, task);
+                }
+            }
+            if (task != null) {
+                getExecutor().execute(task);
+            }
+        }
+    }
+
+    private byte[] inflateChunk(Chunk chunk) throws IOException {
+        int compressedSize = (int) (chunk.object_PC_end - chunk.object_PC_ini);
+        ChunkInflater chunkInflater = inflaters.poll();
+        if (chunkInflater == null) {
+            chunkInflater = new ChunkInflater();
+        }
+        try {
+            byte[] compressed = chunkInflater.getInputBuffer(compressedSize);
+            readBytesFromRelativeFilePos(compressed, chunk.object_PC_ini, compressedSize);
+
+            Inflater inflater = chunkInflater.inflater;
+            inflater.reset();
+            inflater.setInput(compressed, 0, compressedSize);
+            byte[] uncompressed = new byte[CHUNK_SIZE];
+            int size = inflater.inflate(uncompressed);
+            return size == uncompressed.length ? uncompressed : Arrays.copyOf(uncompressed, size);
+
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            if (closed || inflaters.size() >= POOL_SIZE * 2) {
+                chunkInflater.inflater.end();
+            } else {
+                inflaters.offer(chunkInflater);
+            }
+        }
+    }
+
     public SeekableInputStream getSeekableInputStream(FileHeader header) throws IOException {
 
         return new AD1SeekableInputstream(header);
@@ -405,10 +533,31 @@ public boolean isEncrypted() {
 
     @Override
     public void close() throws IOException {
+        closed = true;
+        synchronized (chunkCache) {
+            chunkCache.clear();
+        }
+        ChunkInflater chunkInflater;
+        while ((chunkInflater = inflaters.poll()) != null) {
+            chunkInflater.inflater.end();
+        }
         for (Closeable c : channels)
             c.close();
     }
 
+    private static class ChunkInflater {
+
+        private Inflater inflater = new Inflater();
+        private byte[] input = new byte[0];
+
+        private byte[] getInputBuffer(int size) {
+            if (input.length < size) {
+                input = new byte[size];
+            }
+            return input;
+        }
+    }
+
     /**
      * 
      * @author guilherme.dutra
@@ -416,13 +565,9 @@ public void close() throws IOException {
      */
     public class AD1SeekableInputstream extends SeekableInputStream {
 
-        private int chunkSize = 65536; // 0x10000
+        private int chunkSize = CHUNK_SIZE;
 
-        private Inflater inflater = null;
-        private byte[] compressed_buffer = null;
-        private int compressed_size = 0;
-        private byte[] uncompressed_buffer = new byte[(int) chunkSize];
-        private int uncompressed_size = -1;
+        private byte[] uncompressed_buffer = null;
         private volatile boolean closed;
 
         private FileHeader header;
@@ -431,7 +576,6 @@ public class AD1SeekableInputstream extends SeekableInputStream {
 
         public AD1SeekableInputstream(FileHeader header) {
             this.header = header;
-            inflater = new Inflater();
         }
 
         @Override
@@ -487,26 +631,19 @@ public int read(byte buf[], int off, int len) throws IOException {
 
             if (chunk != lastInflatedChunk) {
 
-                Chunk p = header.chunkList.get(chunk);
-
-                compressed_size = (int) (p.object_PC_end - p.object_PC_ini);
-
-                compressed_buffer = new byte[compressed_size];
-                readBytesFromRelativeFilePos(compressed_buffer, p.object_PC_ini, compressed_size);
-
-                inflater.reset();
-                inflater.setInput(compressed_buffer, 0, compressed_size);
-                try {
-                    uncompressed_size = inflater.inflate(uncompressed_buffer);
-
-                } catch (DataFormatException e) {
-                    throw new IOException(e);
+                if (lastInflatedChunk >= 0 && chunk == lastInflatedChunk + 1) {
+                    // sequential access, inflate next chunks in parallel
+                    int numChunks = header.chunkList.size();
+                    readAhead(header.chunkList, Math.min(chunk + 1, numChunks),
+                            Math.min(chunk + 1 + READ_AHEAD_CHUNKS, numChunks));
                 }
 
+                uncompressed_buffer = getChunk(header.chunkList.get(chunk));
+
                 lastInflatedChunk = chunk;
             }
 
-            int available = uncompressed_size - posInChunk;
+            int available = uncompressed_buffer.length - posInChunk;
             int copyLen = len > available ? available : len;
             System.arraycopy(uncompressed_buffer, posInChunk, buf, off, copyLen);
             position += copyLen;
@@ -518,7 +655,7 @@ public int read(byte buf[], int off, int len) throws IOException {
         public void close() {
             if (!closed) {
                 closed = true;
-                inflater.end();
+                uncompressed_buffer = null;
             }
         }
 
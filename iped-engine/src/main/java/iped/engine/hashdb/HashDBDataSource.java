@@ -16,6 +16,9 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.sqlite.SQLiteConfig;
 import org.sqlite.SQLiteConfig.Encoding;
@@ -26,12 +29,27 @@
 
 public class HashDBDataSource {
     private Connection connection;
-    private PreparedStatement[] stmtSelectHash;
     private PreparedStatement stmtSelectHashProperties;
     private PreparedStatement stmtSelectMD5;
     private boolean[] presentHashes;
     private final Map<Integer, String> propertyIdToName = new HashMap<Integer, String>();
 
+    /**
+     * Lookup statements over the main connection, used when no pool was
+     * requested. Access is serialized by this object monitor.
+     */
+    private LookupConnection mainLookup;
+
+    /**
+     * Optional pool of independent read-only connections, so concurrent lookups
+     * do not queue behind a single lock.
+     */
+    private BlockingQueue<LookupConnection> lookupPool;
+    private final List<LookupConnection> lookupConnections = new ArrayList<LookupConnection>();
+
+    private volatile HashDBFilter filter;
+    private final LongAdder filteredLookups = new LongAdder();
+
     private static final String ledFileLength = "fileLength";
     private static final String ledFileExt = "fileExt";
     public static final String ledMd5_512 = "md5_512";
@@ -45,9 +63,64 @@ public class HashDBDataSource {
     private static final String pedoStatus = "pedo";
 
     public HashDBDataSource(File dbFile) throws Exception {
-        connect(dbFile);
+        this(dbFile, 0, 0);
+    }
+
+    /**
+     * @param dbFile
+     *            the hashes database file.
+     * @param numLookupConnections
+     *            number of read-only connections used concurrently by
+     *            {@link #lookup(byte[][], Map)}. If zero, lookups are serialized
+     *            over a single connection.
+     * @param mmapSize
+     *            maximum number of bytes of the database file that SQLite may
+     *            memory map in each lookup connection (0 disables memory
+     *            mapping).
+     */
+    public HashDBDataSource(File dbFile, int numLookupConnections, long mmapSize) throws Exception {
+        connection = connect(dbFile, mmapSize);
         prepare();
         loadProperties();
+        mainLookup = new LookupConnection(connection);
+        if (numLookupConnections > 0) {
+            lookupPool = new ArrayBlockingQueue<LookupConnection>(numLookupConnections);
+            for (int i = 0; i < numLookupConnections; i++) {
+                LookupConnection lc = new LookupConnection(connect(dbFile, mmapSize));
+                lookupConnections.add(lc);
+                lookupPool.add(lc);
+            }
+        } else {
+            lookupConnections.add(mainLookup);
+        }
+    }
+
+    /**
+     * @return the connections used by {@link #lookup(byte[][], Map)}, with their
+     *         own usage statistics.
+     */
+    public List<LookupConnection> getLookupConnections() {
+        return Collections.unmodifiableList(lookupConnections);
+    }
+
+    /**
+     * Sets an in-memory filter used to skip database queries of hashes that are
+     * certainly not present.
+     */
+    public void setFilter(HashDBFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * @return number of lookups answered by the in-memory filter, without
+     *         querying the database.
+     */
+    public long getFilteredLookups() {
+        return filteredLookups.sum();
+    }
+
+    public synchronized HashDBFilter buildFilter() throws Exception {
+        return HashDBFilter.build(connection);
     }
 
     public synchronized String getMD5(int hashId) {
@@ -292,7 +365,7 @@ public synchronized LedHashDB readLedHashDB() throws Exception {
         return ledHashDB;
     }
 
-    public synchronized List<String> lookupSets(String algorithm, String hash) throws Exception {
+    public List<String> lookupSets(String algorithm, String hash) throws Exception {
         int idx = HashDB.hashType(algorithm);
         if (idx < 0)
             return null;
@@ -319,7 +392,7 @@ public synchronized List<String> lookupSets(String algorithm, String hash) throw
         return pedo ? hashSets : null;
     }
 
-    public synchronized void lookup(byte[][] hashes, Map<String, String> properties) throws Exception {
+    public void lookup(byte[][] hashes, Map<String, String> properties) throws Exception {
         int mask = 0;
         for (int i = 0; i < hashes.length; i++) {
             if (hashes[i] != null && presentHashes[i]) {
@@ -328,33 +401,23 @@ public synchronized void lookup(byte[][] hashes, Map<String, String> properties)
         }
         if (mask == 0)
             return;
-        PreparedStatement stmtSelect = stmtSelectHash[mask];
-        int k = 0;
-        for (int i = 0; i < hashes.length; i++) {
-            byte[] h = hashes[i];
-            if (h != null && presentHashes[i])
-                stmtSelect.setBytes(++k, h);
+        HashDBFilter f = filter;
+        if (f != null && !f.mightContain(hashes)) {
+            filteredLookups.increment();
+            return;
         }
-        ResultSet rs1 = stmtSelect.executeQuery();
-        while (rs1.next()) {
-            int hashId = rs1.getInt(1);
-            stmtSelectHashProperties.setInt(1, hashId);
-            ResultSet rs2 = stmtSelectHashProperties.executeQuery();
-            while (rs2.next()) {
-                int propertyId = rs2.getInt(1);
-                String propertyName = propertyIdToName.get(propertyId);
-                if (propertyName != null) {
-                    String propertyValue = rs2.getString(2);
-                    String prev = properties.get(propertyName);
-                    if (prev != null) {
-                        propertyValue = HashDB.mergeProperties(propertyValue, prev);
-                    }
-                    properties.put(propertyName, propertyValue);
-                }
+        if (lookupPool == null) {
+            synchronized (this) {
+                mainLookup.lookup(hashes, mask, properties);
+            }
+        } else {
+            LookupConnection lc = lookupPool.take();
+            try {
+                lc.lookup(hashes, mask, properties);
+            } finally {
+                lookupPool.add(lc);
             }
-            rs2.close();
         }
-        rs1.close();
     }
 
     public synchronized void close() {
@@ -364,35 +427,41 @@ public synchronized void close() {
             } catch (Exception e) {
             }
         }
-        if (stmtSelectHash != null) {
-            for (PreparedStatement stmt : stmtSelectHash) {
-                try {
-                    if (stmt != null)
-                        stmt.close();
-                } catch (Exception e) {
-                }
-            }
-        }
         if (stmtSelectHashProperties != null) {
             try {
                 stmtSelectHashProperties.close();
             } catch (Exception e) {
             }
         }
-        try {
-            if (connection != null)
-                connection.close();
-        } catch (Exception e) {
+        for (LookupConnection lc : lookupConnections) {
+            if (lc != mainLookup) {
+                lc.close();
+            }
+        }
+        if (mainLookup != null) {
+            mainLookup.close();
+        } else {
+            try {
+                if (connection != null)
+                    connection.close();
+            } catch (Exception e) {
+            }
         }
     }
 
-    private void connect(File dbFile) throws Exception {
+    private Connection connect(File dbFile, long mmapSize) throws Exception {
         SQLiteConfig config = new SQLiteConfig();
         config.setEncoding(Encoding.UTF8);
         config.setSynchronous(SynchronousMode.OFF);
         config.setJournalMode(JournalMode.OFF);
         config.setReadOnly(true);
-        connection = config.createConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+        Connection conn = config.createConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+        if (mmapSize > 0) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("PRAGMA mmap_size=" + mmapSize);
+            }
+        }
+        return conn;
     }
 
     private void prepare() throws Exception {
@@ -410,27 +479,6 @@ private void prepare() throws Exception {
         }
         stmt.close();
 
-        StringBuilder sb = new StringBuilder();
-        sb.append("select HASH_ID from HASHES where ");
-        stmtSelectHash = new PreparedStatement[1 << hashTypes.length];
-        NEXT: for (int i = 1; i < stmtSelectHash.length; i++) {
-            StringBuilder sb1 = new StringBuilder(sb);
-            boolean first = true;
-            for (int j = 0; j < hashTypes.length; j++) {
-                if (((1 << j) & i) != 0) {
-                    if (!presentHashes[j])
-                        continue NEXT;
-                    if (first)
-                        first = false;
-                    else
-                        sb1.append(" OR ");
-                    sb1.append(hashTypes[j]).append("=?");
-                }
-            }
-            stmtSelectHash[i] = connection.prepareStatement(sb1.toString());
-            stmtSelectHash[i].setFetchSize(hashTypes.length);
-        }
-
         stmtSelectHashProperties = connection
                 .prepareStatement("select PROPERTY_ID, VALUE from HASHES_PROPERTIES where HASH_ID=?");
         stmtSelectHashProperties.setFetchSize(64);
@@ -451,4 +499,121 @@ private void loadProperties() throws Exception {
         rs.close();
         stmt.close();
     }
-}
\ No newline at end of file
+
+    /**
+     * A database connection with its own prepared lookup statements and usage
+     * counters. Each instance is used by a single thread at a time.
+     */
+    public class LookupConnection {
+        private final Connection conn;
+        private final PreparedStatement[] stmtSelectHash;
+        private final PreparedStatement stmtSelectProperties;
+
+        private final LongAdder lookups = new LongAdder();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder time = new LongAdder();
+
+        private LookupConnection(Connection conn) throws Exception {
+            this.conn = conn;
+            StringBuilder sb = new StringBuilder();
+            sb.append("select HASH_ID from HASHES where ");
+            stmtSelectHash = new PreparedStatement[1 << hashTypes.length];
+            NEXT: for (int i = 1; i < stmtSelectHash.length; i++) {
+                StringBuilder sb1 = new StringBuilder(sb);
+                boolean first = true;
+                for (int j = 0; j < hashTypes.length; j++) {
+                    if (((1 << j) & i) != 0) {
+                        if (!presentHashes[j])
+                            continue NEXT;
+                        if (first)
+                            first = false;
+                        else
+                            sb1.append(" OR ");
+                        sb1.append(hashTypes[j]).append("=?");
+                    }
+                }
+                stmtSelectHash[i] = conn.prepareStatement(sb1.toString());
+                stmtSelectHash[i].setFetchSize(hashTypes.length);
+            }
+            stmtSelectProperties = conn
+                    .prepareStatement("select PROPERTY_ID, VALUE from HASHES_PROPERTIES where HASH_ID=?");
+            stmtSelectProperties.setFetchSize(64);
+        }
+
+        private void lookup(byte[][] hashes, int mask, Map<String, String> properties) throws Exception {
+            long t = System.nanoTime();
+            boolean found = false;
+            PreparedStatement stmtSelect = stmtSelectHash[mask];
+            int k = 0;
+            for (int i = 0; i < hashes.length; i++) {
+                byte[] h = hashes[i];
+                if (h != null && presentHashes[i])
+                    stmtSelect.setBytes(++k, h);
+            }
+            ResultSet rs1 = stmtSelect.executeQuery();
+            while (rs1.next()) {
+                found = true;
+                int hashId = rs1.getInt(1);
+                stmtSelectProperties.setInt(1, hashId);
+                ResultSet rs2 = stmtSelectProperties.executeQuery();
+                while (rs2.next()) {
+                    int propertyId = rs2.getInt(1);
+                    String propertyName = propertyIdToName.get(propertyId);
+                    if (propertyName != null) {
+                        String propertyValue = rs2.getString(2);
+                        String prev = properties.get(propertyName);
+                        if (prev != null) {
+                            propertyValue = HashDB.mergeProperties(propertyValue, prev);
+                        }
+                        properties.put(propertyName, propertyValue);
+                    }
+                }
+                rs2.close();
+            }
+            rs1.close();
+            lookups.increment();
+            if (found)
+                hits.increment();
+            time.add(System.nanoTime() - t);
+        }
+
+        /**
+         * @return number of lookups executed by this connection.
+         */
+        public long getLookups() {
+            return lookups.sum();
+        }
+
+        /**
+         * @return number of lookups that found at least one hash.
+         */
+        public long getHits() {
+            return hits.sum();
+        }
+
+        /**
+         * @return total time spent in lookups, in nanoseconds.
+         */
+        public long getTime() {
+            return time.sum();
+        }
+
+        private void close() {
+            for (PreparedStatement stmt : stmtSelectHash) {
+                try {
+                    if (stmt != null)
+                        stmt.close();
+                } catch (Exception e) {
+                }
+            }
+            try {
+                stmtSelectProperties.close();
+            } catch (Exception e) {
+            }
+            try {
+                conn.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package iped.engine.hashdb;
+
+import static iped.engine.hashdb.HashDB.hashTypes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Compact in-memory blocked Bloom filter of all hashes stored in a hashes
+ * database. It answers definite misses without querying the database. Each
+ * key sets a few bits inside a single 512-bit block (one cache line), so a
+ * query touches just one block.
+ *
+ * The filter can be stored in a sidecar file next to the database (see
+ * {@link #getFilterFile(File)}), which is only reused while the database file
+ * length and last modified date are unchanged.
+ */
+public class HashDBFilter {
+
+    private static final String FILE_SUFFIX = ".filter";
+    private static final long MAGIC = 0x4950454448424631L; // "IPEDHBF1"
+
+    private static final int BITS_PER_KEY = 10;
+    private static final int NUM_PROBES = 6;
+    private static final int LONGS_PER_BLOCK = 8;
+    private static final int IO_BUFFER_LONGS = 1 << 16;
+
+    private final long[] bits;
+    private final int numBlocks;
+
+    private HashDBFilter(long numKeys) {
+        long blocks = Math.max(1, (numKeys * BITS_PER_KEY + 511) >>> 9);
+        if (blocks * LONGS_PER_BLOCK > Integer.MAX_VALUE - 8) {
+            blocks = (Integer.MAX_VALUE - 8) / LONGS_PER_BLOCK;
+        }
+        this.numBlocks = (int) blocks;
+        this.bits = new long[numBlocks * LONGS_PER_BLOCK];
+    }
+
+    private HashDBFilter(long[] bits) {
+        this.bits = bits;
+        this.numBlocks = bits.length / LONGS_PER_BLOCK;
+    }
+
+    public static File getFilterFile(File dbFile) {
+        return new File(dbFile.getAbsolutePath() + FILE_SUFFIX);
+    }
+
+    /**
+     * Builds a filter with all hashes stored in the HASHES table.
+     */
+    public static HashDBFilter build(Connection connection) throws SQLException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("select ");
+        for (int i = 0; i < hashTypes.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append("count(").append(hashTypes[i]).append(")");
+        }
+        sb.append(" from HASHES");
+
+        long numKeys = 0;
+        Statement stmt = connection.createStatement();
+        ResultSet rs = stmt.executeQuery(sb.toString());
+        if (rs.next()) {
+            for (int i = 0; i < hashTypes.length; i++) {
+                numKeys += rs.getLong(i + 1);
+            }
+        }
+        rs.close();
+
+        HashDBFilter filter = new HashDBFilter(numKeys);
+        sb.setLength(0);
+        sb.append("select ");
+        for (int i = 0; i < hashTypes.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(hashTypes[i]);
+        }
+        sb.append(" from HASHES");
+        stmt.setFetchSize(1024);
+        rs = stmt.executeQuery(sb.toString());
+        while (rs.next()) {
+            for (int i = 0; i < hashTypes.length; i++) {
+                byte[] hash = rs.getBytes(i + 1);
+                if (hash != null && hash.length >= 8) {
+                    filter.add(i, hash);
+                }
+            }
+        }
+        rs.close();
+        stmt.close();
+        return filter;
+    }
+
+    /**
+     * Builds a filter from the given database file and writes it to its sidecar
+     * file.
+     */
+    public static HashDBFilter createFilterFile(File dbFile) throws Exception {
+        HashDBDataSource dataSource = new HashDBDataSource(dbFile);
+        try {
+            HashDBFilter filter = dataSource.buildFilter();
+            filter.write(dbFile);
+            return filter;
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Loads the filter of the given database from its sidecar file.
+     *
+     * @return the filter or null if the sidecar file does not exist or is out of
+     *         date.
+     */
+    public static HashDBFilter load(File dbFile) throws IOException {
+        File filterFile = getFilterFile(dbFile);
+        if (!filterFile.exists())
+            return null;
+        try (FileChannel fc = FileChannel.open(filterFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(Long.BYTES * 3 + Integer.BYTES);
+            while (header.hasRemaining()) {
+                if (fc.read(header) < 0)
+                    return null;
+            }
+            header.flip();
+            if (header.getLong() != MAGIC || header.getLong() != dbFile.length()
+                    || header.getLong() != dbFile.lastModified())
+                return null;
+            int len = header.getInt();
+            if (len <= 0 || len % LONGS_PER_BLOCK != 0 || fc.size() != header.capacity() + (long) len * Long.BYTES)
+                return null;
+            long[] bits = new long[len];
+            ByteBuffer buf = ByteBuffer.allocateDirect(IO_BUFFER_LONGS * Long.BYTES);
+            int pos = 0;
+            while (pos < len) {
+                buf.clear();
+                buf.limit(Math.min(buf.capacity(), (len - pos) * Long.BYTES));
+                while (buf.hasRemaining()) {
+                    if (fc.read(buf) < 0)
+                        return null;
+                }
+                buf.flip();
+                LongBuffer lb = buf.asLongBuffer();
+                int n = lb.remaining();
+                lb.get(bits, pos, n);
+                pos += n;
+            }
+            return new HashDBFilter(bits);
+        }
+    }
+
+    /**
+     * Writes this filter to the sidecar file of the given database.
+     */
+    public void write(File dbFile) throws IOException {
+        File filterFile = getFilterFile(dbFile);
+        File tmp = new File(filterFile.getPath() + ".tmp");
+        boolean ok = false;
+        try (FileChannel fc = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(Long.BYTES * 3 + Integer.BYTES);
+            header.putLong(MAGIC).putLong(dbFile.length()).putLong(dbFile.lastModified()).putInt(bits.length);
+            header.flip();
+            while (header.hasRemaining()) {
+                fc.write(header);
+            }
+            ByteBuffer buf = ByteBuffer.allocateDirect(IO_BUFFER_LONGS * Long.BYTES);
+            int pos = 0;
+            while (pos < bits.length) {
+                int n = Math.min(IO_BUFFER_LONGS, bits.length - pos);
+                buf.clear();
+                buf.asLongBuffer().put(bits, pos, n);
+                buf.limit(n * Long.BYTES);
+                while (buf.hasRemaining()) {
+                    fc.write(buf);
+                }
+                pos += n;
+            }
+            ok = true;
+        } finally {
+            if (!ok) {
+                tmp.delete();
+            }
+        }
+        filterFile.delete();
+        if (!tmp.renameTo(filterFile)) {
+            tmp.delete();
+            throw new IOException("Error renaming " + tmp.getPath() + " to " + filterFile.getPath());
+        }
+    }
+
+    /**
+     * @return the size of this filter in bytes.
+     */
+    public long sizeInBytes() {
+        return (long) bits.length * Long.BYTES;
+    }
+
+    /**
+     * Checks if any of the hashes may be present in the database.
+     *
+     * @param hashes
+     *            hashes indexed by its type, as in {@link HashDB#hashTypes}. Null
+     *            entries are ignored.
+     * @return false if none of the hashes is present in the database, true if at
+     *         least one of them may be present.
+     */
+    public boolean mightContain(byte[][] hashes) {
+        for (int i = 0; i < hashes.length; i++) {
+            byte[] hash = hashes[i];
+            if (hash != null) {
+                if (hash.length < 8 || mightContain(i, hash))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private void add(int type, byte[] hash) {
+        long h = key(type, hash);
+        int base = block(h) * LONGS_PER_BLOCK;
+        long g = mix(h);
+        for (int i = 0; i < NUM_PROBES; i++) {
+            int bit = (int) (g >>> (i * 9)) & 511;
+            bits[base + (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private boolean mightContain(int type, byte[] hash) {
+        long h = key(type, hash);
+        int base = block(h) * LONGS_PER_BLOCK;
+        long g = mix(h);
+        for (int i = 0; i < NUM_PROBES; i++) {
+            int bit = (int) (g >>> (i * 9)) & 511;
+            if ((bits[base + (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private int block(long h) {
+        return (int) (((h >>> 32) * numBlocks) >>> 32);
+    }
+
+    private static long key(int type, byte[] hash) {
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix = (prefix << 8) | (hash[i] & 0xFF);
+        }
+        return mix(prefix + type * 0x9E3779B97F4A7C15L);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -113,7 +113,7 @@ public class HashDBTool {
     private Map<Integer, String> nsrlProdCodeToName;
     private ProcessMode mode = ProcessMode.UNDEFINED;
     private int totIns, totRem, totUpd, totSkip, totComb, totIgn, totNoProd, totInvHash;
-    private boolean dbExists = true, skipOpt, inputFolderUsed;
+    private boolean dbExists = true, skipOpt, skipFilter, skipPhotoDna, inputFolderUsed;
     private String delimiter;
     private final Set<String> skipCols = new HashSet<String>();
     private final Map<String, String> renameCols = new HashMap<String, String>();
@@ -1919,6 +1919,36 @@ void finish(boolean success) {
             }
         } catch (Exception e) {
         }
+        if (success && !skipFilter) {
+            long t = System.currentTimeMillis();
+            System.out.println("\nCreating lookup filter...");
+            try {
+                HashDBFilter.createFilterFile(output);
+                System.out.println("Lookup filter " + HashDBFilter.getFilterFile(output).getPath() + " created in "
+                        + endTime(t));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        } else if (success) {
+            HashDBFilter.getFilterFile(output).delete();
+        }
+        if (success && !skipPhotoDna) {
+            long t = System.currentTimeMillis();
+            System.out.println("\nCreating PhotoDNA index...");
+            try {
+                int n = PhotoDnaIndex.createIndexFile(output);
+                if (n > 0) {
+                    System.out.println("PhotoDNA index " + PhotoDnaIndex.getIndexFile(output).getPath() + " with " + n
+                            + " hashes created in " + endTime(t));
+                } else {
+                    System.out.println("No PhotoDNA hashes found.");
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        } else if (success) {
+            PhotoDnaIndex.getIndexFile(output).delete();
+        }
     }
 
     private boolean prepare() {
@@ -2113,6 +2143,10 @@ private boolean parseParameters(String[] args) {
                 mode = ProcessMode.REMOVE_ALL;
             } else if (arg.equalsIgnoreCase("-noOpt")) {
                 skipOpt = true;
+            } else if (arg.equalsIgnoreCase("-noFilter")) {
+                skipFilter = true;
+            } else if (arg.equalsIgnoreCase("-noPhotoDNA")) {
+                skipPhotoDna = true;
             } else {
                 System.out.println("ERROR: unknown parameter '" + arg + "'.");
                 return false;
@@ -2142,7 +2176,8 @@ private void usage() {
         System.out.println("    imported directly.");
         System.out.println();
         System.out.println("Usage: java -jar iped-hashdb.jar -d <input file or folder> -o <output DB file>");
-        System.out.println("            [-replace | -replaceAll | -remove | -removeAll] [-noOpt]");
+        System.out.println("            [-replace | -replaceAll | -remove | -removeAll] [-noOpt] [-noFilter]");
+        System.out.println("            [-noPhotoDNA]");
         System.out.println("            [-delimiter <char>] [-addCol <column name> <fixed value>]");
         System.out.println("            [-renameCol <current name> <new name>] [-skipCol <column name>]");
         System.out.println("            [-mapValue <column name> <current value> <new value>]");
@@ -2177,6 +2212,14 @@ private void usage() {
         System.out.println("  -noOpt");
         System.out.println("    Skip optimizations (reclaim empty space and database analisys) executed");
         System.out.println("    after processing input file(s).");
+        System.out.println("  -noFilter");
+        System.out.println("    Skip the creation of the lookup filter file (<output DB file>.filter),");
+        System.out.println("    used during case processing to skip querying hashes not present in the");
+        System.out.println("    database. If not created here, it is created in the first processing.");
+        System.out.println("  -noPhotoDNA");
+        System.out.println("    Skip the creation of the PhotoDNA index file (<output DB file>.photodna),");
+        System.out.println("    used by PhotoDNA lookup to search similar hashes. If not created here, it");
+        System.out.println("    is created in the first processing.");
         System.out.println("  -delimiter <char>");
         System.out.println("    Specify the column delimiter used in the CSV files to be imported. Default");
         System.out.println("    delimiter is comma (,).");
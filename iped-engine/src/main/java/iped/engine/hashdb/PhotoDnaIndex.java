@@ -0,0 +1,314 @@
+package iped.engine.hashdb;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Vantage point tree of PhotoDNA hashes stored in a flat file and queried
+ * directly from its memory mapping, so it is built once and shared by the page
+ * cache of all processes using it.
+ *
+ * Nodes are stored in preorder, each subtree in a contiguous range of records:
+ * the vantage point, then its inside subtree (hashes with distance up to the
+ * node threshold) and then its outside subtree. Ranges up to
+ * {@link #LEAF_SIZE} records are leaves, just scanned. Tree distances are
+ * euclidean (square root of {@link #distance(byte[], byte[])}), which is a
+ * metric, as required by pruning.
+ *
+ * The file has a header with the database file length and last modified date
+ * and the status filter used to select hashes, so it is only reused while they
+ * are unchanged. See {@link #getIndexFile(File)} for the sidecar file created
+ * by HashDBTool with all hashes of a database.
+ */
+public class PhotoDnaIndex {
+
+    private static final String FILE_SUFFIX = ".photodna";
+    private static final long MAGIC = 0x4950454450444E31L; // "IPEDPDN1"
+
+    public static final int HASH_SIZE = 144;
+
+    private static final int LEAF_SIZE = 8;
+
+    // hashId, threshold, inside subtree size, hash
+    private static final int RECORD_SIZE = 3 * Integer.BYTES + HASH_SIZE;
+
+    private static final int RECORDS_PER_CHUNK = Integer.MAX_VALUE / RECORD_SIZE;
+
+    // tolerance to float rounding of stored thresholds
+    private static final double EPSILON = 0.01;
+
+    private final ByteBuffer[] chunks;
+    private final int size;
+
+    private PhotoDnaIndex(ByteBuffer[] chunks, int size) {
+        this.chunks = chunks;
+        this.size = size;
+    }
+
+    public static File getIndexFile(File dbFile) {
+        return new File(dbFile.getAbsolutePath() + FILE_SUFFIX);
+    }
+
+    /**
+     * Reads all PhotoDNA hashes from the given database file and writes the index
+     * to its sidecar file.
+     *
+     * @return the number of indexed hashes.
+     */
+    public static int createIndexFile(File dbFile) throws Exception {
+        HashDBDataSource dataSource = new HashDBDataSource(dbFile);
+        List<PhotoDnaItem> items;
+        try {
+            items = dataSource.readPhotoDNA(null);
+        } finally {
+            dataSource.close();
+        }
+        File indexFile = getIndexFile(dbFile);
+        if (items == null || items.isEmpty()) {
+            indexFile.delete();
+            return 0;
+        }
+        write(items, indexFile, dbFile, "");
+        return items.size();
+    }
+
+    /**
+     * Builds the tree of the given hashes and writes it to a file.
+     *
+     * @param filter
+     *            status filter used to select the hashes from the database.
+     */
+    public static void write(List<PhotoDnaItem> items, File indexFile, File dbFile, String filter) throws IOException {
+        int size = items.size();
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        float[] thresholds = new float[size];
+        int[] insideSizes = new int[size];
+        build(items, order, thresholds, insideSizes, 0, size, new Random(0));
+
+        if (indexFile.getParentFile() != null) {
+            indexFile.getParentFile().mkdirs();
+        }
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        boolean ok = false;
+        try (DataOutputStream os = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20))) {
+            byte[] filterBytes = filter.getBytes(StandardCharsets.UTF_8);
+            os.writeLong(MAGIC);
+            os.writeLong(dbFile.length());
+            os.writeLong(dbFile.lastModified());
+            os.writeInt(filterBytes.length);
+            os.write(filterBytes);
+            os.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                PhotoDnaItem item = items.get(order[i]);
+                os.writeInt(item.getHashId());
+                os.writeFloat(thresholds[i]);
+                os.writeInt(insideSizes[i]);
+                os.write(item.getBytes(), 0, HASH_SIZE);
+            }
+            ok = true;
+        } finally {
+            if (!ok) {
+                tmp.delete();
+            }
+        }
+        indexFile.delete();
+        if (!tmp.renameTo(indexFile)) {
+            tmp.delete();
+            throw new IOException("Error renaming " + tmp.getPath() + " to " + indexFile.getPath());
+        }
+    }
+
+    private static void build(List<PhotoDnaItem> items, int[] order, float[] thresholds, int[] insideSizes,
+            int from, int to, Random random) {
+        while (to - from > LEAF_SIZE) {
+            int vp = from + random.nextInt(to - from);
+            int tmp = order[from];
+            order[from] = order[vp];
+            order[vp] = tmp;
+            byte[] vpHash = items.get(order[from]).getBytes();
+
+            // sort by distance, keeping the position in low bits
+            int n = to - from - 1;
+            long[] keys = new long[n];
+            for (int i = 0; i < n; i++) {
+                float dist = (float) Math.sqrt(distance(vpHash, items.get(order[from + 1 + i]).getBytes()));
+                keys[i] = ((long) Float.floatToIntBits(dist) << 32) | i;
+            }
+            Arrays.sort(keys);
+            int[] sorted = new int[n];
+            for (int i = 0; i < n; i++) {
+                sorted[i] = order[from + 1 + (int) keys[i]];
+            }
+            System.arraycopy(sorted, 0, order, from + 1, n);
+
+            int inside = n / 2;
+            thresholds[from] = Float.intBitsToFloat((int) (keys[inside] >>> 32));
+            insideSizes[from] = inside;
+            build(items, order, thresholds, insideSizes, from + 1, from + 1 + inside, random);
+            from = from + 1 + inside;
+        }
+    }
+
+    /**
+     * Maps the given index file.
+     *
+     * @return the index or null if the file does not exist or is out of date.
+     */
+    public static PhotoDnaIndex load(File indexFile, File dbFile, String filter) throws IOException {
+        if (!indexFile.exists()) {
+            return null;
+        }
+        try (FileChannel fc = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            byte[] filterBytes = filter.getBytes(StandardCharsets.UTF_8);
+            int headerLen = Long.BYTES * 3 + Integer.BYTES * 2 + filterBytes.length;
+            if (fc.size() < headerLen) {
+                return null;
+            }
+            ByteBuffer header = ByteBuffer.allocate(headerLen);
+            while (header.hasRemaining()) {
+                if (fc.read(header) < 0)
+                    return null;
+            }
+            header.flip();
+            if (header.getLong() != MAGIC || header.getLong() != dbFile.length()
+                    || header.getLong() != dbFile.lastModified() || header.getInt() != filterBytes.length) {
+                return null;
+            }
+            byte[] b = new byte[filterBytes.length];
+            header.get(b);
+            if (!Arrays.equals(b, filterBytes)) {
+                return null;
+            }
+            int size = header.getInt();
+            if (size < 0 || fc.size() != headerLen + (long) size * RECORD_SIZE) {
+                return null;
+            }
+            int numChunks = (size + RECORDS_PER_CHUNK - 1) / RECORDS_PER_CHUNK;
+            ByteBuffer[] chunks = new ByteBuffer[numChunks];
+            for (int i = 0; i < numChunks; i++) {
+                int records = Math.min(RECORDS_PER_CHUNK, size - i * RECORDS_PER_CHUNK);
+                chunks[i] = fc.map(MapMode.READ_ONLY, headerLen + (long) i * RECORDS_PER_CHUNK * RECORD_SIZE,
+                        (long) records * RECORD_SIZE);
+            }
+            return new PhotoDnaIndex(chunks, size);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Squared euclidean distance between two PhotoDNA hashes.
+     */
+    public static int distance(byte[] a, byte[] b) {
+        int distance = 0;
+        for (int i = 0; i < HASH_SIZE; i++) {
+            int diff = (0xff & a[i]) - (0xff & b[i]);
+            distance += diff * diff;
+        }
+        return distance;
+    }
+
+    private int distance(byte[] hash, ByteBuffer chunk, int pos) {
+        int distance = 0;
+        for (int i = 0; i < HASH_SIZE; i++) {
+            int diff = (0xff & hash[i]) - (0xff & chunk.get(pos + i));
+            distance += diff * diff;
+        }
+        return distance;
+    }
+
+    /**
+     * Finds the nearest hash to the given one, if its squared distance is not
+     * greater than maxDistance. Thread safe.
+     *
+     * @return the nearest hash or null if none is near enough.
+     */
+    public PhotoDnaItem findNearest(byte[] hash, int maxDistance) {
+        int best = -1;
+        int bestDist = maxDistance;
+        double radius = Math.sqrt(maxDistance);
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = size;
+        while (top > 0) {
+            int to = stack[--top];
+            int from = stack[--top];
+            if (to - from <= LEAF_SIZE) {
+                for (int i = from; i < to; i++) {
+                    int dist = distance(hash, chunks[i / RECORDS_PER_CHUNK],
+                            (i % RECORDS_PER_CHUNK) * RECORD_SIZE + 3 * Integer.BYTES);
+                    if (dist <= bestDist) {
+                        best = i;
+                        bestDist = dist;
+                    }
+                }
+                continue;
+            }
+            ByteBuffer chunk = chunks[from / RECORDS_PER_CHUNK];
+            int pos = (from % RECORDS_PER_CHUNK) * RECORD_SIZE;
+            float threshold = chunk.getFloat(pos + Integer.BYTES);
+            int inside = chunk.getInt(pos + 2 * Integer.BYTES);
+            int dist = distance(hash, chunk, pos + 3 * Integer.BYTES);
+            if (dist <= bestDist) {
+                best = from;
+                bestDist = dist;
+                radius = Math.sqrt(bestDist);
+            }
+            double d = Math.sqrt(dist);
+            if (top + 4 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            // push the less promising subtree first
+            boolean visitInside = d - radius <= threshold + EPSILON;
+            boolean visitOutside = d + radius >= threshold - EPSILON;
+            if (d <= threshold) {
+                if (visitOutside) {
+                    stack[top++] = from + 1 + inside;
+                    stack[top++] = to;
+                }
+                if (visitInside) {
+                    stack[top++] = from + 1;
+                    stack[top++] = from + 1 + inside;
+                }
+            } else {
+                if (visitInside) {
+                    stack[top++] = from + 1;
+                    stack[top++] = from + 1 + inside;
+                }
+                if (visitOutside) {
+                    stack[top++] = from + 1 + inside;
+                    stack[top++] = to;
+                }
+            }
+        }
+        if (best < 0) {
+            return null;
+        }
+        ByteBuffer chunk = chunks[best / RECORDS_PER_CHUNK];
+        int pos = (best % RECORDS_PER_CHUNK) * RECORD_SIZE;
+        byte[] bytes = new byte[HASH_SIZE];
+        for (int i = 0; i < HASH_SIZE; i++) {
+            bytes[i] = chunk.get(pos + 3 * Integer.BYTES + i);
+        }
+        return new PhotoDnaItem(chunk.getInt(pos), bytes);
+    }
+
+}
@@ -0,0 +1,109 @@
+package iped.engine.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+
+import iped.io.SeekableInputStream;
+
+/**
+ * Seekable stream over a gzip compressed byte array, used to read subitems
+ * stored by old versions. Data is inflated while read instead of being fully
+ * decompressed into memory, forward seeks skip data and backward seeks restart
+ * inflating from the beginning.
+ */
+public class GzipSeekableInputStream extends SeekableInputStream {
+
+    private final byte[] compressed;
+    private final long size;
+
+    private InputStream in;
+    private long pos, inPos;
+
+    public GzipSeekableInputStream(byte[] compressed) {
+        this.compressed = compressed;
+        // gzip trailer ends with the uncompressed size modulo 2^32
+        int len = compressed.length;
+        this.size = (compressed[len - 4] & 0xFFL) | (compressed[len - 3] & 0xFFL) << 8
+                | (compressed[len - 2] & 0xFFL) << 16 | (compressed[len - 1] & 0xFFL) << 24;
+    }
+
+    private void prepareStream() throws IOException {
+        if (in == null || inPos > pos) {
+            IOUtils.closeQuietly(in);
+            in = new GzipCompressorInputStream(new ByteArrayInputStream(compressed));
+            inPos = 0;
+        }
+        if (inPos < pos) {
+            inPos += IOUtils.skip(in, pos - inPos);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos >= size) {
+            return -1;
+        }
+        prepareStream();
+        int b = in.read();
+        if (b != -1) {
+            pos++;
+            inPos++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos >= size) {
+            return -1;
+        }
+        prepareStream();
+        int read = in.read(b, off, len);
+        if (read > 0) {
+            pos += read;
+            inPos += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = Math.max(0, Math.min(n, size - pos));
+        pos += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, size - pos);
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        this.pos = pos;
+    }
+
+    @Override
+    public long position() throws IOException {
+        return pos;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOUtils.closeQuietly(in);
+        in = null;
+    }
+
+}
@@ -0,0 +1,1013 @@
+package iped.engine.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import iped.io.SeekableInputStream;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+/**
+ * Content addressed storage of small items, like extracted subitems, into
+ * append-only pack files.
+ *
+ * Items are identified by their md5 and distributed into packs by its first
+ * bits, so concurrent writers rarely wait for each other. Each item is stored
+ * as a record split into LZ4 compressed chunks with a table of chunk sizes, so
+ * it can be randomly accessed decompressing just the chunks read. Decompressed
+ * chunks are shared by all readers in a LRU cache, so memory used by open
+ * streams does not depend on items size. An open addressing hash table kept
+ * off heap maps each md5 to its record offset and is persisted next to the
+ * pack on commit. If the pack is longer than what its index covers, like after a crash,
+ * the remaining records are scanned and indexed again on open.
+ */
+public class PackStorage implements Closeable {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(PackStorage.class);
+
+    public static final String PACK_PREFIX = "pack-"; //$NON-NLS-1$
+    public static final String PACK_EXT = ".dat"; //$NON-NLS-1$
+    private static final String INDEX_EXT = ".idx"; //$NON-NLS-1$
+    private static final String TMP_EXT = ".tmp"; //$NON-NLS-1$
+
+    private static final int PACK_BITS = 4;
+
+    private static final int PACK_MAGIC = 0x49504B31; // IPK1
+    private static final int RECORD_MAGIC = 0x49504B52; // IPKR
+    private static final int INDEX_MAGIC = 0x49504B49; // IPKI
+
+    static final int CHUNK_SIZE = 1 << 16;
+
+    private static final int PACK_HEADER_SIZE = 8;
+    // magic, md5, raw length, number of chunks
+    private static final int RECORD_HEADER_SIZE = 4 + 16 + 8 + 4;
+    // magic, number of slots, number of entries, pack length covered by the index
+    private static final int INDEX_HEADER_SIZE = 4 + 4 + 4 + 8;
+    // md5 and record offset
+    private static final int SLOT_SIZE = 16 + 8;
+
+    private static final int INITIAL_SLOTS = 1 << 12;
+    private static final int MAX_SLOTS = 1 << 26;
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private static final int MAX_CACHED_CHUNK_BYTES = 1 << 25;
+
+    private static final Map<File, PackStorage> storages = new HashMap<>();
+
+    private static final LZ4Factory lz4 = LZ4Factory.fastestInstance();
+
+    private final File dir;
+    private final Pack[] packs = new Pack[1 << PACK_BITS];
+
+    // decompressed chunks by pack number and chunk offset
+    private final LinkedHashMap<Long, byte[]> chunkCache = new LinkedHashMap<>(256, 0.75f, true);
+    private long cachedChunkBytes = 0;
+
+    private PackStorage(File dir) {
+        this.dir = dir;
+        for (int i = 0; i < packs.length; i++) {
+            packs[i] = new Pack(i);
+        }
+    }
+
+    /**
+     * @return the storage kept in the given folder, opened just once per process.
+     */
+    public static synchronized PackStorage get(File dir) {
+        dir = dir.getAbsoluteFile();
+        PackStorage storage = storages.get(dir);
+        if (storage == null) {
+            storage = new PackStorage(dir);
+            storages.put(dir, storage);
+        }
+        return storage;
+    }
+
+    /**
+     * @return true if any pack was already written into the given folder.
+     */
+    public static boolean exists(File dir) {
+        for (int i = 0; i < 1 << PACK_BITS; i++) {
+            if (getPackFile(dir, i).exists()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Persists data and indexes of the storage in the given folder, if opened.
+     */
+    public static void commit(File dir) throws IOException {
+        PackStorage storage;
+        synchronized (PackStorage.class) {
+            storage = storages.get(dir.getAbsoluteFile());
+        }
+        if (storage != null) {
+            storage.commit();
+        }
+    }
+
+    /**
+     * Commits and closes the storage in the given folder, if opened. It is
+     * reopened on the next {@link #get(File)}.
+     */
+    public static void close(File dir) throws IOException {
+        PackStorage storage;
+        synchronized (PackStorage.class) {
+            storage = storages.remove(dir.getAbsoluteFile());
+        }
+        if (storage != null) {
+            storage.close();
+        }
+    }
+
+    public static File getPackFile(File dir, int pack) {
+        return new File(dir, PACK_PREFIX + pack + PACK_EXT);
+    }
+
+    private static int getPackNum(byte[] md5) {
+        return (md5[0] & 0xFF) >> (8 - PACK_BITS);
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * @return the pack file where the item with given md5 is or would be stored.
+     */
+    public File getPackFile(byte[] md5) {
+        return packs[getPackNum(md5)].file;
+    }
+
+    public boolean contains(byte[] md5) throws IOException {
+        Pack pack = packs[getPackNum(md5)];
+        synchronized (pack) {
+            pack.load();
+            return pack.lookup(md5) != -1;
+        }
+    }
+
+    /**
+     * Stores data with the given md5, if not stored yet. Compression is done
+     * before taking the pack lock, records are appended to a buffer flushed when
+     * full, on commit or when read.
+     *
+     * @return true if the data was stored, false if it was already present.
+     */
+    public boolean put(byte[] md5, byte[] data, int len) throws IOException {
+        Pack pack = packs[getPackNum(md5)];
+        synchronized (pack) {
+            pack.load();
+            if (pack.lookup(md5) != -1) {
+                return false;
+            }
+        }
+        byte[] record = createRecord(md5, data, len);
+        synchronized (pack) {
+            if (pack.lookup(md5) != -1) {
+                return false;
+            }
+            pack.append(md5, record);
+            return true;
+        }
+    }
+
+    private byte[] getCachedChunk(long key) {
+        synchronized (chunkCache) {
+            return chunkCache.get(key);
+        }
+    }
+
+    private void cacheChunk(long key, byte[] chunk) {
+        synchronized (chunkCache) {
+            byte[] previous = chunkCache.put(key, chunk);
+            cachedChunkBytes += chunk.length - (previous != null ? previous.length : 0);
+            Iterator<byte[]> it = chunkCache.values().iterator();
+            while (cachedChunkBytes > MAX_CACHED_CHUNK_BYTES && it.hasNext()) {
+                cachedChunkBytes -= it.next().length;
+                it.remove();
+            }
+        }
+    }
+
+    private void clearChunkCache() {
+        synchronized (chunkCache) {
+            chunkCache.clear();
+            cachedChunkBytes = 0;
+        }
+    }
+
+    private static byte[] createRecord(byte[] md5, byte[] data, int len) {
+        LZ4Compressor compressor = lz4.fastCompressor();
+        int numChunks = (len + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        int headerLen = RECORD_HEADER_SIZE + 4 * numChunks;
+        byte[] record = new byte[headerLen + numChunks * compressor.maxCompressedLength(CHUNK_SIZE)];
+        ByteBuffer header = ByteBuffer.wrap(record);
+        putRecordHeader(header, md5, len, numChunks);
+        int pos = headerLen;
+        for (int off = 0; off < len; off += CHUNK_SIZE) {
+            int chunkLen = Math.min(CHUNK_SIZE, len - off);
+            int compressedLen = compressChunk(compressor, data, off, chunkLen, record, pos);
+            header.putInt(compressedLen);
+            pos += compressedLen;
+        }
+        return Arrays.copyOf(record, pos);
+    }
+
+    private static void putRecordHeader(ByteBuffer header, byte[] md5, long len, int numChunks) {
+        header.putInt(RECORD_MAGIC);
+        header.put(md5, 0, 16);
+        header.putLong(len);
+        header.putInt(numChunks);
+    }
+
+    /**
+     * @return length of the chunk written into dest, compressed or stored as is if
+     *         incompressible.
+     */
+    private static int compressChunk(LZ4Compressor compressor, byte[] src, int off, int len, byte[] dest,
+            int destOff) {
+        int compressedLen = compressor.compress(src, off, len, dest, destOff, dest.length - destOff);
+        if (compressedLen >= len) {
+            System.arraycopy(src, off, dest, destOff, len);
+            compressedLen = len;
+        }
+        return compressedLen;
+    }
+
+    /**
+     * Returns a stream to store data of unknown length with the given md5. Data
+     * is compressed while written and spilled to a temp file when large, so it is
+     * never fully kept in memory. It is stored when the stream is closed, if not
+     * stored yet, unless {@link RecordOutputStream#discard()} was called before.
+     */
+    public RecordOutputStream newOutputStream(byte[] md5) {
+        return new RecordOutputStream(md5);
+    }
+
+    /**
+     * @return a stream to read the item with the given md5 or null if not found.
+     */
+    public SeekableInputStream getSeekableInputStream(byte[] md5) throws IOException {
+        Pack pack = packs[getPackNum(md5)];
+        long offset;
+        synchronized (pack) {
+            pack.load();
+            offset = pack.lookup(md5);
+            if (offset == -1) {
+                return null;
+            }
+            pack.flushIfPending(offset);
+        }
+        return new RecordInputStream(pack, offset);
+    }
+
+    public void commit() throws IOException {
+        for (Pack pack : packs) {
+            synchronized (pack) {
+                pack.commit();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Pack pack : packs) {
+            synchronized (pack) {
+                pack.commit();
+                pack.close();
+            }
+        }
+        clearChunkCache();
+    }
+
+    /**
+     * Removes items matching the filter, rewriting the packs with items removed.
+     *
+     * @return number of removed items.
+     */
+    public int delete(Predicate<byte[]> toDelete) throws IOException {
+        int deleted = 0;
+        for (Pack pack : packs) {
+            synchronized (pack) {
+                if (pack.file.exists()) {
+                    pack.load();
+                    deleted += pack.delete(toDelete);
+                }
+            }
+        }
+        // offsets changed
+        clearChunkCache();
+        return deleted;
+    }
+
+    private static long getLong(byte[] b, int off) {
+        long l = 0;
+        for (int i = off; i < off + 8; i++) {
+            l = (l << 8) | (b[i] & 0xFF);
+        }
+        return l;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, pos);
+            if (read == -1) {
+                throw new EOFException();
+            }
+            pos += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    private class Pack {
+
+        private final int num;
+        private final File file, indexFile;
+
+        private boolean loaded;
+
+        // off heap hash table, mapped read only if the storage is not writable
+        private ByteBuffer table;
+        private int slots, entries;
+        private boolean tableWritable;
+
+        private long length, flushedLength, indexedLength;
+
+        private FileChannel readChannel, writeChannel;
+        private ByteBuffer writeBuffer;
+
+        private Pack(int num) {
+            this.num = num;
+            this.file = getPackFile(dir, num);
+            this.indexFile = new File(dir, PACK_PREFIX + num + INDEX_EXT);
+        }
+
+        private void load() throws IOException {
+            if (loaded) {
+                return;
+            }
+            length = file.exists() ? file.length() : 0;
+            flushedLength = length;
+            indexedLength = 0;
+            if (indexFile.exists() && length > 0) {
+                try {
+                    loadIndex();
+                } catch (IOException e) {
+                    LOGGER.warn("Invalid pack index {}, it will be rebuilt: {}", indexFile.getAbsolutePath(), //$NON-NLS-1$
+                            e.toString());
+                    table = null;
+                }
+            }
+            if (table == null) {
+                newTable(INITIAL_SLOTS);
+                indexedLength = 0;
+            }
+            if (length > Math.max(indexedLength, PACK_HEADER_SIZE)) {
+                scan(Math.max(indexedLength, PACK_HEADER_SIZE));
+            }
+            loaded = true;
+        }
+
+        private void loadIndex() throws IOException {
+            try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+                readFully(channel, header, 0);
+                header.flip();
+                int magic = header.getInt();
+                int numSlots = header.getInt();
+                int numEntries = header.getInt();
+                long indexed = header.getLong();
+                if (magic != INDEX_MAGIC || Integer.bitCount(numSlots) != 1 || numSlots > MAX_SLOTS
+                        || channel.size() != INDEX_HEADER_SIZE + (long) numSlots * SLOT_SIZE || indexed > length) {
+                    throw new IOException("Corrupted pack index"); //$NON-NLS-1$
+                }
+                if (Files.isWritable(dir.toPath())) {
+                    table = ByteBuffer.allocateDirect(numSlots * SLOT_SIZE);
+                    readFully(channel, table, INDEX_HEADER_SIZE);
+                    table.clear();
+                    tableWritable = true;
+                } else {
+                    // read only case, the table is paged in on demand
+                    table = channel.map(MapMode.READ_ONLY, INDEX_HEADER_SIZE, (long) numSlots * SLOT_SIZE);
+                    tableWritable = false;
+                }
+                slots = numSlots;
+                entries = numEntries;
+                indexedLength = indexed;
+            }
+        }
+
+        private void newTable(int numSlots) {
+            table = ByteBuffer.allocateDirect(numSlots * SLOT_SIZE);
+            slots = numSlots;
+            entries = 0;
+            tableWritable = true;
+        }
+
+        /**
+         * Indexes records not contained in the index, stopping at the first invalid
+         * or incomplete one, which is overwritten by the next append. Other I/O
+         * errors are thrown, so valid records are never discarded because of them.
+         */
+        private void scan(long pos) throws IOException {
+            LOGGER.info("Indexing pack {} from offset {}", file.getAbsolutePath(), pos); //$NON-NLS-1$
+            FileChannel channel = getReadChannel();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            byte[] md5 = new byte[16];
+            while (pos + RECORD_HEADER_SIZE <= length) {
+                long recordLen;
+                try {
+                    recordLen = getRecordLength(channel, pos, header, md5);
+                } catch (EOFException e) {
+                    // chunk length table truncated
+                    break;
+                }
+                if (recordLen == -1 || pos + recordLen > length) {
+                    break;
+                }
+                if (lookup(md5) == -1) {
+                    insert(md5, pos);
+                }
+                pos += recordLen;
+            }
+            if (pos != length) {
+                LOGGER.warn("Discarding {} bytes of incomplete data in pack {}", length - pos, //$NON-NLS-1$
+                        file.getAbsolutePath());
+                length = pos;
+                flushedLength = pos;
+            }
+        }
+
+        /**
+         * @return the total length of the record at given position or -1 if it is
+         *         invalid.
+         */
+        private long getRecordLength(FileChannel channel, long pos, ByteBuffer header, byte[] md5)
+                throws IOException {
+            header.clear();
+            readFully(channel, header, pos);
+            header.flip();
+            if (header.getInt() != RECORD_MAGIC) {
+                return -1;
+            }
+            header.get(md5);
+            long rawLen = header.getLong();
+            int numChunks = header.getInt();
+            if (rawLen < 0 || numChunks != (rawLen + CHUNK_SIZE - 1) / CHUNK_SIZE) {
+                return -1;
+            }
+            ByteBuffer lens = ByteBuffer.allocate(4 * numChunks);
+            readFully(channel, lens, pos + RECORD_HEADER_SIZE);
+            lens.flip();
+            long recordLen = RECORD_HEADER_SIZE + 4 * numChunks;
+            for (int i = 0; i < numChunks; i++) {
+                int len = lens.getInt();
+                if (len <= 0 || len > CHUNK_SIZE) {
+                    return -1;
+                }
+                recordLen += len;
+            }
+            return recordLen;
+        }
+
+        private long lookup(byte[] md5) {
+            long k0 = getLong(md5, 0), k1 = getLong(md5, 8);
+            int mask = slots - 1;
+            for (int slot = (int) k1 & mask;; slot = (slot + 1) & mask) {
+                int p = slot * SLOT_SIZE;
+                long offset = table.getLong(p + 16);
+                if (offset == 0) {
+                    return -1;
+                }
+                if (table.getLong(p) == k0 && table.getLong(p + 8) == k1) {
+                    return offset;
+                }
+            }
+        }
+
+        private void insert(byte[] md5, long offset) throws IOException {
+            if (!tableWritable) {
+                ByteBuffer copy = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+                copy.put(table.duplicate());
+                table = copy;
+                tableWritable = true;
+            }
+            if ((entries + 1) * 4L > slots * 3L) {
+                resize(slots * 2);
+            }
+            putSlot(table, slots, getLong(md5, 0), getLong(md5, 8), offset);
+            entries++;
+        }
+
+        private void resize(int newSlots) throws IOException {
+            if (newSlots > MAX_SLOTS) {
+                throw new IOException("Too many items in pack " + file.getAbsolutePath()); //$NON-NLS-1$
+            }
+            ByteBuffer newTable = ByteBuffer.allocateDirect(newSlots * SLOT_SIZE);
+            for (int p = 0; p < slots * SLOT_SIZE; p += SLOT_SIZE) {
+                long offset = table.getLong(p + 16);
+                if (offset != 0) {
+                    putSlot(newTable, newSlots, table.getLong(p), table.getLong(p + 8), offset);
+                }
+            }
+            table = newTable;
+            slots = newSlots;
+        }
+
+        private void putSlot(ByteBuffer table, int slots, long k0, long k1, long offset) {
+            int mask = slots - 1;
+            int slot = (int) k1 & mask;
+            while (table.getLong(slot * SLOT_SIZE + 16) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            int p = slot * SLOT_SIZE;
+            table.putLong(p, k0);
+            table.putLong(p + 8, k1);
+            table.putLong(p + 16, offset);
+        }
+
+        private FileChannel getReadChannel() throws IOException {
+            if (readChannel == null) {
+                readChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            }
+            return readChannel;
+        }
+
+        private void openWriter() throws IOException {
+            if (writeChannel != null) {
+                return;
+            }
+            file.getParentFile().mkdirs();
+            writeChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            // drops incomplete records left by a crash
+            writeChannel.truncate(length);
+            writeChannel.position(length);
+            writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            if (length == 0) {
+                writeBuffer.putInt(PACK_MAGIC);
+                writeBuffer.putInt(CHUNK_SIZE);
+                length = PACK_HEADER_SIZE;
+            }
+        }
+
+        private void append(byte[] md5, byte[] record) throws IOException {
+            openWriter();
+            if (record.length > writeBuffer.remaining()) {
+                flush();
+            }
+            if (record.length > writeBuffer.capacity()) {
+                writeFully(writeChannel, ByteBuffer.wrap(record));
+                flushedLength += record.length;
+            } else {
+                writeBuffer.put(record);
+            }
+            insert(md5, length);
+            length += record.length;
+        }
+
+        /**
+         * Appends a record whose chunks were spilled to a temp file.
+         */
+        private void append(byte[] md5, byte[] header, FileChannel chunks) throws IOException {
+            openWriter();
+            flush();
+            writeFully(writeChannel, ByteBuffer.wrap(header));
+            long size = chunks.size();
+            long transferred = 0;
+            while (transferred < size) {
+                transferred += chunks.transferTo(transferred, size - transferred, writeChannel);
+            }
+            insert(md5, length);
+            length += header.length + size;
+            flushedLength = length;
+        }
+
+        private void flush() throws IOException {
+            if (writeBuffer != null && writeBuffer.position() > 0) {
+                writeBuffer.flip();
+                writeFully(writeChannel, writeBuffer);
+                writeBuffer.clear();
+                flushedLength = length;
+            }
+        }
+
+        private void flushIfPending(long offset) throws IOException {
+            if (offset >= flushedLength) {
+                flush();
+            }
+        }
+
+        private void commit() throws IOException {
+            if (!loaded || writeChannel == null) {
+                return;
+            }
+            flush();
+            writeChannel.force(false);
+            if (indexedLength != length) {
+                writeIndex();
+            }
+        }
+
+        private void writeIndex() throws IOException {
+            File tmp = new File(indexFile.getAbsolutePath() + TMP_EXT);
+            try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+                header.putInt(INDEX_MAGIC);
+                header.putInt(slots);
+                header.putInt(entries);
+                header.putLong(length);
+                header.flip();
+                writeFully(channel, header);
+                ByteBuffer data = table.duplicate();
+                data.clear();
+                writeFully(channel, data);
+                channel.force(false);
+            }
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            indexedLength = length;
+        }
+
+        private int delete(Predicate<byte[]> toDelete) throws IOException {
+            flush();
+            List<long[]> kept = new ArrayList<>();
+            int deleted = 0;
+            byte[] md5 = new byte[16];
+            for (int p = 0; p < slots * SLOT_SIZE; p += SLOT_SIZE) {
+                long offset = table.getLong(p + 16);
+                if (offset != 0) {
+                    long k0 = table.getLong(p), k1 = table.getLong(p + 8);
+                    ByteBuffer.wrap(md5).putLong(k0).putLong(k1);
+                    if (toDelete.test(md5)) {
+                        deleted++;
+                    } else {
+                        kept.add(new long[] { offset, k0, k1 });
+                    }
+                }
+            }
+            if (deleted == 0) {
+                return 0;
+            }
+            LOGGER.info("Removing {} items from pack {}", deleted, file.getAbsolutePath()); //$NON-NLS-1$
+            // copies kept records in file order, so reads keep sequential
+            kept.sort((a, b) -> Long.compare(a[0], b[0]));
+            File tmp = new File(file.getAbsolutePath() + TMP_EXT);
+            int newSlots = INITIAL_SLOTS;
+            while (kept.size() * 4L > newSlots * 3L) {
+                newSlots *= 2;
+            }
+            ByteBuffer newTable = ByteBuffer.allocateDirect(newSlots * SLOT_SIZE);
+            long newLength = PACK_HEADER_SIZE;
+            FileChannel in = getReadChannel();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer packHeader = ByteBuffer.allocate(PACK_HEADER_SIZE);
+                packHeader.putInt(PACK_MAGIC).putInt(CHUNK_SIZE).flip();
+                writeFully(out, packHeader);
+                for (long[] entry : kept) {
+                    long recordLen = getRecordLength(in, entry[0], header, md5);
+                    if (recordLen == -1) {
+                        throw new IOException("Corrupted record in pack " + file.getAbsolutePath()); //$NON-NLS-1$
+                    }
+                    long transferred = 0;
+                    while (transferred < recordLen) {
+                        transferred += in.transferTo(entry[0] + transferred, recordLen - transferred, out);
+                    }
+                    putSlot(newTable, newSlots, entry[1], entry[2], newLength);
+                    newLength += recordLen;
+                }
+                out.force(false);
+            }
+            close();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            table = newTable;
+            slots = newSlots;
+            entries = kept.size();
+            tableWritable = true;
+            length = newLength;
+            flushedLength = newLength;
+            writeIndex();
+            return deleted;
+        }
+
+        private void close() throws IOException {
+            if (readChannel != null) {
+                readChannel.close();
+                readChannel = null;
+            }
+            if (writeChannel != null) {
+                flush();
+                writeChannel.close();
+                writeChannel = null;
+                writeBuffer = null;
+            }
+        }
+
+        private int read(ByteBuffer buf, long pos) throws IOException {
+            FileChannel channel;
+            synchronized (this) {
+                channel = getReadChannel();
+            }
+            readFully(channel, buf, pos);
+            return buf.position();
+        }
+    }
+
+    /**
+     * Compresses data into chunks while it is written. Compressed chunks are kept
+     * in memory up to {@link #WRITE_BUFFER_SIZE}, then in a temp file, and copied
+     * into the pack on close.
+     */
+    public class RecordOutputStream extends OutputStream {
+
+        private final byte[] md5;
+        private final LZ4Compressor compressor = lz4.fastCompressor();
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private final byte[] compressed = new byte[compressor.maxCompressedLength(CHUNK_SIZE)];
+        private int chunkPos;
+        private int[] chunkLens = new int[16];
+        private int numChunks;
+        private long rawLength;
+
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private File tmpFile;
+        private FileChannel tmpChannel;
+        private boolean closed;
+
+        private RecordOutputStream(byte[] md5) {
+            this.md5 = md5;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed"); //$NON-NLS-1$
+            }
+            while (len > 0) {
+                int n = Math.min(len, CHUNK_SIZE - chunkPos);
+                System.arraycopy(b, off, chunk, chunkPos, n);
+                chunkPos += n;
+                off += n;
+                len -= n;
+                if (chunkPos == CHUNK_SIZE) {
+                    writeChunk();
+                }
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            int compressedLen = compressChunk(compressor, chunk, 0, chunkPos, compressed, 0);
+            if (numChunks == chunkLens.length) {
+                chunkLens = Arrays.copyOf(chunkLens, numChunks * 2);
+            }
+            chunkLens[numChunks++] = compressedLen;
+            rawLength += chunkPos;
+            chunkPos = 0;
+            if (tmpChannel == null && memory.size() + compressedLen > WRITE_BUFFER_SIZE) {
+                dir.mkdirs();
+                tmpFile = Files.createTempFile(dir.toPath(), "record", TMP_EXT).toFile(); //$NON-NLS-1$
+                tmpChannel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                writeFully(tmpChannel, ByteBuffer.wrap(memory.toByteArray()));
+                memory = null;
+            }
+            if (tmpChannel != null) {
+                writeFully(tmpChannel, ByteBuffer.wrap(compressed, 0, compressedLen));
+            } else {
+                memory.write(compressed, 0, compressedLen);
+            }
+        }
+
+        /**
+         * @return number of bytes written.
+         */
+        public long size() {
+            return rawLength + chunkPos;
+        }
+
+        /**
+         * Closes this stream without storing the data.
+         */
+        public void discard() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            deleteTmpFile();
+        }
+
+        private void deleteTmpFile() throws IOException {
+            memory = null;
+            if (tmpChannel != null) {
+                tmpChannel.close();
+                tmpChannel = null;
+                Files.deleteIfExists(tmpFile.toPath());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (chunkPos > 0) {
+                    writeChunk();
+                }
+                ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + 4 * numChunks);
+                putRecordHeader(header, md5, rawLength, numChunks);
+                for (int i = 0; i < numChunks; i++) {
+                    header.putInt(chunkLens[i]);
+                }
+                byte[] record = null;
+                if (tmpChannel == null) {
+                    record = Arrays.copyOf(header.array(), header.capacity() + memory.size());
+                    System.arraycopy(memory.toByteArray(), 0, record, header.capacity(), memory.size());
+                }
+                Pack pack = packs[getPackNum(md5)];
+                synchronized (pack) {
+                    pack.load();
+                    if (pack.lookup(md5) != -1) {
+                        return;
+                    }
+                    if (record != null) {
+                        pack.append(md5, record);
+                    } else {
+                        pack.append(md5, header.array(), tmpChannel);
+                    }
+                }
+            } finally {
+                deleteTmpFile();
+            }
+        }
+    }
+
+    /**
+     * Reads a record decompressing just the chunks being accessed.
+     */
+    private class RecordInputStream extends SeekableInputStream {
+
+        private final Pack pack;
+        private final long rawLength;
+        private final int[] chunkLens;
+        private final long[] chunkOffsets;
+
+        private byte[] compressed;
+        private byte[] chunk;
+        private int chunkIdx = -1;
+        private int chunkLen;
+        private long pos;
+
+        private RecordInputStream(Pack pack, long offset) throws IOException {
+            this.pack = pack;
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            pack.read(header, offset);
+            header.flip();
+            if (header.getInt() != RECORD_MAGIC) {
+                throw new IOException("Corrupted record in pack " + pack.file.getAbsolutePath()); //$NON-NLS-1$
+            }
+            header.position(header.position() + 16);
+            rawLength = header.getLong();
+            int numChunks = header.getInt();
+            ByteBuffer lens = ByteBuffer.allocate(4 * numChunks);
+            pack.read(lens, offset + RECORD_HEADER_SIZE);
+            lens.flip();
+            chunkLens = new int[numChunks];
+            chunkOffsets = new long[numChunks];
+            long chunkOffset = offset + RECORD_HEADER_SIZE + 4 * numChunks;
+            for (int i = 0; i < numChunks; i++) {
+                chunkLens[i] = lens.getInt();
+                chunkOffsets[i] = chunkOffset;
+                chunkOffset += chunkLens[i];
+            }
+        }
+
+        private void loadChunk(int idx) throws IOException {
+            if (idx == chunkIdx) {
+                return;
+            }
+            long key = ((long) pack.num << 56) | chunkOffsets[idx];
+            byte[] cached = getCachedChunk(key);
+            if (cached != null) {
+                chunk = cached;
+                chunkIdx = idx;
+                chunkLen = cached.length;
+                return;
+            }
+            int rawLen = (int) Math.min(CHUNK_SIZE, rawLength - (long) idx * CHUNK_SIZE);
+            byte[] decoded = new byte[rawLen];
+            if (chunkLens[idx] == rawLen) {
+                pack.read(ByteBuffer.wrap(decoded), chunkOffsets[idx]);
+            } else {
+                if (compressed == null || compressed.length < chunkLens[idx]) {
+                    compressed = new byte[chunkLens[idx]];
+                }
+                pack.read(ByteBuffer.wrap(compressed, 0, chunkLens[idx]), chunkOffsets[idx]);
+                LZ4SafeDecompressor decompressor = lz4.safeDecompressor();
+                int len = decompressor.decompress(compressed, 0, chunkLens[idx], decoded, 0, rawLen);
+                if (len != rawLen) {
+                    throw new IOException("Corrupted chunk in pack " + pack.file.getAbsolutePath()); //$NON-NLS-1$
+                }
+            }
+            cacheChunk(key, decoded);
+            chunk = decoded;
+            chunkIdx = idx;
+            chunkLen = rawLen;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos >= rawLength) {
+                return -1;
+            }
+            loadChunk((int) (pos / CHUNK_SIZE));
+            return chunk[(int) (pos++ % CHUNK_SIZE)] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos >= rawLength) {
+                return -1;
+            }
+            int total = 0;
+            while (total < len && pos < rawLength) {
+                loadChunk((int) (pos / CHUNK_SIZE));
+                int chunkPos = (int) (pos % CHUNK_SIZE);
+                int n = Math.min(len - total, chunkLen - chunkPos);
+                System.arraycopy(chunk, chunkPos, b, off + total, n);
+                total += n;
+                pos += n;
+            }
+            return total;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = Math.max(0, Math.min(n, rawLength - pos));
+            pos += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, rawLength - pos);
+        }
+
+        @Override
+        public void seek(long pos) throws IOException {
+            this.pos = pos;
+        }
+
+        @Override
+        public long position() throws IOException {
+            return pos;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return rawLength;
+        }
+
+    }
+
+}
@@ -0,0 +1,39 @@
+package iped.engine.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import iped.io.SeekableInputStream;
+import iped.utils.HashValue;
+import iped.utils.SeekableInputStreamFactory;
+
+/**
+ * Reads items stored in {@link PackStorage}. The data source is the pack file
+ * and identifiers are the items md5.
+ */
+public class PackStorageInputStreamFactory extends SeekableInputStreamFactory {
+
+    public PackStorageInputStreamFactory(Path datasource) {
+        super(datasource.toUri());
+    }
+
+    @Override
+    public boolean checkIfDataSourceExists() {
+        // do nothing, it will always be into case folder
+        return false;
+    }
+
+    @Override
+    public SeekableInputStream getSeekableInputStream(String identifier) throws IOException {
+        File pack = Paths.get(getDataSourceURI()).toFile();
+        SeekableInputStream is = PackStorage.get(pack.getParentFile())
+                .getSeekableInputStream(new HashValue(identifier).getBytes());
+        if (is == null) {
+            throw new IOException("Item " + identifier + " not found in " + pack.getAbsolutePath()); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        return is;
+    }
+
+}
@@ -0,0 +1,174 @@
+package iped.engine.io;
+
+import java.io.File;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import iped.io.SeekableInputStream;
+
+/**
+ * Keeps the text extracted from items while processing, so viewers and the web
+ * API can show it without parsing items again. Texts are stored as UTF-8 into a
+ * {@link PackStorage} keyed by item id, compressed in chunks that can be read
+ * from any position.
+ */
+public class TextStore {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(TextStore.class);
+
+    public static final String TEXT_STORE_DIR = "textstore"; //$NON-NLS-1$
+
+    public static File getDir(File moduleDir) {
+        return new File(moduleDir, TEXT_STORE_DIR);
+    }
+
+    private static byte[] getKey(int id) {
+        return DigestUtils.md5("text-" + id); //$NON-NLS-1$
+    }
+
+    /**
+     * @return stored text of the item as an UTF-8 stream, or null if not stored.
+     *         Empty texts are not stored, as items may get an empty text just to
+     *         skip parsing, e.g. when split into fragments.
+     */
+    public static SeekableInputStream getTextStream(File moduleDir, int id) throws IOException {
+        File dir = getDir(moduleDir);
+        if (!PackStorage.exists(dir)) {
+            return null;
+        }
+        SeekableInputStream is = PackStorage.get(dir).getSeekableInputStream(getKey(id));
+        if (is != null && is.size() == 0) {
+            is.close();
+            return null;
+        }
+        return is;
+    }
+
+    /**
+     * @return stored text of the item, or null if not stored.
+     */
+    public static Reader getTextReader(File moduleDir, int id) throws IOException {
+        SeekableInputStream is = getTextStream(moduleDir, id);
+        if (is == null) {
+            return null;
+        }
+        return new InputStreamReader(is, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a reader that streams the text read from the given one into the
+     * store, where it is kept after it is fully consumed and closed. Partially
+     * read and empty texts are discarded.
+     */
+    public static Reader getStoringReader(File moduleDir, int id, Reader reader) {
+        return new StoringReader(getDir(moduleDir), id, reader);
+    }
+
+    public static void commit(File moduleDir) throws IOException {
+        PackStorage.commit(getDir(moduleDir));
+    }
+
+    public static void close(File moduleDir) throws IOException {
+        PackStorage.close(getDir(moduleDir));
+    }
+
+    private static class StoringReader extends FilterReader {
+
+        private final File dir;
+        private final int id;
+
+        private PackStorage.RecordOutputStream out;
+        private Writer writer;
+        private boolean eof = false;
+        private boolean failed = false;
+
+        private StoringReader(File dir, int id, Reader reader) {
+            super(reader);
+            this.dir = dir;
+            this.id = id;
+        }
+
+        @Override
+        public int read() throws IOException {
+            char[] c = new char[1];
+            return read(c, 0, 1) == -1 ? -1 : c[0];
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int read = super.read(cbuf, off, len);
+            if (read == -1) {
+                eof = true;
+            } else if (read > 0 && !failed) {
+                try {
+                    if (writer == null) {
+                        // opened on first text, so empty texts are not stored
+                        out = PackStorage.get(dir).newOutputStream(getKey(id));
+                        writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                    }
+                    writer.write(cbuf, off, read);
+                } catch (IOException e) {
+                    LOGGER.warn("Error storing text of item " + id, e); //$NON-NLS-1$
+                    failed = true;
+                    discard();
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped text must be stored too
+            if (n <= 0) {
+                return 0;
+            }
+            char[] buf = new char[(int) Math.min(n, 8192)];
+            int read = read(buf, 0, buf.length);
+            return read == -1 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void discard() {
+            if (out != null) {
+                try {
+                    out.discard();
+                } catch (IOException e) {
+                    LOGGER.warn("Error discarding text of item " + id, e); //$NON-NLS-1$
+                }
+            }
+            out = null;
+            writer = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (eof && writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    LOGGER.warn("Error storing text of item " + id, e); //$NON-NLS-1$
+                    discard();
+                }
+            } else {
+                discard();
+            }
+            out = null;
+            writer = null;
+        }
+    }
+
+}
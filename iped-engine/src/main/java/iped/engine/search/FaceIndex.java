@@ -0,0 +1,521 @@
+package iped.engine.search;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.RandomAccessVectorValues;
+import org.apache.lucene.index.RandomAccessVectorValuesProducer;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.VectorSimilarityFunction;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.hnsw.HnswGraph;
+import org.apache.lucene.util.hnsw.HnswGraphBuilder;
+import org.apache.lucene.util.hnsw.HnswGraphSearcher;
+import org.apache.lucene.util.hnsw.NeighborArray;
+import org.apache.lucene.util.hnsw.NeighborQueue;
+import org.apache.lucene.util.hnsw.OnHeapHnswGraph;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import iped.engine.data.IPEDSource;
+import iped.engine.task.index.IndexItem;
+
+/**
+ * Approximate nearest neighbour (HNSW) index of the face encodings of a case,
+ * so similar faces are found without comparing the reference face with all
+ * faces. Face vectors and the graph are saved in the case folder and memory
+ * mapped when loaded. Graph nodes point to item ids, so the index is still
+ * valid if lucene ids change, and it is rebuilt if items are added to the case.
+ */
+public class FaceIndex implements Closeable {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(FaceIndex.class);
+
+    public static final String FILE_NAME = "data/faceIndex.hnsw"; //$NON-NLS-1$
+
+    private static final int MAGIC = 0x49464149; // IFAI
+    private static final int VERSION = 1;
+    private static final int HEADER_INTS = 8;
+
+    private static final int MAX_CONN = 16;
+    private static final int BEAM_WIDTH = 100;
+
+    // max elements of each mapped buffer
+    private static final int CHUNK_ELEMENTS = 1 << 28;
+
+    private static final Map<File, FaceIndex> indexes = new HashMap<>();
+
+    private final File file;
+    private final int lastId, numDocs, dim, size;
+    private final FileChannel channel;
+    private final MappedArray vectors, ids, neighbors;
+    private final MappedGraph graph;
+
+    /**
+     * @return the face index of the case, loaded from the case folder or built if
+     *         it does not exist or is outdated. Null if the case has no faces.
+     */
+    public static FaceIndex get(IPEDSource source) throws IOException {
+        File moduleDir = source.getModuleDir().getAbsoluteFile();
+        synchronized (indexes) {
+            FaceIndex index = indexes.get(moduleDir);
+            if (index == null || !index.isUpToDate(source)) {
+                if (index != null) {
+                    index.close();
+                    indexes.remove(moduleDir);
+                }
+                index = load(source);
+                if (index != null) {
+                    indexes.put(moduleDir, index);
+                }
+            }
+            return index;
+        }
+    }
+
+    private static FaceIndex load(IPEDSource source) throws IOException {
+        File file = new File(source.getModuleDir(), FILE_NAME);
+        if (file.exists()) {
+            try {
+                FaceIndex index = new FaceIndex(file);
+                if (index.isUpToDate(source)) {
+                    return index;
+                }
+                index.close();
+            } catch (IOException e) {
+                LOGGER.warn("Error loading face index {}: {}", file.getAbsolutePath(), e.toString()); //$NON-NLS-1$
+            }
+        }
+        if (!file.getParentFile().canWrite() || (file.exists() && !file.canWrite())) {
+            // read only case
+            file = File.createTempFile("faceIndex", ".hnsw"); //$NON-NLS-1$ //$NON-NLS-2$
+            file.deleteOnExit();
+        }
+        if (!build(source, file)) {
+            return null;
+        }
+        return new FaceIndex(file);
+    }
+
+    /**
+     * Builds the face index of the case into the given file.
+     *
+     * @return false if the case has no faces.
+     */
+    public static boolean build(IPEDSource source, File file) throws IOException {
+        return build(source.getLeafReader(), source.getLastId(), file);
+    }
+
+    static boolean build(LeafReader reader, int lastId, File file) throws IOException {
+        SortedSetDocValues faces = reader.getSortedSetDocValues(SimilarFacesSearch.FACE_FEATURES);
+        if (faces == null) {
+            return false;
+        }
+        Bits liveDocs = reader.getLiveDocs();
+        int size = 0, dim = 0;
+        while (faces.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+            if (liveDocs != null && !liveDocs.get(faces.docID())) {
+                continue;
+            }
+            long ord;
+            while ((ord = faces.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+                if (dim == 0) {
+                    dim = faces.lookupOrd(ord).length / Float.BYTES;
+                }
+                size++;
+            }
+        }
+        if (size == 0) {
+            return false;
+        }
+
+        long start = System.currentTimeMillis();
+        LOGGER.info("Building face index with {} faces...", size); //$NON-NLS-1$
+
+        File tmp = new File(file.getAbsolutePath() + ".tmp"); //$NON-NLS-1$
+        Files.deleteIfExists(tmp.toPath());
+        long vectorsPos = HEADER_INTS * Integer.BYTES;
+        long idsPos = vectorsPos + (long) size * dim * Float.BYTES;
+        long graphPos = idsPos + (long) size * Integer.BYTES;
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            MappedArray vectors = new MappedArray(channel, MapMode.READ_WRITE, vectorsPos, (long) size * dim);
+            MappedArray ids = new MappedArray(channel, MapMode.READ_WRITE, idsPos, size);
+            faces = reader.getSortedSetDocValues(SimilarFacesSearch.FACE_FEATURES);
+            NumericDocValues idValues = reader.getNumericDocValues(IndexItem.ID);
+            int node = 0;
+            while (faces.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                int doc = faces.docID();
+                if ((liveDocs != null && !liveDocs.get(doc)) || !idValues.advanceExact(doc)) {
+                    continue;
+                }
+                int id = (int) idValues.longValue();
+                long ord;
+                while ((ord = faces.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+                    BytesRef bytes = faces.lookupOrd(ord);
+                    ByteBuffer bb = ByteBuffer.wrap(bytes.bytes, bytes.offset, bytes.length);
+                    for (int i = 0; i < dim; i++) {
+                        vectors.putFloat((long) node * dim + i, bb.getFloat());
+                    }
+                    ids.putInt(node++, id);
+                }
+            }
+            if (node != size) {
+                throw new IOException("Face encodings changed while building index"); //$NON-NLS-1$
+            }
+
+            VectorValues vectorValues = new VectorValues(vectors, dim, size);
+            HnswGraphBuilder builder = new HnswGraphBuilder(vectorValues, VectorSimilarityFunction.EUCLIDEAN, MAX_CONN,
+                    BEAM_WIDTH, HnswGraphBuilder.randSeed);
+            OnHeapHnswGraph graph = builder.build(vectorValues.randomAccess());
+
+            channel.position(graphPos);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            writeGraph(graph, out);
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_INTS * Integer.BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(lastId).putInt(reader.numDocs())
+                    .putInt(dim).putInt(size).putInt(0).putInt(0).flip();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        LOGGER.info("Face index built in {}ms", System.currentTimeMillis() - start); //$NON-NLS-1$
+        return true;
+    }
+
+    /**
+     * For each level: number of nodes, neighbours slot size, sorted nodes (except
+     * for level 0, which has all nodes) and, for each node, the number of
+     * neighbours followed by its neighbours padded to the slot size.
+     */
+    private static void writeGraph(OnHeapHnswGraph graph, DataOutputStream out) throws IOException {
+        out.writeInt(graph.numLevels());
+        out.writeInt(graph.entryNode());
+        for (int level = 0; level < graph.numLevels(); level++) {
+            int[] nodes = getNodes(graph, level);
+            int slot = 0;
+            for (int node : nodes) {
+                slot = Math.max(slot, graph.getNeighbors(level, node).size());
+            }
+            out.writeInt(nodes.length);
+            out.writeInt(slot + 1);
+            if (level > 0) {
+                for (int node : nodes) {
+                    out.writeInt(node);
+                }
+            }
+            for (int node : nodes) {
+                NeighborArray neighbors = graph.getNeighbors(level, node);
+                out.writeInt(neighbors.size());
+                int[] ids = neighbors.node();
+                for (int i = 0; i < slot; i++) {
+                    out.writeInt(i < neighbors.size() ? ids[i] : -1);
+                }
+            }
+        }
+    }
+
+    private static int[] getNodes(HnswGraph graph, int level) throws IOException {
+        HnswGraph.NodesIterator it = graph.getNodesOnLevel(level);
+        int[] nodes = new int[it.size()];
+        for (int i = 0; it.hasNext(); i++) {
+            nodes[i] = it.nextInt();
+        }
+        Arrays.sort(nodes);
+        return nodes;
+    }
+
+    FaceIndex(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_INTS * Integer.BYTES);
+            readFully(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Invalid face index"); //$NON-NLS-1$
+            }
+            lastId = header.getInt();
+            numDocs = header.getInt();
+            dim = header.getInt();
+            size = header.getInt();
+
+            long pos = HEADER_INTS * Integer.BYTES;
+            vectors = new MappedArray(channel, MapMode.READ_ONLY, pos, (long) size * dim);
+            pos += (long) size * dim * Float.BYTES;
+            ids = new MappedArray(channel, MapMode.READ_ONLY, pos, size);
+            pos += (long) size * Integer.BYTES;
+
+            ByteBuffer buf = ByteBuffer.allocate(2 * Integer.BYTES);
+            readFully(buf, pos);
+            buf.flip();
+            int numLevels = buf.getInt();
+            int entryNode = buf.getInt();
+            pos += buf.capacity();
+            int[][] levelNodes = new int[numLevels][];
+            int[] slots = new int[numLevels];
+            long[] levelPos = new long[numLevels];
+            long graphStart = pos;
+            for (int level = 0; level < numLevels; level++) {
+                buf.clear();
+                readFully(buf, pos);
+                buf.flip();
+                int numNodes = buf.getInt();
+                slots[level] = buf.getInt();
+                pos += buf.capacity();
+                if (level > 0) {
+                    ByteBuffer nodes = ByteBuffer.allocate(numNodes * Integer.BYTES);
+                    readFully(nodes, pos);
+                    nodes.flip();
+                    levelNodes[level] = new int[numNodes];
+                    nodes.asIntBuffer().get(levelNodes[level]);
+                    pos += nodes.capacity();
+                }
+                levelPos[level] = (pos - graphStart) / Integer.BYTES;
+                pos += (long) numNodes * slots[level] * Integer.BYTES;
+            }
+            neighbors = new MappedArray(channel, MapMode.READ_ONLY, graphStart, (pos - graphStart) / Integer.BYTES);
+            graph = new MappedGraph(numLevels, entryNode, levelNodes, slots, levelPos);
+
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, pos + buf.position());
+            if (read == -1) {
+                throw new IOException("Truncated face index " + file.getAbsolutePath()); //$NON-NLS-1$
+            }
+        }
+    }
+
+    private boolean isUpToDate(IPEDSource source) {
+        return lastId == source.getLastId() && numDocs == source.getLeafReader().numDocs();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Finds faces whose squared euclidean distance to the given one is not
+     * greater than maxSquaredDist. At least numCandidates nearest faces are
+     * visited, more are visited while all of them are near enough.
+     *
+     * @return map from item ids to the squared distance of their nearest face.
+     */
+    public Map<Integer, Float> search(float[] face, float maxSquaredDist, int numCandidates) throws IOException {
+        Map<Integer, Float> result = new HashMap<>();
+        int k = Math.min(numCandidates, size);
+        while (true) {
+            result.clear();
+            NeighborQueue queue = HnswGraphSearcher.search(face, k, new VectorValues(vectors, dim, size).randomAccess(),
+                    VectorSimilarityFunction.EUCLIDEAN, graph.clone(), null, Integer.MAX_VALUE);
+            int found = 0;
+            while (queue.size() > 0) {
+                float dist = queue.topScore();
+                int node = queue.pop();
+                if (dist <= maxSquaredDist) {
+                    found++;
+                    result.merge(ids.getInt(node), dist, Math::min);
+                }
+            }
+            if (found < k || k == size) {
+                return result;
+            }
+            k = (int) Math.min((long) k * 4, size);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Ints or floats mapped from a file region, split into buffers of up to
+     * CHUNK_ELEMENTS elements.
+     */
+    private static class MappedArray {
+
+        private final IntBuffer[] ints;
+        private final FloatBuffer[] floats;
+
+        private MappedArray(FileChannel channel, MapMode mode, long pos, long length) throws IOException {
+            int chunks = (int) ((length + CHUNK_ELEMENTS - 1) / CHUNK_ELEMENTS);
+            ints = new IntBuffer[chunks];
+            floats = new FloatBuffer[chunks];
+            for (int i = 0; i < chunks; i++) {
+                long len = Math.min(CHUNK_ELEMENTS, length - (long) i * CHUNK_ELEMENTS);
+                ByteBuffer bb = channel.map(mode, pos + (long) i * CHUNK_ELEMENTS * Integer.BYTES, len * Integer.BYTES);
+                ints[i] = bb.asIntBuffer();
+                floats[i] = bb.asFloatBuffer();
+            }
+        }
+
+        private int getInt(long idx) {
+            return ints[(int) (idx / CHUNK_ELEMENTS)].get((int) (idx % CHUNK_ELEMENTS));
+        }
+
+        private void putInt(long idx, int value) {
+            ints[(int) (idx / CHUNK_ELEMENTS)].put((int) (idx % CHUNK_ELEMENTS), value);
+        }
+
+        private void putFloat(long idx, float value) {
+            floats[(int) (idx / CHUNK_ELEMENTS)].put((int) (idx % CHUNK_ELEMENTS), value);
+        }
+
+        private void getFloats(long idx, float[] dst) {
+            FloatBuffer buf = floats[(int) (idx / CHUNK_ELEMENTS)];
+            int pos = (int) (idx % CHUNK_ELEMENTS);
+            for (int i = 0; i < dst.length; i++) {
+                dst[i] = buf.get(pos + i);
+            }
+        }
+    }
+
+    /**
+     * Random access to mapped vectors. Vectors do not cross chunk boundaries
+     * because CHUNK_ELEMENTS is a multiple of usual dimensions (powers of 2).
+     */
+    private static class VectorValues implements RandomAccessVectorValues, RandomAccessVectorValuesProducer {
+
+        private final MappedArray vectors;
+        private final int dim, size;
+        private final float[] value;
+
+        private VectorValues(MappedArray vectors, int dim, int size) {
+            this.vectors = vectors;
+            this.dim = dim;
+            this.size = size;
+            this.value = new float[dim];
+        }
+
+        @Override
+        public RandomAccessVectorValues randomAccess() {
+            return new VectorValues(vectors, dim, size);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int dimension() {
+            return dim;
+        }
+
+        @Override
+        public float[] vectorValue(int targetOrd) {
+            long idx = (long) targetOrd * dim;
+            if (idx / CHUNK_ELEMENTS == (idx + dim - 1) / CHUNK_ELEMENTS) {
+                vectors.getFloats(idx, value);
+            } else {
+                for (int i = 0; i < dim; i++) {
+                    value[i] = vectors.floats[(int) ((idx + i) / CHUNK_ELEMENTS)].get((int) ((idx + i) % CHUNK_ELEMENTS));
+                }
+            }
+            return value;
+        }
+
+        @Override
+        public BytesRef binaryValue(int targetOrd) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * HNSW graph read from the mapped file, cloned for each search because it
+     * keeps the current node.
+     */
+    private class MappedGraph extends HnswGraph implements Cloneable {
+
+        private final int numLevels, entryNode;
+        private final int[][] levelNodes;
+        private final int[] slots;
+        private final long[] levelPos;
+
+        private long pos;
+        private int remaining;
+
+        private MappedGraph(int numLevels, int entryNode, int[][] levelNodes, int[] slots, long[] levelPos) {
+            this.numLevels = numLevels;
+            this.entryNode = entryNode;
+            this.levelNodes = levelNodes;
+            this.slots = slots;
+            this.levelPos = levelPos;
+        }
+
+        @Override
+        public void seek(int level, int target) {
+            int idx = level == 0 ? target : Arrays.binarySearch(levelNodes[level], target);
+            pos = levelPos[level] + (long) idx * slots[level];
+            remaining = neighbors.getInt(pos++);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int nextNeighbor() {
+            if (remaining == 0) {
+                return DocIdSetIterator.NO_MORE_DOCS;
+            }
+            remaining--;
+            return neighbors.getInt(pos++);
+        }
+
+        @Override
+        public int numLevels() {
+            return numLevels;
+        }
+
+        @Override
+        public int entryNode() {
+            return entryNode;
+        }
+
+        @Override
+        public NodesIterator getNodesOnLevel(int level) {
+            if (level == 0) {
+                return new NodesIterator(size);
+            }
+            return new NodesIterator(levelNodes[level], levelNodes[level].length);
+        }
+
+        @Override
+        protected MappedGraph clone() {
+            return new MappedGraph(numLevels, entryNode, levelNodes, slots, levelPos);
+        }
+    }
+
+}
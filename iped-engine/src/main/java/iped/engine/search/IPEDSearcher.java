@@ -21,12 +21,17 @@
 import java.io.IOException;
 import java.io.InterruptedIOException;
 
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.CollectionTerminatedException;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
@@ -140,10 +145,49 @@ LuceneSearchResult luceneSearch() throws IOException {
         return searchAll();
     }
 
-    private LuceneSearchResult searchAll() throws IOException {
+    /**
+     * Passes hits to the given collector, in index order, instead of collecting
+     * all of them into memory. Useful to stream or paginate large results.
+     */
+    public void search(Collector collector) throws IOException {
+        ipedCase.getSearcher().search(getFinalQuery(), collector);
+    }
 
-        // System.out.println("searching");
+    /**
+     * Checks if the query has at least one hit, stopping the search at the
+     * first one instead of collecting all of them.
+     */
+    public boolean hasHits() throws IOException {
+        FirstHitCollector firstHitCollector = new FirstHitCollector();
+        search(firstHitCollector);
+        return firstHitCollector.found;
+    }
+
+    private static class FirstHitCollector extends SimpleCollector {
+
+        private boolean found;
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) throws IOException {
+            if (found) {
+                // skip remaining segments
+                throw new CollectionTerminatedException();
+            }
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            found = true;
+            throw new CollectionTerminatedException();
+        }
 
+        @Override
+        public ScoreMode scoreMode() {
+            return ScoreMode.COMPLETE_NO_SCORES;
+        }
+    }
+
+    private Query getFinalQuery() {
         Query query = this.query;
         if (query instanceof MatchAllDocsQuery) {
             query = QueryBuilder.getMatchAllItemsQuery();
@@ -153,6 +197,14 @@ private LuceneSearchResult searchAll() throws IOException {
         if (!treeQuery) {
             query = getNonTreeQuery(query);
         }
+        return query;
+    }
+
+    private LuceneSearchResult searchAll() throws IOException {
+
+        // System.out.println("searching");
+
+        Query query = getFinalQuery();
 
         collector = new NoScoringCollector(ipedCase.getReader().maxDoc());
         try {
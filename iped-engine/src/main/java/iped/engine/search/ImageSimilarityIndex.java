@@ -0,0 +1,233 @@
+package iped.engine.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.stream.IntStream;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import iped.engine.data.IPEDSource;
+import iped.engine.task.similarity.ImageSimilarity;
+import iped.engine.task.similarity.ImageSimilarityTask;
+
+/**
+ * Image similarity features of an opened case packed off-heap, ordered by
+ * luceneId, so similar image searches do not decode doc values nor allocate
+ * arrays for each candidate. Each record also keeps the distances from the
+ * image to a few pivot images, used to discard most far images without
+ * computing their distances to the reference image (triangle inequality).
+ */
+public class ImageSimilarityIndex {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(ImageSimilarityIndex.class);
+
+    private static final int NUM_PIVOTS = 8;
+
+    private static final int PIVOTS_SAMPLE = 1000;
+
+    private static final int DIM = ImageSimilarity.numFeatures;
+
+    private static final int RECORD_SIZE = NUM_PIVOTS * Short.BYTES + DIM;
+
+    private static final int RECORDS_PER_CHUNK = (1 << 30) / RECORD_SIZE;
+
+    private static final Map<IPEDSource, ImageSimilarityIndex> indexes = new WeakHashMap<>();
+
+    private final int maxDoc;
+    private final int[] luceneIds;
+    private final ByteBuffer[] chunks;
+    private final byte[][] pivots = new byte[NUM_PIVOTS][];
+
+    /**
+     * @return the index of the opened case, built on first use.
+     */
+    public static ImageSimilarityIndex get(IPEDSource ipedCase) throws IOException {
+        synchronized (indexes) {
+            ImageSimilarityIndex index = indexes.get(ipedCase);
+            if (index == null || index.maxDoc != ipedCase.getLeafReader().maxDoc()) {
+                long start = System.currentTimeMillis();
+                index = new ImageSimilarityIndex(ipedCase.getLeafReader());
+                indexes.put(ipedCase, index);
+                LOGGER.info("Image similarity index with {} images built in {}ms", index.luceneIds.length, //$NON-NLS-1$
+                        System.currentTimeMillis() - start);
+            }
+            return index;
+        }
+    }
+
+    ImageSimilarityIndex(LeafReader reader) throws IOException {
+        maxDoc = reader.maxDoc();
+        int[] ids = new int[Math.min(maxDoc, 1 << 16)];
+        int size = 0;
+        BinaryDocValues values = reader.getBinaryDocValues(ImageSimilarityTask.IMAGE_FEATURES);
+        while (values != null && values.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+            if (values.binaryValue().length == DIM) {
+                if (size == ids.length) {
+                    ids = Arrays.copyOf(ids, Math.min(maxDoc, size << 1));
+                }
+                ids[size++] = values.docID();
+            }
+        }
+        luceneIds = Arrays.copyOf(ids, size);
+
+        int numChunks = (size + RECORDS_PER_CHUNK - 1) / RECORDS_PER_CHUNK;
+        chunks = new ByteBuffer[numChunks];
+        File file = File.createTempFile("imageSimilarity", ".idx"); //$NON-NLS-1$ //$NON-NLS-2$
+        file.deleteOnExit();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            for (int i = 0; i < numChunks; i++) {
+                int records = Math.min(RECORDS_PER_CHUNK, size - i * RECORDS_PER_CHUNK);
+                chunks[i] = channel.map(MapMode.READ_WRITE, (long) i * RECORDS_PER_CHUNK * RECORD_SIZE,
+                        (long) records * RECORD_SIZE);
+            }
+        } finally {
+            // mapped buffers are still valid, just free the name
+            file.delete();
+        }
+
+        values = reader.getBinaryDocValues(ImageSimilarityTask.IMAGE_FEATURES);
+        for (int slot = 0; slot < size; slot++) {
+            values.advance(luceneIds[slot]);
+            BytesRef bytes = values.binaryValue();
+            ByteBuffer chunk = chunks[slot / RECORDS_PER_CHUNK].duplicate();
+            chunk.position((slot % RECORDS_PER_CHUNK) * RECORD_SIZE + NUM_PIVOTS * Short.BYTES);
+            chunk.put(bytes.bytes, bytes.offset, bytes.length);
+        }
+
+        selectPivots();
+        computePivotDistances();
+    }
+
+    /**
+     * Chooses pivots far from each other (farthest point heuristic) from a sample
+     * of images.
+     */
+    private void selectPivots() {
+        int size = luceneIds.length;
+        if (size == 0) {
+            return;
+        }
+        int sampleSize = Math.min(size, PIVOTS_SAMPLE);
+        byte[][] sample = new byte[sampleSize][];
+        for (int i = 0; i < sampleSize; i++) {
+            sample[i] = new byte[DIM];
+            readFeatures((int) ((long) i * size / sampleSize), sample[i]);
+        }
+        long[] minDist = new long[sampleSize];
+        Arrays.fill(minDist, Long.MAX_VALUE);
+        int next = 0;
+        for (int p = 0; p < NUM_PIVOTS; p++) {
+            pivots[p] = sample[next];
+            int farthest = 0;
+            for (int i = 0; i < sampleSize; i++) {
+                minDist[i] = Math.min(minDist[i], ImageSimilarity.distance(pivots[p], sample[i]));
+                if (minDist[i] > minDist[farthest]) {
+                    farthest = i;
+                }
+            }
+            next = farthest;
+        }
+    }
+
+    private void computePivotDistances() {
+        int size = luceneIds.length;
+        int numTasks = Math.min(size, Runtime.getRuntime().availableProcessors() * 4);
+        IntStream.range(0, numTasks).parallel().forEach(task -> {
+            byte[] features = new byte[DIM];
+            for (int slot = task; slot < size; slot += numTasks) {
+                readFeatures(slot, features);
+                ByteBuffer chunk = chunks[slot / RECORDS_PER_CHUNK];
+                int pos = (slot % RECORDS_PER_CHUNK) * RECORD_SIZE;
+                for (int p = 0; p < NUM_PIVOTS; p++) {
+                    int dist = (int) Math.round(Math.sqrt(ImageSimilarity.distance(pivots[p], features)));
+                    chunk.putShort(pos + p * Short.BYTES, (short) dist);
+                }
+            }
+        });
+    }
+
+    private void readFeatures(int slot, byte[] features) {
+        ByteBuffer chunk = chunks[slot / RECORDS_PER_CHUNK].duplicate();
+        chunk.position((slot % RECORDS_PER_CHUNK) * RECORD_SIZE + NUM_PIVOTS * Short.BYTES);
+        chunk.get(features);
+    }
+
+    public int size() {
+        return luceneIds.length;
+    }
+
+    /**
+     * @return the features of the image into the given array, or null if the
+     *         image has no features.
+     */
+    public byte[] getFeatures(int luceneId, byte[] features) {
+        int slot = Arrays.binarySearch(luceneIds, luceneId);
+        if (slot < 0) {
+            return null;
+        }
+        readFeatures(slot, features);
+        return features;
+    }
+
+    /**
+     * Computes squared distances to a reference image. Not thread safe, each
+     * thread must use its own instance.
+     */
+    public class Scorer {
+
+        private final byte[] ref;
+        private final int cut;
+        private final double[] refPivotDist = new double[NUM_PIVOTS];
+        private final byte[] features = new byte[DIM];
+
+        /**
+         * @param cut
+         *            distances not lower than this are not computed exactly.
+         */
+        public Scorer(byte[] ref, int cut) {
+            this.ref = ref;
+            this.cut = cut;
+            for (int p = 0; p < NUM_PIVOTS && pivots[p] != null; p++) {
+                refPivotDist[p] = Math.sqrt(ImageSimilarity.distance(ref, pivots[p]));
+            }
+        }
+
+        /**
+         * @return the squared distance of the image to the reference image or -1 if
+         *         the image has no features. Returns some value not lower than cut
+         *         if the distance is not lower than cut.
+         */
+        public int distance(int luceneId) {
+            int slot = Arrays.binarySearch(luceneIds, luceneId);
+            if (slot < 0) {
+                return -1;
+            }
+            ByteBuffer chunk = chunks[slot / RECORDS_PER_CHUNK];
+            int pos = (slot % RECORDS_PER_CHUNK) * RECORD_SIZE;
+            double lowerBound = 0;
+            for (int p = 0; p < NUM_PIVOTS; p++) {
+                // stored distances were rounded
+                lowerBound = Math.max(lowerBound, Math.abs(refPivotDist[p] - chunk.getShort(pos + p * Short.BYTES)) - 0.5);
+            }
+            if (lowerBound * lowerBound >= cut) {
+                return cut;
+            }
+            readFeatures(slot, features);
+            return ImageSimilarity.distance(ref, features, cut);
+        }
+    }
+
+}
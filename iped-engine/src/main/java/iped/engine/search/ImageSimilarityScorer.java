@@ -7,17 +7,14 @@
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.util.BytesRef;
 
 import iped.data.IItem;
-import iped.data.IItemId;
 import iped.engine.data.IPEDSource;
-import iped.engine.lucene.DocValuesUtil;
 import iped.engine.task.similarity.ImageSimilarity;
 import iped.engine.task.similarity.ImageSimilarityTask;
 import iped.properties.BasicProps;
@@ -80,70 +77,48 @@ public void score() throws IOException {
         if (len == 0 || refSimilarityFeatures == null) {
             return;
         }
+        ImageSimilarityIndex index = ImageSimilarityIndex.get(ipedCase);
         LeafReader leafReader = ipedCase.getLeafReader();
-        int numThreads = Runtime.getRuntime().availableProcessors();
-        Thread[] threads = new Thread[numThreads];
         int evalCut = (int) (100 * refSimilarityFeatures.length / distToScoreMult);
-        int itemsPerThread = (len + numThreads - 1) / numThreads;
-        for (int k = 0; k < numThreads; k++) {
-            int threadIdx = k;
-            (threads[k] = new Thread() {
-                public void run() {
-                    BinaryDocValues similarityFeaturesValues = null;
+        String refHash = refItem.getHash();
+        int numTasks = Math.min(len, Runtime.getRuntime().availableProcessors() * 4);
+        int itemsPerTask = (len + numTasks - 1) / numTasks;
+        IntStream.range(0, numTasks).parallel().forEach(task -> {
+            ImageSimilarityIndex.Scorer scorer = index.new Scorer(refSimilarityFeatures, evalCut);
+            SortedDocValues hashValues = null;
+            int refHashOrd = -1;
+            int i0 = Math.min(len, itemsPerTask * task);
+            int i1 = Math.min(len, i0 + itemsPerTask);
+            for (int i = i0; i < i1; i++) {
+                int luceneId = ipedCase.getLuceneId(result.getItem(i));
+                int distance = scorer.distance(luceneId);
+                if (distance < 0) {
+                    result.setScore(i, 0);
+                    continue;
+                }
+                float score = Math.max(0, 100 - distance * distToScoreMult / refSimilarityFeatures.length);
+                if (distance == 0 && refHash != null) {
                     try {
-                        similarityFeaturesValues = leafReader
-                                .getBinaryDocValues(ImageSimilarityTask.IMAGE_FEATURES);
+                        if (hashValues == null || hashValues.docID() >= luceneId) {
+                            hashValues = leafReader.getSortedDocValues(BasicProps.HASH);
+                            refHashOrd = hashValues != null ? hashValues.lookupTerm(new BytesRef(refHash)) : -1;
+                        }
+                        if (refHashOrd >= 0 && hashValues.advanceExact(luceneId)
+                                && hashValues.ordValue() == refHashOrd) {
+                            score = identicalScore;
+                        }
                     } catch (IOException e) {
                         e.printStackTrace();
-                        return;
                     }
-                    int i0 = Math.min(len, itemsPerThread * threadIdx);
-                    int i1 = Math.min(len, i0 + itemsPerThread);
-                    for (int i = i0; i < i1; i++) {
-                        IItemId itemId = result.getItem(i);
-                        int luceneId = ipedCase.getLuceneId(itemId);
-                        BytesRef bytesRef = DocValuesUtil.getBytesRef(similarityFeaturesValues, luceneId);
-                        if (bytesRef == null || bytesRef.length == 0) {
-                            result.setScore(i, 0);
-                        } else {
-                            byte[] currSimilarityFeatures = bytesRef.bytes;
-                            int distance = ImageSimilarity.distance(refSimilarityFeatures, currSimilarityFeatures,
-                                    evalCut);
-                            float score = Math.max(0, 100 - distance * distToScoreMult / refSimilarityFeatures.length);
-                            if (distance == 0) {
-                                String refHash = refItem.getHash();
-                                if (refHash != null) {
-                                    try {
-                                        Document doc = leafReader.document(luceneId);
-                                        String currHash = doc.get(BasicProps.HASH);
-                                        if (refHash.equals(currHash)) {
-                                            score = identicalScore;
-                                        }
-                                    } catch (IOException e) {
-                                        e.printStackTrace();
-                                        break;
-                                    }
-                                }
-                            }
-                            result.setScore(i, score);
-                        }
-                    }
-                }
-            }).start();
-        }
-        for (Thread thread : threads) {
-            try {
-                if (thread != null) {
-                    thread.join();
                 }
-            } catch (InterruptedException e) {
+                result.setScore(i, score);
             }
-        }
+        });
 
-        organizeTopResults();
+        organizeTopResults(index);
     }
 
-    private void organizeTopResults() {
+    private void organizeTopResults(ImageSimilarityIndex index) {
         for (int i = 0; i < len; i++) {
             if (result.getScore(i) > cut) {
                 topResults.add(i);
@@ -151,25 +126,7 @@ private void organizeTopResults() {
             }
         }
         trim(0);
-        
-        BinaryDocValues similarityFeaturesValues = null;
-        try {
-            similarityFeaturesValues = ipedCase.getLeafReader()
-                    .getBinaryDocValues(ImageSimilarityTask.IMAGE_FEATURES);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return;
-        }
-        // put features in a map, BinaryDocValues is not random accessible anymore
-        HashMap<Integer, byte[]> idToFeaturesMap = new HashMap<>();
-        for (Integer idx : topResults.stream().sorted().collect(Collectors.toList())) {
-            IItemId itemId = result.getItem(idx);
-            int luceneId = ipedCase.getLuceneId(itemId);
-            BytesRef bytesRef = DocValuesUtil.getBytesRef(similarityFeaturesValues, luceneId);
-            byte[] currFeatures = bytesRef.bytes.clone();
-            idToFeaturesMap.put(idx, currFeatures);
-        }
-        
+
         int start = topResults.size();
         for (int i = 1; i < topResults.size(); i++) {
             int idx = topResults.get(i);
@@ -185,7 +142,8 @@ private void organizeTopResults() {
 
         for (int i = start - 1; i < topResults.size(); i++) {
             int idx = topResults.get(i);
-            byte[] currFeatures = idToFeaturesMap.get(idx);
+            int luceneId = ipedCase.getLuceneId(result.getItem(idx));
+            byte[] currFeatures = index.getFeatures(luceneId, new byte[ImageSimilarity.numFeatures]);
             topFeatures.put(idx, currFeatures);
             refDist.put(idx, ImageSimilarity.distance(refSimilarityFeatures, currFeatures));
         }
@@ -32,23 +32,23 @@ public MultiSearchResult(IIPEDSource ipedSource, IItemId[] ids, float[] scores)
         this.scores = scores;
     }
 
-    public final int getLength() {
+    public int getLength() {
         return ids.length;
     }
 
-    public final IItemId getItem(int i) {
+    public IItemId getItem(int i) {
         return ids[i];
     }
 
-    public final float getScore(int i) {
+    public float getScore(int i) {
         return scores[i];
     }
 
-    public final void setScore(int i, float score) {
+    public void setScore(int i, float score) {
         scores[i] = score;
     }
 
-    public final void setItem(int i, IItemId itemId) {
+    public void setItem(int i, IItemId itemId) {
         ids[i] = itemId;
     }
 
@@ -187,9 +187,9 @@ public IIPEDSource getIPEDSource() {
     public void setIPEDSource(IIPEDSource ipedSource) {
         if (this.ipedSource == null || this.docids == null) {
             this.ipedSource = ipedSource;
-            this.docids = new BitSet(ids.length);
-            for (int i = 0; i < ids.length; i++) {
-                docids.set(ipedSource.getLuceneId(ids[i]));
+            this.docids = new BitSet(getLength());
+            for (int i = 0; i < getLength(); i++) {
+                docids.set(ipedSource.getLuceneId(getItem(i)));
             }
         }
     }
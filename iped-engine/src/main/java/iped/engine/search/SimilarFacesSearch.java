@@ -5,26 +5,41 @@
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.SortedSetDocValues;
 import org.apache.lucene.util.BytesRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import iped.data.IItem;
 import iped.data.IItemId;
 import iped.engine.data.IPEDMultiSource;
 import iped.engine.data.IPEDSource;
+import iped.engine.data.ItemId;
 
 public class SimilarFacesSearch {
 
+    private static Logger LOGGER = LoggerFactory.getLogger(SimilarFacesSearch.class);
+
     public static final String FACE_FEATURES = "face_encodings";
     public static final String FACE_LOCATIONS = "face_locations";
 
     private static final float DEFAULT_MIN_DISTANCE = 0.5f;
 
+    private static final int DEFAULT_NUM_CANDIDATES = 256;
+
     private static float minDistSquared = DEFAULT_MIN_DISTANCE * DEFAULT_MIN_DISTANCE;
 
+    private static int numCandidates = DEFAULT_NUM_CANDIDATES;
+
     private IPEDMultiSource ipedCase;
     private float[] refSimilarityFeatures;
 
@@ -54,11 +69,76 @@ public static final void setMinScore(int minScore) {
         minDistSquared = dist * dist;
     }
 
+    public static int getNumCandidates() {
+        return numCandidates;
+    }
+
+    /**
+     * Sets how many nearest faces are visited at least in the face index. Higher
+     * values increase recall of similar faces, lower values reduce latency.
+     */
+    public static void setNumCandidates(int numCandidates) {
+        SimilarFacesSearch.numCandidates = Math.max(1, numCandidates);
+    }
+
     private static final float squaredDistToScore(float squaredDist) {
         return Math.max(0, (1 - (float) Math.sqrt(squaredDist)) * 100);
     }
 
     private void score(MultiSearchResult result) throws IOException {
+        Map<IItemId, Float> matches;
+        try {
+            matches = searchFaceIndexes();
+        } catch (IOException e) {
+            LOGGER.warn("Error searching face index, comparing all faces", e); //$NON-NLS-1$
+            bruteForceScore(result);
+            return;
+        }
+        int len = result.getLength();
+        for (int i = 0; i < len; i++) {
+            Float squaredDist = matches.get(result.getItem(i));
+            result.setScore(i, squaredDist == null ? 0 : squaredDistToScore(squaredDist));
+        }
+    }
+
+    private Map<IItemId, Float> searchFaceIndexes() throws IOException {
+        List<IPEDSource> sources = ipedCase.getAtomicSources();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(sources.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<Map<Integer, Float>>> futures = new ArrayList<>();
+            for (IPEDSource source : sources) {
+                futures.add(executor.submit(() -> {
+                    FaceIndex index = FaceIndex.get(source);
+                    if (index == null) {
+                        return Collections.emptyMap();
+                    }
+                    return index.search(refSimilarityFeatures, minDistSquared, numCandidates);
+                }));
+            }
+            Map<IItemId, Float> matches = new HashMap<>();
+            for (int i = 0; i < sources.size(); i++) {
+                int sourceId = sources.get(i).getSourceId();
+                for (Map.Entry<Integer, Float> entry : futures.get(i).get().entrySet()) {
+                    matches.put(new ItemId(sourceId, entry.getKey()), entry.getValue());
+                }
+            }
+            return matches;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void bruteForceScore(MultiSearchResult result) throws IOException {
 
         LeafReader leafReader = ipedCase.getLeafReader();
         int numThreads = Runtime.getRuntime().availableProcessors();
@@ -90,7 +170,7 @@ public void run() {
                             boolean hasVal = similarityFeaturesValues.advanceExact(luceneId);
                             while (hasVal && (ordinal = similarityFeaturesValues.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
                                 BytesRef bytesRef = similarityFeaturesValues.lookupOrd(ordinal);
-                                float[] currentFeatures = convToFloatVec(bytesRef.bytes);
+                                float[] currentFeatures = convToFloatVec(bytesRef);
                                 float squaredDist = distance(refSimilarityFeatures, currentFeatures, minDistSquared);
                                 if (squaredDist <= minDistSquared) {
                                     score = squaredDistToScore(squaredDist);
@@ -125,8 +205,12 @@ public void run() {
     }
 
     private static float[] convToFloatVec(byte[] bytes) {
+        return convToFloatVec(new BytesRef(bytes));
+    }
+
+    private static float[] convToFloatVec(BytesRef bytes) {
         float[] result = new float[bytes.length / 4];
-        ByteBuffer bb = ByteBuffer.wrap(bytes);
+        ByteBuffer bb = ByteBuffer.wrap(bytes.bytes, bytes.offset, bytes.length);
         for (int i = 0; i < result.length; i++) {
             result[i] = bb.getFloat();
         }
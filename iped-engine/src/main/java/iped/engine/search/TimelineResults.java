@@ -3,15 +3,21 @@
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
 
 import iped.data.IItemId;
 import iped.engine.data.IPEDMultiSource;
 import iped.engine.data.ItemId;
-import iped.engine.lucene.DocValuesUtil;
 import iped.engine.task.index.IndexItem;
 import iped.properties.BasicProps;
 import iped.properties.ExtraProperties;
@@ -24,109 +30,322 @@ public class TimelineResults {
      */
     private static final short MAX_TIMESTAMPS_PER_PROPERTY = 1024;
 
+    /**
+     * Minimum number of items to be expanded by each thread.
+     */
+    private static final int MIN_ITEMS_PER_THREAD = 50000;
+
     private SortedSetDocValues timeStampValues = null;
     private SortedSetDocValues timeEventGroupValues = null;
-    private BinaryDocValues eventsInDocOrdsValues = null;
 
     private IPEDMultiSource ipedCase;
 
     private void loadDocValues() throws IOException {
         timeStampValues = ipedCase.getAtomicReader().getSortedSetDocValues(BasicProps.TIMESTAMP);
         timeEventGroupValues = ipedCase.getAtomicReader().getSortedSetDocValues(ExtraProperties.TIME_EVENT_GROUPS);
-        eventsInDocOrdsValues = ipedCase.getAtomicReader().getBinaryDocValues(ExtraProperties.TIME_EVENT_ORDS);
     }
 
     public TimelineResults(IPEDMultiSource ipedCase) {
         this.ipedCase = ipedCase;
     }
 
+    /**
+     * Expands each item into one item per timestamp event. Ranges of items are
+     * expanded in parallel, each one with its own DocValues iterators, and the
+     * results are concatenated in the original order.
+     */
     public MultiSearchResult expandTimestamps(MultiSearchResult items) throws IOException {
 
         loadDocValues();
 
-        ArrayList<IItemId> ids = new ArrayList<>();
-        ArrayList<Float> scores = new ArrayList<>();
-        int[] eventOrd = new int[Short.MAX_VALUE];
-        int[] blankEventOrd = new int[eventOrd.length];
-        Arrays.fill(blankEventOrd, -1);
-        int[][] eventsInDocOrds = new int[Short.MAX_VALUE][MAX_TIMESTAMPS_PER_PROPERTY];
-        int idx = 0;
-        for (IItemId id : items.getIterator()) {
-            int luceneId = ipedCase.getLuceneId(id);
-            String eventsInDocStr = DocValuesUtil.getVal(eventsInDocOrdsValues, luceneId);
-            if (eventsInDocStr.isEmpty()) {
-                continue;
+        int numItems = items.getLength();
+        int numThreads = Math.max(1,
+                Math.min(Runtime.getRuntime().availableProcessors(), numItems / MIN_ITEMS_PER_THREAD));
+        int rangeSize = (numItems + numThreads - 1) / numThreads;
+
+        Expansion[] expansions = new Expansion[numThreads];
+        if (numThreads == 1) {
+            expansions[0] = new Expansion(items, 0, numItems);
+            expansions[0].call();
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+            try {
+                ArrayList<Future<Expansion>> futures = new ArrayList<>();
+                for (int i = 0; i < numThreads; i++) {
+                    expansions[i] = new Expansion(items, i * rangeSize, Math.min(numItems, (i + 1) * rangeSize));
+                    futures.add(executor.submit(expansions[i]));
+                }
+                for (Future<Expansion> f : futures) {
+                    f.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            } finally {
+                executor.shutdownNow();
             }
-            loadOrdsFromString(eventsInDocStr, eventsInDocOrds);
-            boolean tsvAdv = timeStampValues.advanceExact(luceneId);
-            boolean tegvAdv = timeEventGroupValues.advanceExact(luceneId);
-
-            long ord;
-            short pos = 0;
-            System.arraycopy(blankEventOrd, 0, eventOrd, 0, eventOrd.length);
-            while (tegvAdv && (ord = timeEventGroupValues.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
-                for (int k : eventsInDocOrds[pos++]) {
-                    if (k == -1) {
+        }
+
+        int size = 0;
+        for (Expansion e : expansions) {
+            size += e.size;
+        }
+        TimelineSearchResult result = new TimelineSearchResult(this, size);
+        int pos = 0;
+        for (Expansion e : expansions) {
+            System.arraycopy(e.sourceIds, 0, result.sourceIds, pos, e.size);
+            System.arraycopy(e.ids, 0, result.ids, pos, e.size);
+            System.arraycopy(e.timeStampOrds, 0, result.timeStampOrds, pos, e.size);
+            System.arraycopy(e.timeEventOrds, 0, result.timeEventOrds, pos, e.size);
+            System.arraycopy(e.scores, 0, result.scores, pos, e.size);
+            pos += e.size;
+        }
+        return result;
+
+    }
+
+    /**
+     * Expands items[from, to) into primitive columns.
+     */
+    private class Expansion implements Callable<Expansion> {
+
+        private final MultiSearchResult items;
+        private final int from, to;
+
+        private SortedSetDocValues timeStampValues;
+        private SortedSetDocValues timeEventGroupValues;
+        private BinaryDocValues eventsInDocOrdsValues;
+        private int lastLuceneId = Integer.MAX_VALUE;
+
+        private int size = 0;
+        private int[] sourceIds, ids, timeStampOrds, timeEventOrds;
+        private float[] scores;
+
+        // timestamp indexes of each event group parsed from TIME_EVENT_ORDS
+        private int[] eventIdxs = new int[64];
+        private int[] groupEnds = new int[16];
+        private int numGroups;
+
+        // event group ord of each timestamp of current doc, -1 if none
+        private int[] eventOrd = new int[64];
+
+        private Expansion(MultiSearchResult items, int from, int to) {
+            this.items = items;
+            this.from = from;
+            this.to = to;
+            int capacity = Math.max(16, to - from);
+            sourceIds = new int[capacity];
+            ids = new int[capacity];
+            timeStampOrds = new int[capacity];
+            timeEventOrds = new int[capacity];
+            scores = new float[capacity];
+            Arrays.fill(eventOrd, -1);
+        }
+
+        private void loadDocValues() throws IOException {
+            timeStampValues = ipedCase.getAtomicReader().getSortedSetDocValues(BasicProps.TIMESTAMP);
+            timeEventGroupValues = ipedCase.getAtomicReader()
+                    .getSortedSetDocValues(ExtraProperties.TIME_EVENT_GROUPS);
+            eventsInDocOrdsValues = ipedCase.getAtomicReader().getBinaryDocValues(ExtraProperties.TIME_EVENT_ORDS);
+        }
+
+        @Override
+        public Expansion call() throws IOException {
+            for (int i = from; i < to; i++) {
+                IItemId id = items.getItem(i);
+                int luceneId = ipedCase.getLuceneId(id);
+                if (luceneId <= lastLuceneId) {
+                    // DocValues iterators can't go backwards
+                    loadDocValues();
+                }
+                lastLuceneId = luceneId;
+                if (eventsInDocOrdsValues == null || !eventsInDocOrdsValues.advanceExact(luceneId)) {
+                    continue;
+                }
+                BytesRef eventsInDocOrds = eventsInDocOrdsValues.binaryValue();
+                if (eventsInDocOrds.length == 0) {
+                    continue;
+                }
+                parseEventIdxs(eventsInDocOrds);
+                boolean tsvAdv = timeStampValues.advanceExact(luceneId);
+                boolean tegvAdv = timeEventGroupValues.advanceExact(luceneId);
+
+                long ord;
+                int group = 0, start = 0;
+                while (tegvAdv && (ord = timeEventGroupValues.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+                    if (group == numGroups) {
                         break;
                     }
-                    eventOrd[k] = (int) ord;
+                    for (int j = start; j < groupEnds[group]; j++) {
+                        int k = eventIdxs[j];
+                        if (k >= eventOrd.length) {
+                            int oldLen = eventOrd.length;
+                            eventOrd = Arrays.copyOf(eventOrd, Math.max(k + 1, oldLen * 2));
+                            Arrays.fill(eventOrd, oldLen, eventOrd.length, -1);
+                        }
+                        eventOrd[k] = (int) ord;
+                    }
+                    start = groupEnds[group++];
                 }
-            }
-            pos = 0;
-            while (tsvAdv && (ord = timeStampValues.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
-                if (ord > Integer.MAX_VALUE) {
-                    throw new RuntimeException("Integer overflow when converting timestamp ord to int");
+                int pos = 0;
+                while (tsvAdv && (ord = timeStampValues.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+                    if (ord > Integer.MAX_VALUE) {
+                        throw new RuntimeException("Integer overflow when converting timestamp ord to int");
+                    }
+                    if (pos < eventOrd.length && eventOrd[pos] != -1) {
+                        add(id.getSourceId(), id.getId(), (int) ord, eventOrd[pos], items.getScore(i));
+                    }
+                    pos++;
                 }
-                if (eventOrd[pos] != -1) {
-                    ids.add(new TimeItemId(this, id.getSourceId(), id.getId(), (int) ord, eventOrd[pos]));
-                    scores.add(items.getScore(idx));
+                // clears just the positions set for this doc
+                for (int j = 0; j < start; j++) {
+                    eventOrd[eventIdxs[j]] = -1;
                 }
-                pos++;
             }
-            idx++;
+            return this;
         }
-        return new MultiSearchResult(ids.toArray(new IItemId[ids.size()]), toPrimitive(scores));
 
-    }
+        private void add(int sourceId, int id, int timeStampOrd, int timeEventOrd, float score) {
+            if (size == ids.length) {
+                int capacity = ArrayUtil.oversize(size + 1, Integer.BYTES);
+                sourceIds = Arrays.copyOf(sourceIds, capacity);
+                ids = Arrays.copyOf(ids, capacity);
+                timeStampOrds = Arrays.copyOf(timeStampOrds, capacity);
+                timeEventOrds = Arrays.copyOf(timeEventOrds, capacity);
+                scores = Arrays.copyOf(scores, capacity);
+            }
+            sourceIds[size] = sourceId;
+            ids[size] = id;
+            timeStampOrds[size] = timeStampOrd;
+            timeEventOrds[size] = timeEventOrd;
+            scores[size] = score;
+            size++;
+        }
 
-    private static final void loadOrdsFromString(String string, int[][] ret) {
-        int len = string.length();
-        int i = 0, j = 0, k = 0;
-        do {
-            j = string.indexOf(IndexItem.EVENT_IDX_SEPARATOR, i);
-            if (j == -1) {
-                j = len;
+        /**
+         * Parses timestamp indexes of event groups, like "0,2;1", directly from the
+         * bytes, without creating Strings.
+         */
+        private void parseEventIdxs(BytesRef bytes) {
+            numGroups = 0;
+            int n = 0, numInGroup = 0, value = 0;
+            for (int i = bytes.offset, end = bytes.offset + bytes.length; i <= end; i++) {
+                int c = i < end ? bytes.bytes[i] : IndexItem.EVENT_IDX_SEPARATOR;
+                if (c == IndexItem.EVENT_IDX_SEPARATOR || c == IndexItem.EVENT_IDX_SEPARATOR2) {
+                    if (numInGroup < MAX_TIMESTAMPS_PER_PROPERTY - 1) {
+                        if (n == eventIdxs.length) {
+                            eventIdxs = Arrays.copyOf(eventIdxs, n * 2);
+                        }
+                        eventIdxs[n++] = value;
+                        numInGroup++;
+                    }
+                    value = 0;
+                    if (c == IndexItem.EVENT_IDX_SEPARATOR) {
+                        if (numGroups == groupEnds.length) {
+                            groupEnds = Arrays.copyOf(groupEnds, numGroups * 2);
+                        }
+                        groupEnds[numGroups++] = n;
+                        numInGroup = 0;
+                    }
+                } else {
+                    value = value * 10 + (c - '0');
+                }
             }
-            loadOrdsFromStringInner(string.substring(i, j), j - i, ret[k++]);
-            i = j + 1;
-        } while (j < len);
+        }
     }
 
-    private static final void loadOrdsFromStringInner(String string, int len, int[] ret) {
-        int i = 0, j = 0, k = 0, max_k = ret.length - 1;
-        do {
-            j = string.indexOf(IndexItem.EVENT_IDX_SEPARATOR2, i);
-            if (j == -1) {
-                j = len;
-            }
-            ret[k++] = Integer.parseInt(string.substring(i, j));
-            if (k == max_k) {
-                break;
+    /**
+     * Timeline result stored in primitive columns instead of one TimeItemId object
+     * per timestamp event. Items are created on demand by {@link #getItem(int)}.
+     */
+    public static class TimelineSearchResult extends MultiSearchResult {
+
+        private final TimelineResults timelineResults;
+        private int[] sourceIds, ids, timeStampOrds, timeEventOrds;
+        private float[] scores;
+
+        private TimelineSearchResult(TimelineResults timelineResults, int size) {
+            this.timelineResults = timelineResults;
+            this.sourceIds = new int[size];
+            this.ids = new int[size];
+            this.timeStampOrds = new int[size];
+            this.timeEventOrds = new int[size];
+            this.scores = new float[size];
+        }
+
+        @Override
+        public int getLength() {
+            return ids.length;
+        }
+
+        @Override
+        public IItemId getItem(int i) {
+            return new TimeItemId(timelineResults, sourceIds[i], ids[i], timeStampOrds[i], timeEventOrds[i]);
+        }
+
+        public int getTimeStampOrd(int i) {
+            return timeStampOrds[i];
+        }
+
+        public int getTimeEventOrd(int i) {
+            return timeEventOrds[i];
+        }
+
+        @Override
+        public float getScore(int i) {
+            return scores[i];
+        }
+
+        @Override
+        public void setScore(int i, float score) {
+            scores[i] = score;
+        }
+
+        @Override
+        public void setItem(int i, IItemId itemId) {
+            sourceIds[i] = itemId.getSourceId();
+            ids[i] = itemId.getId();
+            if (itemId instanceof TimeItemId) {
+                timeStampOrds[i] = ((TimeItemId) itemId).getTimeStampOrd();
+                timeEventOrds[i] = ((TimeItemId) itemId).getTimeEventOrd();
+            } else {
+                timeStampOrds[i] = -1;
+                timeEventOrds[i] = -1;
             }
-            i = j + 1;
-        } while (j < len);
-        ret[k] = -1;
-    }
+        }
+
+        @Override
+        public Iterable<IItemId> getIterator() {
+            return () -> new Iterator<IItemId>() {
+                private int pos = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return pos < ids.length;
+                }
 
-    private static float[] toPrimitive(List<Float> list) {
-        if (list == null) {
-            return null;
+                @Override
+                public IItemId next() {
+                    return getItem(pos++);
+                }
+            };
         }
-        final float[] result = new float[list.size()];
-        for (int i = 0; i < result.length; i++) {
-            result[i] = list.get(i).floatValue();
+
+        @Override
+        public TimelineSearchResult clone() {
+            TimelineSearchResult result = new TimelineSearchResult(timelineResults, 0);
+            result.sourceIds = sourceIds.clone();
+            result.ids = ids.clone();
+            result.timeStampOrds = timeStampOrds.clone();
+            result.timeEventOrds = timeEventOrds.clone();
+            result.scores = scores.clone();
+            return result;
         }
-        return result;
     }
 
     public static class TimeItemId extends ItemId {
@@ -3,8 +3,10 @@
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.FileChannel;
@@ -17,6 +19,9 @@
 import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -39,6 +44,7 @@ public class SleuthkitClient implements Comparable<SleuthkitClient> {
 
     private static final int MAX_STREAMS = 10000;
     private static final int TIMEOUT_SECONDS = 3600;
+    private static final int PING_TIMEOUT_SECONDS = 60;
 
     private static PriorityQueue<SleuthkitClient> clientPriorityQueue = new PriorityQueue<>();
     private static Object lock = new Object();
@@ -70,7 +76,49 @@ public class SleuthkitClient implements Comparable<SleuthkitClient> {
     private int openedStreams = 0;
     private Set<SleuthkitClientInputStream> currentStreams = new HashSet<>();
     private int priority = 0;
-    private long requestTime = 0;
+
+    private int generation = 0;
+    private Slot[] slots;
+    private volatile BlockingQueue<Slot> freeSlots;
+    private BlockingQueue<Integer> pingResponses;
+
+    /**
+     * Region of the memory mapped file holding one request to the server. Slots
+     * are recreated when the server is restarted.
+     */
+    static class Slot {
+
+        final int index, pos, generation;
+        final MappedByteBuffer mbb;
+        final OutputStream os;
+        final BlockingQueue<Slot> pool;
+        final Semaphore response = new Semaphore(0);
+        volatile boolean aborted = false;
+        volatile long requestTime = 0;
+
+        private final ByteBuffer data;
+
+        private Slot(int index, int generation, MappedByteBuffer mbb, OutputStream os, BlockingQueue<Slot> pool) {
+            this.index = index;
+            this.pos = SleuthkitServer.getSlotPos(index);
+            this.generation = generation;
+            this.mbb = mbb;
+            this.os = os;
+            this.pool = pool;
+            ByteBuffer bb = mbb.duplicate();
+            bb.position(pos + SleuthkitServer.DATA_POS);
+            bb.limit(pos + SleuthkitServer.SLOT_SIZE);
+            this.data = bb.slice();
+        }
+
+        /**
+         * Copies data of the response straight from the mapped memory.
+         */
+        void getData(int offset, byte[] b, int off, int len) {
+            data.position(offset);
+            data.get(b, off, len);
+        }
+    }
 
     static class TimeoutMonitor extends Thread {
         public void run() {
@@ -94,26 +142,63 @@ synchronized void setServerError(boolean error) {
         serverError = error;
     }
 
+    synchronized void setServerError(Slot slot) {
+        // ignore errors of requests sent to a previous server process
+        if (slot.generation == generation) {
+            serverError = true;
+        }
+    }
+
     private synchronized void checkTimeout() {
-        if (requestTime == 0)
-            return;
-        if (SleuthkitServer.getByte(mbb, 0) != FLAGS.SQLITE_READ) {
-            logger.info("Waiting SleuthkitServer {} database read...", id); //$NON-NLS-1$
+        if (slots == null)
             return;
+        for (Slot slot : slots) {
+            long requestTime = slot.requestTime;
+            if (requestTime == 0)
+                continue;
+            if (SleuthkitServer.getByte(mbb, slot.pos) != FLAGS.SQLITE_READ) {
+                if (FLAGS.isRequest(SleuthkitServer.getByte(mbb, slot.pos)))
+                    logger.info("Waiting SleuthkitServer {} database read...", id); //$NON-NLS-1$
+                continue;
+            }
+            if (System.currentTimeMillis() / 1000 - requestTime >= TIMEOUT_SECONDS) {
+                logger.error("Timeout waiting SleuthkitServer " + id + " response! Restarting...");
+                serverError = true;
+                finishProcess(false);
+                return;
+            }
         }
-        if (System.currentTimeMillis() / 1000 - requestTime >= TIMEOUT_SECONDS) {
-            logger.error("Timeout waiting SleuthkitServer " + id + " response! Restarting...");
-            serverError = true;
-            requestTime = 0;
-            finishProcess(false);
+    }
+
+    /**
+     * Gets a free slot to send a request, restarting the server if needed. Blocks
+     * while all slots are in use.
+     */
+    Slot acquireSlot() throws IOException {
+        while (true) {
+            BlockingQueue<Slot> queue;
+            synchronized (this) {
+                if (serverError || freeSlots == null) {
+                    restartServer();
+                }
+                queue = freeSlots;
+            }
+            try {
+                Slot slot = queue.poll(1, TimeUnit.SECONDS);
+                if (slot != null && !slot.aborted) {
+                    return slot;
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException(e.toString());
+            }
         }
     }
 
-    synchronized void enableTimeoutCheck(boolean enable) {
-        if (enable)
-            requestTime = System.currentTimeMillis() / 1000;
-        else
-            requestTime = 0;
+    void releaseSlot(Slot slot) {
+        slot.requestTime = 0;
+        if (!slot.aborted) {
+            slot.pool.add(slot);
+        }
     }
 
     public static synchronized void addEnvVar(String key, String value) {
@@ -220,6 +305,17 @@ private synchronized void start() {
                 throw new Exception("Error starting SleuthkitServer " + id); //$NON-NLS-1$
             }
 
+            generation++;
+            slots = new Slot[SleuthkitServer.NUM_SLOTS];
+            BlockingQueue<Slot> queue = new ArrayBlockingQueue<>(slots.length);
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = new Slot(i, generation, mbb, os, queue);
+                queue.add(slots[i]);
+            }
+            pingResponses = new ArrayBlockingQueue<>(16);
+            readResponses(is, slots, pingResponses, id);
+            freeSlots = queue;
+
             logger.info("Starting SleuthkitServer {} started.", id);
 
         } catch (Exception e) {
@@ -247,17 +343,54 @@ public void run() {
         }.start();
     }
 
+    /**
+     * Reads the server responses, waking up the threads waiting for them.
+     */
+    private static void readResponses(final InputStream is, final Slot[] slots,
+            final BlockingQueue<Integer> pingResponses, final int id) {
+        Thread t = new Thread("SleuthkitServer " + id + " response reader") { //$NON-NLS-1$ //$NON-NLS-2$
+            public void run() {
+                try {
+                    int b;
+                    while ((b = is.read()) != -1) {
+                        if (b >= SleuthkitServer.MIN_PING_VALUE) {
+                            pingResponses.offer(b);
+                        } else if (b < slots.length) {
+                            slots[b].response.release();
+                        }
+                    }
+                } catch (IOException e) {
+                    // process finished
+                }
+                for (Slot slot : slots) {
+                    slot.aborted = true;
+                    slot.response.release();
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
     private synchronized boolean ping() {
-        int i = rand.nextInt(255) + 1;
+        if (freeSlots == null) {
+            return false;
+        }
+        int i = SleuthkitServer.MIN_PING_VALUE + rand.nextInt(256 - SleuthkitServer.MIN_PING_VALUE);
         try {
-            os.write(i);
-            os.flush();
-            int r = is.read();
-            if (r == i)
+            pingResponses.clear();
+            synchronized (os) {
+                os.write(i);
+                os.flush();
+            }
+            Integer r = pingResponses.poll(PING_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (r != null && r == i)
                 return true;
 
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
         return false;
     }
@@ -332,6 +465,8 @@ private synchronized void finishProcess(boolean deletemmapFile) {
         }
         fc = null;
         mbb = null;
+        slots = null;
+        freeSlots = null;
 
         if (deletemmapFile) {
             int tries = 10;
@@ -1,7 +1,6 @@
 package iped.engine.sleuthkit;
 
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -23,12 +22,14 @@ public class SleuthkitClientInputStream extends SeekableInputStream {
     String path;
     SleuthkitClient client;
     long streamId = next.getAndIncrement();
-    int bufPos = 0;
+    // keeps the response bytes not consumed by small reads
+    int bufPos = 0, bufLen = 0;
     byte[] buf;
-    boolean closed = false, empty = true;
+    byte[] single = new byte[1];
+    boolean closed = false;
     long position = 0;
     Long size;
-    boolean seekAfterRestart = false;
+    volatile boolean seekAfterRestart = false;
 
     public SleuthkitClientInputStream(int id, String path, SleuthkitClient client) {
         this.sleuthId = id;
@@ -54,92 +55,102 @@ public int read(byte b[], int off, int len) throws IOException {
 
     private int readIn(byte b[], int off, int len) throws IOException {
 
-        if (empty) {
-            synchronized (client) {
-                if (client.isServerError()) {
-                    client.restartServer();
-                }
-                if (seekAfterRestart) {
-                    seek(position);
-                    seekAfterRestart = false;
-                }
-                byte cmd = sendRead(len);
-                if (cmd == FLAGS.EOF) {
-                    return -1;
-                }
-                int size = client.mbb.getInt(13);
-                buf = new byte[size];
-                client.mbb.position(17);
-                client.mbb.get(buf, 0, size);
-                bufPos = 0;
-                empty = false;
-            }
+        if (len == 0) {
+            return 0;
         }
 
-        int copyLen = Math.min(len, buf.length - bufPos);
-        System.arraycopy(buf, bufPos, b, off, copyLen);
+        if (bufPos < bufLen) {
+            int copyLen = Math.min(len, bufLen - bufPos);
+            System.arraycopy(buf, bufPos, b, off, copyLen);
+            bufPos += copyLen;
+            position += copyLen;
+            return copyLen;
+        }
 
-        bufPos += copyLen;
-        if (bufPos == buf.length) {
-            empty = true;
+        if (seekAfterRestart) {
+            seek(position);
         }
-        position += copyLen;
 
-        return copyLen;
-    }
+        SleuthkitClient.Slot slot = sendCmd(FLAGS.READ, Math.max(len, SleuthkitServer.MIN_READ_SIZE));
+        try {
+            byte cmd = waitServerResponse(slot);
+            if (cmd == FLAGS.EOF) {
+                return -1;
+            }
+            int size = slot.mbb.getInt(slot.pos + SleuthkitServer.PARAM_POS);
+            int copyLen = Math.min(len, size);
+            slot.getData(0, b, off, copyLen);
+            if (copyLen < size) {
+                // just for reads smaller than MIN_READ_SIZE
+                if (buf == null) {
+                    buf = new byte[SleuthkitServer.MIN_READ_SIZE];
+                }
+                slot.getData(copyLen, buf, 0, size - copyLen);
+                bufPos = 0;
+                bufLen = size - copyLen;
+            }
+            position += copyLen;
+            return copyLen;
 
-    private byte sendRead(int len) throws IOException {
-        client.mbb.putInt(1, sleuthId);
-        client.mbb.putLong(5, streamId);
-        client.mbb.putInt(13, len);
-        SleuthkitServer.commitByte(client.mbb, 0, FLAGS.READ);
-        notifyServer();
-        return waitServerResponse();
+        } finally {
+            client.releaseSlot(slot);
+        }
     }
 
-    private byte waitServerResponse() throws IOException {
-
-        client.enableTimeoutCheck(true);
+    /**
+     * Writes a request in a free slot and notifies the server.
+     */
+    private SleuthkitClient.Slot sendCmd(byte cmd, long param) throws IOException {
+        SleuthkitClient.Slot slot = client.acquireSlot();
         try {
-            int b = client.is.read();
-            if (b == -1)
-                throw new IOException(getServerId() + " pipe closed!"); //$NON-NLS-1$
+            slot.mbb.putInt(slot.pos + SleuthkitServer.SLEUTH_ID_POS, sleuthId);
+            slot.mbb.putLong(slot.pos + SleuthkitServer.STREAM_ID_POS, streamId);
+            if (cmd == FLAGS.READ) {
+                slot.mbb.putInt(slot.pos + SleuthkitServer.PARAM_POS, (int) Math.min(param, Integer.MAX_VALUE));
+            } else {
+                slot.mbb.putLong(slot.pos + SleuthkitServer.PARAM_POS, param);
+            }
+            slot.requestTime = System.currentTimeMillis() / 1000;
+            SleuthkitServer.commitByte(slot.mbb, slot.pos, cmd);
+            notifyServer(slot);
+            return slot;
 
-        } catch (IOException e) {
-            client.setServerError(true);
-            LOGGER.error("Wait response error: " + getCrashMsg());
+        } catch (IOException | RuntimeException e) {
+            client.releaseSlot(slot);
             throw e;
+        }
+    }
 
-        } finally {
-            client.enableTimeoutCheck(false);
+    private byte waitServerResponse(SleuthkitClient.Slot slot) throws IOException {
+
+        // the server will answer or the slot will be aborted if the process dies
+        slot.response.acquireUninterruptibly();
+        if (slot.aborted) {
+            client.setServerError(slot);
+            LOGGER.error("Wait response error: " + getCrashMsg());
+            throw new IOException(getServerId() + " pipe closed!"); //$NON-NLS-1$
         }
 
+        // response byte is written after the flag, so this should not wait
         byte cmd;
         long time = 0;
-        while (FLAGS.isClientCmd(cmd = SleuthkitServer.getByte(client.mbb, 0)) || cmd == FLAGS.SQLITE_READ) {
-            try {
-                if (time == 0) {
-                    time = System.currentTimeMillis();
-                }
-                Thread.sleep(1);
+        while (FLAGS.isClientCmd(cmd = SleuthkitServer.getByte(slot.mbb, slot.pos)) || cmd == FLAGS.SQLITE_READ) {
+            if (time == 0) {
+                time = System.currentTimeMillis();
                 LOGGER.warn("Waiting " + getServerId() + " memory write..."); //$NON-NLS-1$
-
-                if (System.currentTimeMillis() - time >= TIMEOUT) {
-                    client.setServerError(true);
-                    LOGGER.error("MemoryReadTimeout waiting " + getServerId() + ": " + path); //$NON-NLS-1$
-                    throw new IOException("MemoryReadTimeout waiting " + getServerId() + ": " + path); //$NON-NLS-1$
-                }
-
-            } catch (InterruptedException e) {
-                throw new InterruptedIOException(e.toString());
+            }
+            Thread.onSpinWait();
+            if (System.currentTimeMillis() - time >= TIMEOUT) {
+                client.setServerError(slot);
+                LOGGER.error("MemoryReadTimeout waiting " + getServerId() + ": " + path); //$NON-NLS-1$
+                throw new IOException("MemoryReadTimeout waiting " + getServerId() + ": " + path); //$NON-NLS-1$
             }
         }
 
         if (cmd == FLAGS.EXCEPTION) {
-            int len = client.mbb.getInt(13);
+            int len = slot.mbb.getInt(slot.pos + SleuthkitServer.PARAM_POS);
             byte[] b = new byte[len];
-            client.mbb.position(17);
-            client.mbb.get(b);
+            slot.getData(0, b, 0, len);
             try {
                 throw new IOException(getServerId() + " error: " + new String(b, "UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
             } catch (UnsupportedEncodingException e) {
@@ -149,11 +160,26 @@ private byte waitServerResponse() throws IOException {
         return cmd;
     }
 
-    private void notifyServer() throws IOException {
+    /**
+     * Sends a request without data in the response and waits for it.
+     */
+    private long sendCmdAndWait(byte cmd, long param) throws IOException {
+        SleuthkitClient.Slot slot = sendCmd(cmd, param);
         try {
-            SleuthkitServer.notify(client.os);
+            waitServerResponse(slot);
+            return slot.mbb.getLong(slot.pos + SleuthkitServer.PARAM_POS);
+        } finally {
+            client.releaseSlot(slot);
+        }
+    }
+
+    private void notifyServer(SleuthkitClient.Slot slot) throws IOException {
+        try {
+            synchronized (slot.os) {
+                SleuthkitServer.notify(slot.os, 0);
+            }
         } catch (IOException e) {
-            client.setServerError(true);
+            client.setServerError(slot);
             LOGGER.error("Notify error: " + getCrashMsg());
             throw e;
         }
@@ -171,24 +197,14 @@ public void seek(long pos) throws IOException {
         }
 
         long dif = pos - position;
-        if (!empty && bufPos + dif >= 0 && bufPos + dif < buf.length) {
+        if (!seekAfterRestart && bufPos < bufLen && bufPos + dif >= 0 && bufPos + dif < bufLen) {
             bufPos += dif;
 
         } else {
-            synchronized (client) {
-                if (client.isServerError()) {
-                    client.restartServer();
-                }
-                client.mbb.putInt(1, sleuthId);
-                client.mbb.putLong(5, streamId);
-                client.mbb.putLong(13, pos);
-                SleuthkitServer.commitByte(client.mbb, 0, FLAGS.SEEK);
-                notifyServer();
-                waitServerResponse();
-                empty = true;
-                bufPos = 0;
-                seekAfterRestart = false;
-            }
+            // cleared before sending, a restart while waiting sets it again
+            seekAfterRestart = false;
+            sendCmdAndWait(FLAGS.SEEK, pos);
+            bufPos = bufLen = 0;
         }
         position = pos;
 
@@ -209,18 +225,8 @@ public long size() throws IOException {
             throw new IOException("Stream is closed!"); //$NON-NLS-1$
         }
 
-        synchronized (client) {
-            if (client.isServerError()) {
-                client.restartServer();
-            }
-            client.mbb.putInt(1, sleuthId);
-            client.mbb.putLong(5, streamId);
-            SleuthkitServer.commitByte(client.mbb, 0, FLAGS.SIZE);
-            notifyServer();
-            waitServerResponse();
-            size = client.mbb.getLong(13);
-            return size;
-        }
+        size = sendCmdAndWait(FLAGS.SIZE, 0);
+        return size;
 
     }
 
@@ -231,17 +237,16 @@ public int read() throws IOException {
             throw new IOException("Stream is closed!"); //$NON-NLS-1$
         }
 
-        byte[] b = new byte[1];
         int i = 0;
         do {
-            i = read(b);
+            i = read(single);
         } while (i == 0);
 
         if (i == -1) {
             return -1;
         }
 
-        return b[0] & 0xFF;
+        return single[0] & 0xFF;
     }
 
     @Override
@@ -250,18 +255,15 @@ public void close() throws IOException {
         if (closed) {
             return;
         }
-        synchronized (client) {
+        try {
             if (!client.isServerError()) {
-                client.mbb.putInt(1, sleuthId);
-                client.mbb.putLong(5, streamId);
-                SleuthkitServer.commitByte(client.mbb, 0, FLAGS.CLOSE);
-                notifyServer();
-                waitServerResponse();
+                sendCmdAndWait(FLAGS.CLOSE, 0);
             }
+        } finally {
             client.removeStream(this);
+            bufPos = bufLen = 0;
+            closed = true;
         }
-        empty = true;
-        closed = true;
 
     }
 
@@ -9,8 +9,12 @@
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.sleuthkit.datamodel.Content;
 import org.sleuthkit.datamodel.SleuthkitCase;
@@ -19,11 +23,38 @@
 import iped.engine.config.ConfigurationManager;
 import iped.engine.config.LocalConfig;
 import iped.engine.util.DirectMemory;
-
+import iped.io.SeekableInputStream;
+
+/**
+ * Process reading sleuthkit image contents for a {@link SleuthkitClient}. The
+ * memory mapped file shared with the client is divided in {@link #NUM_SLOTS}
+ * slots, each one holding one request, so the client can have many requests
+ * in flight. The client writes a request in a free slot and notifies the
+ * server writing a 0 byte to its stdin. The server writes the slot index to
+ * its stdout when the response is ready. Other bytes received are pings and are
+ * echoed back. When idle, the server reads ahead the streams being read
+ * sequentially.
+ */
 public class SleuthkitServer {
 
-    public static final int MMAP_FILE_SIZE = 10 * 1024 * 1024;
-    private static final int MAX_BUF_SIZE = 8 * 1024 * 1024; // must be less than MMAP_FILE_SIZE
+    public static final int NUM_SLOTS = 8;
+
+    // slot layout
+    static final int FLAG_POS = 0;
+    static final int SLEUTH_ID_POS = 1;
+    static final int STREAM_ID_POS = 5;
+    static final int PARAM_POS = 13;
+    static final int DATA_POS = 21;
+
+    static final int SLOT_BUF_SIZE = 4 * 1024 * 1024;
+    static final int SLOT_SIZE = DATA_POS + SLOT_BUF_SIZE;
+
+    public static final int MMAP_FILE_SIZE = NUM_SLOTS * SLOT_SIZE;
+
+    static final int MIN_READ_SIZE = 64 * 1024;
+
+    // ping bytes are greater than slot indexes
+    static final int MIN_PING_VALUE = 128;
 
     static class FLAGS {
 
@@ -45,6 +76,15 @@ final static boolean isClientCmd(int cmd) {
             return cmd != FLAGS.DONE && cmd != FLAGS.ERROR && cmd != FLAGS.EOF && cmd != FLAGS.EXCEPTION
                     && cmd != FLAGS.SQLITE_READ;
         }
+
+        final static boolean isRequest(int cmd) {
+            return cmd == FLAGS.READ || cmd == FLAGS.SEEK || cmd == FLAGS.SIZE || cmd == FLAGS.POSITION
+                    || cmd == FLAGS.CLOSE;
+        }
+    }
+
+    static final int getSlotPos(int slot) {
+        return slot * SLOT_SIZE;
     }
 
     static boolean useUnsafe = true;
@@ -81,61 +121,37 @@ public static void main(String args[]) {
 
             java.util.logging.Logger.getLogger("org.sleuthkit").setLevel(java.util.logging.Level.SEVERE); //$NON-NLS-1$
 
+            for (int slot = 1; slot < NUM_SLOTS; slot++) {
+                commitByte(out, getSlotPos(slot), FLAGS.DONE);
+            }
             commitByte(out, 0, FLAGS.DONE);
-            notify(os);
+            notify(os, 0);
 
-            byte[] buf = new byte[MAX_BUF_SIZE];
-            int minToRead = 64 * 1024;
-            SleuthkitInputStream sis = null;
+            byte[] buf = new byte[SLOT_BUF_SIZE];
+            ReadAhead readAhead = new ReadAhead();
 
             while (true) {
-                try {
-                    int read = in.read();
-                    if (read == -1)
-                        break;
-                    if (read > 0) {
-                        // ping response
-                        os.write(read);
-                        os.flush();
-                        continue;
-                    }
-                    byte cmd = waitCmd(out, in);
-                    sis = getSis(out, sleuthCase, sisMap);
-                    commitByte(out, 0, FLAGS.SQLITE_READ);
-
-                    if (cmd == FLAGS.SEEK) {
-                        sis.seek(out.getLong(13));
-                    } else if (cmd == FLAGS.CLOSE) {
-                        sis = sisMap.remove(out.getLong(5));
-                        sis.close();
-                    } else if (cmd == FLAGS.READ) {
-                        int len = out.getInt(13);
-                        len = Math.max(minToRead, Math.min(len, buf.length));
-                        len = readIn(sis, buf, len);
-                        if (len == -1) {
-                            commitByte(out, 0, FLAGS.EOF);
-                            notify(os);
-                            continue;
-                        } else {
-                            writeOut(out, buf, len);
-                        }
-                    } else if (cmd == FLAGS.SIZE) {
-                        out.putLong(13, sis.size());
-                    } else if (cmd == FLAGS.POSITION) {
-                        out.putLong(13, sis.position());
+                if (in.available() == 0 && readAhead.fillNext()) {
+                    // check for requests before reading ahead more data
+                    continue;
+                }
+                int read = in.read();
+                if (read == -1)
+                    break;
+                if (read > 0) {
+                    // ping response
+                    os.write(read);
+                    os.flush();
+                    continue;
+                }
+                // requests may have been processed before its notification was read
+                for (int slot = 0; slot < NUM_SLOTS; slot++) {
+                    int slotPos = getSlotPos(slot);
+                    byte cmd = getByte(out, slotPos);
+                    if (FLAGS.isRequest(cmd)) {
+                        processRequest(out, slotPos, cmd, sleuthCase, sisMap, readAhead, buf);
+                        notify(os, slot);
                     }
-
-                    commitByte(out, 0, FLAGS.DONE);
-                    notify(os);
-
-                } catch (Throwable e) {
-                    // e.printStackTrace(System.err);
-                    byte[] msgBytes = e.getMessage().getBytes("UTF-8"); //$NON-NLS-1$
-                    out.putInt(13, msgBytes.length);
-                    out.position(17);
-                    out.put(msgBytes);
-                    commitByte(out, 0, FLAGS.EXCEPTION);
-                    notify(os);
                 }
             }
 
@@ -144,21 +160,165 @@ public static void main(String args[]) {
             commitByte(out, 0, FLAGS.ERROR);
             try {
                 if (os != null)
-                    notify(os);
+                    notify(os, 0);
             } catch (IOException e1) {
                 e1.printStackTrace();
             }
         }
     }
 
+    private static void processRequest(MappedByteBuffer out, int slotPos, byte cmd, SleuthkitCase sleuthCase,
+            HashMap<Long, SleuthkitInputStream> sisMap, ReadAhead readAhead, byte[] buf) throws IOException {
+        try {
+            long streamId = out.getLong(slotPos + STREAM_ID_POS);
+            SleuthkitInputStream sis = getSis(out, slotPos, sleuthCase, sisMap);
+            commitByte(out, slotPos, FLAGS.SQLITE_READ);
+
+            if (cmd == FLAGS.SEEK) {
+                readAhead.remove(streamId);
+                sis.seek(out.getLong(slotPos + PARAM_POS));
+            } else if (cmd == FLAGS.CLOSE) {
+                readAhead.remove(streamId);
+                sis = sisMap.remove(streamId);
+                sis.close();
+            } else if (cmd == FLAGS.READ) {
+                int len = out.getInt(slotPos + PARAM_POS);
+                len = Math.max(MIN_READ_SIZE, Math.min(len, buf.length));
+                len = readAhead.read(streamId, sis, buf, len);
+                if (len == -1) {
+                    commitByte(out, slotPos, FLAGS.EOF);
+                    return;
+                } else {
+                    writeOut(out, slotPos, buf, len);
+                }
+            } else if (cmd == FLAGS.SIZE) {
+                out.putLong(slotPos + PARAM_POS, sis.size());
+            } else if (cmd == FLAGS.POSITION) {
+                out.putLong(slotPos + PARAM_POS, sis.position() - readAhead.available(streamId));
+            }
+
+            commitByte(out, slotPos, FLAGS.DONE);
+
+        } catch (Throwable e) {
+            // e.printStackTrace(System.err);
+            byte[] msgBytes = String.valueOf(e.getMessage()).getBytes("UTF-8"); //$NON-NLS-1$
+            int len = Math.min(msgBytes.length, SLOT_BUF_SIZE);
+            out.putInt(slotPos + PARAM_POS, len);
+            out.position(slotPos + DATA_POS);
+            out.put(msgBytes, 0, len);
+            commitByte(out, slotPos, FLAGS.EXCEPTION);
+        }
+    }
+
+    /**
+     * Keeps data read ahead of streams being read sequentially, so the next
+     * requests of those streams are answered without waiting the image read.
+     * Data is read ahead just while there are no requests to process and only
+     * for a limited number of streams.
+     */
+    static class ReadAhead {
+
+        private static final int READ_AHEAD_SIZE = 512 * 1024;
+        private static final int MAX_BUFFERS = 8;
+
+        private static class Entry {
+            SeekableInputStream sis;
+            byte[] buf;
+            int pos, len;
+            boolean sequential, eof;
+        }
+
+        private final Map<Long, Entry> entries = new LinkedHashMap<>();
+        private final ArrayDeque<byte[]> freeBuffers = new ArrayDeque<>();
+        private int numBuffers = 0;
+
+        int read(long streamId, SeekableInputStream sis, byte[] b, int len) throws IOException {
+            Entry entry = entries.get(streamId);
+            if (entry != null && entry.pos < entry.len) {
+                int n = Math.min(len, entry.len - entry.pos);
+                System.arraycopy(entry.buf, entry.pos, b, 0, n);
+                entry.pos += n;
+                return n;
+            }
+            int n = sis.read(b, 0, len);
+            if (entry == null) {
+                entry = new Entry();
+                entry.sis = sis;
+                entries.put(streamId, entry);
+            } else {
+                // second read without seeking
+                entry.sequential = true;
+            }
+            entry.eof = n == -1;
+            return n;
+        }
+
+        /**
+         * @return number of bytes read ahead not consumed yet, the underlying
+         *         stream position is ahead of the client position by this value.
+         */
+        int available(long streamId) {
+            Entry entry = entries.get(streamId);
+            return entry == null ? 0 : entry.len - entry.pos;
+        }
+
+        /**
+         * Discards data read ahead. Must be called before seeking or closing the
+         * underlying stream.
+         */
+        void remove(long streamId) {
+            Entry entry = entries.remove(streamId);
+            if (entry != null && entry.buf != null) {
+                freeBuffers.add(entry.buf);
+            }
+        }
+
+        /**
+         * Reads ahead data of one sequential stream whose data was consumed.
+         *
+         * @return true if some data was read.
+         */
+        boolean fillNext() {
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (!entry.sequential || entry.eof || entry.pos < entry.len) {
+                    continue;
+                }
+                if (entry.buf == null) {
+                    if (!freeBuffers.isEmpty()) {
+                        entry.buf = freeBuffers.poll();
+                    } else if (numBuffers < MAX_BUFFERS) {
+                        entry.buf = new byte[READ_AHEAD_SIZE];
+                        numBuffers++;
+                    } else {
+                        return false;
+                    }
+                }
+                try {
+                    int n = entry.sis.read(entry.buf, 0, entry.buf.length);
+                    entry.pos = 0;
+                    entry.len = Math.max(0, n);
+                    entry.eof = n == -1;
+                } catch (IOException e) {
+                    // let the client get the error when it reads
+                    entry.sequential = false;
+                    entry.pos = entry.len = 0;
+                }
+                return entry.len > 0;
+            }
+            return false;
+        }
+    }
+
     private static HashSet<Long> warmedDataSources = new HashSet<>();
 
-    private static SleuthkitInputStream getSis(MappedByteBuffer out, SleuthkitCase sleuthCase,
+    private static SleuthkitInputStream getSis(MappedByteBuffer out, int slotPos, SleuthkitCase sleuthCase,
             HashMap<Long, SleuthkitInputStream> sisMap) throws Exception {
-        long streamId = out.getLong(5);
+        long streamId = out.getLong(slotPos + STREAM_ID_POS);
         SleuthkitInputStream sis = sisMap.get(streamId);
         if (sis == null) {
-            int id = out.getInt(1);
+            int id = out.getInt(slotPos + SLEUTH_ID_POS);
             Content content = sleuthCase.getAbstractFileById(id);
             if (content == null) {
                 content = sleuthCase.getContentById(id);
@@ -178,32 +338,14 @@ private static SleuthkitInputStream getSis(MappedByteBuffer out, SleuthkitCase s
         return sis;
     }
 
-    private static byte waitCmd(MappedByteBuffer out, InputStream in) throws Exception {
-        byte cmd;
-        long t = 0;
-        while (!FLAGS.isClientCmd(cmd = getByte(out, 0))) {
-            if (t == 0)
-                t = System.currentTimeMillis();
-            long time = (System.currentTimeMillis() - t) / 1000;
-            if (time >= 10)
-                throw new IOException("MemoryReadTimeout waiting SleuthkitClient!"); //$NON-NLS-1$
-            Thread.sleep(1);
-        }
-        return cmd;
-    }
-
-    private static int readIn(SleuthkitInputStream sis, byte[] buf, int len) throws IOException {
-        return sis.read(buf, 0, len);
-    }
-
-    private static void writeOut(MappedByteBuffer out, byte[] buf, int len) throws Exception {
-        out.position(17);
+    private static void writeOut(MappedByteBuffer out, int slotPos, byte[] buf, int len) throws Exception {
+        out.position(slotPos + DATA_POS);
         out.put(buf, 0, len);
-        out.putInt(13, len);
+        out.putInt(slotPos + PARAM_POS, len);
     }
 
-    static void notify(OutputStream os) throws IOException {
-        os.write(0);
+    static void notify(OutputStream os, int slot) throws IOException {
+        os.write(slot);
         os.flush();
     }
 
@@ -1,23 +1,23 @@
 package iped.engine.task;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexNotFoundException;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.util.BytesRef;
 
 import iped.configuration.Configurable;
 import iped.data.IHashValue;
 import iped.data.IItem;
 import iped.engine.config.ConfigurationManager;
 import iped.engine.config.EnableTaskProperty;
-import iped.engine.lucene.SlowCompositeReaderWrapper;
 import iped.engine.task.index.IndexItem;
-import iped.utils.HashValue;
+import iped.engine.util.HashValueSet;
 
 /**
  * Tarefa de verificação de arquivos duplicados. Ignora o arquivo caso
@@ -30,7 +30,7 @@ public class DuplicateTask extends AbstractTask {
 
     private static final String ENABLE_PARAM = "ignoreDuplicates"; //$NON-NLS-1$
 
-    private HashMap<IHashValue, IHashValue> hashMap;
+    private HashValueSet hashSet;
 
     private static boolean ignoreDuplicates = false;
 
@@ -49,14 +49,7 @@ public void process(IItem evidence) {
         boolean isDuplicate = false;
         IHashValue hashValue = evidence.getHashValue();
         if (hashValue != null) {
-            synchronized (hashMap) {
-                if (!hashMap.containsKey(hashValue)) {
-                    hashMap.put(hashValue, hashValue);
-                } else {
-                    isDuplicate = true;
-                }
-
-            }
+            isDuplicate = !hashSet.add(hashValue);
         }
 
         if (ignoreDuplicates && isDuplicate && !evidence.isDir() && !evidence.isRoot()
@@ -71,25 +64,32 @@ public void init(ConfigurationManager configurationManager) throws Exception {
 
         ignoreDuplicates = configurationManager.getEnableTaskProperty(ENABLE_PARAM);
 
-        hashMap = (HashMap<IHashValue, IHashValue>) caseData.getCaseObject(HASH_MAP);
-        if (hashMap == null) {
-            hashMap = new HashMap<IHashValue, IHashValue>();
-            caseData.putCaseObject(HASH_MAP, hashMap);
+        hashSet = (HashValueSet) caseData.getCaseObject(HASH_MAP);
+        if (hashSet == null) {
+            hashSet = new HashValueSet();
+            caseData.putCaseObject(HASH_MAP, hashSet);
 
+            // load hashes of already indexed items, each index segment in parallel
             try (IndexReader reader = DirectoryReader.open(worker.writer, true, true)) {
-                LeafReader aReader = SlowCompositeReaderWrapper.wrap(reader);
-                SortedDocValues sdv = aReader.getSortedDocValues(IndexItem.HASH);
-                if (sdv != null) {
-                    for (int ord = 0; ord < sdv.getValueCount(); ord++) {
-                        String hash = sdv.lookupOrd(ord).utf8ToString();
-                        if (hash != null && !hash.isEmpty()) {
-                            IHashValue hValue = new HashValue(hash);
-                            hashMap.put(hValue, hValue);
+                reader.leaves().parallelStream().forEach(leaf -> {
+                    try {
+                        SortedDocValues sdv = leaf.reader().getSortedDocValues(IndexItem.HASH);
+                        if (sdv != null) {
+                            for (int ord = 0; ord < sdv.getValueCount(); ord++) {
+                                BytesRef hash = sdv.lookupOrd(ord);
+                                if (hash.length > 0) {
+                                    hashSet.addHex(hash);
+                                }
+                            }
                         }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
                     }
-                }
+                });
             } catch (IndexNotFoundException e) {
                 // ignore
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
             }
         }
 
@@ -97,7 +97,7 @@ public void init(ConfigurationManager configurationManager) throws Exception {
 
     @Override
     public void finish() throws Exception {
-        hashMap.clear();
+        hashSet.clear();
     }
 
 }
@@ -25,7 +25,6 @@
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -47,17 +46,10 @@
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.Deflater;
 
 import iped.properties.BasicProps;
 import iped.properties.ExtraProperties;
 import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.compress.compressors.CompressorException;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
-import org.apache.commons.compress.compressors.gzip.GzipParameters;
-import org.apache.commons.compress.utils.IOUtils;
-import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -85,6 +77,9 @@
 import iped.engine.config.HtmlReportTaskConfig;
 import iped.engine.data.Category;
 import iped.engine.data.IPEDSource;
+import iped.engine.io.GzipSeekableInputStream;
+import iped.engine.io.PackStorage;
+import iped.engine.io.PackStorageInputStreamFactory;
 import iped.engine.localization.Messages;
 import iped.engine.task.index.IndexItem;
 import iped.engine.util.UIPropertyListenerProvider;
@@ -96,7 +91,6 @@
 import iped.utils.FileInputStreamFactory;
 import iped.utils.HashValue;
 import iped.utils.IOUtil;
-import iped.utils.SeekableFileInputStream;
 import iped.utils.SeekableInputStreamFactory;
 
 /**
@@ -124,10 +118,6 @@ public class ExportFileTask extends AbstractTask {
     private static final String CREATE_TABLE1 = "CREATE TABLE IF NOT EXISTS thumbs(id TEXT PRIMARY KEY, thumb BLOB);";
     private static final String CREATE_TABLE2 = "CREATE TABLE IF NOT EXISTS t1(id TEXT PRIMARY KEY, data BLOB);";
 
-    private static final String INSERT_DATA = "INSERT INTO t1(id, data) VALUES(?,?) ON CONFLICT(id) DO UPDATE SET data=? WHERE data IS NULL;";
-
-    private static final String CHECK_HASH = "SELECT id FROM t1 WHERE id=? AND data IS NOT NULL;";
-
     private static final String SELECT_IDS_WITH_DATA = "SELECT id FROM t1 WHERE data IS NOT NULL;";
 
     private static final String CLEAR_DATA = "DELETE FROM t1 WHERE id=?;";
@@ -135,6 +125,7 @@ public class ExportFileTask extends AbstractTask {
     // maps below are used to track different storages/connections in multicases
     private static HashMap<File, HashMap<Integer, File>> storage = new HashMap<>();
     private static HashMap<File, HashMap<Integer, Connection>> storageCon = new HashMap<>();
+    private static HashMap<File, PackStorageInputStreamFactory> packFactories = new HashMap<>();
 
     private static AtomicInteger counter = new AtomicInteger();
 
@@ -148,7 +139,15 @@ public class ExportFileTask extends AbstractTask {
     private static boolean computeHash = false;
     private static File extractDir;
 
-    private HashMap<IHashValue, IHashValue> hashMap;
+    // locks items with the same hash while their files are written or renamed
+    private static final Object[] hashLocks = new Object[1024];
+
+    static {
+        for (int i = 0; i < hashLocks.length; i++) {
+            hashLocks[i] = new Object();
+        }
+    }
+
     private List<String> noContentLabels;
     private ExportByCategoriesConfig exportByCategories;
     private ExportByKeywordsConfig exportByKeywords;
@@ -196,6 +195,16 @@ private static int getStorageSuffix(byte[] hash) {
         return (hash[0] & 0xFF) >> (8 - DB_SUFFIX_BITS);
     }
 
+    public static File getPackStorageDir(File output) {
+        return new File(output, STORAGE_PREFIX);
+    }
+
+    private static PackStorageInputStreamFactory getPackFactory(File pack) {
+        synchronized (packFactories) {
+            return packFactories.computeIfAbsent(pack, p -> new PackStorageInputStreamFactory(p.toPath()));
+        }
+    }
+
     private static Connection getSQLiteStorageCon(File db) {
         File output = db.getParentFile().getParentFile();
         if (storageCon.get(output) == null) {
@@ -306,9 +315,7 @@ public void process(IItem evidence) {
                 // store references to -nocontent items to be deleted from sqlite storages
                 IHashValue hashValue = evidence.getHashValue();
                 if (hashValue != null) {
-                    synchronized (hashMap) {
-                        // this uses less memory reusing a previous stored reference
-                        hashValue = hashMap.get(hashValue);
+                    synchronized (noContentHashes) {
                         noContentHashes.add(hashValue);
                     }
                 }
@@ -322,6 +329,10 @@ public void process(IItem evidence) {
 
     }
 
+    private static Object getHashLock(IHashValue hash) {
+        return hashLocks[(hash.hashCode() & Integer.MAX_VALUE) % hashLocks.length];
+    }
+
     private boolean doNotExport(IItem evidence) {
         if (noContentLabels == null) {
             CmdLineArgs args = (CmdLineArgs) caseData.getCaseObject(CmdLineArgs.class.getName());
@@ -409,11 +420,7 @@ public void renameToHash(IItem evidence) {
             if (!hashFile.getParentFile().exists()) {
                 hashFile.getParentFile().mkdirs();
             }
-            IHashValue hashVal = new HashValue(hash);
-            IHashValue hashLock;
-            synchronized (hashMap) {
-                hashLock = hashMap.get(hashVal);
-            }
+            Object hashLock = getHashLock(new HashValue(hash));
 
             synchronized (hashLock) {
                 if (!hashFile.exists()) {
@@ -513,10 +520,7 @@ public void extractFile(InputStream inputStream, IItem evidence, Long parentSize
             outputFile = new File(getSubDir(extractDir), Util.getValidFilename(counter.getAndIncrement() + ext));
         } else if ((hash = evidence.getHash()) != null && !hash.isEmpty()) {
             outputFile = getHashFile(hash, ext);
-            IHashValue hashVal = new HashValue(hash);
-            synchronized (hashMap) {
-                hashLock = hashMap.get(hashVal);
-            }
+            hashLock = getHashLock(new HashValue(hash));
 
         } else {
             outputFile = new File(extractDir, Util.getValidFilename("0" + counter.getAndIncrement() + ext)); //$NON-NLS-1$
@@ -608,8 +612,7 @@ public void extractFile(InputStream inputStream, IItem evidence, Long parentSize
 
     }
 
-    private void insertIntoStorage(IItem evidence, byte[] buf, int len)
-            throws InterruptedException, IOException, SQLException, CompressorException {
+    private void insertIntoStorage(IItem evidence, byte[] buf, int len) throws IOException {
         byte[] hash = null;
         String hashString = (String) evidence.getExtraAttribute(HashTask.HASH.MD5.toString());
         if (hashString != null) {
@@ -617,44 +620,15 @@ private void insertIntoStorage(IItem evidence, byte[] buf, int len)
         } else {
             hash = DigestUtils.md5(new ByteArrayInputStream(buf, 0, len));
         }
-        int k = getStorageSuffix(hash);
-        boolean alreadyInDB = false;
         String id = hashString != null ? hashString : new HashValue(hash).toString();
-        try (PreparedStatement ps = storageCon.get(output).get(k).prepareStatement(CHECK_HASH)) {
-            ps.setString(1, id);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                alreadyInDB = true;
-            }
-        }
-        if (!alreadyInDB) {
-            try (PreparedStatement ps = storageCon.get(output).get(k).prepareStatement(INSERT_DATA)) {
-                ps.setString(1, id);
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                OutputStream gzippedOut = new GzipCompressorOutputStream(baos, getGzipParams());
-                // OutputStream gzippedOut = new LZ4BlockOutputStream(baos);
-                gzippedOut.write(buf, 0, len);
-                gzippedOut.close();
-                byte[] bytes = baos.toByteArray();
-                baos = null;
-                ps.setBytes(2, bytes);
-                ps.setBytes(3, bytes);
-                ps.executeUpdate();
-            }
-        }
+        PackStorage packStorage = PackStorage.get(getPackStorageDir(output));
+        packStorage.put(hash, buf, len);
         evidence.setIdInDataSource(id);
-        evidence.setInputStreamFactory(
-                new SQLiteInputStreamFactory(storage.get(output).get(k).toPath(), storageCon.get(output).get(k)));
+        evidence.setInputStreamFactory(getPackFactory(packStorage.getPackFile(hash)));
         evidence.setFileOffset(-1);
         evidence.setLength((long) len);
     }
 
-    private GzipParameters getGzipParams() {
-        GzipParameters compression = new GzipParameters();
-        compression.setCompressionLevel(Deflater.BEST_SPEED);
-        return compression;
-    }
-
     public static class SQLiteInputStreamFactory extends SeekableInputStreamFactory {
 
         private static final String SELECT_DATA = "SELECT data FROM t1 WHERE id=?;";
@@ -693,11 +667,16 @@ public SeekableInputStream getSeekableInputStream(String identifier) throws IOEx
                         }
                     }
                 }
-                InputStream gzippedIn = new GzipCompressorInputStream(new ByteArrayInputStream(bytes));
-                // gzippedIn = new LZ4BlockInputStream(new ByteArrayInputStream(bytes));
-                bytes = IOUtils.toByteArray(gzippedIn);
-                gzippedIn.close();
-                return new SeekableFileInputStream(new SeekableInMemoryByteChannel(bytes));
+                if (bytes == null) {
+                    // data was moved to pack storage by SQLiteStorageMigrator
+                    File storageDir = Paths.get(getDataSourceURI()).toFile().getParentFile();
+                    SeekableInputStream is = PackStorage.get(storageDir)
+                            .getSeekableInputStream(new HashValue(identifier).getBytes());
+                    if (is != null) {
+                        return is;
+                    }
+                }
+                return new GzipSeekableInputStream(bytes);
 
             } catch (Exception e) {
                 e.printStackTrace();
@@ -739,14 +718,11 @@ public void init(ConfigurationManager configurationManager) throws Exception {
 
         itensExtracted = 0;
         subDirCounter = 0;
-
-        hashMap = (HashMap<IHashValue, IHashValue>) caseData.getCaseObject(DuplicateTask.HASH_MAP);
-
     }
 
     @Override
     public void finish() throws Exception {
-        hashMap.clear();
+        PackStorage.close(getPackStorageDir(output));
         if (storageCon.get(output) != null) {
             for (Entry<Integer, Connection> entry : storageCon.get(output).entrySet()) {
                 Connection con = entry.getValue();
@@ -760,7 +736,8 @@ public void finish() throws Exception {
         }
     }
 
-    public static void commitStorage(File output) throws SQLException {
+    public static void commitStorage(File output) throws SQLException, IOException {
+        PackStorage.commit(getPackStorageDir(output));
         if (storageCon.get(output) != null) {
             for (Connection con : storageCon.get(output).values()) {
                 if (con != null && !con.isClosed() && !con.getAutoCommit()) {
@@ -795,6 +772,9 @@ public static void deleteIgnoredItemData(ICaseData caseData, File output, boolea
                 UIPropertyListenerProvider.getInstance().firePropertyChange("mensagem", "",
                         Messages.getString("ExportFileTask.DeletingData2"));
                 Integer deleted = deleteIgnoredSubitemsFromStorage(ipedCase, output);
+                if (PackStorage.exists(getPackStorageDir(output))) {
+                    deleted += deleteIgnoredSubitemsFromPacks(ipedCase, output);
+                }
                 UIPropertyListenerProvider.getInstance().firePropertyChange("mensagem", "",
                         Messages.getString("ExportFileTask.DeletedData2").replace("{}", deleted.toString()));
             }
@@ -819,6 +799,23 @@ private static int deleteIgnoredSubitemsFromFS(SortedDocValues sdv, Path root, F
         return deleted;
     }
 
+    private static int deleteIgnoredSubitemsFromPacks(IPEDSource ipedCase, File output) throws IOException {
+        LOGGER.info("Deleting data from pack storage");
+        SortedDocValues sdv = ipedCase.getAtomicReader().getSortedDocValues(IndexItem.ID_IN_SOURCE);
+        PackStorage packStorage = PackStorage.get(getPackStorageDir(output));
+        int deleted = packStorage.delete(md5 -> {
+            HashValue hash = new HashValue(md5.clone());
+            try {
+                return sdv == null || sdv.lookupTerm(new BytesRef(hash.toString())) < 0
+                        || Collections.binarySearch(noContentHashes, hash) >= 0;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        PackStorage.close(packStorage.getDir());
+        return deleted;
+    }
+
     private static int deleteIgnoredSubitemsFromStorage(IPEDSource ipedCase, File output) throws SQLException {
         final AtomicInteger deleted = new AtomicInteger();
         ArrayList<Future<?>> futures = new ArrayList<>();
@@ -25,6 +25,7 @@
 import iped.engine.config.LocalConfig;
 import iped.engine.hashdb.HashDB;
 import iped.engine.hashdb.HashDBDataSource;
+import iped.engine.hashdb.HashDBFilter;
 import iped.parsers.util.ChildPornHashLookup;
 import iped.parsers.util.ChildPornHashLookup.LookupProvider;
 
@@ -53,7 +54,7 @@ public class HashDBLookupTask extends AbstractTask {
     private static File hashDBFile;
     private static String[] hashesAttributes;
 
-    private HashDBDataSource hashDBDataSource;
+    private static HashDBDataSource hashDBDataSource;
 
     private byte[][] hashes;
     private final Map<String, String> properties = new HashMap<String, String>();
@@ -104,7 +105,15 @@ public void init(ConfigurationManager configurationManager) throws Exception {
                                 taskEnabled = false;
                             } else {
                                 excludeKnown = hashDBConfig.isExcludeKnown();
-                                hashDBDataSource = new HashDBDataSource(hashDBFile);
+                                int numConnections = hashDBConfig.getLookupConnections();
+                                if (numConnections <= 0) {
+                                    numConnections = localConfig.getNumThreads();
+                                }
+                                hashDBDataSource = new HashDBDataSource(hashDBFile, numConnections,
+                                        hashDBConfig.getLookupMmapSize());
+                                if (hashDBConfig.isUseLookupFilter()) {
+                                    loadFilter();
+                                }
                                 addLookupProvider(hashDBDataSource);
                                 if (hashDBConfig.getNsrlConfig() != null) {
                                     loadNsrlConfig(hashDBConfig.getNsrlConfig());
@@ -114,6 +123,7 @@ public void init(ConfigurationManager configurationManager) throws Exception {
                                 }
                                 logger.info("HashDB: {}", hashDBFile.getAbsolutePath());
                                 logger.info("Exclude Known: {}", excludeKnown);
+                                logger.info("Lookup connections: {}", numConnections);
                             }
                         }
                     }
@@ -124,10 +134,41 @@ public void init(ConfigurationManager configurationManager) throws Exception {
         }
         if (taskEnabled) {
             hashes = new byte[hashesAttributes.length][];
-            if (hashDBDataSource == null) hashDBDataSource = new HashDBDataSource(hashDBFile);
         }
     }
 
+    private void loadFilter() {
+        long t = System.currentTimeMillis();
+        File filterFile = HashDBFilter.getFilterFile(hashDBFile);
+        HashDBFilter filter = null;
+        try {
+            filter = HashDBFilter.load(hashDBFile);
+            if (filter != null) {
+                logger.info("Lookup filter loaded from {} in {} ms.", filterFile.getPath(),
+                        System.currentTimeMillis() - t);
+            }
+        } catch (Exception e) {
+            logger.warn("Error reading lookup filter file " + filterFile.getPath(), e);
+        }
+        if (filter == null) {
+            try {
+                filter = hashDBDataSource.buildFilter();
+                logger.info("Lookup filter built in {} ms.", System.currentTimeMillis() - t);
+            } catch (Exception e) {
+                logger.warn("Error building lookup filter", e);
+                return;
+            }
+            try {
+                filter.write(hashDBFile);
+                logger.info("Lookup filter file {} was created.", filterFile.getPath());
+            } catch (Exception e) {
+                logger.warn("Error writing lookup filter file " + filterFile.getPath(), e);
+            }
+        }
+        logger.info("Lookup filter size: {} MB", filter.sizeInBytes() >>> 20);
+        hashDBDataSource.setFilter(filter);
+    }
+
     private void addLookupProvider(HashDBDataSource hashDBDataSource) {
         ChildPornHashLookup.addLookupProvider(new LookupProvider() {
             public List<String> lookupHash(String algorithm, String hash) {
@@ -145,9 +186,6 @@ public List<String> lookupHash(String algorithm, String hash) {
     public void finish() throws Exception {
         synchronized (finish) {
             if (!finish.get()) {
-                if (hashDBDataSource != null) {
-                    hashDBDataSource.close();
-                }
                 if (excluded > 0) {
                     logger.info("Items ignored by hash database lookup: {}", excluded);
                 }
@@ -156,6 +194,16 @@ public void finish() throws Exception {
                     logger.info("Total items found: {}", totFound.longValue());
                     logger.info("Average processing time (ms/item): {}", String.format("%.2f", totTime.longValue() / 1e6 / totProcessed.longValue()));
                 }
+                if (hashDBDataSource != null) {
+                    logger.info("Lookups skipped by filter: {}", hashDBDataSource.getFilteredLookups());
+                    int i = 0;
+                    for (HashDBDataSource.LookupConnection lc : hashDBDataSource.getLookupConnections()) {
+                        long lookups = lc.getLookups();
+                        logger.info("Lookup connection #{}: lookups = {}, hits = {}, average time (ms/lookup) = {}", i++,
+                                lookups, lc.getHits(), lookups == 0 ? "-" : String.format("%.3f", lc.getTime() / 1e6 / lookups));
+                    }
+                    hashDBDataSource.close();
+                }
                 finish.set(true);
             }
         }
@@ -778,6 +778,10 @@ public void init(ConfigurationManager configurationManager) {
         parsingConfig = configurationManager.findObject(ParsingTaskConfig.class);
         expandConfig = configurationManager.findObject(CategoryToExpandConfig.class);
 
+        if (parsingConfig.getTextCacheMaxMemory() > 0) {
+            TextCache.setMemoryBudget(parsingConfig.getTextCacheMaxMemory());
+        }
+
         SplitLargeBinaryConfig splitConfig = configurationManager.findObject(SplitLargeBinaryConfig.class);
         minItemSizeToFragment = splitConfig.getMinItemSizeToFragment();
 
@@ -1,12 +1,7 @@
 package iped.engine.task;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -18,9 +13,6 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.eatthepath.jvptree.DistanceFunction;
-import com.eatthepath.jvptree.VPTree;
-
 import br.dpf.sepinf.photodna.api.PhotoDNATransforms;
 import iped.configuration.Configurable;
 import iped.data.IItem;
@@ -29,15 +21,15 @@
 import iped.engine.config.LocalConfig;
 import iped.engine.config.PhotoDNALookupConfig;
 import iped.engine.hashdb.HashDBDataSource;
+import iped.engine.hashdb.PhotoDnaIndex;
 import iped.engine.hashdb.PhotoDnaItem;
 import iped.utils.HashValue;
-import iped.utils.IOUtil;
 
 public class PhotoDNALookup extends AbstractTask {
 
     private static Logger LOGGER = LoggerFactory.getLogger(PhotoDNALookup.class);
 
-    private static final String cachePath = System.getProperty("user.home") + "/.iped/photodnalookup.cache";
+    private static final String cachePath = System.getProperty("user.home") + "/.iped/photodnalookup.idx";
 
     public static final String PHOTO_DNA_HIT_PREFIX = "photoDnaDb:";
 
@@ -51,9 +43,7 @@ public class PhotoDNALookup extends AbstractTask {
 
     private static final AtomicBoolean finished = new AtomicBoolean(false);
 
-    private static VPDistance photoDNADistance = new VPDistance();
-
-    private static VPTree<PhotoDnaItem, PhotoDnaItem> vptree = new VPTree<PhotoDnaItem, PhotoDnaItem>(photoDNADistance);
+    private static PhotoDnaIndex photoDnaIndex;
 
     private static boolean taskEnabled;
 
@@ -99,15 +89,20 @@ public void init(ConfigurationManager configurationManager) throws Exception {
                         } else {
                             long t = System.currentTimeMillis();
                             hashDBDataSource = new HashDBDataSource(hashDBFile);
-                            ArrayList<PhotoDnaItem> photoDNAHashSet = readCache(hashDBFile,
-                                    pdnaLookupConfig.getStatusHashDBFilter());
-                            if (photoDNAHashSet != null) {
-                                LOGGER.info("Load from cache file {}.", cachePath);
+                            String filter = pdnaLookupConfig.getStatusHashDBFilter();
+                            File indexFile = PhotoDnaIndex.getIndexFile(hashDBFile);
+                            photoDnaIndex = PhotoDnaIndex.load(indexFile, hashDBFile, filter);
+                            if (photoDnaIndex == null) {
+                                indexFile = new File(cachePath);
+                                photoDnaIndex = PhotoDnaIndex.load(indexFile, hashDBFile, filter);
+                            }
+                            if (photoDnaIndex != null) {
+                                LOGGER.info("Load from index file {}.", indexFile.getPath());
                             } else {
                                 Set<String> statusFilter = null;
-                                if (!pdnaLookupConfig.getStatusHashDBFilter().isEmpty()) {
+                                if (!filter.isEmpty()) {
                                     statusFilter = new HashSet<String>();
-                                    String[] s = pdnaLookupConfig.getStatusHashDBFilter().split(",");
+                                    String[] s = filter.split(",");
                                     for(String a : s) {
                                         a = a.trim();
                                         if (!a.isEmpty()) {
@@ -115,19 +110,26 @@ public void init(ConfigurationManager configurationManager) throws Exception {
                                         }
                                     }
                                 }
-                                photoDNAHashSet = hashDBDataSource.readPhotoDNA(statusFilter);
+                                ArrayList<PhotoDnaItem> photoDNAHashSet = hashDBDataSource.readPhotoDNA(statusFilter);
                                 if (photoDNAHashSet == null || photoDNAHashSet.isEmpty()) {
                                     LOGGER.error("PhotoDNA hashes must be loaded into IPED hashes database to enable PhotoDNALookup.");
-                                } else if (writeCache(hashDBFile, photoDNAHashSet,
-                                        pdnaLookupConfig.getStatusHashDBFilter())) {
-                                    LOGGER.info("Cache file {} was created.", cachePath);
+                                } else {
+                                    LOGGER.info("{} PhotoDNA Hashes loaded in {} ms.", photoDNAHashSet.size(), System.currentTimeMillis() - t);
+                                    t = System.currentTimeMillis();
+                                    try {
+                                        PhotoDnaIndex.write(photoDNAHashSet, indexFile, hashDBFile, filter);
+                                    } catch (IOException e) {
+                                        LOGGER.warn("Error writing index file " + indexFile.getPath(), e);
+                                        indexFile = File.createTempFile("photodnalookup", ".idx");
+                                        indexFile.deleteOnExit();
+                                        PhotoDnaIndex.write(photoDNAHashSet, indexFile, hashDBFile, filter);
+                                    }
+                                    photoDnaIndex = PhotoDnaIndex.load(indexFile, hashDBFile, filter);
+                                    LOGGER.info("Index file {} was created in {} ms.", indexFile.getPath(), System.currentTimeMillis() - t);
                                 }
                             }
-                            if (photoDNAHashSet != null && !photoDNAHashSet.isEmpty()) { 
-                                LOGGER.info("{} PhotoDNA Hashes loaded in {} ms.", photoDNAHashSet.size(), System.currentTimeMillis() - t);
-                                t = System.currentTimeMillis();
-                                vptree.addAll(photoDNAHashSet);
-                                LOGGER.info("Data structure built in {} ms.", System.currentTimeMillis() - t);
+                            if (photoDnaIndex != null && photoDnaIndex.size() > 0) {
+                                LOGGER.info("{} PhotoDNA Hashes ready in {} ms.", photoDnaIndex.size(), System.currentTimeMillis() - t);
                                 taskEnabled = true;
                             }
                         }
@@ -139,24 +141,6 @@ public void init(ConfigurationManager configurationManager) throws Exception {
         }
     }
 
-    private static class VPDistance implements DistanceFunction<PhotoDnaItem> {
-
-        @Override
-        public double getDistance(PhotoDnaItem o1, PhotoDnaItem o2) {
-            int distance = 0;
-            byte[] b1 = o1.getBytes();
-            byte[] b2 = o2.getBytes();
-            for (int i = 0; i < b1.length; i++) {
-                int diff = (0xff & b1[i]) - (0xff & b2[i]);
-                distance += diff * diff;
-            }
-            // This is not a metric (do not satisfy triangle inequality)
-            // Might it produce a wrong VPTree index???
-            return distance;
-        }
-
-    }
-
     @Override
     public boolean isEnabled() {
         return taskEnabled;
@@ -169,10 +153,7 @@ public void finish() throws Exception {
                 if (hashDBDataSource != null) {
                     hashDBDataSource.close();
                 }
-                if (vptree != null) {
-                    vptree.clear();
-                    vptree = null;
-                }
+                photoDnaIndex = null;
                 finished.set(true);
             }
         }
@@ -190,19 +171,10 @@ protected void process(IItem evidence) throws Exception {
         boolean flip = false;
         while (rot == 0 || (pdnaLookupConfig.isRotateAndFlip() && rot < 4)) {
             int degree = 90 * rot++;
-            PhotoDnaItem photoDnaItemRot = new PhotoDnaItem(-1, transforms.rot(photodna.getBytes(), degree, flip));
-            List<PhotoDnaItem> neighbors = vptree.getAllWithinDistance(photoDnaItemRot, pdnaLookupConfig.getMaxDistance());
-
-            PhotoDnaItem nearest = null;
-            int minDist = Integer.MAX_VALUE;
-            for (PhotoDnaItem neighbor : neighbors) {
-                int dist = (int) photoDNADistance.getDistance(neighbor, photoDnaItemRot);
-                if (dist < minDist) {
-                    minDist = dist;
-                    nearest = neighbor;
-                }
-            }
+            byte[] hashRot = transforms.rot(photodna.getBytes(), degree, flip);
+            PhotoDnaItem nearest = photoDnaIndex.findNearest(hashRot, pdnaLookupConfig.getMaxDistance());
             if (nearest != null) {
+                int minDist = PhotoDnaIndex.distance(hashRot, nearest.getBytes());
                 evidence.setExtraAttribute(PHOTO_DNA_HIT, "true");
                 evidence.setExtraAttribute(PHOTO_DNA_DIST, minDist);
                 evidence.setExtraAttribute(PHOTO_DNA_NEAREAST_HASH, nearest.toString());
@@ -226,84 +198,4 @@ protected void process(IItem evidence) throws Exception {
             }
         }
     }
-
-    private boolean writeCache(File hashDBFile, ArrayList<PhotoDnaItem> photoDNAHashSet, String filter) {
-        File cacheFile = new File(cachePath);
-        boolean ret = false;
-        DataOutputStream os = null;
-        try {
-            if (cacheFile.getParentFile() != null && !cacheFile.getParentFile().exists()) {
-                cacheFile.getParentFile().mkdirs();
-            }
-            os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile)));
-            os.writeLong(hashDBFile.length());
-            os.writeLong(hashDBFile.lastModified());
-            os.writeInt(filter.length());
-            os.writeChars(filter);
-            os.writeInt(photoDNAHashSet.size());
-            for (PhotoDnaItem v : photoDNAHashSet) {
-                os.writeInt(v.getHashId());
-                byte[] b = v.getBytes();
-                os.write(b);
-            }
-            ret = true;
-        } catch (Exception e) {
-            LOGGER.warn("Error writing cache file " + cacheFile.getPath(), e);
-            return false;
-        } finally {
-            IOUtil.closeQuietly(os);
-            if (!ret) {
-                try {
-                    cacheFile.delete();
-                } catch (Exception e) {}
-            }
-        }
-        return ret;
-    }
-
-    private ArrayList<PhotoDnaItem> readCache(File hashDBFile, String filter) {
-        File cacheFile = new File(cachePath);
-        if (!cacheFile.exists()) return null;
-        DataInputStream is = null;
-        boolean ret = false;
-        ArrayList<PhotoDnaItem> photoDNAHashSet = null;
-        try {
-            is = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 1 << 20));
-            long fileLen = is.readLong();
-            if (fileLen == hashDBFile.length()) {
-                long fileLastModified = is.readLong();
-                if (fileLastModified == hashDBFile.lastModified()) {
-                    int filterLen = is.readInt();
-                    if (filterLen == filter.length()) {
-                        char[] c = new char[filterLen];
-                        for (int i = 0; i < filterLen; i++) {
-                            c[i] = is.readChar();
-                        }
-                        if (filter.equals(new String(c))) {
-                            int len = is.readInt();
-                            photoDNAHashSet = new ArrayList<PhotoDnaItem>(len);
-                            for (int i = 0; i < len; i++) {
-                                int hashId = is.readInt();
-                                byte[] b = new byte[PhotoDNATask.HASH_SIZE];
-                                is.read(b);
-                                photoDNAHashSet.add(new PhotoDnaItem(hashId, b));
-                            }
-                            ret = true;
-                        }
-                    }
-                }
-            }
-        } catch (Exception e) {
-            LOGGER.warn("Error reading cache file " + cacheFile.getPath(), e);
-            return null;
-        } finally {
-            IOUtil.closeQuietly(is);
-            if (!ret) {
-                try {
-                    cacheFile.delete();
-                } catch (Exception e) {}
-            }
-        }
-        return ret ? photoDNAHashSet : null;
-    }
 }
@@ -5,14 +5,11 @@
 import java.io.InputStream;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.TreeMap;
 
 import org.apache.tika.mime.MediaType;
-import org.arabidopsis.ahocorasick.AhoCorasick;
-import org.arabidopsis.ahocorasick.SearchResult;
-import org.arabidopsis.ahocorasick.Searcher;
+import org.arabidopsis.ahocorasick.CompiledAhoCorasick;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,7 +50,6 @@ public class CarverTask extends BaseCarveTask {
     long prevLen = 0;
     int len = 0, k = 0;
     byte[] buf = new byte[1024 * 1024];
-    byte[] cBuf;
 
     public static void setEnabled(boolean enabled) {
         enableCarving = enabled;
@@ -137,10 +133,6 @@ private void fillBuf(InputStream in) throws IOException {
         while (k != -1 && (len += k) < buf.length) {
             k = in.read(buf, len, buf.length - len);
         }
-
-        cBuf = new byte[len];
-        System.arraycopy(buf, 0, cBuf, 0, len);
-
     }
 
     private Hit findSig(InputStream in) throws Exception {
@@ -149,21 +141,18 @@ private Hit findSig(InputStream in) throws Exception {
             map.put(carverTypes[i], new TreeMap<Long, Integer>());
         }
 
-        AhoCorasick tree = carverConfig.getPopulatedTree();
-        SearchResult lastResult = new SearchResult(tree.root, null, 0);
+        CompiledAhoCorasick.Cursor cursor = carverConfig.getPopulatedTree().compile().newCursor();
         do {
             fillBuf(in);
-            lastResult = new SearchResult(lastResult.lastMatchedState, cBuf, 0);
-            Iterator<SearchResult> searcher = new Searcher(tree, tree.continueSearch(lastResult));
+            cursor.reset(buf, 0, len);
 
-            while (searcher.hasNext()) {
-                lastResult = searcher.next();
+            while (cursor.next()) {
 
-                for (Object out : lastResult.getOutputs()) {
+                for (Object out : cursor.getOutputs()) {
                     Object[] oarray = (Object[]) out;
                     Signature sig = (Signature) oarray[0];
                     int seq = (int) oarray[1];
-                    int i = lastResult.getLastIndex() - sig.seqEndPos[seq];
+                    int i = cursor.getLastIndex() - sig.seqEndPos[seq];
 
                     // tratamento para assinaturas com ? (divididas)
                     if (sig.seqs.length > 1) {
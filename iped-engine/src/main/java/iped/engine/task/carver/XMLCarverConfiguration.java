@@ -269,6 +269,8 @@ synchronized public void configListener(CarvedItemListener carvedItemListener)
                     }
                 }
                 tree.prepare();
+                // builds the flattened automaton used by CarverTask just once
+                tree.compile();
             }
 
         } catch (Exception e) {
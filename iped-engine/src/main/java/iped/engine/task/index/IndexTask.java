@@ -32,6 +32,7 @@
 import iped.engine.io.CloseFilterReader;
 import iped.engine.io.FragmentingReader;
 import iped.engine.io.ParsingReader;
+import iped.engine.io.TextStore;
 import iped.engine.task.AbstractTask;
 import iped.engine.task.ParsingTask;
 import iped.engine.task.SkipCommitedTask;
@@ -142,6 +143,8 @@ public void process(IItem evidence) throws IOException {
 
         if (textReader == null)
             textReader = new StringReader(""); //$NON-NLS-1$
+        else if (indexConfig.isStoreExtractedText() && evidence.isToAddToCase())
+            textReader = TextStore.getStoringReader(output, evidence.getId(), textReader);
 
         FragmentingReader fragReader = new FragmentingReader(textReader, indexConfig.getTextSplitSize(),
                 indexConfig.getTextOverlapSize());
@@ -268,6 +271,7 @@ public void finish() throws Exception {
         if (!finished.getAndSet(true)) {
             saveExtraAttributes(output);
             IndexItem.saveMetadataTypes(new File(output, "conf")); //$NON-NLS-1$
+            TextStore.close(output);
         }
     }
 
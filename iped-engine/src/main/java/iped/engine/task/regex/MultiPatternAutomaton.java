@@ -0,0 +1,287 @@
+package iped.engine.task.regex;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import dk.brics.automaton.Automaton;
+import dk.brics.automaton.State;
+import dk.brics.automaton.Transition;
+
+/**
+ * Deterministic automaton equivalent to the union of many automata, whose
+ * accepting states are tagged with the ids of the original automata that accept
+ * the input consumed so far. So a single pass over the text finds the matches
+ * and the patterns that matched, without running each pattern again on each hit.
+ *
+ * Matches are found with the same leftmost-longest semantics of
+ * {@link dk.brics.automaton.AutomatonMatcher}.
+ */
+public class MultiPatternAutomaton implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Returned by {@link #find(char[], int, int, boolean, Match)} when the buffer
+     * ends before the match starting at {@link Match#start} is decided.
+     */
+    public static final int NEED_MORE_INPUT = -2;
+
+    private final int size;
+    private final char[] points;
+    private final int[] classmap;
+    private final int[] transitions;
+    private final int[][] accept;
+
+    /**
+     * Match found by {@link MultiPatternAutomaton#find}.
+     */
+    public static class Match {
+
+        int start, end;
+        int[] ids;
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+
+        /**
+         * @return ids (indexes in the list used to build the automaton) of the
+         *         patterns that match the whole [start, end) range, in ascending
+         *         order.
+         */
+        public int[] getIds() {
+            return ids;
+        }
+    }
+
+    /**
+     * Builds the automaton with a subset construction over the states of all
+     * given automata. The id of each pattern is its index in the list.
+     */
+    public MultiPatternAutomaton(List<Automaton> automata) {
+
+        // global numbering of all states of all automata
+        List<State> states = new ArrayList<>();
+        List<Integer> stateOwner = new ArrayList<>();
+        Map<State, Integer> stateIds = new IdentityHashMap<>();
+        int[] initialStates = new int[automata.size()];
+        TreeSet<Character> pointSet = new TreeSet<>();
+        pointSet.add(Character.MIN_VALUE);
+        for (int i = 0; i < automata.size(); i++) {
+            Automaton a = automata.get(i);
+            State initial = a.getInitialState();
+            for (State s : a.getStates()) {
+                stateIds.put(s, states.size());
+                states.add(s);
+                stateOwner.add(i);
+                for (Transition t : s.getTransitions()) {
+                    pointSet.add(t.getMin());
+                    if (t.getMax() < Character.MAX_VALUE) {
+                        pointSet.add((char) (t.getMax() + 1));
+                    }
+                }
+            }
+            initialStates[i] = stateIds.get(initial);
+        }
+
+        points = new char[pointSet.size()];
+        int n = 0;
+        for (char c : pointSet) {
+            points[n++] = c;
+        }
+        classmap = new int[Character.MAX_VALUE + 1];
+        for (int k = 0, c = 0; c <= Character.MAX_VALUE; c++) {
+            if (k + 1 < points.length && c == points[k + 1]) {
+                k++;
+            }
+            classmap[c] = k;
+        }
+
+        // transitions of each state as (first class, last class, dest)
+        int[][] stateTrans = new int[states.size()][];
+        int[] stateAccept = new int[states.size()];
+        for (int s = 0; s < states.size(); s++) {
+            State state = states.get(s);
+            stateAccept[s] = state.isAccept() ? stateOwner.get(s) : -1;
+            int[] trans = new int[state.getTransitions().size() * 3];
+            int j = 0;
+            for (Transition t : state.getTransitions()) {
+                trans[j++] = classmap[t.getMin()];
+                trans[j++] = classmap[t.getMax()];
+                trans[j++] = stateIds.get(t.getDest());
+            }
+            stateTrans[s] = trans;
+        }
+
+        // subset construction
+        int numClasses = points.length;
+        Map<IntArray, Integer> subsetIds = new HashMap<>();
+        List<int[]> subsets = new ArrayList<>();
+        IntArray initialSet = new IntArray(sortUnique(initialStates.clone(), initialStates.length));
+        subsetIds.put(initialSet, 0);
+        subsets.add(initialSet.values);
+
+        int[][] buckets = new int[numClasses][];
+        int[] bucketSizes = new int[numClasses];
+        int[] trans = new int[numClasses * 16];
+        for (int d = 0; d < subsets.size(); d++) {
+            int[] subset = subsets.get(d);
+            Arrays.fill(bucketSizes, 0);
+            for (int s : subset) {
+                int[] st = stateTrans[s];
+                for (int j = 0; j < st.length; j += 3) {
+                    for (int k = st[j]; k <= st[j + 1]; k++) {
+                        int[] bucket = buckets[k];
+                        if (bucket == null) {
+                            bucket = buckets[k] = new int[4];
+                        } else if (bucketSizes[k] == bucket.length) {
+                            bucket = buckets[k] = Arrays.copyOf(bucket, bucket.length * 2);
+                        }
+                        bucket[bucketSizes[k]++] = st[j + 2];
+                    }
+                }
+            }
+            if ((d + 1) * numClasses > trans.length) {
+                trans = Arrays.copyOf(trans, Math.max((d + 1) * numClasses, trans.length * 2));
+            }
+            int[] prev = null;
+            int prevDest = -1;
+            for (int k = 0; k < numClasses; k++) {
+                int dest = -1;
+                if (bucketSizes[k] > 0) {
+                    int[] target = sortUnique(Arrays.copyOf(buckets[k], bucketSizes[k]), bucketSizes[k]);
+                    if (prev != null && Arrays.equals(prev, target)) {
+                        dest = prevDest;
+                    } else {
+                        IntArray key = new IntArray(target);
+                        Integer id = subsetIds.get(key);
+                        if (id == null) {
+                            id = subsets.size();
+                            subsetIds.put(key, id);
+                            subsets.add(target);
+                        }
+                        dest = id;
+                        prev = target;
+                        prevDest = dest;
+                    }
+                }
+                trans[d * numClasses + k] = dest;
+            }
+        }
+        size = subsets.size();
+        transitions = Arrays.copyOf(trans, size * numClasses);
+
+        // accept ids of each state, sharing equal arrays
+        accept = new int[size][];
+        Map<IntArray, int[]> acceptCache = new HashMap<>();
+        for (int d = 0; d < size; d++) {
+            int[] subset = subsets.get(d);
+            int[] ids = new int[subset.length];
+            int num = 0;
+            for (int s : subset) {
+                if (stateAccept[s] != -1) {
+                    ids[num++] = stateAccept[s];
+                }
+            }
+            if (num > 0) {
+                ids = sortUnique(ids, num);
+                IntArray key = new IntArray(ids);
+                int[] cached = acceptCache.putIfAbsent(key, ids);
+                accept[d] = cached != null ? cached : ids;
+            }
+        }
+    }
+
+    private static int[] sortUnique(int[] a, int len) {
+        Arrays.sort(a, 0, len);
+        int n = 0;
+        for (int i = 0; i < len; i++) {
+            if (n == 0 || a[n - 1] != a[i]) {
+                a[n++] = a[i];
+            }
+        }
+        return n == a.length ? a : Arrays.copyOf(a, n);
+    }
+
+    private static class IntArray {
+
+        private final int[] values;
+        private final int hash;
+
+        private IntArray(int[] values) {
+            this.values = values;
+            this.hash = Arrays.hashCode(values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof IntArray && Arrays.equals(values, ((IntArray) obj).values);
+        }
+    }
+
+    /**
+     * @return number of states of this automaton.
+     */
+    public int getNumberOfStates() {
+        return size;
+    }
+
+    /**
+     * Finds the leftmost longest match in buf[from, to).
+     *
+     * @param endOfInput
+     *            if there are no more chars after buf[to - 1]. If false, a match
+     *            that could continue after the end of buffer is not decided and
+     *            {@link #NEED_MORE_INPUT} is returned, with {@link Match#start}
+     *            set to the position to continue from when more input is
+     *            available.
+     * @return the start of the match found, -1 if there is no match in the
+     *         range or {@link #NEED_MORE_INPUT}.
+     */
+    public int find(char[] buf, int from, int to, boolean endOfInput, Match match) {
+        final int numClasses = points.length;
+        for (int begin = from; begin < to; begin++) {
+            int p = 0;
+            int matchEnd = -1;
+            int[] ids = null;
+            int i = begin;
+            for (; i < to; i++) {
+                p = transitions[p * numClasses + classmap[buf[i]]];
+                if (p == -1) {
+                    break;
+                }
+                if (accept[p] != null) {
+                    matchEnd = i + 1;
+                    ids = accept[p];
+                }
+            }
+            if (i == to && p != -1 && !endOfInput) {
+                match.start = begin;
+                return NEED_MORE_INPUT;
+            }
+            if (matchEnd != -1) {
+                match.start = begin;
+                match.end = matchEnd;
+                match.ids = ids;
+                return begin;
+            }
+        }
+        return -1;
+    }
+
+}
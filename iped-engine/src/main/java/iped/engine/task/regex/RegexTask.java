@@ -16,6 +16,7 @@
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -28,11 +29,8 @@
 import org.slf4j.LoggerFactory;
 
 import dk.brics.automaton.Automaton;
-import dk.brics.automaton.AutomatonMatcher;
-import dk.brics.automaton.BasicOperations;
 import dk.brics.automaton.DatatypesAutomatonProvider;
 import dk.brics.automaton.RegExp;
-import dk.brics.automaton.RunAutomaton;
 import iped.configuration.Configurable;
 import iped.data.IItem;
 import iped.engine.config.ConfigurationManager;
@@ -47,6 +45,7 @@
 import iped.engine.task.HashTask;
 import iped.engine.task.PhotoDNALookup;
 import iped.engine.task.index.IndexItem;
+import iped.engine.task.regex.MultiPatternAutomaton.Match;
 import iped.properties.ExtraProperties;
 
 public class RegexTask extends AbstractTask {
@@ -59,11 +58,14 @@ public class RegexTask extends AbstractTask {
 
     private static Logger logger = LoggerFactory.getLogger(RegexTask.class);
 
+    // increment when the format of cached objects changes
+    private static final int CACHE_VERSION = 2;
+
     private static final File cacheFile = new File(System.getProperty("user.home"), ".iped/regexAutomata.cache");
 
     private static List<Regex> regexList;
 
-    private static Regex regexFull;
+    private static MultiPatternAutomaton multiPattern;
 
     private static FSTConfiguration fastSerializer = FSTConfiguration.createDefaultConfiguration();
 
@@ -89,6 +91,8 @@ public class RegexTask extends AbstractTask {
 
     private char[] cbuf = new char[1 << 20];
 
+    private Match match = new Match();
+
     private static RegexValidator regexValidator;
 
     private RegexTaskConfig regexConfig;
@@ -103,7 +107,6 @@ static class Regex implements Serializable {
         String name;
         int prefix, sufix;
         Automaton automaton;
-        RunAutomaton pattern;
         boolean ignoreCases;
 
         public Regex(String name, int prefix, int sufix, boolean ignoreCases, boolean ignoreDiacritics, String regex) {
@@ -126,7 +129,6 @@ public Regex(String name, Automaton aut, boolean ignoreCases, boolean ignoreDiac
             this.ignoreCases = ignoreCases;
             this.name = name;
             this.automaton = aut;
-            this.pattern = new RunAutomaton(aut);
         }
     }
 
@@ -204,9 +206,9 @@ public void init(ConfigurationManager configurationManager) throws Exception {
                 for (Regex regex : regexList) {
                     automatonList.add(regex.automaton);
                 }
-                Automaton automata = BasicOperations.union(automatonList);
-                regexFull = new Regex("FULL", automata); //$NON-NLS-1$
-                logger.info("Created the unique automaton for all regexes.");
+                multiPattern = new MultiPatternAutomaton(automatonList);
+                logger.info("Created the unique automaton for all regexes with {} states.",
+                        multiPattern.getNumberOfStates());
 
                 writeCache(regexConfig, exportConfig);
                 logger.info("Regex cache saved to {}", cacheFile.getAbsolutePath());
@@ -223,7 +225,7 @@ private void writeCache(RegexTaskConfig regexConfig, ExportByKeywordsConfig expo
                 DataOutputStream dos = new DataOutputStream(bos)) {
             byte[] md5 = getMd5FromConfigs(regexConfig, exportConfig);
             byte[] list = fastSerializer.asByteArray(regexList);
-            byte[] full = fastSerializer.asByteArray(regexFull);
+            byte[] full = fastSerializer.asByteArray(multiPattern);
             dos.write(md5);
             dos.writeInt(list.length);
             dos.write(list);
@@ -252,7 +254,7 @@ private boolean loadCache(RegexTaskConfig regexConfig, ExportByKeywordsConfig ex
             int fullLen = dis.readInt();
             byte[] full = new byte[fullLen];
             dis.readFully(full);
-            regexFull = (Regex) fastSerializer.asObject(full);
+            multiPattern = (MultiPatternAutomaton) fastSerializer.asObject(full);
             return true;
         }
     }
@@ -261,6 +263,7 @@ private byte[] getMd5FromConfigs(RegexTaskConfig regexConfig, ExportByKeywordsCo
             throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+            oos.writeInt(CACHE_VERSION);
             oos.writeObject(regexConfig);
             oos.writeObject(exportConfig);
         }
@@ -276,7 +279,7 @@ private synchronized void initValidators(File confDir) {
 
     @Override
     public void finish() throws Exception {
-        regexFull = null;
+        multiPattern = null;
         regexList = null;
     }
 
@@ -310,53 +313,67 @@ private Reader getExtraAttributeReader(IItem item) {
     @SuppressWarnings("unchecked")
     private void processRegex(IItem evidence, Reader reader) throws IOException {
 
-        int k = 0;
+        // chars not consumed by the previous chunk (a possible match crossing the
+        // chunk boundary) are kept at the beginning of cbuf
+        int len = 0;
         long totalOffset = 0;
-        while (k != -1) {
-            int off = 0;
-            k = 0;
-            while (k != -1 && (off += k) < cbuf.length)
-                k = reader.read(cbuf, off, cbuf.length - off);
-
-            String text = new String(cbuf, 0, off);
-
-            List<Map<String, RegexHits>> hitList = new ArrayList<Map<String, RegexHits>>();
-            for (int i = 0; i < regexList.size(); i++) {
-                hitList.add(new HashMap<>());
-            }
-
-            AutomatonMatcher fullMatcher = regexFull.pattern.newMatcher(text);
-            while (fullMatcher.find()) {
-                int start = fullMatcher.start();
-                int end = fullMatcher.end();
-                String fullHit = text.substring(start, end);
-                int i = 0;
-                for (Regex regex : regexList) {
-                    if (regex.pattern.run(fullHit)) {
-                        String hit = fullHit.substring(regex.prefix, fullHit.length() - regex.sufix);
-                        if (regex.ignoreCases)
-                            hit = hit.toLowerCase();
-                        if (regexValidator.validate(regex, hit)) {
-                            if (regexConfig.isFormatRegexMatches()) {
-                                hit = regexValidator.format(regex, hit);
-                            }
-                            Map<String, RegexHits> hitMap = hitList.get(i);
-                            RegexHits hits = hitMap.get(hit);
-                            if (hits == null) {
-                                hits = new RegexHits(hit);
-                                hitMap.put(hit, hits);
-                            }
-                            hits.addOffset(totalOffset + start + regex.prefix);
+        boolean eof = false;
+        while (!eof) {
+            int k;
+            while (len < cbuf.length && (k = reader.read(cbuf, len, cbuf.length - len)) != -1)
+                len += k;
+            eof = len < cbuf.length;
+
+            List<Map<String, RegexHits>> hitList = new ArrayList<>(Collections.nCopies(regexList.size(), null));
+
+            int pos = 0;
+            boolean force = false;
+            while (true) {
+                int start = multiPattern.find(cbuf, pos, len, eof || force, match);
+                force = false;
+                if (start == MultiPatternAutomaton.NEED_MORE_INPUT) {
+                    if (match.getStart() == 0 && len == cbuf.length) {
+                        // match longer than the buffer, decide it with the chars read
+                        force = true;
+                        continue;
+                    }
+                    pos = match.getStart();
+                    break;
+                }
+                if (start == -1) {
+                    pos = len;
+                    break;
+                }
+                int end = match.getEnd();
+                for (int i : match.getIds()) {
+                    Regex regex = regexList.get(i);
+                    String hit = new String(cbuf, start + regex.prefix, end - start - regex.prefix - regex.sufix);
+                    if (regex.ignoreCases)
+                        hit = hit.toLowerCase();
+                    if (regexValidator.validate(regex, hit)) {
+                        if (regexConfig.isFormatRegexMatches()) {
+                            hit = regexValidator.format(regex, hit);
+                        }
+                        Map<String, RegexHits> hitMap = hitList.get(i);
+                        if (hitMap == null) {
+                            hitMap = new HashMap<>();
+                            hitList.set(i, hitMap);
                         }
+                        RegexHits hits = hitMap.get(hit);
+                        if (hits == null) {
+                            hits = new RegexHits(hit);
+                            hitMap.put(hit, hits);
+                        }
+                        hits.addOffset(totalOffset + start + regex.prefix);
                     }
-                    i++;
                 }
+                pos = end;
             }
             for (int i = 0; i < regexList.size(); i++) {
-                if (hitList.get(i).size() > 0) {
+                Map<String, RegexHits> hitsMap = hitList.get(i);
+                if (hitsMap != null && hitsMap.size() > 0) {
                     String key = REGEX_PREFIX + regexList.get(i).name;
                     Collection<RegexHits> prevHits = (Collection<RegexHits>) evidence.getExtraAttribute(key);
-                    Map<String, RegexHits> hitsMap = hitList.get(i);
                     if (prevHits == null || prevHits.isEmpty() || !(prevHits.iterator().next() instanceof RegexHits)) {
                         evidence.setExtraAttribute(key, hitsMap.values());
                     } else {
@@ -379,7 +396,10 @@ private void processRegex(IItem evidence, Reader reader) throws IOException {
                         evidence.setToExtract(true);
                 }
             }
-            totalOffset += off;
+
+            System.arraycopy(cbuf, pos, cbuf, 0, len - pos);
+            totalOffset += pos;
+            len -= pos;
         }
     }
 
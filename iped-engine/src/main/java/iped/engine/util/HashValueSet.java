@@ -0,0 +1,174 @@
+package iped.engine.util;
+
+import org.apache.lucene.util.BytesRef;
+
+import iped.data.IHashValue;
+
+/**
+ * Concurrent set of item hashes without an object per entry. Hashes are kept
+ * as their first 128 bits (the whole MD5 or a prefix of longer hashes, which is
+ * enough to tell them apart) in open addressing long[] tables. The set is split
+ * into segments, each one with its own lock, so threads adding different hashes
+ * rarely wait for each other.
+ */
+public class HashValueSet {
+
+    private static final int NUM_SEGMENTS = 256;
+
+    private static final int INITIAL_SLOTS = 1024;
+
+    private final Segment[] segments = new Segment[NUM_SEGMENTS];
+
+    public HashValueSet() {
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * @return true if the hash was not in the set.
+     */
+    public boolean add(IHashValue hash) {
+        return add(hash.getBytes());
+    }
+
+    /**
+     * @return true if the hash was not in the set.
+     */
+    public boolean add(byte[] hash) {
+        long hi = getLong(hash, 0), lo = getLong(hash, 8);
+        return getSegment(hi, lo).add(hi, lo);
+    }
+
+    /**
+     * Adds a hash in hexadecimal, as stored in the index.
+     *
+     * @return true if the hash was not in the set.
+     */
+    public boolean addHex(BytesRef hex) {
+        long hi = getHexLong(hex, 0), lo = getHexLong(hex, 16);
+        return getSegment(hi, lo).add(hi, lo);
+    }
+
+    public boolean contains(IHashValue hash) {
+        byte[] bytes = hash.getBytes();
+        long hi = getLong(bytes, 0), lo = getLong(bytes, 8);
+        return getSegment(hi, lo).contains(hi, lo);
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    private Segment getSegment(long hi, long lo) {
+        return segments[(int) (mix(hi ^ lo) >>> 56)];
+    }
+
+    private static long getLong(byte[] bytes, int off) {
+        long value = 0;
+        for (int i = off; i < off + 8; i++) {
+            value = (value << 8) | (i < bytes.length ? bytes[i] & 0xFF : 0);
+        }
+        return value;
+    }
+
+    private static long getHexLong(BytesRef hex, int off) {
+        long value = 0;
+        for (int i = off; i < off + 16; i++) {
+            value = (value << 4) | (i < hex.length ? Character.digit(hex.bytes[hex.offset + i], 16) & 0xF : 0);
+        }
+        return value;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static class Segment {
+
+        // pairs of longs, (0, 0) marks empty slots
+        private long[] keys = new long[INITIAL_SLOTS * 2];
+        private int size;
+        private boolean hasZero;
+
+        private synchronized boolean add(long hi, long lo) {
+            if (hi == 0 && lo == 0) {
+                boolean added = !hasZero;
+                hasZero = true;
+                return added;
+            }
+            int slot = find(keys, hi, lo);
+            if (keys[slot] != 0 || keys[slot + 1] != 0) {
+                return false;
+            }
+            keys[slot] = hi;
+            keys[slot + 1] = lo;
+            if (++size > keys.length / 2 * 3 / 4) {
+                resize();
+            }
+            return true;
+        }
+
+        private synchronized boolean contains(long hi, long lo) {
+            if (hi == 0 && lo == 0) {
+                return hasZero;
+            }
+            int slot = find(keys, hi, lo);
+            return keys[slot] != 0 || keys[slot + 1] != 0;
+        }
+
+        private synchronized int size() {
+            return size + (hasZero ? 1 : 0);
+        }
+
+        private synchronized void clear() {
+            keys = new long[INITIAL_SLOTS * 2];
+            size = 0;
+            hasZero = false;
+        }
+
+        /**
+         * @return index of the slot with the key or of the empty slot where it
+         *         should be.
+         */
+        private static int find(long[] keys, long hi, long lo) {
+            int mask = keys.length / 2 - 1;
+            int slot = (int) mix(lo + hi * 31) & mask;
+            while (true) {
+                int i = slot << 1;
+                if ((keys[i] == hi && keys[i + 1] == lo) || (keys[i] == 0 && keys[i + 1] == 0)) {
+                    return i;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private void resize() {
+            long[] newKeys = new long[keys.length * 2];
+            for (int i = 0; i < keys.length; i += 2) {
+                if (keys[i] != 0 || keys[i + 1] != 0) {
+                    int slot = find(newKeys, keys[i], keys[i + 1]);
+                    newKeys[slot] = keys[i];
+                    newKeys[slot + 1] = keys[i + 1];
+                }
+            }
+            keys = newKeys;
+        }
+    }
+
+}
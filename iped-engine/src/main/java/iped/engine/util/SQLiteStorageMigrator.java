@@ -0,0 +1,131 @@
+package iped.engine.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConfig;
+
+import iped.engine.io.PackStorage;
+import iped.engine.task.ExportFileTask;
+import iped.utils.HashValue;
+
+/**
+ * Moves subitems data stored by old versions into SQLite storages to
+ * {@link PackStorage}. Index entries are not changed, after migration
+ * ExportFileTask.SQLiteInputStreamFactory finds the data in the packs. Thumbs
+ * are kept in the SQLite storages.
+ */
+public class SQLiteStorageMigrator {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(SQLiteStorageMigrator.class);
+
+    private static final String SELECT_DATA = "SELECT id, data FROM t1 WHERE data IS NOT NULL;"; //$NON-NLS-1$
+    private static final String CLEAR_DATA = "UPDATE t1 SET data=NULL WHERE data IS NOT NULL;"; //$NON-NLS-1$
+
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Please provide the case folder to migrate.");
+            System.exit(1);
+        }
+        File output = new File(args[0], "iped"); //$NON-NLS-1$
+        if (!output.isDirectory()) {
+            output = new File(args[0]);
+        }
+        try {
+            int migrated = migrate(output);
+            System.out.println("Migrated " + migrated + " items to pack storage.");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Migrates the SQLite storages of the given case module folder.
+     *
+     * @return number of migrated items.
+     */
+    public static int migrate(File output) throws IOException, InterruptedException {
+        File storageDir = ExportFileTask.getPackStorageDir(output);
+        File[] dbs = storageDir.listFiles((dir, name) -> name.startsWith("storage-") && name.endsWith(".db")); //$NON-NLS-1$ //$NON-NLS-2$
+        if (dbs == null || dbs.length == 0) {
+            return 0;
+        }
+        PackStorage packStorage = PackStorage.get(storageDir);
+        AtomicInteger migrated = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(dbs.length, 4));
+        List<Future<?>> futures = new ArrayList<>();
+        for (File db : dbs) {
+            futures.add(executor.submit(() -> {
+                migrate(db, packStorage, migrated);
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdown();
+            PackStorage.close(storageDir);
+        }
+        return migrated.get();
+    }
+
+    private static void migrate(File db, PackStorage packStorage, AtomicInteger migrated)
+            throws SQLException, IOException {
+        LOGGER.info("Migrating storage {}", db.getAbsolutePath()); //$NON-NLS-1$
+        SQLiteConfig config = new SQLiteConfig();
+        config.setBusyTimeout(3600000);
+        try (Connection con = config.createConnection("jdbc:sqlite:" + db.getAbsolutePath())) { //$NON-NLS-1$
+            int count = 0;
+            try (PreparedStatement ps = con.prepareStatement(SELECT_DATA); ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    byte[] md5 = new HashValue(rs.getString(1)).getBytes();
+                    byte[] data;
+                    try (InputStream gzippedIn = new GzipCompressorInputStream(
+                            new ByteArrayInputStream(rs.getBytes(2)))) {
+                        data = IOUtils.toByteArray(gzippedIn);
+                    }
+                    packStorage.put(md5, data, data.length);
+                    count++;
+                }
+            }
+            // data is cleared only after it is safely stored into packs
+            packStorage.commit();
+            con.setAutoCommit(false);
+            try (Statement stmt = con.createStatement()) {
+                stmt.executeUpdate(CLEAR_DATA);
+            }
+            con.commit();
+            con.setAutoCommit(true);
+            LOGGER.info("Running VACUUM on storage {}", db.getAbsolutePath()); //$NON-NLS-1$
+            try (Statement stmt = con.createStatement()) {
+                stmt.executeUpdate("VACUUM"); //$NON-NLS-1$
+            }
+            migrated.addAndGet(count);
+            LOGGER.info("Migrated {} items from storage {}", count, db.getAbsolutePath()); //$NON-NLS-1$
+        }
+    }
+
+}
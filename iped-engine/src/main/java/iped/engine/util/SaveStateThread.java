@@ -6,6 +6,7 @@
 import java.util.Map;
 
 import iped.data.IBookmarks;
+import iped.engine.data.Bookmarks;
 
 public class SaveStateThread extends Thread {
 
@@ -56,13 +57,18 @@ public void run() {
                     if (tmp.exists())
                         tmp.delete();
                     state.saveState(tmp, true);
+                    boolean renamed;
                     if (!file.exists()) {
-                        tmp.renameTo(file);
+                        renamed = tmp.renameTo(file);
                     } else {
                         File bkp = backupAndDelete(file);
-                        if (!tmp.renameTo(file))
+                        renamed = tmp.renameTo(file);
+                        if (!renamed)
                             bkp.renameTo(file);
                     }
+                    if (renamed && state instanceof Bookmarks) {
+                        ((Bookmarks) state).stateSaved(file);
+                    }
                 } else {
                     Thread.sleep(200);
                 }
@@ -1,45 +1,147 @@
 package iped.engine.util;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.RandomAccessFile;
 import java.io.Reader;
-import java.io.StringReader;
-import java.io.Writer;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.FileSystemException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.commons.io.input.BoundedReader;
-import org.apache.commons.io.input.RandomAccessFileInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import iped.data.IItem;
 import iped.utils.IOUtil;
 
+/**
+ * Keeps parsed text of items to be reused by other tasks.
+ *
+ * Small texts are kept in a heap array. Larger texts are kept in fixed size
+ * UTF-16 segments allocated off heap from a pool shared by all workers and
+ * limited by a global memory budget. When the budget is exhausted, new segments
+ * are mapped from a temp file, if disk cache is enabled. Readers access the
+ * segments directly, without copying the text into Strings, and text bounds
+ * are char offsets, so fragments seek to their start directly.
+ */
 public class TextCache implements Closeable, Cloneable {
 
     private static Logger logger = LoggerFactory.getLogger(TextCache.class);
 
+    // max chars kept if disk cache is disabled and budget is exhausted
     private static int MAX_MEMORY_CHARS = 10000000;
 
+    private static final int SMALL_TEXT_CHARS = 1 << 16;
+    private static final int SEGMENT_CHARS = 1 << 20;
+    private static final int SEGMENT_BYTES = SEGMENT_CHARS * Character.BYTES;
+
+    private static volatile long memoryBudget = Runtime.getRuntime().maxMemory() / 8;
+    private static final AtomicLong allocatedMemory = new AtomicLong();
+    private static final ConcurrentLinkedQueue<ByteBuffer> freeSegments = new ConcurrentLinkedQueue<>();
+
     private IItem sourceItem;
-    private StringBuilder sb = new StringBuilder();
-    private File tmp;
-    private Writer writer;
+    private Storage storage = new Storage();
     private long size = 0;
     private boolean diskCacheEnabled = true;
-    private long offset = -1;
-    private AtomicInteger refCount = new AtomicInteger(1);
+    private long offset = 0;
+
+    /**
+     * Sets the off heap memory shared by all text caches.
+     */
+    public static void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+    }
+
+    private static ByteBuffer acquireSegment() {
+        ByteBuffer segment = freeSegments.poll();
+        if (segment != null) {
+            return segment;
+        }
+        long allocated;
+        do {
+            allocated = allocatedMemory.get();
+            if (allocated + SEGMENT_BYTES > memoryBudget) {
+                return null;
+            }
+        } while (!allocatedMemory.compareAndSet(allocated, allocated + SEGMENT_BYTES));
+        return ByteBuffer.allocateDirect(SEGMENT_BYTES);
+    }
+
+    private static void releaseSegment(ByteBuffer segment) {
+        segment.clear();
+        if (allocatedMemory.get() <= memoryBudget) {
+            freeSegments.add(segment);
+        } else {
+            // budget was reduced
+            allocatedMemory.addAndGet(-SEGMENT_BYTES);
+        }
+    }
+
+    /**
+     * Text segments, shared by clones used to read fragments of the text and by
+     * open readers, released when the last of them is closed.
+     */
+    private static class Storage {
+
+        private final AtomicInteger refCount = new AtomicInteger(1);
+
+        // first segment is a heap array growing up to SMALL_TEXT_CHARS
+        private final ArrayList<CharBuffer> segments = new ArrayList<>();
+        private final ArrayList<ByteBuffer> pooled = new ArrayList<>();
+        private long length = 0;
+        private boolean truncated = false;
+
+        private File tmp;
+        private FileChannel channel;
+        private int mappedSegments = 0;
+
+        private CharBuffer get(long pos) {
+            if (pos < SMALL_TEXT_CHARS) {
+                return segments.get(0);
+            }
+            return segments.get(1 + (int) ((pos - SMALL_TEXT_CHARS) / SEGMENT_CHARS));
+        }
+
+        private int segmentPos(long pos) {
+            if (pos < SMALL_TEXT_CHARS) {
+                return (int) pos;
+            }
+            return (int) ((pos - SMALL_TEXT_CHARS) % SEGMENT_CHARS);
+        }
+
+        private CharBuffer mapSegment() throws IOException {
+            if (channel == null) {
+                tmp = File.createTempFile("text", null); //$NON-NLS-1$
+                channel = FileChannel.open(tmp.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            long pos = (long) mappedSegments++ * SEGMENT_BYTES;
+            return channel.map(MapMode.READ_WRITE, pos, SEGMENT_BYTES).asCharBuffer();
+        }
+
+        private void release() {
+            if (refCount.decrementAndGet() != 0) {
+                return;
+            }
+            segments.clear();
+            for (ByteBuffer segment : pooled) {
+                releaseSegment(segment);
+            }
+            pooled.clear();
+            if (channel != null) {
+                IOUtil.closeQuietly(channel);
+                if (!tmp.delete()) {
+                    // still mapped, it is unmapped when collected
+                    tmp.deleteOnExit();
+                }
+            }
+        }
+    }
 
     public void setSourceItem(IItem sourceItem) {
         this.sourceItem = sourceItem;
@@ -54,32 +156,67 @@ public void write(String string) throws IOException {
     }
 
     public void write(char[] buf, int off, int len) throws IOException {
-        if (tmp == null && sb != null && sb.length() + len > MAX_MEMORY_CHARS && diskCacheEnabled) {
-            tmp = File.createTempFile("text", null);
-            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8));
-            writer.write(sb.toString());
-            sb = null;
+        while (len > 0 && !storage.truncated) {
+            CharBuffer segment = getSegmentToWrite(len);
+            if (segment == null) {
+                // text truncated
+                return;
+            }
+            int n = Math.min(len, segment.remaining());
+            try {
+                segment.put(buf, off, n);
+            } catch (InternalError e) {
+                // mapped segment could not be written, maybe no space left
+                logger.error("Error caching text{}: {}", sourceItem != null ? " of " + sourceItem.getPath() : "", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                        e.toString());
+                storage.truncated = true;
+                return;
+            }
+            off += n;
+            len -= n;
+            storage.length += n;
+            size += n;
         }
+    }
 
-        if (sb != null && sb.length() < MAX_MEMORY_CHARS) {
-            if (sb.length() + len > MAX_MEMORY_CHARS)
-                len = MAX_MEMORY_CHARS - sb.length();
-            sb.append(buf, off, len);
+    private CharBuffer getSegmentToWrite(int len) {
+        ArrayList<CharBuffer> segments = storage.segments;
+        if (segments.isEmpty()) {
+            segments.add(CharBuffer.allocate(Math.min(SMALL_TEXT_CHARS, Math.max(16, len))));
         }
-
-        if (writer != null)
+        CharBuffer last = segments.get(segments.size() - 1);
+        if (last.hasRemaining()) {
+            return last;
+        }
+        if (segments.size() == 1 && last.capacity() < SMALL_TEXT_CHARS) {
+            CharBuffer grown = CharBuffer.allocate(
+                    (int) Math.min(SMALL_TEXT_CHARS, Math.max(last.capacity() * 2L, storage.length + len)));
+            last.flip();
+            grown.put(last);
+            segments.set(0, grown);
+            return grown;
+        }
+        ByteBuffer pooled = acquireSegment();
+        CharBuffer segment = null;
+        if (pooled != null) {
+            storage.pooled.add(pooled);
+            segment = pooled.asCharBuffer();
+        } else if (diskCacheEnabled) {
             try {
-                writer.write(buf, off, len);
+                segment = storage.mapSegment();
             } catch (IOException e) {
-                // maybe no space left
-                e.printStackTrace();
-                IOUtil.closeQuietly(writer);
-                writer = null;
-                tmp.delete();
-                tmp = null;
+                logger.error("Error caching text{} on disk: {}", sourceItem != null ? " of " + sourceItem.getPath() : "", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                        e.toString());
+                diskCacheEnabled = false;
             }
-
-        size += len;
+        }
+        if (segment == null && storage.length < MAX_MEMORY_CHARS) {
+            segment = CharBuffer.allocate((int) Math.min(SEGMENT_CHARS, MAX_MEMORY_CHARS - storage.length));
+        }
+        if (segment != null) {
+            segments.add(segment);
+        }
+        return segment;
     }
 
     public long getSize() {
@@ -87,39 +224,8 @@ public long getSize() {
     }
 
     public Reader getTextReader() throws IOException {
-        if (writer != null) {
-            writer.close();
-            writer = null;
-        }
-
-        Reader reader = null;
-        if (sb != null)
-            reader = new StringReader(sb.toString());
-
-        if (tmp != null) {
-            try {
-                if (offset == -1) {
-                    reader = Files.newBufferedReader(tmp.toPath());
-                } else {
-                    RandomAccessFile raf = new RandomAccessFile(tmp, "r");
-                    raf.seek(offset);
-                    reader = new InputStreamReader(new RandomAccessFileInputStream(raf, true), StandardCharsets.UTF_8);
-                    reader = new BufferedReader(new BoundedReader(reader, (int) size));
-                }
-
-            } catch (FileSystemException | FileNotFoundException e) {
-                logger.error("Error reading extracted text file{}, maybe your antivirus blocked or deleted it? {}",
-                        sourceItem != null ? " from " + sourceItem.getPath() : "", e.toString());
-                e.printStackTrace();
-                return new StringReader("");
-            }
-        }
-
-        if (reader != null) {
-            return new KnownSizeReader(reader);
-        }
-
-        return null;
+        storage.refCount.incrementAndGet();
+        return new KnownSizeReader(new SegmentsReader(storage, offset, offset + size));
     }
 
     public void setTextBounds(long offset, int size) {
@@ -129,16 +235,90 @@ public void setTextBounds(long offset, int size) {
         if (offset + size > this.size) {
             throw new IllegalArgumentException("offset + size must be less than or equal to original text size.");
         }
-        this.offset = offset;
+        this.offset += offset;
         this.size = size;
     }
 
     @Override
     public void close() throws IOException {
-        if (writer != null)
-            writer.close();
-        if (tmp != null && refCount.decrementAndGet() == 0)
-            tmp.delete();
+        if (storage != null) {
+            storage.release();
+            storage = null;
+        }
+    }
+
+    /**
+     * Reads text directly from the segments, skip() just moves the position. Holds
+     * a reference to the storage until closed, so segments are not returned to the
+     * pool while it is being read.
+     */
+    private static class SegmentsReader extends Reader {
+
+        private final Storage storage;
+        private final long end;
+        private long pos;
+
+        private CharBuffer current;
+        private int currentIdx = -1;
+        private boolean closed = false;
+
+        private SegmentsReader(Storage storage, long start, long end) {
+            this.storage = storage;
+            this.pos = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos >= end) {
+                return -1;
+            }
+            int total = 0;
+            while (total < len && pos < end) {
+                int idx = pos < SMALL_TEXT_CHARS ? 0 : 1 + (int) ((pos - SMALL_TEXT_CHARS) / SEGMENT_CHARS);
+                if (idx != currentIdx) {
+                    current = storage.get(pos).duplicate();
+                    currentIdx = idx;
+                }
+                int segPos = storage.segmentPos(pos);
+                int n = (int) Math.min(len - total, Math.min(current.capacity() - segPos, end - pos));
+                current.limit(current.capacity()).position(segPos);
+                current.get(cbuf, off + total, n);
+                total += n;
+                pos += n;
+            }
+            return total;
+        }
+
+        @Override
+        public int read() throws IOException {
+            char[] c = new char[1];
+            return read(c, 0, 1) == -1 ? -1 : c[0];
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = Math.max(0, Math.min(n, end - pos));
+            pos += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean ready() throws IOException {
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                current = null;
+                storage.release();
+            }
+        }
     }
 
     public class KnownSizeReader extends Reader {
@@ -154,6 +334,11 @@ public int read(char[] cbuf, int off, int len) throws IOException {
             return delegate.read(cbuf, off, len);
         }
 
+        @Override
+        public long skip(long n) throws IOException {
+            return delegate.skip(n);
+        }
+
         @Override
         public void close() throws IOException {
             delegate.close();
@@ -169,15 +354,11 @@ public long getSize() {
     public TextCache clone() {
         TextCache o = new TextCache();
         o.sourceItem = sourceItem;
-        o.sb = sb;
-        o.tmp = tmp;
-        // we just use clone for reading for now
-        // o.writer = writer;
+        o.storage = storage;
         o.size = size;
         o.diskCacheEnabled = diskCacheEnabled;
         o.offset = offset;
-        o.refCount = refCount;
-        refCount.incrementAndGet();
+        storage.refCount.incrementAndGet();
         return o;
     }
 
@@ -1,58 +1,532 @@
 package iped.engine.webapi;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 
+import javax.ws.rs.BadRequestException;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.SortedNumericSortField;
+import org.apache.lucene.search.SortedSetSortField;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NumericUtils;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
 import iped.data.IItemId;
+import iped.engine.data.IPEDMultiSource;
 import iped.engine.data.IPEDSource;
 import iped.engine.search.IPEDSearcher;
-import iped.engine.webapi.json.DocIDJSON;
-import iped.engine.webapi.json.SourceToIDsJSON;
-import iped.search.IIPEDSearcher;
-import iped.search.IMultiSearchResult;
-import iped.search.SearchResult;
+import iped.engine.task.index.IndexItem;
 
 @Api(value = "Search")
 @Path("search")
 public class Search {
 
+    // sorted pages are kept in memory while collected
+    private static final int MAX_SORTED_PAGE_SIZE = 10000;
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
     @DefaultValue("")
     @QueryParam("q")
     String q;
     @DefaultValue("")
     @QueryParam("sourceID")
     String sourceID;
+    @ApiParam(value = "Max number of documents returned, 0 returns all documents (limited to "
+            + MAX_SORTED_PAGE_SIZE + " if sorted)")
+    @DefaultValue("0")
+    @QueryParam("limit")
+    int limit;
+    @ApiParam(value = "Value of 'next' returned by the previous page")
+    @DefaultValue("")
+    @QueryParam("cursor")
+    String cursor;
+    @ApiParam(value = "Field with DocValues used to sort documents, index order is used if empty")
+    @DefaultValue("")
+    @QueryParam("sort")
+    String sort;
+    @DefaultValue("false")
+    @QueryParam("desc")
+    boolean desc;
+    @ApiParam(value = "Comma separated fields with DocValues returned for each document")
+    @DefaultValue("")
+    @QueryParam("fields")
+    String fields;
 
-    @ApiOperation(value = "Search documents")
+    @ApiOperation(value = "Search documents", notes = "Without limit, cursor, sort and fields parameters, documents are returned grouped by source: "
+            + "{ \"data\": [ { \"source\": \"A\", \"ids\": [ 1, 2 ] } ] }. Otherwise they are returned one by one: "
+            + "{ \"data\": [ { \"source\": \"A\", \"id\": 1, \"fields\": { \"name\": [ \"a.txt\" ] } } ], \"next\": \"cursor\" }, "
+            + "where next is null at the last page.")
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public SourceToIDsJSON doSearch() throws Exception {
+    public StreamingOutput doSearch() throws Exception {
         String escapeq = q.replaceAll("/", "\\\\/");
-        List<DocIDJSON> docs = new ArrayList<DocIDJSON>();
+        IPEDSource source;
         if (sourceID.equals("")) {
-            IPEDSearcher searcher = new IPEDSearcher(Sources.multiSource, escapeq);
-            IMultiSearchResult result = searcher.multiSearch();
-            for (IItemId id : result.getIterator()) {
-                docs.add(new DocIDJSON(Sources.sourceIntToString.get(id.getSourceId()), id.getId()));
-            }
+            source = Sources.multiSource;
         } else {
-            IPEDSource source = (IPEDSource) Sources.getSource(sourceID);
-            IIPEDSearcher searcher = new IPEDSearcher(source, escapeq);
-            SearchResult result = searcher.search();
-            for (int id : result.getIds()) {
-                docs.add(new DocIDJSON(sourceID, id));
+            source = (IPEDSource) Sources.getSource(sourceID);
+        }
+        IPEDSearcher searcher = new IPEDSearcher(source, escapeq);
+        IndexReader reader = source.getReader();
+        DocIdConverter converter = new DocIdConverter(source, sourceID);
+        FieldsProjection projection = new FieldsProjection(reader, fields);
+        Sort luceneSort = getSort(reader);
+
+        if (limit < 0) {
+            throw new BadRequestException("limit must not be negative");
+        }
+        if (limit == 0 && cursor.isEmpty() && luceneSort == null && projection.isEmpty()) {
+            return out -> {
+                try (JsonGenerator json = jsonFactory.createGenerator(out, JsonEncoding.UTF8)) {
+                    json.writeStartObject();
+                    json.writeArrayFieldStart("data");
+                    GroupedCollector collector = new GroupedCollector(json, converter);
+                    searcher.search(collector);
+                    collector.close();
+                    json.writeEndArray();
+                    json.writeEndObject();
+                }
+            };
+        }
+
+        ScoreDoc after = cursor.isEmpty() ? null : decodeCursor(cursor, luceneSort);
+        if (luceneSort == null) {
+            return out -> {
+                try (JsonGenerator json = jsonFactory.createGenerator(out, JsonEncoding.UTF8)) {
+                    json.writeStartObject();
+                    json.writeArrayFieldStart("data");
+                    PageCollector collector = new PageCollector(json, converter, projection, after, limit);
+                    searcher.search(collector);
+                    json.writeEndArray();
+                    json.writeStringField("next", collector.hasMore ? encodeCursor(collector.lastDoc) : null);
+                    json.writeEndObject();
+                }
+            };
+        }
+
+        int pageSize = limit == 0 ? MAX_SORTED_PAGE_SIZE : Math.min(limit, MAX_SORTED_PAGE_SIZE);
+        // one more hit tells if there is a next page
+        TopFieldCollector collector = TopFieldCollector.create(luceneSort, pageSize + 1, (FieldDoc) after,
+                Integer.MAX_VALUE);
+        searcher.search(collector);
+        ScoreDoc[] hits = collector.topDocs().scoreDocs;
+        return out -> {
+            try (JsonGenerator json = jsonFactory.createGenerator(out, JsonEncoding.UTF8)) {
+                json.writeStartObject();
+                json.writeArrayFieldStart("data");
+                List<LeafReaderContext> leaves = reader.leaves();
+                int n = Math.min(hits.length, pageSize);
+                for (int i = 0; i < n; i++) {
+                    int doc = hits[i].doc;
+                    LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                    writeHit(json, converter, projection, leaf, doc);
+                }
+                json.writeEndArray();
+                json.writeStringField("next", hits.length > pageSize ? encodeCursor((FieldDoc) hits[n - 1]) : null);
+                json.writeEndObject();
             }
+        };
+    }
+
+    private Sort getSort(IndexReader reader) {
+        if (sort.isEmpty()) {
+            return null;
+        }
+        FieldInfo info = FieldInfos.getMergedFieldInfos(reader).fieldInfo(sort);
+        DocValuesType type = info != null ? info.getDocValuesType() : DocValuesType.NONE;
+        SortField.Type numericType = IndexItem.isFloat(sort) ? SortField.Type.FLOAT
+                : IndexItem.isDouble(sort) ? SortField.Type.DOUBLE : SortField.Type.LONG;
+        SortField sortField;
+        switch (type) {
+            case SORTED:
+                sortField = new SortField(sort, SortField.Type.STRING, desc);
+                break;
+            case SORTED_SET:
+                sortField = new SortedSetSortField(sort, desc);
+                break;
+            case NUMERIC:
+                sortField = new SortField(sort, numericType, desc);
+                break;
+            case SORTED_NUMERIC:
+                sortField = new SortedNumericSortField(sort, numericType, desc);
+                break;
+            default:
+                throw new BadRequestException("Field " + sort + " has no sortable DocValues");
         }
+        return new Sort(sortField);
+    }
 
-        return new SourceToIDsJSON(docs);
+    private static void writeHit(JsonGenerator json, DocIdConverter converter, FieldsProjection projection,
+            LeafReaderContext leaf, int doc) throws IOException {
+        json.writeStartObject();
+        converter.write(json, doc);
+        if (!projection.isEmpty()) {
+            json.writeObjectFieldStart("fields");
+            projection.write(json, leaf, doc - leaf.docBase);
+            json.writeEndObject();
+        }
+        json.writeEndObject();
+    }
+
+    /**
+     * Cursor of index ordered pages is the last returned lucene id, of sorted
+     * pages it also has the sort value of the last returned document.
+     */
+    private static String encodeCursor(int doc) throws IOException {
+        return encodeCursor(new FieldDoc(doc, Float.NaN, new Object[0]));
+    }
+
+    private static String encodeCursor(FieldDoc doc) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(doc.doc);
+            out.writeByte(doc.fields.length);
+            for (Object value : doc.fields) {
+                if (value == null) {
+                    out.writeByte(0);
+                } else if (value instanceof BytesRef) {
+                    BytesRef ref = (BytesRef) value;
+                    out.writeByte(1);
+                    out.writeInt(ref.length);
+                    out.write(ref.bytes, ref.offset, ref.length);
+                } else if (value instanceof Long) {
+                    out.writeByte(2);
+                    out.writeLong((Long) value);
+                } else if (value instanceof Float) {
+                    out.writeByte(3);
+                    out.writeFloat((Float) value);
+                } else if (value instanceof Double) {
+                    out.writeByte(4);
+                    out.writeDouble((Double) value);
+                } else {
+                    out.writeByte(5);
+                    out.writeInt((Integer) value);
+                }
+            }
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    private static ScoreDoc decodeCursor(String cursor, Sort sort) {
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(Base64.getUrlDecoder().decode(cursor)))) {
+            int doc = in.readInt();
+            Object[] values = new Object[in.readByte()];
+            for (int i = 0; i < values.length; i++) {
+                switch (in.readByte()) {
+                    case 0:
+                        break;
+                    case 1:
+                        byte[] bytes = new byte[in.readInt()];
+                        in.readFully(bytes);
+                        values[i] = new BytesRef(bytes);
+                        break;
+                    case 2:
+                        values[i] = in.readLong();
+                        break;
+                    case 3:
+                        values[i] = in.readFloat();
+                        break;
+                    case 4:
+                        values[i] = in.readDouble();
+                        break;
+                    case 5:
+                        values[i] = in.readInt();
+                        break;
+                    default:
+                        throw new IOException("Unknown value type");
+                }
+            }
+            if (values.length != (sort == null ? 0 : sort.getSort().length)) {
+                throw new IOException("Cursor does not match sort parameter");
+            }
+            return sort == null ? new ScoreDoc(doc, Float.NaN) : new FieldDoc(doc, Float.NaN, values);
+
+        } catch (IOException | IllegalArgumentException e) {
+            throw new BadRequestException("Invalid cursor: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes source and id of lucene ids.
+     */
+    private static class DocIdConverter {
+
+        private final IPEDSource source;
+        private final String sourceID;
+
+        private DocIdConverter(IPEDSource source, String sourceID) {
+            this.source = source;
+            this.sourceID = sourceID.isEmpty() ? null : sourceID;
+        }
+
+        private String getSource(IItemId itemId) {
+            return itemId == null ? sourceID : Sources.sourceIntToString.get(itemId.getSourceId());
+        }
+
+        private IItemId getItemId(int doc) {
+            return sourceID == null ? ((IPEDMultiSource) source).getItemId(doc) : null;
+        }
+
+        private int getId(IItemId itemId, int doc) {
+            return itemId == null ? source.getId(doc) : itemId.getId();
+        }
+
+        private void write(JsonGenerator json, int doc) throws IOException {
+            IItemId itemId = getItemId(doc);
+            json.writeStringField("source", getSource(itemId));
+            json.writeNumberField("id", getId(itemId, doc));
+        }
     }
+
+    /**
+     * Streams all hits grouped by source, hits of the same source are contiguous
+     * in index order. Writing fails and stops the search if client disconnects.
+     */
+    private static class GroupedCollector extends SimpleCollector {
+
+        private final JsonGenerator json;
+        private final DocIdConverter converter;
+        private String currentSource;
+        private int docBase;
+
+        private GroupedCollector(JsonGenerator json, DocIdConverter converter) {
+            this.json = json;
+            this.converter = converter;
+        }
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) throws IOException {
+            docBase = context.docBase;
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            doc += docBase;
+            IItemId itemId = converter.getItemId(doc);
+            String source = converter.getSource(itemId);
+            if (!source.equals(currentSource)) {
+                if (currentSource != null) {
+                    json.writeEndArray();
+                    json.writeEndObject();
+                }
+                json.writeStartObject();
+                json.writeStringField("source", source);
+                json.writeArrayFieldStart("ids");
+                currentSource = source;
+            }
+            json.writeNumber(converter.getId(itemId, doc));
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            return ScoreMode.COMPLETE_NO_SCORES;
+        }
+
+        private void close() throws IOException {
+            if (currentSource != null) {
+                json.writeEndArray();
+                json.writeEndObject();
+            }
+        }
+    }
+
+    /**
+     * Streams hits after the cursor in index order and stops the search when the
+     * page is full.
+     */
+    private static class PageCollector extends SimpleCollector {
+
+        private final JsonGenerator json;
+        private final DocIdConverter converter;
+        private final FieldsProjection projection;
+        private final int after;
+        private final int limit;
+
+        private LeafReaderContext context;
+        private int count = 0;
+        private int lastDoc = -1;
+        private boolean hasMore = false;
+
+        private PageCollector(JsonGenerator json, DocIdConverter converter, FieldsProjection projection,
+                ScoreDoc after, int limit) {
+            this.json = json;
+            this.converter = converter;
+            this.projection = projection;
+            this.after = after == null ? -1 : after.doc;
+            this.limit = limit;
+        }
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) throws IOException {
+            if (hasMore || context.docBase + context.reader().maxDoc() - 1 <= after) {
+                throw new CollectionTerminatedException();
+            }
+            this.context = context;
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            int globalDoc = context.docBase + doc;
+            if (globalDoc <= after) {
+                return;
+            }
+            if (limit > 0 && count == limit) {
+                hasMore = true;
+                throw new CollectionTerminatedException();
+            }
+            writeHit(json, converter, projection, context, globalDoc);
+            lastDoc = globalDoc;
+            count++;
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            return ScoreMode.COMPLETE_NO_SCORES;
+        }
+    }
+
+    /**
+     * Writes DocValues of requested fields. Iterators are reused while documents
+     * are visited in index order.
+     */
+    private static class FieldsProjection {
+
+        private final List<String> names = new ArrayList<>();
+        private final List<DocValuesType> types = new ArrayList<>();
+        private final Object[] iterators;
+
+        private LeafReaderContext context;
+        private int lastDoc = -1;
+
+        private FieldsProjection(IndexReader reader, String fields) {
+            FieldInfos infos = FieldInfos.getMergedFieldInfos(reader);
+            for (String field : fields.split(",")) {
+                field = field.trim();
+                FieldInfo info = infos.fieldInfo(field);
+                if (field.isEmpty() || info == null || info.getDocValuesType() == DocValuesType.NONE
+                        || info.getDocValuesType() == DocValuesType.BINARY) {
+                    continue;
+                }
+                names.add(field);
+                types.add(info.getDocValuesType());
+            }
+            iterators = new Object[names.size()];
+        }
+
+        private boolean isEmpty() {
+            return names.isEmpty();
+        }
+
+        private void write(JsonGenerator json, LeafReaderContext context, int doc) throws IOException {
+            if (context != this.context || doc <= lastDoc) {
+                LeafReader reader = context.reader();
+                for (int i = 0; i < iterators.length; i++) {
+                    String name = names.get(i);
+                    switch (types.get(i)) {
+                        case NUMERIC:
+                            iterators[i] = DocValues.getNumeric(reader, name);
+                            break;
+                        case SORTED_NUMERIC:
+                            iterators[i] = DocValues.getSortedNumeric(reader, name);
+                            break;
+                        case SORTED:
+                            iterators[i] = DocValues.getSorted(reader, name);
+                            break;
+                        default:
+                            iterators[i] = DocValues.getSortedSet(reader, name);
+                    }
+                }
+                this.context = context;
+            }
+            lastDoc = doc;
+            for (int i = 0; i < iterators.length; i++) {
+                String name = names.get(i);
+                json.writeArrayFieldStart(name);
+                Object iterator = iterators[i];
+                if (iterator instanceof NumericDocValues) {
+                    NumericDocValues ndv = (NumericDocValues) iterator;
+                    if (ndv.advanceExact(doc)) {
+                        long value = ndv.longValue();
+                        if (IndexItem.isFloat(name)) {
+                            json.writeNumber(Float.intBitsToFloat((int) value));
+                        } else if (IndexItem.isDouble(name)) {
+                            json.writeNumber(Double.longBitsToDouble(value));
+                        } else {
+                            json.writeNumber(value);
+                        }
+                    }
+                } else if (iterator instanceof SortedNumericDocValues) {
+                    SortedNumericDocValues sndv = (SortedNumericDocValues) iterator;
+                    if (sndv.advanceExact(doc)) {
+                        for (int j = 0; j < sndv.docValueCount(); j++) {
+                            long value = sndv.nextValue();
+                            if (IndexItem.isFloat(name)) {
+                                json.writeNumber(NumericUtils.sortableIntToFloat((int) value));
+                            } else if (IndexItem.isDouble(name)) {
+                                json.writeNumber(NumericUtils.sortableLongToDouble(value));
+                            } else {
+                                json.writeNumber(value);
+                            }
+                        }
+                    }
+                } else if (iterator instanceof SortedDocValues) {
+                    SortedDocValues sdv = (SortedDocValues) iterator;
+                    if (sdv.advanceExact(doc)) {
+                        json.writeString(sdv.lookupOrd(sdv.ordValue()).utf8ToString());
+                    }
+                } else {
+                    SortedSetDocValues ssdv = (SortedSetDocValues) iterator;
+                    if (ssdv.advanceExact(doc)) {
+                        long ord;
+                        while ((ord = ssdv.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+                            json.writeString(ssdv.lookupOrd(ord).utf8ToString());
+                        }
+                    }
+                }
+                json.writeEndArray();
+            }
+        }
+    }
+
 }
@@ -1,6 +1,7 @@
 package iped.engine.webapi;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 
 import javax.ws.rs.GET;
@@ -11,6 +12,7 @@
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.StreamingOutput;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.parser.ParseContext;
@@ -24,7 +26,9 @@
 import iped.data.IItem;
 import iped.engine.config.ConfigurationManager;
 import iped.engine.data.IPEDSource;
+import iped.engine.io.TextStore;
 import iped.engine.task.ParsingTask;
+import iped.io.SeekableInputStream;
 import iped.parsers.standard.StandardParser;
 
 @Api(value = "Documents")
@@ -38,6 +42,20 @@ public static StreamingOutput content(@PathParam("sourceID") String sourceID, @P
             throws Exception {
 
         IIPEDSource source = Sources.getSource(sourceID);
+
+        // text stored while processing is already UTF-8
+        SeekableInputStream storedText = TextStore.getTextStream(source.getModuleDir(), id);
+        if (storedText != null) {
+            return new StreamingOutput() {
+                @Override
+                public void write(OutputStream arg0) throws IOException, WebApplicationException {
+                    try (InputStream is = storedText) {
+                        IOUtils.copy(is, arg0);
+                    }
+                }
+            };
+        }
+
         final IItem item = source.getItemByID(id);
         final StandardParser parser = new StandardParser();
         final ParseContext context = getTikaContext(item, parser, (IPEDSource) source);
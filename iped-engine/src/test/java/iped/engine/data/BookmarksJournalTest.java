@@ -0,0 +1,109 @@
+package iped.engine.data;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.roaringbitmap.RoaringBitmap;
+
+public class BookmarksJournalTest {
+
+    private File dir;
+    private File stateFile;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("bookmarksJournalTest").toFile();
+        stateFile = new File(dir, "bookmarks.iped");
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private static List<BookmarksJournal.Record> replay(File file) throws Exception {
+        List<BookmarksJournal.Record> records = new ArrayList<>();
+        BookmarksJournal.replay(file, records::add);
+        return records;
+    }
+
+    @Test
+    public void testAppendAndReplay() throws Exception {
+        BookmarksJournal.append(stateFile, 3, Arrays.asList(
+                new BookmarksJournal.Record(BookmarksJournal.CHECK, -1, RoaringBitmap.bitmapOf(1, 2, 100000)),
+                new BookmarksJournal.Record(BookmarksJournal.ADD_BOOKMARK, 7, RoaringBitmap.bitmapOf(5))));
+        BookmarksJournal.append(stateFile, 3, Arrays.asList(
+                new BookmarksJournal.Record(BookmarksJournal.REMOVE_BOOKMARK, 7, RoaringBitmap.bitmapOf(5))));
+
+        File journal = BookmarksJournal.getFile(stateFile, 3);
+        assertEquals(journal, BookmarksJournal.list(stateFile).get(3L));
+
+        List<BookmarksJournal.Record> records = replay(journal);
+        assertEquals(3, records.size());
+        assertEquals(BookmarksJournal.CHECK, records.get(0).op);
+        assertEquals(RoaringBitmap.bitmapOf(1, 2, 100000), records.get(0).ids);
+        assertEquals(BookmarksJournal.ADD_BOOKMARK, records.get(1).op);
+        assertEquals(7, records.get(1).bookmark);
+        assertEquals(BookmarksJournal.REMOVE_BOOKMARK, records.get(2).op);
+        assertEquals(RoaringBitmap.bitmapOf(5), records.get(2).ids);
+    }
+
+    @Test
+    public void testTruncatedRecord() throws Exception {
+        BookmarksJournal.append(stateFile, 0, Arrays.asList(
+                new BookmarksJournal.Record(BookmarksJournal.CHECK, -1, RoaringBitmap.bitmapOf(1))));
+        long length = BookmarksJournal.append(stateFile, 0, Arrays.asList(
+                new BookmarksJournal.Record(BookmarksJournal.CHECK, -1, RoaringBitmap.bitmapOf(2))));
+        File journal = BookmarksJournal.getFile(stateFile, 0);
+
+        for (long cut = 1; cut < 20; cut++) {
+            try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+                raf.setLength(length - cut);
+            }
+            List<BookmarksJournal.Record> records = replay(journal);
+            assertEquals(1, records.size());
+            assertEquals(RoaringBitmap.bitmapOf(1), records.get(0).ids);
+        }
+    }
+
+    @Test
+    public void testCorruptedRecord() throws Exception {
+        long length = BookmarksJournal.append(stateFile, 0, Arrays.asList(
+                new BookmarksJournal.Record(BookmarksJournal.CHECK, -1, RoaringBitmap.bitmapOf(1)),
+                new BookmarksJournal.Record(BookmarksJournal.CHECK, -1, RoaringBitmap.bitmapOf(2))));
+        File journal = BookmarksJournal.getFile(stateFile, 0);
+        try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+            // changes a byte of the last record crc
+            raf.seek(length - 1);
+            int b = raf.read();
+            raf.seek(length - 1);
+            raf.write(b ^ 0xFF);
+        }
+        List<BookmarksJournal.Record> records = replay(journal);
+        assertEquals(1, records.size());
+        assertEquals(RoaringBitmap.bitmapOf(1), records.get(0).ids);
+    }
+
+    @Test
+    public void testDeleteOlder() throws Exception {
+        for (long generation = 0; generation < 3; generation++) {
+            BookmarksJournal.append(stateFile, generation, Arrays.asList(
+                    new BookmarksJournal.Record(BookmarksJournal.CLEAR_CHECKED, -1, new RoaringBitmap())));
+        }
+        BookmarksJournal.deleteOlder(stateFile, 2);
+        assertEquals(Arrays.asList(2L), new ArrayList<>(BookmarksJournal.list(stateFile).keySet()));
+    }
+
+}
@@ -0,0 +1,260 @@
+package iped.engine.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.swing.KeyStroke;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BookmarksTest {
+
+    private static final int LAST_ID = 1000;
+
+    private File moduleDir;
+
+    @Before
+    public void setUp() throws Exception {
+        moduleDir = Files.createTempDirectory("bookmarksTest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : moduleDir.listFiles()) {
+            file.delete();
+        }
+        moduleDir.delete();
+    }
+
+    private Bookmarks newBookmarks() {
+        return new Bookmarks(LAST_ID + 1, LAST_ID, moduleDir);
+    }
+
+    private File getStateFile() {
+        return new File(moduleDir, Bookmarks.STATEFILENAME);
+    }
+
+    /**
+     * Writes a state in the format of old versions, with bookmarks kept in one
+     * byte array per 8 bookmarks. Item i is in bookmark i and item 100 is in all
+     * bookmarks.
+     */
+    private File writeLegacyState(int numBookmarks) throws Exception {
+        LegacyBkm legacy = new LegacyBkm();
+        legacy.selected = new boolean[LAST_ID + 1];
+        legacy.selected[3] = true;
+        legacy.selected[LAST_ID] = true;
+        legacy.bookmarks = new ArrayList<>();
+        for (int order = 0; order < (numBookmarks + 7) / 8; order++) {
+            legacy.bookmarks.add(new byte[LAST_ID + 1]);
+        }
+        for (int bookmark = 0; bookmark < numBookmarks; bookmark++) {
+            legacy.bookmarks.get(bookmark / 8)[bookmark] |= 1 << (bookmark % 8);
+            legacy.bookmarks.get(bookmark / 8)[100] |= 1 << (bookmark % 8);
+            legacy.bookmarkNames.put(bookmark, "bookmark" + bookmark);
+        }
+        legacy.totalItems = LAST_ID + 1;
+        legacy.lastId = LAST_ID;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(legacy);
+        }
+        // the stream class name is replaced by the real one, both with the same length
+        byte[] serialized = bytes.toByteArray();
+        replace(serialized, LegacyBkm.class.getName(), Bookmarks.class.getName());
+
+        File file = getStateFile();
+        Files.write(file.toPath(), serialized);
+        return file;
+    }
+
+    private static void replace(byte[] bytes, String from, String to) {
+        byte[] f = from.getBytes(StandardCharsets.UTF_8);
+        byte[] t = to.getBytes(StandardCharsets.UTF_8);
+        assertEquals(f.length, t.length);
+        for (int i = 0; i <= bytes.length - f.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + f.length), f)) {
+                System.arraycopy(t, 0, bytes, i, t.length);
+                return;
+            }
+        }
+        throw new AssertionError("class name not found");
+    }
+
+    @Test
+    public void testLoadLegacyState() throws Exception {
+        int numBookmarks = 16;
+        File file = writeLegacyState(numBookmarks);
+
+        Bookmarks bookmarks = newBookmarks();
+        bookmarks.loadState(file);
+
+        assertEquals(2, bookmarks.getTotalChecked());
+        assertTrue(bookmarks.isChecked(3));
+        assertTrue(bookmarks.isChecked(LAST_ID));
+        assertEquals(numBookmarks, bookmarks.getBookmarkMap().size());
+        for (int bookmark = 0; bookmark < numBookmarks; bookmark++) {
+            assertEquals(2, bookmarks.getBookmarkCount(bookmark));
+            assertTrue(bookmarks.hasBookmark(bookmark, bookmark));
+            assertTrue(bookmarks.hasBookmark(100, bookmark));
+            assertFalse(bookmarks.hasBookmark(bookmark == 0 ? 1 : 0, bookmark));
+        }
+        assertEquals(numBookmarks, bookmarks.getBookmarkIds(100).size());
+    }
+
+    @Test
+    public void testJournalReplay() throws Exception {
+        File stateFile = getStateFile();
+        Bookmarks bookmarks = newBookmarks();
+        int a = bookmarks.newBookmark("a");
+        int b = bookmarks.newBookmark("b");
+        bookmarks.saveState(stateFile, true);
+        long snapshotLength = stateFile.length();
+
+        // only journaled
+        bookmarks.setChecked(true, 10);
+        bookmarks.setChecked(true, 11);
+        bookmarks.addBookmark(new int[] { 1, 2, 3 }, a);
+        bookmarks.addBookmark(new int[] { 5 }, b);
+        bookmarks.saveState(stateFile, true);
+        bookmarks.setChecked(false, 11);
+        bookmarks.removeBookmark(Arrays.asList(2), a);
+        bookmarks.saveState(stateFile, true);
+        assertEquals(snapshotLength, stateFile.length());
+
+        Bookmarks loaded = newBookmarks();
+        loaded.loadState(stateFile);
+        assertEquals(1, loaded.getTotalChecked());
+        assertTrue(loaded.isChecked(10));
+        assertFalse(loaded.isChecked(11));
+        assertTrue(loaded.hasBookmark(1, a));
+        assertFalse(loaded.hasBookmark(2, a));
+        assertTrue(loaded.hasBookmark(3, a));
+        assertTrue(loaded.hasBookmark(5, b));
+        assertEquals(2, loaded.getBookmarkCount(a));
+    }
+
+    @Test
+    public void testTruncatedJournal() throws Exception {
+        File stateFile = getStateFile();
+        Bookmarks bookmarks = newBookmarks();
+        int a = bookmarks.newBookmark("a");
+        bookmarks.saveState(stateFile, true);
+
+        bookmarks.addBookmark(new int[] { 1 }, a);
+        bookmarks.saveState(stateFile, true);
+        File journal = BookmarksJournal.list(stateFile).lastEntry().getValue();
+        long validLength = journal.length();
+        bookmarks.addBookmark(new int[] { 2 }, a);
+        bookmarks.saveState(stateFile, true);
+
+        // simulates a crash while writing the last record
+        try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        assertTrue(journal.length() > validLength);
+
+        Bookmarks loaded = newBookmarks();
+        loaded.loadState(stateFile);
+        assertTrue(loaded.hasBookmark(1, a));
+        assertFalse(loaded.hasBookmark(2, a));
+
+        // later changes go to a new journal, not after the partial record
+        loaded.addBookmark(new int[] { 4 }, a);
+        loaded.saveState(stateFile, true);
+        Bookmarks reloaded = newBookmarks();
+        reloaded.loadState(stateFile);
+        assertTrue(reloaded.hasBookmark(1, a));
+        assertTrue(reloaded.hasBookmark(4, a));
+    }
+
+    @Test
+    public void testImportedStateIsSnapshotted() throws Exception {
+        File stateFile = getStateFile();
+        Bookmarks bookmarks = newBookmarks();
+        int a = bookmarks.newBookmark("a");
+        bookmarks.saveState(stateFile, true);
+        bookmarks.addBookmark(new int[] { 1 }, a);
+        bookmarks.saveState(stateFile, true);
+
+        // exported by another instance of the same case
+        File exportFile = new File(moduleDir, "exported" + Bookmarks.EXT);
+        Bookmarks other = newBookmarks();
+        int b = other.newBookmark("b");
+        other.addBookmark(new int[] { 5 }, b);
+        other.setChecked(true, 7);
+        other.saveState(exportFile, true);
+
+        // imported like MultiBookmarks.loadState(File) does
+        Bookmarks imported = Bookmarks.load(exportFile);
+        imported.updateCookie();
+        imported.setChecked(true, 8);
+        imported.saveState(true);
+
+        Bookmarks reloaded = newBookmarks();
+        reloaded.loadState(stateFile);
+        assertEquals("b", reloaded.getBookmarkName(b));
+        assertEquals(1, reloaded.getBookmarkMap().size());
+        assertTrue(reloaded.hasBookmark(5, b));
+        // changes journaled before the import are not replayed
+        assertFalse(reloaded.hasBookmark(1, b));
+        assertEquals(2, reloaded.getTotalChecked());
+        assertTrue(reloaded.isChecked(7));
+        assertTrue(reloaded.isChecked(8));
+
+        // loading an exported file also requires a snapshot
+        Bookmarks loaded = newBookmarks();
+        loaded.loadState(exportFile);
+        loaded.setChecked(true, 9);
+        loaded.saveState(stateFile, true);
+        reloaded = newBookmarks();
+        reloaded.loadState(stateFile);
+        assertTrue(reloaded.isChecked(7));
+        assertTrue(reloaded.isChecked(9));
+        assertFalse(reloaded.isChecked(8));
+    }
+
+}
+
+/**
+ * Fields of Bookmarks in old versions, before bookmarks were kept in bitmaps.
+ * The class name has the same length of Bookmarks class name, so it can be
+ * replaced in the serialized stream.
+ */
+class LegacyBkm implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    boolean[] selected;
+    ArrayList<byte[]> bookmarks;
+    TreeMap<Integer, String> bookmarkNames = new TreeMap<Integer, String>();
+    TreeMap<Integer, String> bookmarkComments = new TreeMap<Integer, String>();
+    TreeMap<Integer, KeyStroke> bookmarkKeyStrokes = new TreeMap<Integer, KeyStroke>();
+    TreeMap<Integer, Color> bookmarkColors = new TreeMap<Integer, Color>();
+    Set<Integer> reportBookmarks = new TreeSet<Integer>();
+    int selectedItens = 0, totalItems, lastId;
+    LinkedHashSet<String> typedWords = new LinkedHashSet<String>();
+    File indexDir;
+    File stateFile, cookie;
+    Map<String, Serializable> extendedBookmarks;
+}
@@ -0,0 +1,99 @@
+package iped.engine.hashdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PhotoDnaIndexTest {
+
+    private File dir;
+    private File dbFile;
+    private File indexFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("photodna").toFile();
+        dbFile = new File(dir, "hashes.db");
+        Files.write(dbFile.toPath(), new byte[] { 1, 2, 3 });
+        indexFile = PhotoDnaIndex.getIndexFile(dbFile);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private static byte[] randomHash(Random random, byte[] base, int noise) {
+        byte[] hash = new byte[PhotoDnaIndex.HASH_SIZE];
+        for (int i = 0; i < hash.length; i++) {
+            int v = base == null ? random.nextInt(256) : (base[i] & 0xff) + random.nextInt(2 * noise + 1) - noise;
+            hash[i] = (byte) Math.max(0, Math.min(255, v));
+        }
+        return hash;
+    }
+
+    @Test
+    public void testFindNearest() throws IOException {
+        Random random = new Random(0);
+        List<PhotoDnaItem> items = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            byte[] base = i % 10 == 0 || items.isEmpty() ? null : items.get(random.nextInt(items.size())).getBytes();
+            items.add(new PhotoDnaItem(i, randomHash(random, base, 20)));
+        }
+        PhotoDnaIndex.write(items, indexFile, dbFile, "");
+        PhotoDnaIndex index = PhotoDnaIndex.load(indexFile, dbFile, "");
+        assertEquals(items.size(), index.size());
+
+        int maxDistance = 40000;
+        int hits = 0;
+        for (int q = 0; q < 200; q++) {
+            byte[] query = randomHash(random, q % 4 == 0 ? null : items.get(random.nextInt(items.size())).getBytes(),
+                    15);
+            PhotoDnaItem expected = null;
+            int minDist = Integer.MAX_VALUE;
+            for (PhotoDnaItem item : items) {
+                int dist = PhotoDnaIndex.distance(query, item.getBytes());
+                if (dist <= maxDistance && dist < minDist) {
+                    minDist = dist;
+                    expected = item;
+                }
+            }
+            PhotoDnaItem nearest = index.findNearest(query, maxDistance);
+            if (expected == null) {
+                assertNull(nearest);
+            } else {
+                hits++;
+                assertNotNull(nearest);
+                assertEquals(minDist, PhotoDnaIndex.distance(query, nearest.getBytes()));
+                assertArrayEquals(items.get(nearest.getHashId()).getBytes(), nearest.getBytes());
+            }
+        }
+        assertEquals(true, hits > 100);
+    }
+
+    @Test
+    public void testOutOfDate() throws IOException {
+        List<PhotoDnaItem> items = new ArrayList<>();
+        items.add(new PhotoDnaItem(1, randomHash(new Random(0), null, 0)));
+        PhotoDnaIndex.write(items, indexFile, dbFile, "pedo");
+        assertNotNull(PhotoDnaIndex.load(indexFile, dbFile, "pedo"));
+        assertNull(PhotoDnaIndex.load(indexFile, dbFile, ""));
+        Files.write(dbFile.toPath(), new byte[] { 1, 2, 3, 4 });
+        assertNull(PhotoDnaIndex.load(indexFile, dbFile, "pedo"));
+        assertNull(PhotoDnaIndex.load(new File(dir, "missing"), dbFile, "pedo"));
+    }
+
+}
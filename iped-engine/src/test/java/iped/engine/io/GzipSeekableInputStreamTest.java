@@ -0,0 +1,39 @@
+package iped.engine.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class GzipSeekableInputStreamTest {
+
+    @Test
+    public void testSeekAndRead() throws IOException {
+        byte[] data = new byte[300000];
+        new Random(0).nextBytes(data);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (GzipCompressorOutputStream out = new GzipCompressorOutputStream(baos)) {
+            out.write(data);
+        }
+        try (GzipSeekableInputStream is = new GzipSeekableInputStream(baos.toByteArray())) {
+            assertEquals(data.length, is.size());
+            for (long pos : new long[] { 250000, 10, 100000, 299990 }) {
+                is.seek(pos);
+                byte[] buf = new byte[100];
+                int read = IOUtils.read(is, buf);
+                assertArrayEquals(Arrays.copyOfRange(data, (int) pos, (int) pos + read), Arrays.copyOf(buf, read));
+            }
+            assertEquals(-1, is.read());
+            is.seek(0);
+            assertArrayEquals(data, IOUtils.toByteArray(is));
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+package iped.engine.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import iped.io.SeekableInputStream;
+
+public class PackStorageTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("packs").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        PackStorage.close(dir);
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private static byte[] createData(Random random, int len) {
+        byte[] data = new byte[len];
+        // half compressible, half random
+        for (int i = 0; i < len / 2; i++) {
+            data[i] = (byte) ('a' + i % 7);
+        }
+        byte[] rnd = new byte[len - len / 2];
+        random.nextBytes(rnd);
+        System.arraycopy(rnd, 0, data, len / 2, rnd.length);
+        return data;
+    }
+
+    private static byte[] read(PackStorage storage, byte[] md5) throws IOException {
+        try (SeekableInputStream is = storage.getSeekableInputStream(md5)) {
+            return IOUtils.toByteArray(is);
+        }
+    }
+
+    @Test
+    public void testPutAndRead() throws IOException {
+        Random random = new Random(0);
+        PackStorage storage = PackStorage.get(dir);
+        byte[][] datas = new byte[200][];
+        for (int i = 0; i < datas.length; i++) {
+            datas[i] = createData(random, random.nextInt(3 * PackStorage.CHUNK_SIZE));
+            assertTrue(storage.put(DigestUtils.md5(datas[i]), datas[i], datas[i].length));
+        }
+        assertFalse(storage.put(DigestUtils.md5(datas[0]), datas[0], datas[0].length));
+        for (byte[] data : datas) {
+            assertArrayEquals(data, read(storage, DigestUtils.md5(data)));
+        }
+        assertNull(storage.getSeekableInputStream(DigestUtils.md5("not stored")));
+
+        // reopened from the persisted indexes
+        PackStorage.close(dir);
+        storage = PackStorage.get(dir);
+        for (byte[] data : datas) {
+            assertArrayEquals(data, read(storage, DigestUtils.md5(data)));
+        }
+    }
+
+    @Test
+    public void testSeek() throws IOException {
+        byte[] data = createData(new Random(1), 5 * PackStorage.CHUNK_SIZE + 123);
+        PackStorage storage = PackStorage.get(dir);
+        storage.put(DigestUtils.md5(data), data, data.length);
+        try (SeekableInputStream is = storage.getSeekableInputStream(DigestUtils.md5(data))) {
+            assertEquals(data.length, is.size());
+            long[] positions = { 4 * PackStorage.CHUNK_SIZE + 10, 5, PackStorage.CHUNK_SIZE - 1, data.length - 3 };
+            for (long pos : positions) {
+                is.seek(pos);
+                byte[] buf = new byte[100];
+                int read = IOUtils.read(is, buf);
+                assertArrayEquals(Arrays.copyOfRange(data, (int) pos, (int) pos + read), Arrays.copyOf(buf, read));
+            }
+            assertEquals(-1, is.read());
+        }
+    }
+
+    @Test
+    public void testInterleavedReaders() throws IOException {
+        byte[] data = createData(new Random(4), 3 * PackStorage.CHUNK_SIZE);
+        PackStorage storage = PackStorage.get(dir);
+        byte[] md5 = DigestUtils.md5(data);
+        storage.put(md5, data, data.length);
+        // both streams share decompressed chunks
+        try (SeekableInputStream is1 = storage.getSeekableInputStream(md5);
+                SeekableInputStream is2 = storage.getSeekableInputStream(md5)) {
+            is2.seek(2 * PackStorage.CHUNK_SIZE);
+            for (int i = 0; i < PackStorage.CHUNK_SIZE; i++) {
+                assertEquals(data[i] & 0xFF, is1.read());
+                assertEquals(data[2 * PackStorage.CHUNK_SIZE + i] & 0xFF, is2.read());
+            }
+        }
+    }
+
+    @Test
+    public void testRecoverWithoutIndex() throws IOException {
+        Random random = new Random(2);
+        PackStorage storage = PackStorage.get(dir);
+        byte[] data1 = createData(random, 1000);
+        byte[] data2 = createData(random, 100000);
+        storage.put(DigestUtils.md5(data1), data1, data1.length);
+        storage.commit();
+        storage.put(DigestUtils.md5(data2), data2, data2.length);
+        PackStorage.close(dir);
+
+        // simulates a crash: stale index and an incomplete record at the end
+        File pack = storage.getPackFile(DigestUtils.md5(data2));
+        File index = new File(dir, pack.getName().replace(PackStorage.PACK_EXT, ".idx"));
+        index.delete();
+        try (RandomAccessFile raf = new RandomAccessFile(pack, "rw")) {
+            raf.seek(raf.length());
+            raf.write(new byte[] { 'I', 'P', 'K', 'R', 1, 2, 3 });
+        }
+
+        storage = PackStorage.get(dir);
+        assertArrayEquals(data1, read(storage, DigestUtils.md5(data1)));
+        assertArrayEquals(data2, read(storage, DigestUtils.md5(data2)));
+        byte[] data3 = createData(random, 5000);
+        storage.put(DigestUtils.md5(data3), data3, data3.length);
+        PackStorage.close(dir);
+        storage = PackStorage.get(dir);
+        assertArrayEquals(data3, read(storage, DigestUtils.md5(data3)));
+    }
+
+    @Test
+    public void testRecoverTruncatedChunkTable() throws IOException {
+        Random random = new Random(5);
+        PackStorage storage = PackStorage.get(dir);
+        byte[] data1 = createData(random, 200000);
+        storage.put(DigestUtils.md5(data1), data1, data1.length);
+        PackStorage.close(dir);
+
+        // complete record header, but the chunk length table was not fully written
+        File pack = storage.getPackFile(DigestUtils.md5(data1));
+        File index = new File(dir, pack.getName().replace(PackStorage.PACK_EXT, ".idx"));
+        index.delete();
+        try (RandomAccessFile raf = new RandomAccessFile(pack, "rw")) {
+            raf.seek(raf.length());
+            raf.writeInt(0x49504B52);
+            raf.write(new byte[16]);
+            raf.writeLong(3L * PackStorage.CHUNK_SIZE);
+            raf.writeInt(3);
+            raf.writeInt(100);
+        }
+
+        storage = PackStorage.get(dir);
+        assertArrayEquals(data1, read(storage, DigestUtils.md5(data1)));
+        byte[] data2 = createData(random, 5000);
+        storage.put(DigestUtils.md5(data2), data2, data2.length);
+        PackStorage.close(dir);
+        storage = PackStorage.get(dir);
+        assertArrayEquals(data1, read(storage, DigestUtils.md5(data1)));
+        assertArrayEquals(data2, read(storage, DigestUtils.md5(data2)));
+    }
+
+    @Test
+    public void testDelete() throws IOException {
+        Random random = new Random(3);
+        PackStorage storage = PackStorage.get(dir);
+        byte[][] datas = new byte[100][];
+        for (int i = 0; i < datas.length; i++) {
+            datas[i] = createData(random, 1 + random.nextInt(10000));
+            storage.put(DigestUtils.md5(datas[i]), datas[i], datas[i].length);
+        }
+        int deleted = storage.delete(md5 -> (md5[15] & 1) == 0);
+        int expected = 0;
+        for (byte[] data : datas) {
+            byte[] md5 = DigestUtils.md5(data);
+            if ((md5[15] & 1) == 0) {
+                expected++;
+                assertFalse(storage.contains(md5));
+            } else {
+                assertArrayEquals(data, read(storage, md5));
+            }
+        }
+        assertEquals(expected, deleted);
+    }
+
+    @Test
+    public void testOutputStream() throws IOException {
+        Random random = new Random(5);
+        PackStorage storage = PackStorage.get(dir);
+        // kept in memory and spilled to a temp file while written
+        byte[] small = createData(random, 1000);
+        byte[] large = createData(random, 40 * PackStorage.CHUNK_SIZE + 17);
+        for (byte[] data : new byte[][] { small, large }) {
+            try (OutputStream out = storage.newOutputStream(DigestUtils.md5(data))) {
+                for (int off = 0; off < data.length; off += 1000) {
+                    out.write(data, off, Math.min(1000, data.length - off));
+                }
+            }
+        }
+        byte[] discarded = createData(random, 3 * PackStorage.CHUNK_SIZE);
+        PackStorage.RecordOutputStream out = storage.newOutputStream(DigestUtils.md5(discarded));
+        out.write(discarded);
+        out.discard();
+        out.close();
+
+        assertArrayEquals(small, read(storage, DigestUtils.md5(small)));
+        assertArrayEquals(large, read(storage, DigestUtils.md5(large)));
+        assertFalse(storage.contains(DigestUtils.md5(discarded)));
+        PackStorage.close(dir);
+
+        storage = PackStorage.get(dir);
+        assertArrayEquals(small, read(storage, DigestUtils.md5(small)));
+        assertArrayEquals(large, read(storage, DigestUtils.md5(large)));
+        // no temp files left
+        assertEquals(0, dir.listFiles((d, name) -> name.startsWith("record")).length);
+    }
+
+}
@@ -0,0 +1,86 @@
+package iped.engine.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TextStoreTest {
+
+    private File moduleDir;
+
+    @Before
+    public void setUp() throws IOException {
+        moduleDir = Files.createTempDirectory("textstore").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TextStore.close(moduleDir);
+        FileUtils.deleteDirectory(moduleDir);
+    }
+
+    private static String read(Reader reader) throws IOException {
+        try (Reader r = reader) {
+            return IOUtils.toString(r);
+        }
+    }
+
+    @Test
+    public void testStoreAndRead() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            sb.append("line ").append(i).append(" \u00E7\u00E3o \uD83D\uDE00\n");
+        }
+        String text = sb.toString();
+
+        assertNull(TextStore.getTextReader(moduleDir, 1));
+        assertEquals(text, read(TextStore.getStoringReader(moduleDir, 1, new StringReader(text))));
+        assertEquals("", read(TextStore.getStoringReader(moduleDir, 2, new StringReader(""))));
+
+        TextStore.close(moduleDir);
+        assertEquals(text, read(TextStore.getTextReader(moduleDir, 1)));
+        // empty texts are not stored, items are parsed again
+        assertNull(TextStore.getTextReader(moduleDir, 2));
+    }
+
+    @Test
+    public void testLargeText() throws IOException {
+        // not compressible enough to be kept in memory while stored
+        Random random = new Random(0);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 4 * 1024 * 1024; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        String text = sb.toString();
+        try (Reader reader = TextStore.getStoringReader(moduleDir, 1, new StringReader(text))) {
+            char[] buf = new char[10000];
+            while (reader.read(buf) != -1) {
+                reader.skip(5000);
+            }
+        }
+        TextStore.commit(moduleDir);
+        assertEquals(text, read(TextStore.getTextReader(moduleDir, 1)));
+    }
+
+    @Test
+    public void testPartialTextNotStored() throws IOException {
+        Reader reader = TextStore.getStoringReader(moduleDir, 1, new StringReader("some text"));
+        reader.read(new char[4]);
+        reader.close();
+        TextStore.commit(moduleDir);
+        assertNull(TextStore.getTextReader(moduleDir, 1));
+    }
+
+}
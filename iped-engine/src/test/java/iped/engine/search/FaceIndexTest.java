@@ -0,0 +1,146 @@
+package iped.engine.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import iped.engine.task.index.IndexItem;
+
+public class FaceIndexTest {
+
+    private static final int DIM = 128;
+    private static final int CLUSTERS = 100;
+    private static final int ITEMS = 3000;
+
+    private Random random = new Random(0);
+    private float[][] centers = new float[CLUSTERS][];
+    private Map<Integer, float[][]> faces = new HashMap<>();
+
+    private File dir;
+    private Directory directory;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("faceindex").toFile();
+        directory = new ByteBuffersDirectory();
+        for (int i = 0; i < CLUSTERS; i++) {
+            centers[i] = randomVector(centers[i], 0.2f);
+        }
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+            for (int id = 0; id < ITEMS; id++) {
+                Document doc = new Document();
+                doc.add(new NumericDocValuesField(IndexItem.ID, id));
+                if (id % 3 != 0) {
+                    float[][] itemFaces = new float[id % 3][];
+                    for (int j = 0; j < itemFaces.length; j++) {
+                        itemFaces[j] = randomVector(centers[random.nextInt(CLUSTERS)], 0.02f);
+                        doc.add(new SortedSetDocValuesField(SimilarFacesSearch.FACE_FEATURES, toBytes(itemFaces[j])));
+                    }
+                    faces.put(id, itemFaces);
+                }
+                writer.addDocument(doc);
+            }
+            writer.forceMerge(1);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        directory.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private float[] randomVector(float[] center, float scale) {
+        float[] v = new float[DIM];
+        for (int i = 0; i < DIM; i++) {
+            v[i] = (center != null ? center[i] : 0) + (float) random.nextGaussian() * scale;
+        }
+        return v;
+    }
+
+    private static BytesRef toBytes(float[] v) {
+        ByteBuffer bb = ByteBuffer.allocate(v.length * Float.BYTES);
+        for (float f : v) {
+            bb.putFloat(f);
+        }
+        return new BytesRef(bb.array());
+    }
+
+    private Map<Integer, Float> bruteForce(float[] query, float maxDist) {
+        Map<Integer, Float> result = new HashMap<>();
+        for (Map.Entry<Integer, float[][]> entry : faces.entrySet()) {
+            for (float[] face : entry.getValue()) {
+                float dist = SimilarFacesSearch.distance(query, face, Float.MAX_VALUE);
+                if (dist <= maxDist) {
+                    result.merge(entry.getKey(), dist, Math::min);
+                }
+            }
+        }
+        return result;
+    }
+
+    private FaceIndex buildIndex() throws IOException {
+        File file = new File(dir, "faceIndex.hnsw");
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            LeafReader leafReader = reader.leaves().get(0).reader();
+            assertTrue(FaceIndex.build(leafReader, ITEMS - 1, file));
+        }
+        return new FaceIndex(file);
+    }
+
+    @Test
+    public void testSearch() throws IOException {
+        try (FaceIndex index = buildIndex()) {
+            assertEquals(faces.values().stream().mapToInt(f -> f.length).sum(), index.size());
+            float maxDist = 0.25f;
+            for (int i = 0; i < 20; i++) {
+                float[] query = randomVector(centers[random.nextInt(CLUSTERS)], 0.02f);
+                Map<Integer, Float> expected = bruteForce(query, maxDist);
+                assertFalse(expected.isEmpty());
+                // few candidates must be expanded to find all near faces
+                Map<Integer, Float> result = index.search(query, maxDist, 4);
+                assertEquals(expected.keySet(), result.keySet());
+                for (Integer id : expected.keySet()) {
+                    assertEquals(expected.get(id), result.get(id), 1e-4);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testNoFaces() throws IOException {
+        Directory empty = new ByteBuffersDirectory();
+        try (IndexWriter writer = new IndexWriter(empty, new IndexWriterConfig())) {
+            Document doc = new Document();
+            doc.add(new NumericDocValuesField(IndexItem.ID, 0));
+            writer.addDocument(doc);
+        }
+        try (DirectoryReader reader = DirectoryReader.open(empty)) {
+            assertFalse(FaceIndex.build(reader.leaves().get(0).reader(), 0, new File(dir, "empty.hnsw")));
+        }
+    }
+
+}
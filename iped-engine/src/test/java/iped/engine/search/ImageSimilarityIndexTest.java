@@ -0,0 +1,82 @@
+package iped.engine.search;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import iped.engine.task.similarity.ImageSimilarity;
+import iped.engine.task.similarity.ImageSimilarityTask;
+
+public class ImageSimilarityIndexTest {
+
+    private static final int DOCS = 2000;
+
+    @Test
+    public void testDistances() throws IOException {
+        Random random = new Random(0);
+        byte[][] centers = new byte[20][ImageSimilarity.numFeatures];
+        for (byte[] center : centers) {
+            random.nextBytes(center);
+        }
+        byte[][] features = new byte[DOCS][];
+        try (Directory directory = new ByteBuffersDirectory()) {
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+                for (int i = 0; i < DOCS; i++) {
+                    Document doc = new Document();
+                    if (i % 5 != 0) {
+                        byte[] center = centers[random.nextInt(centers.length)];
+                        features[i] = new byte[ImageSimilarity.numFeatures];
+                        for (int j = 0; j < features[i].length; j++) {
+                            features[i][j] = (byte) Math.max(-128, Math.min(127, center[j] + random.nextInt(9) - 4));
+                        }
+                        doc.add(new BinaryDocValuesField(ImageSimilarityTask.IMAGE_FEATURES, new BytesRef(features[i])));
+                    }
+                    writer.addDocument(doc);
+                }
+                writer.forceMerge(1);
+            }
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                ImageSimilarityIndex index = new ImageSimilarityIndex(reader.leaves().get(0).reader());
+                assertEquals(DOCS - DOCS / 5, index.size());
+
+                byte[] buf = new byte[ImageSimilarity.numFeatures];
+                assertNull(index.getFeatures(0, buf));
+                assertArrayEquals(features[1], index.getFeatures(1, buf));
+
+                int cut = 100 * ImageSimilarity.numFeatures / 4;
+                ImageSimilarityIndex.Scorer scorer = index.new Scorer(features[1], cut);
+                int near = 0;
+                for (int i = 0; i < DOCS; i++) {
+                    int dist = scorer.distance(i);
+                    if (features[i] == null) {
+                        assertEquals(-1, dist);
+                        continue;
+                    }
+                    int expected = ImageSimilarity.distance(features[1], features[i]);
+                    if (expected < cut) {
+                        assertEquals(expected, dist);
+                        near++;
+                    } else {
+                        assertTrue(dist >= cut);
+                    }
+                }
+                assertTrue(near > 1);
+            }
+        }
+    }
+
+}
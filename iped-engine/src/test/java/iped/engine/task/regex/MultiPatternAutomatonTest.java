@@ -0,0 +1,155 @@
+package iped.engine.task.regex;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import dk.brics.automaton.Automaton;
+import dk.brics.automaton.AutomatonMatcher;
+import dk.brics.automaton.BasicOperations;
+import dk.brics.automaton.RegExp;
+import dk.brics.automaton.RunAutomaton;
+import iped.engine.task.regex.MultiPatternAutomaton.Match;
+
+public class MultiPatternAutomatonTest {
+
+    private static final String[] REGEXES = { "[0-9]{3}\\.[0-9]{3}", "[0-9]+", "abc", "ab[a-z]*", "[a-c]+x" };
+
+    private static List<Automaton> getAutomata() {
+        List<Automaton> automata = new ArrayList<>();
+        for (String regex : REGEXES) {
+            automata.add(new RegExp(regex).toAutomaton());
+        }
+        return automata;
+    }
+
+    private static List<String> findAll(MultiPatternAutomaton mpa, char[] buf) {
+        List<String> result = new ArrayList<>();
+        Match match = new Match();
+        int pos = 0;
+        while (mpa.find(buf, pos, buf.length, true, match) >= 0) {
+            result.add(match.getStart() + "-" + match.getEnd() + Arrays.toString(match.getIds()));
+            pos = match.getEnd();
+        }
+        return result;
+    }
+
+    /**
+     * Finds all matches feeding the text in chunks of the given size, keeping the
+     * undecided chars for the next chunk as RegexTask does.
+     */
+    private static List<String> findAllChunked(MultiPatternAutomaton mpa, String text, int chunkSize) {
+        List<String> result = new ArrayList<>();
+        Match match = new Match();
+        char[] buf = new char[chunkSize];
+        int len = 0, read = 0, offset = 0;
+        boolean eof = false;
+        while (!eof) {
+            int n = Math.min(buf.length - len, text.length() - read);
+            text.getChars(read, read + n, buf, len);
+            read += n;
+            len += n;
+            eof = read == text.length();
+            int pos = 0;
+            boolean force = false;
+            while (true) {
+                int start = mpa.find(buf, pos, len, eof || force, match);
+                force = false;
+                if (start == MultiPatternAutomaton.NEED_MORE_INPUT) {
+                    if (match.getStart() == 0 && len == buf.length) {
+                        force = true;
+                        continue;
+                    }
+                    pos = match.getStart();
+                    break;
+                }
+                if (start == -1) {
+                    pos = len;
+                    break;
+                }
+                result.add((offset + start) + "-" + (offset + match.getEnd()) + Arrays.toString(match.getIds()));
+                pos = match.getEnd();
+            }
+            System.arraycopy(buf, pos, buf, 0, len - pos);
+            offset += pos;
+            len -= pos;
+        }
+        return result;
+    }
+
+    @Test
+    public void testMatchesWithIds() {
+        MultiPatternAutomaton mpa = new MultiPatternAutomaton(getAutomata());
+        List<String> matches = findAll(mpa, "xx 123.456 abc abcx 42 abd".toCharArray());
+        assertEquals(Arrays.asList("3-10[0]", "11-14[2, 3]", "15-19[3, 4]", "20-22[1]", "23-26[3]"), matches);
+    }
+
+    @Test
+    public void testNoMatch() {
+        MultiPatternAutomaton mpa = new MultiPatternAutomaton(getAutomata());
+        assertEquals(0, findAll(mpa, "zzz yyy".toCharArray()).size());
+        assertEquals(0, findAll(mpa, new char[0]).size());
+    }
+
+    @Test
+    public void testNeedMoreInput() {
+        MultiPatternAutomaton mpa = new MultiPatternAutomaton(getAutomata());
+        Match match = new Match();
+        char[] buf = "zz 123.45".toCharArray();
+        assertEquals(MultiPatternAutomaton.NEED_MORE_INPUT, mpa.find(buf, 0, buf.length, false, match));
+        assertEquals(3, match.getStart());
+        assertEquals(3, mpa.find(buf, 0, buf.length, true, match));
+        assertEquals(6, match.getEnd());
+        assertArrayEquals(new int[] { 1 }, match.getIds());
+    }
+
+    @Test
+    public void testMatchesCrossingChunks() {
+        MultiPatternAutomaton mpa = new MultiPatternAutomaton(getAutomata());
+        String text = randomText(new Random(0), 5000);
+        List<String> expected = findAll(mpa, text.toCharArray());
+        for (int chunkSize : new int[] { 16, 17, 64, 1000 }) {
+            assertEquals(expected, findAllChunked(mpa, text, chunkSize));
+        }
+    }
+
+    @Test
+    public void testSameResultsAsUnionAutomaton() {
+        List<Automaton> automata = getAutomata();
+        MultiPatternAutomaton mpa = new MultiPatternAutomaton(automata);
+        RunAutomaton full = new RunAutomaton(BasicOperations.union(automata));
+        List<RunAutomaton> patterns = new ArrayList<>();
+        for (Automaton a : automata) {
+            patterns.add(new RunAutomaton(a));
+        }
+        String text = randomText(new Random(1), 5000);
+        List<String> expected = new ArrayList<>();
+        AutomatonMatcher matcher = full.newMatcher(text);
+        while (matcher.find()) {
+            List<Integer> ids = new ArrayList<>();
+            for (int i = 0; i < patterns.size(); i++) {
+                if (patterns.get(i).run(matcher.group())) {
+                    ids.add(i);
+                }
+            }
+            expected.add(matcher.start() + "-" + matcher.end() + ids);
+        }
+        assertEquals(expected, findAll(mpa, text.toCharArray()));
+    }
+
+    private static String randomText(Random random, int len) {
+        String chars = "0123456789.abcxyz ";
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < len; i++) {
+            sb.append(chars.charAt(random.nextInt(chars.length())));
+        }
+        return sb.toString();
+    }
+
+}
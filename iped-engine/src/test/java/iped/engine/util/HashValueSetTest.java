@@ -0,0 +1,68 @@
+package iped.engine.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import iped.utils.HashValue;
+
+public class HashValueSetTest {
+
+    private static byte[] hash(int i) {
+        byte[] bytes = new byte[20];
+        new Random(i).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testAddAndContains() {
+        HashValueSet set = new HashValueSet();
+        for (int i = 0; i < 100000; i++) {
+            assertTrue(set.add(hash(i)));
+        }
+        for (int i = 0; i < 100000; i++) {
+            assertFalse(set.add(new HashValue(hash(i))));
+            assertTrue(set.contains(new HashValue(hash(i))));
+        }
+        assertFalse(set.contains(new HashValue(hash(-1))));
+        assertTrue(set.add(new byte[16]));
+        assertFalse(set.add(new byte[16]));
+        assertEquals(100001, set.size());
+        set.clear();
+        assertEquals(0, set.size());
+        assertFalse(set.contains(new HashValue(hash(1))));
+    }
+
+    @Test
+    public void testAddHex() {
+        HashValueSet set = new HashValueSet();
+        HashValue hash = new HashValue(hash(7));
+        byte[] hex = ("xx" + hash.toString().toLowerCase()).getBytes(StandardCharsets.US_ASCII);
+        assertTrue(set.addHex(new BytesRef(hex, 2, hex.length - 2)));
+        assertTrue(set.contains(hash));
+        assertFalse(set.add(hash));
+    }
+
+    @Test
+    public void testConcurrentAdds() {
+        HashValueSet set = new HashValueSet();
+        AtomicInteger added = new AtomicInteger();
+        // each hash is added by 4 threads, only one must succeed
+        IntStream.range(0, 400000).parallel().forEach(i -> {
+            if (set.add(hash(i / 4))) {
+                added.incrementAndGet();
+            }
+        });
+        assertEquals(100000, added.get());
+        assertEquals(100000, set.size());
+    }
+
+}
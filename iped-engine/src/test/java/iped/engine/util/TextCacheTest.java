@@ -0,0 +1,126 @@
+package iped.engine.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Test;
+
+public class TextCacheTest {
+
+    private static String createText(int len) {
+        StringBuilder sb = new StringBuilder(len);
+        for (int i = 0; i < len; i++) {
+            sb.append((char) ('a' + i % 26));
+            if (i % 100 == 0) {
+                sb.append('\u00E7');
+                i++;
+            }
+        }
+        return sb.toString().substring(0, len);
+    }
+
+    private static TextCache write(String text, boolean diskCache) throws IOException {
+        TextCache cache = new TextCache();
+        cache.setEnableDiskCache(diskCache);
+        char[] chars = text.toCharArray();
+        for (int off = 0; off < chars.length; off += 128 * 1024) {
+            cache.write(chars, off, Math.min(128 * 1024, chars.length - off));
+        }
+        return cache;
+    }
+
+    private static String read(TextCache cache) throws IOException {
+        try (Reader reader = cache.getTextReader()) {
+            return IOUtils.toString(reader);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        TextCache.setMemoryBudget(Runtime.getRuntime().maxMemory() / 8);
+    }
+
+    @Test
+    public void testSmallText() throws IOException {
+        try (TextCache cache = new TextCache()) {
+            cache.write("small text");
+            assertEquals(10, cache.getSize());
+            assertEquals("small text", read(cache));
+        }
+    }
+
+    @Test
+    public void testLargeText() throws IOException {
+        String text = createText(3_500_000);
+        try (TextCache cache = write(text, true)) {
+            assertEquals(text.length(), cache.getSize());
+            assertEquals(text, read(cache));
+        }
+    }
+
+    @Test
+    public void testSpillToDisk() throws IOException {
+        TextCache.setMemoryBudget(0);
+        String text = createText(2_500_000);
+        try (TextCache cache = write(text, true)) {
+            assertEquals(text, read(cache));
+        }
+    }
+
+    @Test
+    public void testTruncateWithoutDiskCache() throws IOException {
+        TextCache.setMemoryBudget(0);
+        String text = createText(10_500_000);
+        try (TextCache cache = write(text, false)) {
+            assertEquals(10_000_000, cache.getSize());
+            assertEquals(text.substring(0, 10_000_000), read(cache));
+        }
+    }
+
+    @Test
+    public void testTextBounds() throws IOException {
+        String text = createText(3_000_000);
+        TextCache cache = write(text, true);
+        int[][] bounds = { { 0, 100 }, { 65_000, 2_000_000 }, { 2_999_990, 10 } };
+        for (int[] bound : bounds) {
+            try (TextCache chunk = cache.clone()) {
+                chunk.setTextBounds(bound[0], bound[1]);
+                assertEquals(bound[1], chunk.getSize());
+                assertEquals(text.substring(bound[0], bound[0] + bound[1]), read(chunk));
+                try (Reader reader = chunk.getTextReader()) {
+                    assertEquals(bound[1] / 2, reader.skip(bound[1] / 2));
+                    assertEquals(text.charAt(bound[0] + bound[1] / 2), reader.read());
+                }
+            }
+        }
+        // clones keep the text after the original is closed
+        TextCache chunk = cache.clone();
+        cache.close();
+        chunk.setTextBounds(1_000_000, 5);
+        assertEquals(text.substring(1_000_000, 1_000_005), read(chunk));
+        chunk.close();
+    }
+
+    @Test
+    public void testReaderAfterClose() throws IOException {
+        String text = createText(3_000_000);
+        TextCache cache = write(text, true);
+        try (Reader reader = cache.getTextReader()) {
+            char[] start = new char[1000];
+            assertEquals(1000, reader.read(start));
+            cache.close();
+            // segments of the open reader are not reused by other caches
+            String other = text.toUpperCase();
+            try (TextCache otherCache = write(other, true)) {
+                assertEquals(text.substring(0, 1000), new String(start));
+                assertEquals(text.substring(1000), IOUtils.toString(reader));
+                assertEquals(other, read(otherCache));
+            }
+        }
+    }
+
+}
@@ -58,6 +58,7 @@ public class EvtxParser extends AbstractParser {
 
     protected int maxEventPerItem = 50;
     private String[] groupBy;
+    private boolean parallelDecoding = true;
 
     @Override
     public Set<MediaType> getSupportedTypes(ParseContext context) {
@@ -77,6 +78,11 @@ public void setMaxEventPerItem(Integer value) {
         this.maxEventPerItem = value;
     }
 
+    @Field
+    public void setParallelDecoding(Boolean value) {
+        this.parallelDecoding = value;
+    }
+
     class ProviderIDMap extends HashMap<String, String> {
     }
 
@@ -259,6 +265,7 @@ public void accept(EvtxRecord evtxRecord) {
             EvtxFile evtxFile = new EvtxFile(stream);
             evtxFile.setName(filePath);
             evtxFile.setEvtxRecordConsumer(co);
+            evtxFile.setParallel(parallelDecoding);
             try {
                 evtxFile.processFile();
 
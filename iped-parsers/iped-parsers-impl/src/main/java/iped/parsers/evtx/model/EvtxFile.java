@@ -5,8 +5,13 @@
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.lucene.util.ArrayUtil;
 import org.slf4j.Logger;
@@ -18,11 +23,20 @@ public class EvtxFile {
 
     private static final Logger logger = LoggerFactory.getLogger(EvtxFile.class);
 
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+    // chunks read ahead of the one being consumed, bounds memory usage
+    private static final int MAX_PENDING_CHUNKS = POOL_SIZE * 2;
+
+    private static volatile ExecutorService executor;
+
     HashMap<Integer, TemplateData> templateDatas = new HashMap<Integer, TemplateData>();
     HashMap<Integer, EvtxXmlFragment> templateXmls = new HashMap<Integer, EvtxXmlFragment>();
 
-    byte[] header = new byte[4096];
-    byte[] curChunk = new byte[64 * 1024];
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    byte[] header;
+    byte[] curChunk;
     int chunckCount = 0;
     String name;
 
@@ -34,13 +48,25 @@ public class EvtxFile {
 
     EvtxRecordConsumer evtxRecordConsumer;
     private InputStream is;
+    private boolean parallel = false;
 
     public EvtxFile(InputStream is) {
         this.is = is;
+        this.header = new byte[4096];
+        this.curChunk = new byte[CHUNK_SIZE];
+    }
+
+    /**
+     * Used to decode a single chunk in parallel mode, with its own templates.
+     */
+    private EvtxFile(EvtxFile parent, EvtxRecordConsumer evtxRecordConsumer) {
+        this.name = parent.name;
+        this.dirty = parent.dirty;
+        this.evtxRecordConsumer = evtxRecordConsumer;
     }
 
     public void processFile() throws IOException, EvtxParseException {
-        BufferedInputStream bis = new BufferedInputStream(is, 64 * 1024);
+        BufferedInputStream bis = new BufferedInputStream(is, CHUNK_SIZE);
 
         bis.readNBytes(header, 0, header.length);
 
@@ -62,6 +88,14 @@ public void processFile() throws IOException, EvtxParseException {
             dirty = true;
         }
 
+        if (parallel) {
+            processChunksParallel(bis);
+        } else {
+            processChunks(bis);
+        }
+    }
+
+    private void processChunks(BufferedInputStream bis) throws IOException {
         boolean eof = false;
         for (int i = 0; !eof; i++) {
             int read = bis.readNBytes(curChunk, 0, curChunk.length);
@@ -70,19 +104,7 @@ public void processFile() throws IOException, EvtxParseException {
                     EvtxChunk chunk = new EvtxChunk(this, curChunk);
                     chunk.processChunk();
                 } catch (EvtxParseException e) {
-                    if (e instanceof EvtxInvalidChunkHeaderException) {
-                        if (i < chunckCount) {
-                            if (!dirty) {
-                                logger.warn("Invalid chunk header found on non dirty evtx file: {}", ((EvtxInvalidChunkHeaderException) e).getHeader());
-                            } else {
-                                logger.warn("Invalid chunk header found before end of chunckcount on evtx file: {}", ((EvtxInvalidChunkHeaderException) e).getHeader());
-                            }
-                        }
-                        // if the file is dirty ignores parsing with no error because it can be normal
-                        // to occur
-                    } else {
-                        e.printStackTrace();
-                    }
+                    handleChunkException(e, i);
                 } finally {
                     templateXmls.clear();
                 }
@@ -92,6 +114,132 @@ public void processFile() throws IOException, EvtxParseException {
         }
     }
 
+    /**
+     * Chunks are self-contained (templates are chunk local), so they are decoded
+     * concurrently, each one into a separate EvtxFile, while records are fed to
+     * the consumer by the calling thread in chunk order. At most
+     * {@link #MAX_PENDING_CHUNKS} chunks are read ahead.
+     */
+    private void processChunksParallel(BufferedInputStream bis) throws IOException {
+        ArrayDeque<Future<DecodedChunk>> pending = new ArrayDeque<>();
+        try {
+            int consumed = 0;
+            boolean eof = false;
+            while (!eof || !pending.isEmpty()) {
+                if (!eof) {
+                    byte[] chunkBytes = new byte[CHUNK_SIZE];
+                    int read = bis.readNBytes(chunkBytes, 0, chunkBytes.length);
+                    if (read == chunkBytes.length) {
+                        pending.add(getExecutor().submit(() -> decodeChunk(chunkBytes)));
+                    } else {
+                        eof = true;
+                    }
+                }
+                if (pending.size() >= MAX_PENDING_CHUNKS || (eof && !pending.isEmpty())) {
+                    consume(pending.poll().get(), consumed++);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            for (Future<DecodedChunk> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static class DecodedChunk {
+        ArrayList<EvtxRecord> records = new ArrayList<>();
+        long recordCount;
+        EvtxParseException exception;
+        // unchecked failure (e.g. corrupted sizes), thrown after consuming the
+        // records decoded before it, like the serial path does
+        Throwable failure;
+    }
+
+    private DecodedChunk decodeChunk(byte[] chunkBytes) {
+        DecodedChunk result = new DecodedChunk();
+        EvtxFile chunkFile = new EvtxFile(this, result.records::add);
+        try {
+            new EvtxChunk(chunkFile, chunkBytes).processChunk();
+        } catch (EvtxParseException e) {
+            result.exception = e;
+        } catch (RuntimeException | Error e) {
+            result.failure = e;
+        }
+        result.recordCount = chunkFile.totalCount;
+        return result;
+    }
+
+    private void consume(DecodedChunk chunk, int chunkIndex) {
+        totalCount += chunk.recordCount;
+        for (EvtxRecord record : chunk.records) {
+            if (evtxRecordConsumer != null) {
+                evtxRecordConsumer.accept(record);
+            }
+        }
+        if (chunk.failure instanceof RuntimeException) {
+            throw (RuntimeException) chunk.failure;
+        } else if (chunk.failure != null) {
+            throw (Error) chunk.failure;
+        }
+        if (chunk.exception != null) {
+            handleChunkException(chunk.exception, chunkIndex);
+        }
+    }
+
+    private void handleChunkException(EvtxParseException e, int chunkIndex) {
+        if (e instanceof EvtxInvalidChunkHeaderException) {
+            if (chunkIndex < chunckCount) {
+                if (!dirty) {
+                    logger.warn("Invalid chunk header found on non dirty evtx file: {}", ((EvtxInvalidChunkHeaderException) e).getHeader());
+                } else {
+                    logger.warn("Invalid chunk header found before end of chunckcount on evtx file: {}", ((EvtxInvalidChunkHeaderException) e).getHeader());
+                }
+            }
+            // if the file is dirty ignores parsing with no error because it can be normal
+            // to occur
+        } else {
+            e.printStackTrace();
+        }
+    }
+
+    private static ExecutorService getExecutor() {
+        if (executor == null) {
+            synchronized (EvtxFile.class) {
+                if (executor == null) {
+                    executor = Executors.newFixedThreadPool(POOL_SIZE, r -> {
+                        Thread t = new Thread(r, "EvtxChunkDecoder"); //$NON-NLS-1$
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Decodes chunks concurrently on a shared pool. Records are still fed to the
+     * consumer in file order by the thread calling {@link #processFile()}.
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
     public EvtxRecordConsumer getEvtxRecordConsumer() {
         return evtxRecordConsumer;
     }
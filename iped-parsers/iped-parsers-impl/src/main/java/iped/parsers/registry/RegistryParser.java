@@ -30,6 +30,7 @@
 import iped.parsers.util.EmbeddedItem;
 import iped.parsers.util.EmbeddedParent;
 import iped.parsers.util.ItemInfo;
+import iped.utils.IOUtil;
 
 public class RegistryParser extends AbstractParser {
 
@@ -63,6 +64,7 @@ public void setKeepInCaseData(boolean keepInCaseData) {
     public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context) throws IOException, SAXException, TikaException {
         /* filtra os itens a serem parseados */
         String nome = metadata.get(TikaCoreProperties.RESOURCE_NAME_KEY).toUpperCase();
+        RegistryFile rf = null;
         try {
             if (defaultRegistryKeyParser == null) {
                 synchronized (RegistryParser.class) {
@@ -78,18 +80,24 @@ public void parse(InputStream stream, ContentHandler handler, Metadata metadata,
 
             File dbFile = TikaInputStream.get(stream).getFile();
 
-            RegistryFile rf = new RegistryFile(dbFile);
+            rf = new RegistryFile(dbFile);
             rf.load(RegistryKeyParserManager.getRegistryKeyParserManager());
+            if (keepInCaseData) {
+                // kept registries are shared by other threads and outlive the temp file
+                rf.loadValues();
+                rf.close();
+            }
 
             extractCaseData(nome, caminho, rf, context);
 
             if (extractItems) {
                 KeyNode kf = rf.findKeyNode("/");
-                recursiveKeyParser(kf, "ROOT", "", handler, metadata, context, new HashMap<String, EmbeddedParent>());
+                recursiveKeyParser(rf, kf, "ROOT", "", handler, metadata, context, new HashMap<String, EmbeddedParent>());
             }
         } catch (Exception e) {
             throw new TikaException("Erro ao decodificar arquivo de registro: " + nome, e);
         } finally {
+            IOUtil.closeQuietly(rf);
         }
     }
 
@@ -163,7 +171,7 @@ public void extractCaseData(String nome, String caminho, RegistryFile rf, ParseC
         }
     }
     
-    private void keyParser(KeyNode kn, boolean hasChildren, String keyPath, String parentPath, ContentHandler handler, Metadata metadata, ParseContext context, HashMap<String, EmbeddedParent> parentMap) throws TikaException {
+    private void keyParser(RegistryFile rf, KeyNode kn, boolean hasChildren, String keyPath, String parentPath, ContentHandler handler, Metadata metadata, ParseContext context, HashMap<String, EmbeddedParent> parentMap) throws TikaException {
         RegistryKeyParser parser = RegistryKeyParserManager.getRegistryKeyParserManager().getRegistryKeyParser(keyPath);
         if (parser != null) {
             String title = keyPath.substring(parentPath.length() + 1);
@@ -171,7 +179,7 @@ private void keyParser(KeyNode kn, boolean hasChildren, String keyPath, String p
             parser.parse(kn, title, hasChildren, keyPath, parent, handler, metadata, context);
             parentMap.put(keyPath, context.get(EmbeddedItem.class));
         } else {
-            if (RegistryKeyParserManager.getRegistryKeyParserManager().hasChildRegistered(keyPath)) {
+            if (rf.hasChildRegistered(keyPath)) {
                 String title = keyPath.substring(parentPath.length() + 1);
                 EmbeddedParent parent = parentMap.get(parentPath);
                 defaultRegistryKeyParser.parse(kn, title, hasChildren, keyPath, parent, handler, metadata, context);
@@ -180,17 +188,17 @@ private void keyParser(KeyNode kn, boolean hasChildren, String keyPath, String p
         }
     }
 
-    private void recursiveKeyParser(KeyNode kn, String keyPath, String parentPath, ContentHandler handler, Metadata metadata, ParseContext context, HashMap<String, EmbeddedParent> parentMap) throws TikaException {
+    private void recursiveKeyParser(RegistryFile rf, KeyNode kn, String keyPath, String parentPath, ContentHandler handler, Metadata metadata, ParseContext context, HashMap<String, EmbeddedParent> parentMap) throws TikaException {
         ArrayList<KeyNode> kns = kn.getSubKeys();
 
-        keyParser(kn, ((kns != null) && (kns.size() > 0)), keyPath, parentPath, handler, metadata, context, parentMap);
+        keyParser(rf, kn, ((kns != null) && (kns.size() > 0)), keyPath, parentPath, handler, metadata, context, parentMap);
 
         EmbeddedItem item = context.get(EmbeddedItem.class);
 
-        if (RegistryKeyParserManager.getRegistryKeyParserManager().hasChildRegistered(keyPath)) {
+        if (rf.hasChildRegistered(keyPath)) {
             if (kns != null) {
                 for (int i = 0; i < kns.size(); i++) {
-                    recursiveKeyParser(kns.get(i), keyPath + "/" + kns.get(i).getKeyName(), keyPath, handler, metadata, context, parentMap);
+                    recursiveKeyParser(rf, kns.get(i), keyPath + "/" + kns.get(i).getKeyName(), keyPath, handler, metadata, context, parentMap);
                 }
             }
         }
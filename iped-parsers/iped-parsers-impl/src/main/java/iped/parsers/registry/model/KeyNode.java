@@ -114,7 +114,10 @@ public ArrayList<Integer> getSubKeyOffsets() {
     }
 
     private void addSubkeyOffsets(int listOffset, ArrayList<Integer> result) {
-        HiveCell cell = reg.loadCell(listOffset);
+        HiveCell cell = reg.getCell(listOffset);
+        if (cell == null) {
+            return;
+        }
         if (cell.getCellContent() instanceof SubKeysList) {
             SubKeysList listOffsets = (SubKeysList) cell.getCellContent();
             int offsets[] = listOffsets.getOffsets();
@@ -144,6 +147,9 @@ public String getPath() {
 
     private void addSubkeys(int listOffset, ArrayList resultado) {
         HiveCell cell = reg.getCell(listOffset);
+        if (cell == null) {
+            return;
+        }
         if (cell.getCellContent() instanceof SubKeysList) {
             SubKeysList listOffsets = (SubKeysList) cell.getCellContent();
             int offsets[] = listOffsets.getOffsets();
@@ -1,5 +1,6 @@
 package iped.parsers.registry.model;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -10,7 +11,8 @@
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
 
@@ -23,7 +25,14 @@
  * 
  */
 
-public class RegistryFile {
+public class RegistryFile implements Closeable {
+
+    private static final int PAGE_SIZE = 64 * 1024;
+
+    private static final int MAX_CACHED_PAGES = 64;
+
+    private static final String ROOT_PATH = "ROOT";
+
     File file;
     // StreamSource ss;
     int rootCellOffset;
@@ -32,6 +41,23 @@ public class RegistryFile {
     private int hbinSize;
     RegistryKeyParserFilter currentKeyFilter;
 
+    // key path -> key node cell offset of the keys loaded by load(filter)
+    private HashMap<String, Integer> keyOffsets = new HashMap<>();
+    // key node cells not loaded because they were filtered out
+    private HashSet<Integer> skippedKeys = new HashSet<>();
+    // results of the key filter, shared by the load and the key parsers
+    private HashMap<String, Boolean> registeredPaths = new HashMap<>();
+
+    private long fileLength;
+    private LinkedHashMap<Long, byte[]> pageCache = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            return size() > MAX_CACHED_PAGES;
+        }
+    };
+
     public RegistryFile(File file) {
         this.file = file;
     }
@@ -85,27 +111,66 @@ public void load() throws IOException {
         fis.close();
     }
 
+    /**
+     * Reads and decodes the cell at the given offset from the hive, without
+     * caching it.
+     */
     public HiveCell loadCell(int offset) {
         try {
-            ras.seek(4096 + offset);
-            HiveCell cell = readCell(ras.getChannel());
+            long pos = 4096L + offset;
+            byte[] buffer = new byte[4];
+            read(pos, buffer);
+            HiveCell cell = new HiveCell();
+            cell.setSize(buffer);
+            buffer = new byte[cell.getSize() - 4];
+            read(pos + 4, buffer);
+            cell.cellContent = createCellContent(buffer);
             return cell;
         } catch (Exception e) {
             return null;
         }
     }
 
+    /**
+     * Reads from the hive through a cache of pages, as cells are small and close
+     * to each other.
+     */
+    private void read(long pos, byte[] buffer) throws IOException {
+        if (pos < 0 || pos + buffer.length > fileLength) {
+            throw new IOException("Cell out of hive bounds: " + pos);
+        }
+        int done = 0;
+        while (done < buffer.length) {
+            long pageStart = (pos + done) / PAGE_SIZE * PAGE_SIZE;
+            byte[] page = pageCache.get(pageStart);
+            if (page == null) {
+                page = new byte[(int) Math.min(PAGE_SIZE, fileLength - pageStart)];
+                ras.seek(pageStart);
+                ras.readFully(page);
+                pageCache.put(pageStart, page);
+            }
+            int off = (int) (pos + done - pageStart);
+            int len = Math.min(buffer.length - done, page.length - off);
+            System.arraycopy(page, off, buffer, done, len);
+            done += len;
+        }
+    }
+
+    /**
+     * Loads the key node cells of the keys accepted by the filter, indexing them
+     * by path. Other cells (values, data) are decoded lazily, when first
+     * requested by {@link #getCell(int)}, while this file is not closed.
+     */
     public void load(RegistryKeyParserFilter keyFilter) throws IOException {
         currentKeyFilter = keyFilter;
 
         ras = new RandomAccessFile(file, "r");
-        int pos = 0;
+        fileLength = ras.length();
 
-        HashSet<Integer> cellsToLoad = new HashSet<Integer>();
         readCells = new HashMap<Integer, HiveCell>();
 
         Registry reg = new Registry();
-        ras.read(reg.fileHeader);
+        read(0, reg.fileHeader);
 
         byte[] buffer = Arrays.copyOfRange(reg.fileHeader, 36, 40);
         rootCellOffset = (buffer[0] & 0xFF) | (buffer[1] & 0xFF) << 8 | (buffer[2] & 0xFF) << 16 | (buffer[3] & 0xFF) << 24;
@@ -114,51 +179,88 @@ public void load(RegistryKeyParserFilter keyFilter) throws IOException {
         buffer = null;
 
         HiveCell cell = loadCell(rootCellOffset);
+        if (cell == null || !(cell.cellContent instanceof KeyNode)) {
+            throw new IOException("Invalid registry root cell");
+        }
         KeyNode kn = (KeyNode) cell.cellContent;
         readCells.put(rootCellOffset, cell);
-        recursiveKeyLoad(kn, "ROOT");
+        keyOffsets.put(ROOT_PATH, rootCellOffset);
+        recursiveKeyLoad(kn, ROOT_PATH);
     }
 
     private void recursiveKeyLoad(KeyNode kn, String path) {
         if (path == null) {
-            path = "ROOT";
+            path = ROOT_PATH;
         }
         ArrayList<Integer> subkeyOffsets = kn.getSubKeyOffsets();
-        for (Iterator iterator = subkeyOffsets.iterator(); iterator.hasNext();) {
-            Integer offset = (Integer) iterator.next();
+        // first offset is the subkeys list, already loaded
+        for (int i = 1; i < subkeyOffsets.size(); i++) {
+            Integer offset = subkeyOffsets.get(i);
             HiveCell cell = loadCell(offset);
-            if (cell.cellContent instanceof KeyNode) {
+            if (cell != null && cell.cellContent instanceof KeyNode) {
                 KeyNode kn2 = (KeyNode) cell.cellContent;
                 String subPath = path + "/" + kn2.getKeyName();
-                if (subPath.contains("/Select")) {
-                    System.out.print(false);
-                }
-                if (currentKeyFilter == null || currentKeyFilter.hasChildRegistered(subPath)) {
+                if (hasChildRegistered(subPath)) {
                     readCells.put(offset, cell);
+                    keyOffsets.putIfAbsent(subPath, offset);
                     recursiveKeyLoad(kn2, subPath);
+                } else {
+                    skippedKeys.add(offset);
                 }
             } else {
                 readCells.put(offset, cell);
             }
         }
-        ArrayList<Integer> valuesOffsets = kn.getSubCellsOffsets();
-        for (Iterator iterator = valuesOffsets.iterator(); iterator.hasNext();) {
-            Integer offset = (Integer) iterator.next();
-            HiveCell cell = loadCell(offset);
-            readCells.put(offset, cell);
+    }
+
+    /**
+     * Checks the key filter used to load this file, caching the results, so key
+     * parsers walking the loaded keys share the load traversal results.
+     */
+    public boolean hasChildRegistered(String keyPath) {
+        if (currentKeyFilter == null) {
+            return true;
+        }
+        Boolean registered = registeredPaths.get(keyPath);
+        if (registered == null) {
+            registered = currentKeyFilter.hasChildRegistered(keyPath);
+            registeredPaths.put(keyPath, registered);
+        }
+        return registered;
+    }
 
-            recursiveCellLoad(cell);
+    /**
+     * Decodes the values and value data of all loaded keys, so they are still
+     * available after this file is closed. As cells are only read afterwards,
+     * the closed file can be shared by many threads.
+     */
+    public void loadValues() {
+        for (HiveCell cell : new ArrayList<>(readCells.values())) {
+            if (cell == null || !(cell.cellContent instanceof KeyNode)) {
+                continue;
+            }
+            try {
+                for (KeyValue value : ((KeyNode) cell.cellContent).getValues()) {
+                    if (value != null) {
+                        value.getValueData();
+                    }
+                }
+            } catch (RuntimeException e) {
+                // corrupted cells, accessing them later fails as before
+            }
         }
     }
 
-    private void recursiveCellLoad(HiveCell cell) {
-        ArrayList<Integer> dataOffsets = cell.cellContent.getSubCellsOffsets();
-        for (Iterator iterator2 = dataOffsets.iterator(); iterator2.hasNext();) {
-            int offset = (Integer) iterator2.next();
-            HiveCell subcell = loadCell(offset);
-            readCells.put(offset, subcell);
-            recursiveCellLoad(subcell);
+    /**
+     * Closes the hive file. Cells not decoded yet are not available anymore.
+     */
+    @Override
+    public void close() throws IOException {
+        if (ras != null) {
+            ras.close();
+            ras = null;
         }
+        pageCache.clear();
     }
 
     public HiveCell readCell(FileChannel fis) throws IOException {
@@ -172,34 +274,41 @@ public HiveCell readCell(FileChannel fis) throws IOException {
         bb = ByteBuffer.wrap(buffer);
         fis.read(bb);
 
+        cell.cellContent = createCellContent(buffer);
+
+        return cell;
+    }
+
+    private CellContent createCellContent(byte[] buffer) {
         String celltype = new String(Arrays.copyOf(buffer, 2));
         switch (celltype) {
             case "nk":
-                cell.cellContent = new KeyNode(this, buffer);
-                break;
+                return new KeyNode(this, buffer);
             case "vk":
-                cell.cellContent = new KeyValue(this, buffer);
-                break;
+                return new KeyValue(this, buffer);
             case "db":
-                cell.cellContent = new BigData(this, buffer);
-                break;
+                return new BigData(this, buffer);
             case "lf":
             case "lh":
-                cell.cellContent = new SubKeysList(this, buffer);
-                break;
+                return new SubKeysList(this, buffer);
             case "ri":
-                cell.cellContent = new IndexRoot(this, buffer);
-                break;
+                return new IndexRoot(this, buffer);
             default:
-                cell.cellContent = new DataCell(this, buffer);
-                break;
+                return new DataCell(this, buffer);
         }
-
-        return cell;
     }
 
+    /**
+     * Returns the cell at the given offset, decoding it on first access if the
+     * file is still open. Key nodes filtered out on load are not returned.
+     */
     public HiveCell getCell(int offset) {
-        return readCells.get(offset);
+        HiveCell cell = readCells.get(offset);
+        if (cell == null && ras != null && !readCells.containsKey(offset) && !skippedKeys.contains(offset)) {
+            cell = loadCell(offset);
+            readCells.put(offset, cell);
+        }
+        return cell;
     }
 
     public HiveCell getRootCell() {
@@ -207,6 +316,23 @@ public HiveCell getRootCell() {
     }
 
     public KeyNode findKeyNode(String path) {
+        StringBuilder keyPath = new StringBuilder(ROOT_PATH);
+        StringTokenizer st = new StringTokenizer(path, "/\\");
+        while (st.hasMoreTokens()) {
+            keyPath.append('/').append(st.nextToken());
+        }
+        Integer offset = keyOffsets.get(keyPath.toString());
+        if (offset != null) {
+            return (KeyNode) getCell(offset).getCellContent();
+        }
+        if (!keyOffsets.isEmpty()) {
+            // only keys indexed on load are reachable
+            return null;
+        }
+        return findKeyNodeFromRoot(path);
+    }
+
+    private KeyNode findKeyNodeFromRoot(String path) {
         KeyNode k = (KeyNode) getRootCell().getCellContent();
         StringTokenizer st = new StringTokenizer(path, "/\\");
         boolean achou = true;
@@ -216,7 +342,7 @@ public KeyNode findKeyNode(String path) {
                 String tok = st.nextToken();
                 ArrayList<KeyNode> ks = k.getSubKeys();
                 achou = false;
-                for (int i = 0; i < ks.size(); i++) {
+                for (int i = 0; ks != null && i < ks.size(); i++) {
                     KeyNode sub = ks.get(i);
 
                     if (tok.equals(sub.getKeyName())) {
@@ -117,11 +117,24 @@ public void close() throws SQLException {
             };
 
         } catch (SQLException e) {
+            IOUtil.closeQuietly(tmp);
             throw new IOException(e.getMessage());
         }
         return connection;
     }
 
+    /**
+     * Gets the file of the stream, exporting the wal/journal of the item next to
+     * it.
+     */
+    public static File getDatabaseFile(TikaInputStream tis, IItemReader item, ParseContext context,
+            TemporaryResources tmp) throws IOException {
+        File dbFile = tis.getFile();
+        exportRelatedFile(dbFile, item, "-wal", context, tmp);
+        exportRelatedFile(dbFile, item, "-journal", context, tmp);
+        return dbFile;
+    }
+
     public static File exportWalLog(File dbFile, ParseContext context, TemporaryResources tmp) {
         return exportRelatedFile(dbFile, "-wal", context, tmp);
     }
@@ -131,46 +144,58 @@ public static File exportRollbackJournal(File dbFile, ParseContext context, Temp
     }
     
     private static File exportRelatedFile(File theFile, String suffix, ParseContext context, TemporaryResources tmp) {
-        IItemSearcher searcher = context.get(IItemSearcher.class);
-        if (searcher != null) {
-            IItemReader parsingItem = context.get(IItemReader.class);
-            if (parsingItem != null) {
-                String parsingFilePath = parsingItem.getPath();
-                String relatedFileName = parsingItem.getName() + suffix;
-                String relatedFileQuery = BasicProps.PATH + ":\"" + searcher.escapeQuery(parsingFilePath + suffix) + "\"";
-                List<IItemReader> items = searcher.search(relatedFileQuery);
-                if (items.size() > 0) {
-                    IItemReader relatedItem = null;
-                    // Pick the journal/wal, prioritizing the same deleted status.
-                    for (IItemReader item : items) {
-                        if (item.isDir() || !relatedFileName.equalsIgnoreCase(item.getName())) {
-                            // Ignore folders or items with name that doesn't match SQLite name (see #1791)
-                            continue;
-                        }
-                        if (relatedItem == null || item.isDeleted() == parsingItem.isDeleted()) {
-                            relatedItem = item;
-                        }
-                    }
-                    if (relatedItem != null) {
-                        File relatedFileTemp = new File(theFile.getAbsolutePath() + suffix);
-                        try (InputStream in = relatedItem.getBufferedInputStream()) {
-                            Files.copy(in, relatedFileTemp.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                        if (null != tmp) {
-                            tmp.addResource(() -> {
-                                relatedFileTemp.delete();
-                            });
-                        }
-                        return relatedFileTemp;
-                    }
-                }
+        return exportRelatedFile(theFile, context.get(IItemReader.class), suffix, context, tmp);
+    }
+
+    private static File exportRelatedFile(File theFile, IItemReader parsingItem, String suffix, ParseContext context,
+            TemporaryResources tmp) {
+        IItemReader relatedItem = findRelatedItem(parsingItem, suffix, context.get(IItemSearcher.class));
+        if (relatedItem != null) {
+            File relatedFileTemp = new File(theFile.getAbsolutePath() + suffix);
+            try (InputStream in = relatedItem.getBufferedInputStream()) {
+                Files.copy(in, relatedFileTemp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+            if (null != tmp) {
+                tmp.addResource(() -> {
+                    relatedFileTemp.delete();
+                });
+            }
+            return relatedFileTemp;
         }
         return null;
     }
 
+    /**
+     * Finds the wal/journal item of a database item.
+     *
+     * @param suffix
+     *            "-wal" or "-journal"
+     * @return the related item or null if not found.
+     */
+    private static IItemReader findRelatedItem(IItemReader parsingItem, String suffix, IItemSearcher searcher) {
+        if (searcher == null || parsingItem == null) {
+            return null;
+        }
+        String parsingFilePath = parsingItem.getPath();
+        String relatedFileName = parsingItem.getName() + suffix;
+        String relatedFileQuery = BasicProps.PATH + ":\"" + searcher.escapeQuery(parsingFilePath + suffix) + "\"";
+        List<IItemReader> items = searcher.search(relatedFileQuery);
+        IItemReader relatedItem = null;
+        // Pick the journal/wal, prioritizing the same deleted status.
+        for (IItemReader item : items) {
+            if (item.isDir() || !relatedFileName.equalsIgnoreCase(item.getName())) {
+                // Ignore folders or items with name that doesn't match SQLite name (see #1791)
+                continue;
+            }
+            if (relatedItem == null || item.isDeleted() == parsingItem.isDeleted()) {
+                relatedItem = item;
+            }
+        }
+        return relatedItem;
+    }
+
     @Override
     protected String getConnectionString(InputStream stream, Metadata metadata, ParseContext context)
             throws IOException {
@@ -160,11 +160,9 @@ private List<Chat> extractChatList(InputStream stream, ContentHandler handler, M
                 }
 
                 tis = TikaInputStream.get(stream, tmp);
-                File tempDbFile = tis.getFile();
+                File tempDbFile = getDatabaseFile(tis, context.get(IItemReader.class), context, tmp);
                 ThreemaAccount account = getUserAccount(searcher);
 
-                exportWalLog(tempDbFile, context, tmp);
-                exportRollbackJournal(tempDbFile, context, tmp);
                 extractorIOSFactory.setConnectionParams(tis, metadata, context, this);
                 Extractor threemaExtractor = extractorIOSFactory.createMessageExtractor(tmp, filePath, tempDbFile, account, recoverDeletedRecords);
                 List<Chat> chatList = threemaExtractor.getChatList();
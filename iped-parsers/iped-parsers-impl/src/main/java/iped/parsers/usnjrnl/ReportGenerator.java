@@ -1,14 +1,15 @@
 package iped.parsers.usnjrnl;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -98,10 +99,30 @@ public InputStream createHTMLReport(List<UsnJrnlEntry> entries) {
     }
 
     public InputStream createCSVReport(List<UsnJrnlEntry> entries, TemporaryResources tmp) throws IOException {
-        Path path = tmp.createTempFile();
-        try (OutputStream os = Files.newOutputStream(path);
-                Writer writer = new OutputStreamWriter(os, StandardCharsets.UTF_8);
-                PrintWriter out = new PrintWriter(writer);) {
+        try (CSVReport report = startCSVReport(tmp)) {
+            report.write(entries);
+            return report.getInputStream();
+        }
+    }
+
+    public CSVReport startCSVReport(TemporaryResources tmp) throws IOException {
+        return new CSVReport(tmp);
+    }
+
+    /**
+     * CSV report written incrementally, so entries can be discarded after each
+     * batch is written.
+     */
+    public class CSVReport implements Closeable {
+
+        private Path path;
+        private OutputStream os;
+        private PrintWriter out;
+
+        private CSVReport(TemporaryResources tmp) throws IOException {
+            path = tmp.createTempFile();
+            os = new BufferedOutputStream(Files.newOutputStream(path));
+            out = new PrintWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
             byte[] utf8bom = { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
             os.write(utf8bom);
             boolean first = true;
@@ -113,6 +134,9 @@ public InputStream createCSVReport(List<UsnJrnlEntry> entries, TemporaryResource
                     out.print(";" + col);
                 }
             }
+        }
+
+        public void write(List<UsnJrnlEntry> entries) throws IOException {
             for (UsnJrnlEntry u : entries) {
                 out.print("\n");
                 out.print(String.format("0x%016X", u.getOffset()) + ";");
@@ -127,9 +151,26 @@ public InputStream createCSVReport(List<UsnJrnlEntry> entries, TemporaryResource
                 out.print(u.getSourceInformation() + ";");
                 out.print(u.getSecurityId());
             }
+            if (out.checkError()) {
+                throw new IOException("Error writing USN journal report to " + path);
+            }
         }
 
-        return new BufferedInputStream(Files.newInputStream(path));
+        /**
+         * Closes the report and returns its content.
+         */
+        public InputStream getInputStream() throws IOException {
+            close();
+            return new BufferedInputStream(Files.newInputStream(path));
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
     }
 
 }
@@ -8,7 +8,6 @@
 import java.util.List;
 import java.util.Set;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.tika.config.Field;
 import org.apache.tika.exception.TikaException;
 import org.apache.tika.extractor.EmbeddedDocumentExtractor;
@@ -47,6 +46,8 @@ public enum ReportType {
     // max entries for html report or parent search
     private static final int MAX_ENTRIES = 10000;
 
+    private static final String REPORT_NAME = "USN Journal Report";
+
     // Option to extract each registry as a sub item.
     private boolean extractEntries = false;
 
@@ -67,96 +68,14 @@ public void setExtractEntries(boolean extractEntries) {
         this.extractEntries = extractEntries;
     }
 
-    public boolean findNextEntry(SeekableInputStream in) throws IOException {
-        byte[] b = new byte[8];
-        int rb = 0;
-        do {
-            long pos = in.position();
-            rb = IOUtils.read(in, b, 0, 8);
-
-            // if all zeros read next 8 bytes
-            if (Util.zero(b)) {
-                continue;
-            }
-
-            in.seek(pos);
-            // usn entry version 2.0
-            if (b[4] == 2 && (b[5] | b[6] | b[7]) == 0) {
-                return true;
-            }
-            // usn entry version 3.0
-            if (b[4] == 3 && (b[5] | b[6] | b[7]) == 0) {
-                return true;
-            }
-            // advances one byte
-            in.read();
-
-        } while (rb > 0);
-
-        return false;
-    }
-
-    public UsnJrnlEntry readEntry(SeekableInputStream in) throws IOException {
-        long pos = in.position();
-        int tam = (int) Util.readInt32(in);
-
-        if (tam > 0) {
-            UsnJrnlEntry u = new UsnJrnlEntry();
-            u.setTam(tam);
-            u.setOffset(pos);
-            u.setMajorVersion(Util.readInt16(in));
-            u.setMinorVersion(Util.readInt16(in));
-            int filerefLen = 8;
-            if (u.getMajorVersion() == 3) {
-                filerefLen = 16;
-            }
-            u.setMftRef(IOUtils.readFully(in, filerefLen));
-            u.setParentMftRef(IOUtils.readFully(in, filerefLen));
-            u.setUSN(Util.readInt64(in));
-            long filetime = Util.readInt64(in);
-            u.setFileTime(filetime);
-            u.setReasonFlag(Util.readInt32(in));
-            u.setSourceInformation(Util.readInt32(in));
-            u.setSecurityId(Util.readInt32(in));
-            u.setFileAttributes(Util.readInt32(in));
-            u.setSizeofFileName(Util.readInt16(in));
-            u.setOffsetFilename(Util.readInt16(in));
-            // invalid registry
-            if (u.getOffsetFilename() + u.getSizeofFileName() > tam) {
-                return null;
-            } else {
-                u.setFileName(Util.readString(in, u.getSizeofFileName()));
-            }
-            if (in.position() < pos + tam) {
-                in.seek(pos + tam);
-            }
-
-            return u;
-        }
-        return null;
-    }
-
-    private void createReport(ArrayList<UsnJrnlEntry> entries, int n, ParseContext context, ContentHandler handler)
-            throws SAXException, IOException {
-        ReportGenerator rg = new ReportGenerator();
+    private void createReport(InputStream is, MediaType reportMimeType, String name, ParseContext context,
+            ContentHandler handler) throws SAXException, IOException {
         EmbeddedDocumentExtractor extractor = context.get(EmbeddedDocumentExtractor.class,
                 new ParsingEmbeddedDocumentExtractor(context));
 
         Metadata cMetadata = new Metadata();
-        String name = "USN Journal Report";
-
-        InputStream is = null;
-        try (TemporaryResources tmp = new TemporaryResources()) {
-            if (reportType == ReportType.CSV) {
-                cMetadata.set(StandardParser.INDEXER_CONTENT_TYPE, USNJRNL_REPORT_CSV.toString());
-                is = rg.createCSVReport(entries, tmp);
-
-            } else if (reportType == ReportType.HTML) {
-                cMetadata.set(StandardParser.INDEXER_CONTENT_TYPE, USNJRNL_REPORT_HTML.toString());
-                is = rg.createHTMLReport(entries);
-                name += " " + n;
-            }
-
+        try {
+            cMetadata.set(StandardParser.INDEXER_CONTENT_TYPE, reportMimeType.toString());
             cMetadata.set(ExtraProperties.DECODED_DATA, Boolean.TRUE.toString());
             cMetadata.set(TikaCoreProperties.TITLE, name);
             extractor.parseEmbedded(is, handler, cMetadata, false);
@@ -164,104 +83,98 @@ private void createReport(ArrayList<UsnJrnlEntry> entries, int n, ParseContext c
         } finally {
             IOUtil.closeQuietly(is);
         }
-
-        /**
-         * Optionally extract entries as subitems
-         */
-        if (extractEntries) {
-            for (UsnJrnlEntry entry : entries) {
-                extractor = context.get(EmbeddedDocumentExtractor.class, new ParsingEmbeddedDocumentExtractor(context));
-                Metadata metadataItem = new Metadata();
-                metadataItem.set(StandardParser.INDEXER_CONTENT_TYPE, USNJRNL_REGISTRY.toString());
-                metadataItem.set(TikaCoreProperties.TITLE, "USN journal Entry " + entry.getUSN());
-                metadataItem.set(BasicProps.LENGTH, "");
-                metadataItem.set(ExtraProperties.DECODED_DATA, Boolean.TRUE.toString());
-
-                String[] props = ReportGenerator.cols;
-
-                metadataItem.set(TikaCoreProperties.CREATED, rg.timeFormat.format(entry.getFileTime()));
-                metadataItem.set(ReportGenerator.cols[0], String.format("0x%016X", entry.getOffset()));
-                metadataItem.set(props[1], entry.getFileName());
-                metadataItem.set(props[2], entry.getFullPath());
-                metadataItem.set(props[3], Long.toString(entry.getUSN()));
-                for (String value : entry.getReasons()) {
-                    metadataItem.add(props[5], value);
-                }
-                metadataItem.set(props[6], "0x" + Util.byteArrayToHex(entry.getMftRef()));
-                metadataItem.set(props[7], "0x" + Util.byteArrayToHex(entry.getParentMftRef()));
-                for (String value : entry.getHumanAttributes()) {
-                    metadataItem.add(props[8], value);
-                }
-                metadataItem.set(props[9], Long.toString(entry.getSourceInformation()));
-                metadataItem.set(props[10], Long.toString(entry.getSecurityId()));
-                extractor.parseEmbedded(new EmptyInputStream(), handler, metadataItem, false);
-
-            }
-        }
     }
 
-    private static final int READ_PAGE = 0XFFFF;
-
-    public long jumpZeros(SeekableInputStream in, long start, long end) throws IOException {
-
-        long pos = (start + end) / 2;
-        in.seek(pos);
+    /**
+     * Optionally extract entries as subitems
+     */
+    private void extractEntries(List<UsnJrnlEntry> entries, ReportGenerator rg, ParseContext context,
+            ContentHandler handler) throws SAXException, IOException {
+        for (UsnJrnlEntry entry : entries) {
+            EmbeddedDocumentExtractor extractor = context.get(EmbeddedDocumentExtractor.class,
+                    new ParsingEmbeddedDocumentExtractor(context));
+            Metadata metadataItem = new Metadata();
+            metadataItem.set(StandardParser.INDEXER_CONTENT_TYPE, USNJRNL_REGISTRY.toString());
+            metadataItem.set(TikaCoreProperties.TITLE, "USN journal Entry " + entry.getUSN());
+            metadataItem.set(BasicProps.LENGTH, "");
+            metadataItem.set(ExtraProperties.DECODED_DATA, Boolean.TRUE.toString());
+
+            String[] props = ReportGenerator.cols;
+
+            metadataItem.set(TikaCoreProperties.CREATED, rg.timeFormat.format(entry.getFileTime()));
+            metadataItem.set(ReportGenerator.cols[0], String.format("0x%016X", entry.getOffset()));
+            metadataItem.set(props[1], entry.getFileName());
+            metadataItem.set(props[2], entry.getFullPath());
+            metadataItem.set(props[3], Long.toString(entry.getUSN()));
+            for (String value : entry.getReasons()) {
+                metadataItem.add(props[5], value);
+            }
+            metadataItem.set(props[6], "0x" + Util.byteArrayToHex(entry.getMftRef()));
+            metadataItem.set(props[7], "0x" + Util.byteArrayToHex(entry.getParentMftRef()));
+            for (String value : entry.getHumanAttributes()) {
+                metadataItem.add(props[8], value);
+            }
+            metadataItem.set(props[9], Long.toString(entry.getSourceInformation()));
+            metadataItem.set(props[10], Long.toString(entry.getSecurityId()));
+            extractor.parseEmbedded(new EmptyInputStream(), handler, metadataItem, false);
 
-        byte buff[] = new byte[READ_PAGE];
-        int rb = IOUtils.read(in, buff, 0, READ_PAGE);
-        if (Util.zero(buff) && rb == READ_PAGE) {
-            return jumpZeros(in, pos, end);
-        } else {
-            in.seek(start);
-            do {
-                rb = IOUtils.read(in, buff, 0, READ_PAGE);
-            } while (Util.zero(buff) && rb == READ_PAGE);
-            pos = in.position() - rb;
-            in.seek(pos);
-            return pos;
         }
-
     }
 
     @Override
     public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context)
             throws IOException, SAXException, TikaException {
 
-        ArrayList<UsnJrnlEntry> entries = new ArrayList<>();
-        int n = 1;
         IItemSearcher searcher = context.get(IItemSearcher.class);
         IItemReader item = context.get(IItemReader.class);
-        try (SeekableInputStream sis = item.getSeekableInputStream()) {
-            jumpZeros(sis, 0, sis.size());
-            while (findNextEntry(sis)) {
-                UsnJrnlEntry u = readEntry(sis);
-                // do not insert empty registries in the list
-                if (u == null) {
-                    continue;
-                }
-                
-                entries.add(u);
+        ReportGenerator rg = new ReportGenerator();
 
-                if (entries.size() % MAX_ENTRIES == 0) {
-                    int baseIndex = ((entries.size() / MAX_ENTRIES) - 1) * MAX_ENTRIES;
-                    rebuildFullPaths(entries.subList(baseIndex, baseIndex + MAX_ENTRIES), searcher, item);
-                }
+        // entries are decoded, resolved and written to the report in batches
+        ArrayList<UsnJrnlEntry> entries = new ArrayList<>();
+        // only kept to be extracted after the CSV report
+        ArrayList<UsnJrnlEntry> entriesToExtract = new ArrayList<>();
+        long numEntries = 0;
+        int n = 1;
 
-                // limits the html table size
-                if (entries.size() == MAX_ENTRIES && reportType == ReportType.HTML) {
-                    createReport(entries, n, context, handler);
+        try (TemporaryResources tmp = new TemporaryResources();
+                SeekableInputStream sis = item.getSeekableInputStream();
+                ReportGenerator.CSVReport csvReport = reportType == ReportType.CSV ? rg.startCSVReport(tmp) : null) {
+
+            UsnJrnlReader reader = new UsnJrnlReader(sis);
+            UsnJrnlEntry u;
+            do {
+                u = reader.next();
+                if (u != null) {
+                    entries.add(u);
+                }
+                if (entries.size() == MAX_ENTRIES || (u == null && !entries.isEmpty())) {
+                    rebuildFullPaths(entries, searcher, item);
+                    numEntries += entries.size();
+
+                    if (reportType == ReportType.CSV) {
+                        csvReport.write(entries);
+                        if (extractEntries) {
+                            entriesToExtract.addAll(entries);
+                        }
+                    } else if (reportType == ReportType.HTML) {
+                        // limits the html table size
+                        createReport(rg.createHTMLReport(entries), USNJRNL_REPORT_HTML, REPORT_NAME + " " + n,
+                                context, handler);
+                        if (extractEntries) {
+                            extractEntries(entries, rg, context, handler);
+                        }
+                        n++;
+                    }
                     entries.clear();
-                    n++;
                 }
-            }
-        }
+            } while (u != null);
 
-        if (entries.size() > 0) {
-            if (entries.size() % MAX_ENTRIES != 0) {
-                int baseIndex = (entries.size() / MAX_ENTRIES) * MAX_ENTRIES;
-                rebuildFullPaths(entries.subList(baseIndex, entries.size()), searcher, item);
+            if (reportType == ReportType.CSV && numEntries > 0) {
+                createReport(csvReport.getInputStream(), USNJRNL_REPORT_CSV, REPORT_NAME, context, handler);
+                if (extractEntries) {
+                    extractEntries(entriesToExtract, rg, context, handler);
+                }
             }
-            createReport(entries, n, context, handler);
         }
 
     }
@@ -0,0 +1,168 @@
+package iped.parsers.usnjrnl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+
+import iped.io.SeekableInputStream;
+
+/**
+ * Reads USN journal entries from big blocks of the $J stream, decoding them in
+ * place, instead of issuing small reads for each field. Sparse (zeroed) regions
+ * are skipped by scanning whole blocks 8 bytes at a time.
+ */
+public class UsnJrnlReader {
+
+    private static final int BLOCK_SIZE = 1 << 20;
+
+    private static final int READ_PAGE = 0XFFFF;
+
+    private final SeekableInputStream in;
+
+    private byte[] block = new byte[BLOCK_SIZE];
+    private ByteBuffer bb = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+    private long blockStart = 0;
+    private int blockLen = 0;
+
+    private long pos = 0;
+
+    public UsnJrnlReader(SeekableInputStream in) throws IOException {
+        this.in = in;
+        this.pos = jumpZeros(0, in.size());
+    }
+
+    /**
+     * Finds the end of the sparse region at the start of the journal by binary
+     * search.
+     */
+    private long jumpZeros(long start, long end) throws IOException {
+
+        long pos = (start + end) / 2;
+        in.seek(pos);
+
+        byte buff[] = new byte[READ_PAGE];
+        int rb = IOUtils.read(in, buff, 0, READ_PAGE);
+        if (Util.zero(buff) && rb == READ_PAGE) {
+            return jumpZeros(pos, end);
+        } else {
+            in.seek(start);
+            do {
+                rb = IOUtils.read(in, buff, 0, READ_PAGE);
+            } while (Util.zero(buff) && rb == READ_PAGE);
+            return in.position() - rb;
+        }
+
+    }
+
+    /**
+     * Makes the bytes [pos, pos + len) available in the current block, reading a
+     * new block starting at pos if needed.
+     *
+     * @return false if the stream ends before pos + len.
+     */
+    private boolean ensure(long pos, int len) throws IOException {
+        if (pos >= blockStart && pos + len <= blockStart + blockLen) {
+            return true;
+        }
+        if (len > block.length) {
+            block = new byte[len];
+            bb = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        in.seek(pos);
+        blockStart = pos;
+        blockLen = IOUtils.read(in, block, 0, block.length);
+        return len <= blockLen;
+    }
+
+    /**
+     * @return the next valid entry or null if there are no more entries.
+     */
+    public UsnJrnlEntry next() throws IOException {
+        while (ensure(pos, 8)) {
+            int off = (int) (pos - blockStart);
+            if (bb.getLong(off) == 0) {
+                // skips the whole zeroed run in this block
+                off += 8;
+                while (off + 8 <= blockLen && bb.getLong(off) == 0) {
+                    off += 8;
+                }
+                pos = blockStart + off;
+                continue;
+            }
+            // usn entry version 2.0 or 3.0
+            if ((block[off + 4] == 2 || block[off + 4] == 3) && (block[off + 5] | block[off + 6] | block[off + 7]) == 0) {
+                UsnJrnlEntry u = readEntry();
+                if (u != null) {
+                    return u;
+                }
+            } else {
+                // advances one byte
+                pos++;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes the entry at the current position and moves to the position after
+     * it, or after the fields read if the entry is invalid.
+     */
+    private UsnJrnlEntry readEntry() throws IOException {
+        long start = pos;
+        int off = (int) (pos - blockStart);
+        int tam = bb.getInt(off);
+        if (tam <= 0) {
+            pos += 4;
+            return null;
+        }
+        int majorVersion = bb.getShort(off + 4) & 0xFFFF;
+        int filerefLen = majorVersion == 3 ? 16 : 8;
+        int headerLen = 44 + 2 * filerefLen;
+        if (!ensure(start, headerLen)) {
+            pos = in.size();
+            return null;
+        }
+        off = (int) (start - blockStart);
+
+        UsnJrnlEntry u = new UsnJrnlEntry();
+        u.setTam(tam);
+        u.setOffset(start);
+        u.setMajorVersion(majorVersion);
+        u.setMinorVersion(bb.getShort(off + 6) & 0xFFFF);
+        off += 8;
+        u.setMftRef(Arrays.copyOfRange(block, off, off + filerefLen));
+        off += filerefLen;
+        u.setParentMftRef(Arrays.copyOfRange(block, off, off + filerefLen));
+        off += filerefLen;
+        u.setUSN(bb.getLong(off));
+        u.setFileTime(bb.getLong(off + 8));
+        u.setReasonFlag(bb.getInt(off + 16) & 0xFFFFFFFFL);
+        u.setSourceInformation(bb.getInt(off + 20) & 0xFFFFFFFFL);
+        u.setSecurityId(bb.getInt(off + 24) & 0xFFFFFFFFL);
+        u.setFileAttributes(bb.getInt(off + 28) & 0xFFFFFFFFL);
+        u.setSizeofFileName(bb.getShort(off + 32) & 0xFFFF);
+        u.setOffsetFilename(bb.getShort(off + 34) & 0xFFFF);
+
+        // invalid registry
+        if (u.getOffsetFilename() + u.getSizeofFileName() > tam) {
+            pos = start + headerLen;
+            return null;
+        }
+
+        int nameLen = u.getSizeofFileName();
+        if (!ensure(start, headerLen + nameLen)) {
+            // truncated name at the end of the stream
+            nameLen = Math.max(0, blockLen - (int) (start - blockStart) - headerLen);
+        }
+        off = (int) (start - blockStart) + headerLen;
+        u.setFileName(new String(block, off, nameLen, StandardCharsets.UTF_16LE));
+
+        pos = Math.max(start + tam, start + headerLen + nameLen);
+        return u;
+    }
+
+}
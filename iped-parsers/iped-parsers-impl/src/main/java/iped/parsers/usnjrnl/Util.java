@@ -7,12 +7,16 @@
 import org.apache.commons.io.IOUtils;
 
 public class Util {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     public static String byteArrayToHex(byte[] a) {
-        StringBuilder sb = new StringBuilder(a.length * 2);
-        for (byte b : a) {
-            sb.append(String.format("%02x", b));
+        char[] chars = new char[a.length * 2];
+        for (int i = 0; i < a.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(a[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX_DIGITS[a[i] & 0xF];
         }
-        return sb.toString();
+        return new String(chars);
     }
 
     public static int readInt16(InputStream in) throws IOException {
@@ -372,13 +372,11 @@ private void parseWhatsappMessages(InputStream stream, ContentHandler handler, M
                 String dbPath = ((ItemInfo) context.get(ItemInfo.class)).getPath();
                 WAAccount account = getUserAccount(searcher, dbPath, extFactory instanceof ExtractorAndroidFactory);
 
-                File tempDbFile = tis.getFile();
-                exportWalLog(tempDbFile, context, tmp);
-                exportRollbackJournal(tempDbFile, context, tmp);
+                File tempDbFile = getDatabaseFile(tis, context.get(IItemReader.class), context, tmp);
                 extFactory.setConnectionParams(tis, metadata, context, this);
                 Extractor waExtractor = extFactory.createMessageExtractor(filePath, tempDbFile, contacts, account, recoverDeletedRecords);
                 List<Chat> chatList = waExtractor.getChatList();
-                createReport(chatList, searcher, contacts, handler, extractor, account, tis.getFile(), context);
+                createReport(chatList, searcher, contacts, handler, extractor, account, tempDbFile, context);
 
             } catch (Exception e) {
                 sqliteParser.parse(tis, handler, metadata, context);
@@ -527,14 +525,11 @@ private List<Chat> extractChatList(WhatsAppContext wcontext, ExtractorFactory ex
             throws WAExtractorException, IOException, SQLException {
         try (TemporaryResources tmp = new TemporaryResources()) {
             TikaInputStream tis = TikaInputStream.get(wcontext.getItem().getSeekableInputStream(), tmp);
-            File tempFile = tis.getFile();
+            File tempFile = getDatabaseFile(tis, wcontext.getItem(), context, tmp);
 
             String filePath = null;
             filePath = wcontext.getItem().getPath();
 
-            exportWalLog(tempFile, context, tmp);
-            exportRollbackJournal(tempFile, context, tmp);
-
             extFactory.setConnectionParams(tis, metadata, context, this);
             Extractor waExtractor = extFactory.createMessageExtractor(filePath, tempFile, contacts, account, recoverDeletedRecords);
             return waExtractor.getChatList();
@@ -1138,9 +1133,7 @@ private void parseWhatsAppContacts(InputStream stream, ContentHandler handler, M
 
         if (extractor.shouldParseEmbedded(metadata)) {
             TikaInputStream tis = TikaInputStream.get(stream, tmp);
-            File contactDbFile = tis.getFile();
-            exportWalLog(contactDbFile, context, tmp);
-            exportRollbackJournal(contactDbFile, context, tmp);
+            File contactDbFile = getDatabaseFile(tis, context.get(IItemReader.class), context, tmp);
             try {
                 WAContactsExtractor waExtractor = extFactory.createContactsExtractor(contactDbFile, recoverDeletedRecords);
                 waExtractor.extractContactList();
@@ -0,0 +1,72 @@
+package iped.parsers.evtx.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class EvtxFileTest {
+
+    private static byte[] readTestFile() throws IOException {
+        try (InputStream is = EvtxFileTest.class.getResourceAsStream("/test-files/test_evtxLog.evtx")) {
+            return is.readAllBytes();
+        }
+    }
+
+    /**
+     * @return the consumed records followed by the class of the exception thrown,
+     *         if any.
+     */
+    private static List<String> readRecords(byte[] data, boolean parallel) throws IOException, EvtxParseException {
+        List<String> records = new ArrayList<>();
+        EvtxFile evtxFile = new EvtxFile(new ByteArrayInputStream(data));
+        evtxFile.setParallel(parallel);
+        evtxFile.setEvtxRecordConsumer(r -> records.add(r.getEventRecordId() + r.getBinXml().toString()));
+        RuntimeException exception = null;
+        try {
+            evtxFile.processFile();
+        } catch (RuntimeException e) {
+            exception = e;
+        }
+        if (exception != null) {
+            records.add(exception.getClass().getName());
+        } else {
+            assertEquals(records.size(), evtxFile.getRecordCount());
+        }
+        return records;
+    }
+
+    private static List<String> readRecords(boolean parallel) throws IOException, EvtxParseException {
+        return readRecords(readTestFile(), parallel);
+    }
+
+    @Test
+    public void testParallelDecodingKeepsOrder() throws IOException, EvtxParseException {
+        List<String> serial = readRecords(false);
+        List<String> parallel = readRecords(true);
+        assertTrue(serial.size() > 0);
+        assertEquals(serial, parallel);
+    }
+
+    @Test
+    public void testParallelDecodingOfCorruptedChunk() throws IOException, EvtxParseException {
+        // overwrites the end of the second chunk, so decoding fails after some of its
+        // records were read
+        byte[] data = readTestFile();
+        int chunkStart = 4096 + 65536;
+        Arrays.fill(data, chunkStart + 9216, chunkStart + 65536, (byte) 0xFF);
+
+        List<String> serial = readRecords(data, false);
+        List<String> parallel = readRecords(data, true);
+        assertEquals(NegativeArraySizeException.class.getName(), serial.get(serial.size() - 1));
+        assertEquals(serial, parallel);
+    }
+
+}
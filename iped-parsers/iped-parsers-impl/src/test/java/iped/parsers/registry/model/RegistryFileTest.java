@@ -0,0 +1,104 @@
+package iped.parsers.registry.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import iped.parsers.registry.keys.RegistryKeyParserFilter;
+
+public class RegistryFileTest {
+
+    private static final String EVENT_LABELS = "ROOT/AppEvents/EventLabels";
+
+    // loads only the EventLabels key, its parents and its subkeys
+    private static final RegistryKeyParserFilter FILTER = path -> EVENT_LABELS.startsWith(path)
+            || path.startsWith(EVENT_LABELS + "/");
+
+    private RegistryFile loadNtUser(RegistryKeyParserFilter filter) throws Exception {
+        File file = new File(getClass().getClassLoader().getResource("test-files/test_ntuser.dat").toURI());
+        RegistryFile rf = new RegistryFile(file);
+        rf.load(filter);
+        return rf;
+    }
+
+    private static String getValue(RegistryFile rf, String keyPath, String valueName) {
+        return rf.findKeyNode(keyPath).getValue(valueName).getValueDataAsString();
+    }
+
+    @Test
+    public void testFilteredLoad() throws Exception {
+        try (RegistryFile rf = loadNtUser(FILTER)) {
+            assertNotNull(rf.findKeyNode("/AppEvents"));
+            assertNotNull(rf.findKeyNode("/AppEvents/EventLabels/Close"));
+            assertNull(rf.findKeyNode("/AppEvents/Schemes"));
+            assertNull(rf.findKeyNode("/Control Panel/Desktop"));
+
+            KeyNode labels = rf.findKeyNode("/AppEvents/EventLabels");
+            for (KeyNode sub : labels.getSubKeys()) {
+                assertNotNull(sub.getValue("DispFileName"));
+            }
+            // filtered out subkeys are not returned
+            ArrayList<String> names = new ArrayList<>();
+            for (KeyNode sub : rf.findKeyNode("/AppEvents").getSubKeys()) {
+                names.add(sub.getKeyName());
+            }
+            assertEquals(List.of("EventLabels"), names);
+        }
+    }
+
+    @Test
+    public void testFindKeyNode() throws Exception {
+        try (RegistryFile rf = loadNtUser(path -> true)) {
+            KeyNode close = rf.findKeyNode("/AppEvents/EventLabels/Close");
+            assertEquals("Close", close.getKeyName());
+            assertSame(close, rf.findKeyNode("AppEvents\\EventLabels\\Close"));
+            assertEquals("Close Program", close.getValue("").getValueDataAsString());
+            assertEquals(
+                    "C:\\Users\\vibranium\\AppData\\Roaming\\Microsoft\\Windows\\Themes\\TranscodedWallpaper.jpg",
+                    getValue(rf, "/Control Panel/Desktop", "Wallpaper"));
+            assertNull(rf.findKeyNode("/AppEvents/NotFound"));
+        }
+    }
+
+    @Test
+    public void testValuesAfterClose() throws Exception {
+        RegistryFile rf = loadNtUser(FILTER);
+        rf.loadValues();
+        rf.close();
+
+        assertEquals("@mmres.dll,-5826", getValue(rf, "/AppEvents/EventLabels/Close", "DispFileName"));
+
+        // closed files are only read, so they can be shared
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(() -> {
+                    StringBuilder sb = new StringBuilder();
+                    for (KeyNode sub : rf.findKeyNode("/AppEvents/EventLabels").getSubKeys()) {
+                        for (KeyValue value : sub.getValues()) {
+                            sb.append(value.getValueName()).append('=').append(value.getValueDataAsString());
+                        }
+                    }
+                    return sb.toString();
+                }));
+            }
+            for (Future<String> result : results) {
+                assertEquals(results.get(0).get(), result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+package iped.parsers.usnjrnl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+import org.junit.Test;
+
+import iped.utils.SeekableFileInputStream;
+
+public class UsnJrnlReaderTest {
+
+    @Test
+    public void testReadEntries() throws IOException, URISyntaxException {
+        File file = new File(getClass().getResource("/test-files/test_UsnJrnl.bin").toURI());
+        try (SeekableFileInputStream sis = new SeekableFileInputStream(file)) {
+            UsnJrnlReader reader = new UsnJrnlReader(sis);
+            UsnJrnlEntry first = reader.next();
+            UsnJrnlEntry last = first;
+            int count = 1;
+            for (UsnJrnlEntry u = reader.next(); u != null; u = reader.next()) {
+                last = u;
+                count++;
+            }
+            assertEquals(3084, count);
+            assertEquals(6098518016L, first.getUSN());
+            assertEquals(6098963120L, last.getUSN());
+            assertNull(reader.next());
+        }
+    }
+
+}